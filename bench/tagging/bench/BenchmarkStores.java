@@ -0,0 +1,116 @@
+package tagging.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import tagging.InMemoryUserTagStore;
+import tagging.Tag;
+import tagging.TagSet;
+import tagging.User;
+import tagging.UserTagStore;
+import tagging.storage.LogUserTagStore;
+
+/**
+ * Sets up the stores the benchmarks run against, filled with generated users.
+ */
+final class BenchmarkStores {
+
+	final static String STORE_MEMORY = "memory";
+	final static String STORE_LOG = "log";
+
+	private BenchmarkStores() {
+	}
+
+	/**
+	 * Creates an empty store of the given kind and makes it the process-wide store, closing
+	 * the one a previous benchmark left behind.
+	 *
+	 * @param directory the directory of a log store, which must be empty.
+	 */
+	static UserTagStore install(String kind, Path directory) {
+		UserTagStore.shutdown();
+		UserTagStore store;
+		switch (kind) {
+		case STORE_MEMORY:
+			store = new InMemoryUserTagStore();
+			break;
+		case STORE_LOG:
+			try {
+				store = new LogUserTagStore(directory, false);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException(String.format("Unknown store \"%s\".", kind));
+		}
+		return UserTagStore.initialize(store);
+	}
+
+	/**
+	 * Creates the tags T1 to Tn, so that the rules of {@link User} apply to them.
+	 */
+	static List<Tag> insertTags(UserTagStore store, int count) {
+		List<Tag> tags = new ArrayList<>(count);
+		for (int i = 1; i <= count; i++) {
+			tags.add(store.insertTag("T" + i));
+		}
+		return tags;
+	}
+
+	/**
+	 * Inserts users with a few random tags each.
+	 *
+	 * @return the IDs of the users, in insertion order.
+	 */
+	static List<String> insertUsers(UserTagStore store, List<Tag> tags, int count, int tagsPerUser, long seed) {
+		Random random = new Random(seed);
+		List<String> names = new ArrayList<>(count);
+		List<TagSet> tagSets = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			names.add("user" + i);
+			tagSets.add(randomTags(tags, tagsPerUser, random));
+		}
+		List<String> userIDs = new ArrayList<>(count);
+		for (User user : store.insertUsers(names, tagSets)) {
+			userIDs.add(user.getID());
+		}
+		return userIDs;
+	}
+
+	static TagSet randomTags(List<Tag> tags, int count, Random random) {
+		List<Tag> chosen = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			chosen.add(tags.get(random.nextInt(tags.size())));
+		}
+		return TagSet.of(chosen);
+	}
+
+	static Path createDirectory() {
+		try {
+			return Files.createTempDirectory("tagging-bench");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static void deleteDirectory(Path directory) {
+		if (directory == null) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
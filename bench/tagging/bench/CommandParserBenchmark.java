@@ -0,0 +1,125 @@
+package tagging.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tagging.Tag;
+import tagging.UserTagStore;
+import tagging.parsing.CommandParser;
+import tagging.parsing.CommandParserException;
+
+/**
+ * Parses and runs single command lines against an in-memory store, so that the cost of
+ * tokenizing, tag resolution, rule checks and response formatting shows without any I/O.
+ *
+ * A "%s" in a command line is replaced by the ID of an existing user.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandParserBenchmark {
+
+	private final static int USERS = 1000;
+	private final static int TAGS = 16;
+
+	@State(Scope.Benchmark)
+	public static class Store {
+		String userID;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			UserTagStore store = BenchmarkStores.install(BenchmarkStores.STORE_MEMORY, null);
+			List<Tag> tags = BenchmarkStores.insertTags(store, TAGS);
+			List<String> userIDs = BenchmarkStores.insertUsers(store, tags, USERS, 3, 42);
+			store.buildTagIndex();
+			userID = userIDs.get(USERS / 2);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			UserTagStore.shutdown();
+		}
+	}
+
+	/**
+	 * The store of "create user", started over every iteration so that the users it keeps
+	 * do not pile up.
+	 */
+	@State(Scope.Benchmark)
+	public static class EmptyStore {
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			UserTagStore store = BenchmarkStores.install(BenchmarkStores.STORE_MEMORY, null);
+			BenchmarkStores.insertTags(store, TAGS);
+			store.buildTagIndex();
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			UserTagStore.shutdown();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ReadCommand {
+		@Param({ "show user %s", "show users", "show tags", "find user %s T1 T2", "find users T1 T2",
+				"find count T1 T2", "query (T1 AND T2) OR NOT T4", "query limit 10 T5 AND NOT T6", "stats tags",
+				"help" })
+		public String command;
+
+		String line;
+
+		@Setup(Level.Trial)
+		public void setUp(Store store) {
+			line = String.format(command, store.userID);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Response {
+		final StringBuilder out = new StringBuilder();
+	}
+
+	@Benchmark
+	public int readCommand(ReadCommand command, Response response) throws CommandParserException, IOException {
+		response.out.setLength(0);
+		CommandParser.parseLine(command.line, response.out);
+		return response.out.length();
+	}
+
+	/**
+	 * Adds and removes a tag that no rule covers, so that both write commands succeed.
+	 */
+	@Benchmark
+	public int addAndRemoveTags(Store store, Response response) throws CommandParserException, IOException {
+		response.out.setLength(0);
+		CommandParser.parseLine("add tags T7 " + store.userID, response.out);
+		CommandParser.parseLine("remove tags T7 " + store.userID, response.out);
+		return response.out.length();
+	}
+
+	@Benchmark
+	public int createUser(EmptyStore store, Response response) throws CommandParserException, IOException {
+		response.out.setLength(0);
+		CommandParser.parseLine("create user bench T5 T6", response.out);
+		return response.out.length();
+	}
+}
@@ -0,0 +1,108 @@
+package tagging.bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tagging.Tag;
+import tagging.TagMask;
+import tagging.TaggableOperation;
+import tagging.UserTagStore;
+import tagging.consistency.ANDConsistencyRule;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.NANDConsistencyRule;
+
+/**
+ * Validates an operation against every rule of a set, as a user does before writing,
+ * once from tag sets and once from precomputed tag masks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsistencyRuleBenchmark {
+
+	private final static int TAGS = 128;
+
+	@Param({ "AND", "NAND" })
+	public String ruleType;
+
+	@Param({ "1", "8", "64" })
+	public int ruleCount;
+
+	@Param({ "2", "16", "64" })
+	public int tagCount;
+
+	@Param({ "ADD_TAG", "REMOVE_TAG" })
+	public TaggableOperation operation;
+
+	private List<ConsistencyRule> rules;
+	private Set<Tag> existingTags;
+	private Set<Tag> changedTags;
+	private long[] existingMask;
+	private long[] changedMask;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		UserTagStore store = BenchmarkStores.install(BenchmarkStores.STORE_MEMORY, null);
+		List<Tag> tags = BenchmarkStores.insertTags(store, TAGS);
+		Random random = new Random(42);
+		rules = new ArrayList<>(ruleCount);
+		for (int i = 0; i < ruleCount; i++) {
+			int a = random.nextInt(TAGS);
+			Tag tagA = tags.get(a);
+			Tag tagB = tags.get((a + 1 + random.nextInt(TAGS - 1)) % TAGS);
+			rules.add(ruleType.equals("AND") ? new ANDConsistencyRule(tagA, tagB) : new NANDConsistencyRule(tagA, tagB));
+		}
+		existingTags = new HashSet<>(BenchmarkStores.randomTags(tags, tagCount, random));
+		changedTags = new HashSet<>(BenchmarkStores.randomTags(tags, 2, random));
+		existingMask = TagMask.of(existingTags);
+		changedMask = TagMask.of(changedTags);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		UserTagStore.shutdown();
+	}
+
+	@Benchmark
+	public int validateSets() {
+		int valid = 0;
+		for (ConsistencyRule rule : rules) {
+			if (rule.validateOperation(existingTags, operation, changedTags)) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+
+	@Benchmark
+	public int validateMasks() {
+		int valid = 0;
+		for (ConsistencyRule rule : rules) {
+			if (rule.validateOperation(existingMask, operation, changedMask)) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+}
@@ -0,0 +1,124 @@
+package tagging.bench;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tagging.Tag;
+import tagging.TagSet;
+import tagging.User;
+import tagging.UserTagStore;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.consistency.NANDConsistencyRule;
+
+/**
+ * The read and write paths of the stores that need no server: the in-memory store and
+ * the log store, which writes to a temporary directory without syncing every write.
+ * {@link tagging.UserTagDatabase} takes the same paths against MongoDB.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+
+	private final static int TAGS = 16;
+
+	@Param({ BenchmarkStores.STORE_MEMORY, BenchmarkStores.STORE_LOG })
+	public String store;
+
+	@Param({ "10000" })
+	public int users;
+
+	private Path directory;
+	private UserTagStore userTagStore;
+	private String[] userIDs;
+	private TagSet writtenTags;
+	private Collection<ConsistencyRule> rules;
+
+	/**
+	 * Walks over the users, so that every thread reads and writes different ones.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+
+		int next(int bound) {
+			next = (next + 7919) % bound;
+			return next;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if (store.equals(BenchmarkStores.STORE_LOG)) {
+			directory = BenchmarkStores.createDirectory();
+		}
+		userTagStore = BenchmarkStores.install(store, directory);
+		List<Tag> tags = BenchmarkStores.insertTags(userTagStore, TAGS);
+		userIDs = BenchmarkStores.insertUsers(userTagStore, tags.subList(0, TAGS - 1), users, 3, 42)
+				.toArray(new String[0]);
+		// The last tag is only ever written by the benchmarks.
+		writtenTags = TagSet.of(tags.get(TAGS - 1));
+		rules = Arrays.asList(new NANDConsistencyRule(tags.get(0), tags.get(3)),
+				new NANDConsistencyRule(tags.get(1), tags.get(2)));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		UserTagStore.shutdown();
+		BenchmarkStores.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public User getUser(Cursor cursor) {
+		return userTagStore.getUser(userIDs[cursor.next(users)]);
+	}
+
+	@Benchmark
+	public TagSet getTagsForUser(Cursor cursor) {
+		return userTagStore.getTagsForUser(userIDs[cursor.next(users)]);
+	}
+
+	@Benchmark
+	public boolean addAndRemoveTags(Cursor cursor) {
+		String userID = userIDs[cursor.next(users)];
+		return userTagStore.addTagsToUser(userID, writtenTags) & userTagStore.removeTagsFromUser(userID, writtenTags);
+	}
+
+	@Benchmark
+	public boolean addAndRemoveTagsWithRules(Cursor cursor) throws ConsistencyRuleViolationException {
+		String userID = userIDs[cursor.next(users)];
+		return userTagStore.addTagsToUser(userID, writtenTags, rules)
+				& userTagStore.removeTagsFromUser(userID, writtenTags, rules);
+	}
+
+	@Benchmark
+	public int forEachUser() {
+		int[] count = { 0 };
+		userTagStore.forEachUser(null, null, user -> {
+			count[0] += user.getLoadedTags().size();
+			return true;
+		});
+		return count[0];
+	}
+}
@@ -0,0 +1,114 @@
+package tagging.bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tagging.Tag;
+import tagging.TagSet;
+import tagging.UserTagStore;
+
+/**
+ * Set operations on tags, which rely on {@link Tag#equals(Object)} and
+ * {@link Tag#hashCode()} in a HashSet and on tag ordinals in a {@link TagSet}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TagSetBenchmark {
+
+	private final static int TAGS = 256;
+
+	@Param({ "4", "16", "64" })
+	public int size;
+
+	private List<Tag> tagList;
+	private Set<Tag> hashSetA;
+	private Set<Tag> hashSetB;
+	private TagSet tagSetA;
+	private TagSet tagSetB;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		UserTagStore store = BenchmarkStores.install(BenchmarkStores.STORE_MEMORY, null);
+		List<Tag> tags = BenchmarkStores.insertTags(store, TAGS);
+		Random random = new Random(42);
+		tagSetA = BenchmarkStores.randomTags(tags, size, random);
+		tagSetB = BenchmarkStores.randomTags(tags, size, random);
+		tagList = new ArrayList<>(tagSetA);
+		hashSetA = new HashSet<>(tagSetA);
+		hashSetB = new HashSet<>(tagSetB);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		UserTagStore.shutdown();
+	}
+
+	@Benchmark
+	public Set<Tag> buildHashSet() {
+		return new HashSet<>(tagList);
+	}
+
+	@Benchmark
+	public TagSet buildTagSet() {
+		return TagSet.of(tagList);
+	}
+
+	@Benchmark
+	public boolean containsAllHashSet() {
+		return hashSetA.containsAll(hashSetB);
+	}
+
+	@Benchmark
+	public boolean containsAllTagSet() {
+		return tagSetA.containsAll(tagSetB);
+	}
+
+	@Benchmark
+	public Set<Tag> unionHashSet() {
+		Set<Tag> union = new HashSet<>(hashSetA);
+		union.addAll(hashSetB);
+		return union;
+	}
+
+	@Benchmark
+	public TagSet unionTagSet() {
+		return tagSetA.union(tagSetB);
+	}
+
+	@Benchmark
+	public boolean intersectsHashSet() {
+		for (Tag tag : hashSetB) {
+			if (hashSetA.contains(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Benchmark
+	public boolean intersectsTagSet() {
+		return tagSetA.intersects(tagSetB);
+	}
+}
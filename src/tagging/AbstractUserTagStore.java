@@ -0,0 +1,233 @@
+package tagging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import tagging.consistency.ConsistencyPrecondition;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.metrics.ServerMetrics;
+
+/**
+ * What every {@link UserTagStore} does the same way: telling the listeners about
+ * changes, the tag index and statistics built on them, and formatting listings.
+ */
+public abstract class AbstractUserTagStore implements UserTagStore {
+
+	private final List<UserTagListener> listeners = new CopyOnWriteArrayList<>();
+	private volatile TagIndex tagIndex;
+	private volatile TagStatistics tagStatistics;
+	private volatile AsyncUserTagStore async;
+
+	/**
+	 * The view whose operations run on the calling thread, made once. It holds no state,
+	 * so a race may make two of them.
+	 */
+	@Override
+	public AsyncUserTagStore async() {
+		AsyncUserTagStore view = async;
+		if (view == null) {
+			view = new BlockingAsyncUserTagStore(this);
+			async = view;
+		}
+		return view;
+	}
+
+	@Override
+	public String getAllUsersAsString() {
+		StringBuilder result = new StringBuilder();
+		try {
+			writeAllUsers(result);
+		} catch (IOException e) {
+			throw new IllegalStateException("Appending to a StringBuilder cannot fail.", e);
+		}
+		return result.toString();
+	}
+
+	@Override
+	public void writeAllUsers(Appendable out) throws IOException {
+		IOException[] failure = new IOException[1];
+		forEachUser(null, null, user -> {
+			try {
+				appendUserRow(out, user.getID(), user.getName(), user.getLoadedTags());
+			} catch (IOException e) {
+				failure[0] = e;
+			}
+			return failure[0] == null;
+		});
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	/**
+	 * Appends one row of {@link #writeAllUsers(Appendable)}.
+	 */
+	protected static void appendUserRow(Appendable out, Object userID, Object name, Set<Tag> tags) throws IOException {
+		ResponseWriter.appendPadded(out.append("ID: "), userID, 26).append(" | Name: ");
+		ResponseWriter.appendPadded(out, name, 12).append(" | Tags: ");
+		ResponseWriter.appendTags(out, tags).append('\n');
+	}
+
+	/**
+	 * Appends one row of {@link #writeAllTags(Appendable)}.
+	 */
+	protected static void appendTagRow(Appendable out, Object tagID, Object name) throws IOException {
+		ResponseWriter.appendPadded(out.append("ID: "), tagID, 26).append(" | Name: ");
+		ResponseWriter.appendPadded(out, name, 5).append('\n');
+	}
+
+	@Override
+	public String getAllTagsAsString() {
+		StringBuilder result = new StringBuilder();
+		try {
+			writeAllTags(result);
+		} catch (IOException e) {
+			throw new IllegalStateException("Appending to a StringBuilder cannot fail.", e);
+		}
+		return result.toString();
+	}
+
+	@Override
+	public void addListener(UserTagListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(UserTagListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public synchronized TagIndex buildTagIndex() {
+		if (tagIndex == null) {
+			TagIndex index = new TagIndex();
+			TagStatistics statistics = new TagStatistics();
+			index.addChangeListener(statistics);
+			addListener(index);
+			forEachUser(null, null, user -> {
+				index.userInserted(user.getID(), user.getLoadedTags());
+				return true;
+			});
+			tagIndex = index;
+			tagStatistics = statistics;
+		}
+		return tagIndex;
+	}
+
+	@Override
+	public TagIndex getTagIndex() {
+		return tagIndex;
+	}
+
+	@Override
+	public TagStatistics getTagStatistics() {
+		return tagStatistics;
+	}
+
+	/**
+	 * @return the tags of the set that have not been deleted from the registry.
+	 */
+	protected static TagSet visibleTags(TagSet tags) {
+		TagRegistry registry = TagRegistry.getInstance();
+		for (Tag tag : tags) {
+			if (registry.get(tag.getName()) == null) {
+				List<Tag> visible = new ArrayList<>();
+				for (Tag other : tags) {
+					if (registry.get(other.getName()) != null) {
+						visible.add(other);
+					}
+				}
+				return TagSet.of(visible);
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * @return the preconditions that the rules put on the operation.
+	 */
+	protected static List<ConsistencyPrecondition> getPreconditions(TaggableOperation operation, Set<Tag> tags,
+			Collection<ConsistencyRule> rules) {
+		List<ConsistencyPrecondition> preconditions = new ArrayList<>();
+		for (ConsistencyRule rule : rules) {
+			ConsistencyPrecondition precondition = rule.getPrecondition(operation, tags);
+			if (precondition != null) {
+				preconditions.add(precondition);
+			}
+		}
+		ServerMetrics.getInstance().recordRuleEvaluations(rules.size());
+		return preconditions;
+	}
+
+	/**
+	 * @return the failure to throw when a change made without rules reports violating one.
+	 */
+	protected static IllegalStateException violatedWithoutRules(ConsistencyRuleViolationException e) {
+		return new IllegalStateException("An update without rules cannot violate one.", e);
+	}
+
+	protected void fireUserInserted(String userID, TagSet tags) {
+		for (UserTagListener listener : listeners) {
+			listener.userInserted(userID, tags);
+		}
+	}
+
+	protected void fireUserDeleted(String userID, TagSet tags) {
+		for (UserTagListener listener : listeners) {
+			listener.userDeleted(userID, tags);
+		}
+	}
+
+	/**
+	 * Tells the listeners about the tags that were added, given the tags before the update.
+	 *
+	 * @return true iff any tag was added.
+	 */
+	protected boolean fireTagsAdded(String userID, TagSet before, Set<Tag> tagsToAdd) {
+		TagSet added = TagSet.of(tagsToAdd).difference(before);
+		if (added.isEmpty()) {
+			return false;
+		}
+		for (UserTagListener listener : listeners) {
+			listener.tagsAdded(userID, added);
+		}
+		return true;
+	}
+
+	/**
+	 * Tells the listeners about the tags that were removed, given the tags before the
+	 * update.
+	 *
+	 * @return true iff any tag was removed.
+	 */
+	protected boolean fireTagsRemoved(String userID, TagSet before, Set<Tag> tagsToRemove) {
+		TagSet removed = before.difference(before.difference(tagsToRemove));
+		if (removed.isEmpty()) {
+			return false;
+		}
+		for (UserTagListener listener : listeners) {
+			listener.tagsRemoved(userID, removed);
+		}
+		return true;
+	}
+
+	/**
+	 * Tells the listeners about mutations written in bulk, without knowing the tags before.
+	 */
+	protected void fireTagMutations(List<TagMutation> mutations) {
+		for (TagMutation mutation : mutations) {
+			for (UserTagListener listener : listeners) {
+				if (mutation.getOperation() == TaggableOperation.ADD_TAG) {
+					listener.tagsAdded(mutation.getUserID(), mutation.getTags());
+				} else {
+					listener.tagsRemoved(mutation.getUserID(), mutation.getTags());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package tagging;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import tagging.consistency.*;
+
+/**
+ * A taggable entity whose tags can also be read and changed without blocking the caller.
+ * Each operation returns a future that completes once the store has carried it out.
+ */
+public interface AsyncTaggable extends Taggable {
+
+	public CompletableFuture<? extends Set<Tag>> getTagsAsync();
+
+	/**
+	 * Adds a set of tags to this entity.
+	 * 
+	 * @param tags the set of tags to add to this entity.
+	 * @return true iff successful and made a change. Completes with a
+	 * {@link ConsistencyRuleViolationException} if this operation would transition this entity from a
+	 * consistent to an inconsistent state for any one of its consistency rules.
+	 */
+	public CompletableFuture<Boolean> addTagsAsync(Set<Tag> tags);
+
+	/**
+	 * Removes a set of tags from this entity.
+	 * 
+	 * @param tags the set of tags to remove from this entity.
+	 * @return true iff successful and made a change. Completes with a
+	 * {@link ConsistencyRuleViolationException} if this operation would transition this
+	 * entity from a consistent to an inconsistent state for any one of its consistency rules.
+	 */
+	public CompletableFuture<Boolean> removeTagsAsync(Set<Tag> tags);
+}
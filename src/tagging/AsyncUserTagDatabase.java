@@ -0,0 +1,316 @@
+package tagging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+
+import tagging.consistency.ConsistencyPrecondition;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.metrics.DatabaseCommandListener;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Updates.addEachToSet;
+import static com.mongodb.client.model.Updates.pullAll;
+
+/**
+ * The asynchronous view of a {@link UserTagDatabase}, on the reactive streams MongoDB
+ * driver.
+ *
+ * An operation sends its commands without blocking the caller and is completed on a
+ * thread of the driver when the reply arrives. The view has a client of its own, with a
+ * connection pool sized like the one of the database that reports to the same
+ * {@link ConnectionPoolStatistics}; operations that find no free connection wait for one
+ * without holding a thread. The listeners of the database are told about every change,
+ * as with its blocking operations.
+ */
+final class AsyncUserTagDatabase implements AsyncUserTagStore {
+
+	private final UserTagDatabase database;
+	private final MongoClient mongoClient;
+	private final MongoCollection<Document> userCollection;
+
+	AsyncUserTagDatabase(UserTagDatabase database, DatabaseConfiguration configuration) {
+		this.database = database;
+		mongoClient = MongoClients.create(UserTagDatabase.clientSettings(configuration, database.getPoolStatistics()));
+		userCollection = mongoClient.getDatabase(configuration.getDbName())
+				.getCollection(UserTagDatabase.DB_USERS_COLLECTION);
+	}
+
+	@Override
+	public CompletableFuture<User> insertUser(String name, Set<Tag> tags) {
+		Document document = new Document(UserTagDatabase.DB_USERS_NAME_FIELD, name)
+				.append(UserTagDatabase.DB_USERS_TAGS_FIELD, UserTagDatabase.getTagNames(tags));
+		return first(userCollection.insertOne(document)).thenApply(unused -> {
+			String userID = document.get(UserTagDatabase.DB_ID_FIELD).toString();
+			database.fireUserInserted(userID, TagSet.of(tags));
+			return new User(userID, name, TagSet.EMPTY);
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteUser(String userID) {
+		ObjectId id = new ObjectId(userID);
+		return inTurn(List.of(id.toHexString()),
+				() -> first(userCollection.findOneAndDelete(eq(UserTagDatabase.DB_ID_FIELD, id))).thenApply(doc -> {
+					if (doc == null) {
+						return false;
+					}
+					database.fireUserDeleted(userID, database.getTagSetFromDocument(doc));
+					return true;
+				}));
+	}
+
+	@Override
+	public CompletableFuture<User> getUser(String userID) {
+		return findUser(new ObjectId(userID))
+				.thenApply(document -> document == null ? null : database.userFromDocument(document));
+	}
+
+	/**
+	 * Reads many users with a single query.
+	 */
+	@Override
+	public CompletableFuture<Map<String, User>> getUsers(Collection<String> userIDs) {
+		List<ObjectId> ids = userIDs.stream().map(ObjectId::new).collect(Collectors.toList());
+		return all(userCollection.find(in(UserTagDatabase.DB_ID_FIELD, ids))).thenApply(documents -> {
+					Map<String, User> users = new HashMap<>();
+					for (Document document : documents) {
+						User user = database.userFromDocument(document);
+						users.put(user.getID(), user);
+					}
+					return users;
+				});
+	}
+
+	@Override
+	public CompletableFuture<TagSet> getTagsForUser(String userID) {
+		return findUser(new ObjectId(userID))
+				.thenApply(document -> document == null ? TagSet.EMPTY : database.getTagSetFromDocument(document));
+	}
+
+	/**
+	 * Adds tags to a user in one round trip, with the rules encoded into the update filter
+	 * like {@link UserTagDatabase#addTagsToUser(String, Set, Collection)} does.
+	 */
+	@Override
+	public CompletableFuture<Boolean> addTagsToUser(String userID, Set<Tag> tagsToAdd,
+			Collection<ConsistencyRule> rules) {
+		ObjectId id = new ObjectId(userID);
+		List<ConsistencyPrecondition> preconditions = AbstractUserTagStore.getPreconditions(TaggableOperation.ADD_TAG,
+				tagsToAdd, rules);
+		Bson update = addEachToSet(UserTagDatabase.DB_USERS_TAGS_FIELD, UserTagDatabase.getTagNames(tagsToAdd));
+		return inTurn(List.of(id.toHexString()),
+				() -> updateTagsIfConsistent(id, preconditions, UserTagDatabase.toFilter(id, preconditions), 1, update)
+						.thenApply(doc -> doc != null
+								&& database.fireTagsAdded(userID, database.getTagSetFromDocument(doc), tagsToAdd)));
+	}
+
+	/**
+	 * Removes tags from a user in one round trip, with the rules encoded into the update
+	 * filter like {@link UserTagDatabase#removeTagsFromUser(String, Set, Collection)} does.
+	 */
+	@Override
+	public CompletableFuture<Boolean> removeTagsFromUser(String userID, Set<Tag> tagsToRemove,
+			Collection<ConsistencyRule> rules) {
+		ObjectId id = new ObjectId(userID);
+		List<ConsistencyPrecondition> preconditions = AbstractUserTagStore
+				.getPreconditions(TaggableOperation.REMOVE_TAG, tagsToRemove, rules);
+		Bson update = pullAll(UserTagDatabase.DB_USERS_TAGS_FIELD, UserTagDatabase.getTagNames(tagsToRemove));
+		return inTurn(List.of(id.toHexString()),
+				() -> updateTagsIfConsistent(id, preconditions, UserTagDatabase.toFilter(id, preconditions), 1, update)
+						.thenApply(doc -> doc != null
+								&& database.fireTagsRemoved(userID, database.getTagSetFromDocument(doc), tagsToRemove)));
+	}
+
+	/**
+	 * Writes the mutations with chunked, unordered bulk writes, one chunk after the other
+	 * and each in a turn of its users, and tells why any mutation failed like
+	 * {@link UserTagDatabase#applyTagMutations(List)}.
+	 */
+	@Override
+	public CompletableFuture<TagMutationResult> applyTagMutations(List<TagMutation> mutations) {
+		Exception[] failures = new Exception[mutations.size()];
+		return applyTagMutations(mutations, 0, 0, failures)
+				.thenApply(modified -> new TagMutationResult(modified, failures));
+	}
+
+	void close() {
+		mongoClient.close();
+	}
+
+	private CompletableFuture<Integer> applyTagMutations(List<TagMutation> mutations, int start, int modified,
+			Exception[] failures) {
+		if (start >= mutations.size()) {
+			return CompletableFuture.completedFuture(modified);
+		}
+		int end = Math.min(start + UserTagDatabase.BULK_WRITE_CHUNK_SIZE, mutations.size());
+		List<Integer> chunk = UserTagDatabase.range(start, end);
+		return inTurn(UserTagDatabase.toKeys(mutations, chunk),
+				() -> writeMutations(mutations, chunk, 1, failures).thenApply(chunkModified -> {
+					database.fireTagMutations(
+							UserTagDatabase.select(mutations, UserTagDatabase.withoutFailures(chunk, failures)));
+					return chunkModified;
+				})).thenCompose(chunkModified -> applyTagMutations(mutations, end, modified + chunkModified, failures));
+	}
+
+	/**
+	 * Runs the write in a turn of its users, shared with the synchronous driver.
+	 */
+	private <T> CompletableFuture<T> inTurn(List<String> keys, Supplier<CompletableFuture<T>> write) {
+		UserWriteOrder.Turn turn = database.writeOrder.take(keys);
+		return turn.started().thenCompose(unused -> write.get()).whenComplete((result, failure) -> turn.close());
+	}
+
+	/**
+	 * @return the number of users modified by writing the mutations at the indexes, and
+	 *         again those that lost to a concurrent change.
+	 */
+	private CompletableFuture<Integer> writeMutations(List<TagMutation> mutations, List<Integer> indexes,
+			int attempt, Exception[] failures) {
+		return first(userCollection.bulkWrite(UserTagDatabase.toUpdates(mutations, indexes),
+				new BulkWriteOptions().ordered(false))).handle((result, failure) -> {
+					Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+					if (cause instanceof MongoBulkWriteException) {
+						UserTagDatabase.recordWriteErrors((MongoBulkWriteException) cause, indexes, failures);
+						return ((MongoBulkWriteException) cause).getWriteResult();
+					} else if (failure != null) {
+						throw new CompletionException(cause);
+					}
+					return result;
+				}).thenCompose(result -> {
+					List<Integer> written = UserTagDatabase.withoutFailures(indexes, failures);
+					if (result.getMatchedCount() == written.size()) {
+						return CompletableFuture.completedFuture(result.getModifiedCount());
+					}
+					return readTags(mutations, written).thenCompose(currentTags -> {
+						List<Integer> retries = UserTagDatabase.checkUnmatched(mutations, written, currentTags,
+								failures, attempt);
+						if (retries.isEmpty()) {
+							return CompletableFuture.completedFuture(result.getModifiedCount());
+						}
+						return writeMutations(mutations, retries, attempt + 1, failures)
+								.thenApply(modified -> result.getModifiedCount() + modified);
+					});
+				});
+	}
+
+	/**
+	 * @return the current tags of the users of the mutations, by user ID.
+	 */
+	private CompletableFuture<Map<String, TagSet>> readTags(List<TagMutation> mutations, List<Integer> indexes) {
+		return all(userCollection.find(in(UserTagDatabase.DB_ID_FIELD, UserTagDatabase.toIDs(mutations, indexes)))
+				.projection(Projections.include(UserTagDatabase.DB_USERS_TAGS_FIELD))).thenApply(documents -> {
+					Map<String, TagSet> tags = new HashMap<>();
+					for (Document document : documents) {
+						tags.put(document.getObjectId(UserTagDatabase.DB_ID_FIELD).toHexString(),
+								database.getTagSetFromDocument(document));
+					}
+					return tags;
+				});
+	}
+
+	/**
+	 * @return the user document before the update, or null if the user does not exist.
+	 *         It fails with a UserUpdateConflictException after as many attempts as in
+	 *         {@link UserTagDatabase}.
+	 */
+	private CompletableFuture<Document> updateTagsIfConsistent(ObjectId id,
+			List<ConsistencyPrecondition> preconditions, Bson filter, int attempt, Bson update) {
+		return first(userCollection.findOneAndUpdate(filter, update)).thenCompose(doc -> {
+					if (doc != null || preconditions.isEmpty()) {
+						return CompletableFuture.completedFuture(doc);
+					}
+					// Either the user does not exist or a rule rejected the change, so read the
+					// user to tell which.
+					return findUser(id).thenCompose(current -> {
+						if (current == null) {
+							return CompletableFuture.completedFuture(null);
+						}
+						try {
+							database.checkPreconditions(current, preconditions);
+						} catch (ConsistencyRuleViolationException e) {
+							return CompletableFuture.failedFuture(e);
+						}
+						if (attempt == UserTagDatabase.MAX_UPDATE_ATTEMPTS) {
+							return CompletableFuture.failedFuture(
+									new UserUpdateConflictException(id.toHexString(), attempt));
+						}
+						// The user's tags changed in between and now allow the change, so try again.
+						return updateTagsIfConsistent(id, preconditions, filter, attempt + 1, update);
+					});
+				});
+	}
+
+	private CompletableFuture<Document> findUser(ObjectId id) {
+		return first(userCollection.find(eq(UserTagDatabase.DB_ID_FIELD, id)).first());
+	}
+
+	/**
+	 * @return a future of the only item that the publisher emits, or of null if it emits
+	 *         none.
+	 */
+	private static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+		return all(publisher).thenApply(items -> items.isEmpty() ? null : items.get(0));
+	}
+
+	/**
+	 * Subscribes to the publisher, which starts the operation.
+	 *
+	 * @return a future of the items that the publisher emits.
+	 */
+	private static <T> CompletableFuture<List<T>> all(Publisher<T> publisher) {
+		CompletableFuture<List<T>> future = new CompletableFuture<>();
+		try {
+			publisher.subscribe(new Subscriber<T>() {
+				private final List<T> items = new ArrayList<>();
+
+				@Override
+				public void onSubscribe(Subscription subscription) {
+					subscription.request(Long.MAX_VALUE);
+				}
+
+				@Override
+				public void onNext(T item) {
+					items.add(item);
+				}
+
+				@Override
+				public void onError(Throwable failure) {
+					future.completeExceptionally(failure);
+				}
+
+				@Override
+				public void onComplete() {
+					future.complete(items);
+				}
+			});
+		} catch (RuntimeException e) {
+			// Such as a client that has been closed.
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+}
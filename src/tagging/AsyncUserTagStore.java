@@ -0,0 +1,76 @@
+package tagging;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+
+/**
+ * The operations of a {@link UserTagStore} on single users and batches of them, without
+ * blocking the caller. Each returns a future that the store completes once the operation
+ * is done, so a few threads can keep many operations in flight.
+ *
+ * A malformed user ID throws IllegalArgumentException right away, as with UserTagStore;
+ * any other failure completes the future exceptionally. The stages that depend on a
+ * future may run on a thread of the store, so they must not block.
+ */
+public interface AsyncUserTagStore {
+
+	/**
+	 * @return the asynchronous view of the process-wide store.
+	 */
+	public static AsyncUserTagStore getInstance() {
+		return UserTagStoreHolder.getAsyncInstance();
+	}
+
+	public CompletableFuture<User> insertUser(String name, Set<Tag> tags);
+
+	/**
+	 * @return true iff the user existed.
+	 */
+	public CompletableFuture<Boolean> deleteUser(String userID);
+
+	/**
+	 * @return the user, or null if it does not exist.
+	 */
+	public CompletableFuture<User> getUser(String userID);
+
+	/**
+	 * @return the users that exist, keyed by ID.
+	 */
+	public CompletableFuture<Map<String, User>> getUsers(Collection<String> userIDs);
+
+	public CompletableFuture<TagSet> getTagsForUser(String userID);
+
+	/**
+	 * Adds tags to a user iff this keeps every rule consistent, checking the rules
+	 * atomically with the write.
+	 *
+	 * @return true iff the user exists and was changed; completes with a
+	 *         {@link ConsistencyRuleViolationException} if the change would violate a rule.
+	 */
+	public CompletableFuture<Boolean> addTagsToUser(String userID, Set<Tag> tagsToAdd,
+			Collection<ConsistencyRule> rules);
+
+	/**
+	 * Removes tags from a user iff this keeps every rule consistent, checking the rules
+	 * atomically with the write.
+	 *
+	 * @return true iff the user exists and was changed; completes with a
+	 *         {@link ConsistencyRuleViolationException} if the change would violate a rule.
+	 */
+	public CompletableFuture<Boolean> removeTagsFromUser(String userID, Set<Tag> tagsToRemove,
+			Collection<ConsistencyRule> rules);
+
+	/**
+	 * Writes already validated tag mutations in bulk, like
+	 * {@link UserTagStore#applyTagMutations(List)}.
+	 *
+	 * @return the number of users that were modified, and why any mutation failed.
+	 */
+	public CompletableFuture<TagMutationResult> applyTagMutations(List<TagMutation> mutations);
+}
@@ -0,0 +1,80 @@
+package tagging;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import tagging.consistency.ConsistencyRule;
+
+/**
+ * The asynchronous view of a store that only has blocking operations: each operation runs
+ * on the calling thread, and its future is already complete when it is returned.
+ *
+ * Only the stores that keep their data in this process use it: they rarely wait, so
+ * handing their operations to another thread would cost more than it saves. Stores in
+ * front of another store offer a view that goes to the other store's view instead.
+ */
+final class BlockingAsyncUserTagStore implements AsyncUserTagStore {
+
+	private final UserTagStore store;
+
+	BlockingAsyncUserTagStore(UserTagStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public CompletableFuture<User> insertUser(String name, Set<Tag> tags) {
+		return call(() -> store.insertUser(name, tags));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteUser(String userID) {
+		return call(() -> store.deleteUser(userID));
+	}
+
+	@Override
+	public CompletableFuture<User> getUser(String userID) {
+		return call(() -> store.getUser(userID));
+	}
+
+	@Override
+	public CompletableFuture<Map<String, User>> getUsers(Collection<String> userIDs) {
+		return call(() -> store.getUsers(userIDs));
+	}
+
+	@Override
+	public CompletableFuture<TagSet> getTagsForUser(String userID) {
+		return call(() -> store.getTagsForUser(userID));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> addTagsToUser(String userID, Set<Tag> tagsToAdd,
+			Collection<ConsistencyRule> rules) {
+		return call(() -> store.addTagsToUser(userID, tagsToAdd, rules));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> removeTagsFromUser(String userID, Set<Tag> tagsToRemove,
+			Collection<ConsistencyRule> rules) {
+		return call(() -> store.removeTagsFromUser(userID, tagsToRemove, rules));
+	}
+
+	@Override
+	public CompletableFuture<TagMutationResult> applyTagMutations(List<TagMutation> mutations) {
+		return call(() -> store.applyTagMutations(mutations));
+	}
+
+	private static <T> CompletableFuture<T> call(Callable<T> operation) {
+		try {
+			return CompletableFuture.completedFuture(operation.call());
+		} catch (IllegalArgumentException e) {
+			// A malformed user ID is thrown right away, as the interface promises.
+			throw e;
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+}
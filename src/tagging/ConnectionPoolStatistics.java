@@ -0,0 +1,122 @@
+package tagging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+/**
+ * Tracks usage of the MongoDB connection pools so that they can be sized.
+ *
+ * A check-out is waiting from its start until it gets a connection or fails, and the
+ * driver reports how long that took with the outcome, so waits are measured for callers
+ * on any thread, including those of the asynchronous driver.
+ */
+public class ConnectionPoolStatistics implements ConnectionPoolListener {
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicInteger checkedOutConnections = new AtomicInteger();
+	private final AtomicInteger maxCheckedOutConnections = new AtomicInteger();
+	private final AtomicInteger waitingCheckOuts = new AtomicInteger();
+	private final LongAdder checkOuts = new LongAdder();
+	private final LongAdder failedCheckOuts = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	@Override
+	public void connectionCreated(ConnectionCreatedEvent event) {
+		openConnections.incrementAndGet();
+	}
+
+	@Override
+	public void connectionClosed(ConnectionClosedEvent event) {
+		openConnections.decrementAndGet();
+	}
+
+	@Override
+	public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+		waitingCheckOuts.incrementAndGet();
+	}
+
+	@Override
+	public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+		waitingCheckOuts.decrementAndGet();
+		int checkedOut = checkedOutConnections.incrementAndGet();
+		maxCheckedOutConnections.accumulateAndGet(checkedOut, Math::max);
+		checkOuts.increment();
+		long waited = event.getElapsedTime(TimeUnit.NANOSECONDS);
+		totalWaitNanos.add(waited);
+		maxWaitNanos.accumulateAndGet(waited, Math::max);
+	}
+
+	/**
+	 * Counts a check-out that gave up, such as one that waited longer than the maximum
+	 * wait time; its wait counts towards the longest wait only.
+	 */
+	@Override
+	public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+		waitingCheckOuts.decrementAndGet();
+		failedCheckOuts.increment();
+		maxWaitNanos.accumulateAndGet(event.getElapsedTime(TimeUnit.NANOSECONDS), Math::max);
+	}
+
+	@Override
+	public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+		checkedOutConnections.decrementAndGet();
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public int getCheckedOutConnections() {
+		return checkedOutConnections.get();
+	}
+
+	public int getMaxCheckedOutConnections() {
+		return maxCheckedOutConnections.get();
+	}
+
+	public int getWaitingCheckOuts() {
+		return waitingCheckOuts.get();
+	}
+
+	public long getCheckOuts() {
+		return checkOuts.sum();
+	}
+
+	public long getFailedCheckOuts() {
+		return failedCheckOuts.sum();
+	}
+
+	/**
+	 * @return the mean time a caller waited for a connection, in microseconds.
+	 */
+	public long getMeanWaitMicros() {
+		long count = checkOuts.sum();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.sum() / count);
+	}
+
+	/**
+	 * @return the longest time a caller waited for a connection, in microseconds.
+	 */
+	public long getMaxWaitMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"Open: %d | Checked out: %d (max %d) | Waiting: %d | Check-outs: %d (%d failed) | Wait: mean %dus, max %dus",
+				getOpenConnections(), getCheckedOutConnections(), getMaxCheckedOutConnections(), getWaitingCheckOuts(),
+				getCheckOuts(), getFailedCheckOuts(), getMeanWaitMicros(), getMaxWaitMicros());
+	}
+}
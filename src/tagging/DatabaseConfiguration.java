@@ -0,0 +1,88 @@
+package tagging;
+
+/**
+ * Connection and pool settings for a UserTagDatabase.
+ *
+ * Values are read from system properties (e.g. -Dtagging.db.maxPoolSize=200) and
+ * fall back to the defaults below when unset.
+ */
+public class DatabaseConfiguration {
+
+	final static String PROPERTY_PREFIX = "tagging.db.";
+
+	final static String DEFAULT_HOST = "localhost";
+	final static int DEFAULT_PORT = 27017;
+	final static String DEFAULT_DB_NAME = "testdb";
+	final static int DEFAULT_MIN_POOL_SIZE = 0;
+	final static int DEFAULT_MAX_POOL_SIZE = 100;
+	final static int DEFAULT_MAX_WAIT_TIME_MILLIS = 120000;
+	final static int DEFAULT_MAX_IDLE_TIME_MILLIS = 0;
+
+	private String host = DEFAULT_HOST;
+	private int port = DEFAULT_PORT;
+	private String dbName = DEFAULT_DB_NAME;
+	private int minPoolSize = DEFAULT_MIN_POOL_SIZE;
+	private int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+	private int maxWaitTimeMillis = DEFAULT_MAX_WAIT_TIME_MILLIS;
+	private int maxIdleTimeMillis = DEFAULT_MAX_IDLE_TIME_MILLIS;
+
+	public static DatabaseConfiguration fromSystemProperties() {
+		DatabaseConfiguration configuration = new DatabaseConfiguration();
+		configuration.host = System.getProperty(PROPERTY_PREFIX + "host", DEFAULT_HOST);
+		configuration.port = Integer.getInteger(PROPERTY_PREFIX + "port", DEFAULT_PORT);
+		configuration.dbName = System.getProperty(PROPERTY_PREFIX + "name", DEFAULT_DB_NAME);
+		configuration.minPoolSize = Integer.getInteger(PROPERTY_PREFIX + "minPoolSize", DEFAULT_MIN_POOL_SIZE);
+		configuration.maxPoolSize = Integer.getInteger(PROPERTY_PREFIX + "maxPoolSize", DEFAULT_MAX_POOL_SIZE);
+		configuration.maxWaitTimeMillis = Integer.getInteger(PROPERTY_PREFIX + "maxWaitTimeMillis",
+				DEFAULT_MAX_WAIT_TIME_MILLIS);
+		configuration.maxIdleTimeMillis = Integer.getInteger(PROPERTY_PREFIX + "maxIdleTimeMillis",
+				DEFAULT_MAX_IDLE_TIME_MILLIS);
+		return configuration;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getDbName() {
+		return dbName;
+	}
+
+	/**
+	 * @return the number of connections the pool keeps open even when idle.
+	 */
+	public int getMinPoolSize() {
+		return minPoolSize;
+	}
+
+	/**
+	 * @return the maximum number of connections that may be checked out at once.
+	 */
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	/**
+	 * @return how long a caller may wait for a free connection before failing.
+	 */
+	public int getMaxWaitTimeMillis() {
+		return maxWaitTimeMillis;
+	}
+
+	/**
+	 * @return how long an idle pooled connection is kept, or 0 for no limit.
+	 */
+	public int getMaxIdleTimeMillis() {
+		return maxIdleTimeMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s:%d/%s (pool %d..%d, max wait %dms)", host, port, dbName, minPoolSize, maxPoolSize,
+				maxWaitTimeMillis);
+	}
+}
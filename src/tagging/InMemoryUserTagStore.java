@@ -0,0 +1,349 @@
+package tagging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+
+import tagging.consistency.ConsistencyPrecondition;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+
+/**
+ * Storage for Users and Tags in the memory of this process, for benchmarks and small
+ * deployments. Nothing survives a restart.
+ *
+ * Users are kept in a skip list sorted by ID, so range scans need no sort, and each user's
+ * tags are an immutable {@link TagSet} swapped with compare-and-set. Reads therefore never
+ * lock. A change holds a striped lock of its user while it swaps the tags and tells the
+ * listeners, so that they hear of the changes of a user in the order they were made.
+ *
+ * As with the MongoDB store, tags remember the names of tags that are later deleted, and
+ * leave them out when read.
+ */
+public class InMemoryUserTagStore extends AbstractUserTagStore {
+
+	final static int LOCK_STRIPES = 1024;
+
+	private static final class StoredUser {
+		final String name;
+		// Null once the user is deleted, so that racing updates fail.
+		final AtomicReference<TagSet> tags;
+
+		StoredUser(String name, TagSet tags) {
+			this.name = name;
+			this.tags = new AtomicReference<>(tags);
+		}
+	}
+
+	private final ConcurrentSkipListMap<String, StoredUser> users = new ConcurrentSkipListMap<>();
+	private final AtomicInteger userCount = new AtomicInteger();
+	private final ConcurrentHashMap<String, Tag> tagsByID = new ConcurrentHashMap<>();
+	private final Object[] userLocks = new Object[LOCK_STRIPES];
+
+	public InMemoryUserTagStore() {
+		for (int i = 0; i < userLocks.length; i++) {
+			userLocks[i] = new Object();
+		}
+		TagRegistry.getInstance().load(new ArrayList<>());
+	}
+
+	@Override
+	public User insertUser(String name, Set<Tag> tags) {
+		String userID = new ObjectId().toHexString();
+		TagSet tagSet = TagSet.of(tags);
+		users.put(userID, new StoredUser(name, tagSet));
+		userCount.incrementAndGet();
+		fireUserInserted(userID, tagSet);
+		return new User(userID, name, TagSet.EMPTY);
+	}
+
+	@Override
+	public List<User> insertUsers(List<String> names, List<? extends Set<Tag>> tags) {
+		List<User> users = new ArrayList<>(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			String userID = new ObjectId().toHexString();
+			TagSet tagSet = TagSet.of(tags.get(i));
+			this.users.put(userID, new StoredUser(names.get(i), tagSet));
+			userCount.incrementAndGet();
+			fireUserInserted(userID, tagSet);
+			users.add(new User(userID, names.get(i), tagSet));
+		}
+		return users;
+	}
+
+	@Override
+	public boolean deleteUser(String userID) {
+		String key = toKey(userID);
+		synchronized (lockFor(key)) {
+			StoredUser user = users.remove(key);
+			if (user == null) {
+				return false;
+			}
+			userCount.decrementAndGet();
+			fireUserDeleted(key, visibleTags(user.tags.getAndSet(null)));
+			return true;
+		}
+	}
+
+	@Override
+	public User getUser(String userID) {
+		String key = toKey(userID);
+		return toUser(key, users.get(key));
+	}
+
+	@Override
+	public Map<String, User> getUsers(Collection<String> userIDs) {
+		List<String> keys = new ArrayList<>(userIDs.size());
+		for (String userID : userIDs) {
+			keys.add(toKey(userID));
+		}
+		Map<String, User> result = new HashMap<>();
+		for (String key : keys) {
+			User user = toUser(key, users.get(key));
+			if (user != null) {
+				result.put(key, user);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public List<User> getAllUsers() {
+		List<User> allUsers = new ArrayList<>();
+		forEachUser(null, null, allUsers::add);
+		return allUsers;
+	}
+
+	@Override
+	public void forEachUser(String fromID, String toID, Predicate<User> visitor) {
+		ConcurrentNavigableMap<String, StoredUser> range = users;
+		if (fromID != null) {
+			range = range.tailMap(toKey(fromID), true);
+		}
+		if (toID != null) {
+			range = range.headMap(toKey(toID), false);
+		}
+		for (Map.Entry<String, StoredUser> entry : range.entrySet()) {
+			User user = toUser(entry.getKey(), entry.getValue());
+			if (user != null && !visitor.test(user)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Picks exact split points with one walk over the sorted user IDs.
+	 */
+	@Override
+	public List<String> getUserIDSplitPoints(int partitions) {
+		List<String> splitPoints = new ArrayList<>();
+		int count = userCount.get();
+		if (partitions <= 1 || count == 0) {
+			return splitPoints;
+		}
+		int index = 0;
+		int next = 1;
+		for (String userID : users.keySet()) {
+			if (index++ == (int) ((long) next * count / partitions)) {
+				splitPoints.add(userID);
+				if (++next == partitions) {
+					break;
+				}
+			}
+		}
+		return splitPoints;
+	}
+
+	@Override
+	public void writeAllTags(Appendable out) throws IOException {
+		for (Tag tag : tagsByID.values()) {
+			appendTagRow(out, tag.getID(), tag.getName());
+		}
+	}
+
+	@Override
+	public boolean userHasTag(String userID, Tag tag) {
+		StoredUser user = users.get(toKey(userID));
+		TagSet tags = user == null ? null : user.tags.get();
+		return tags != null && tags.contains(tag) && TagRegistry.getInstance().get(tag.getName()) != null;
+	}
+
+	@Override
+	public TagSet getTagsForUser(String userID) {
+		StoredUser user = users.get(toKey(userID));
+		return user == null ? TagSet.EMPTY : visibleTags(user.tags.get());
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd) {
+		synchronized (lockFor(toKey(userID))) {
+			TagSet before = update(userID, TaggableOperation.ADD_TAG, tagsToAdd);
+			return before != null && fireTagsAdded(userID, visibleTags(before), tagsToAdd);
+		}
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove) {
+		synchronized (lockFor(toKey(userID))) {
+			TagSet before = update(userID, TaggableOperation.REMOVE_TAG, tagsToRemove);
+			return before != null && fireTagsRemoved(userID, visibleTags(before), tagsToRemove);
+		}
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		List<ConsistencyPrecondition> preconditions = getPreconditions(TaggableOperation.ADD_TAG, tagsToAdd, rules);
+		synchronized (lockFor(toKey(userID))) {
+			TagSet before = update(userID, TaggableOperation.ADD_TAG, tagsToAdd, preconditions);
+			return before != null && fireTagsAdded(userID, visibleTags(before), tagsToAdd);
+		}
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		List<ConsistencyPrecondition> preconditions = getPreconditions(TaggableOperation.REMOVE_TAG, tagsToRemove,
+				rules);
+		synchronized (lockFor(toKey(userID))) {
+			TagSet before = update(userID, TaggableOperation.REMOVE_TAG, tagsToRemove, preconditions);
+			return before != null && fireTagsRemoved(userID, visibleTags(before), tagsToRemove);
+		}
+	}
+
+	/**
+	 * Applies each mutation with its own compare-and-set, checking its preconditions on
+	 * the tags it swaps, and tells the listeners the exact changes.
+	 */
+	@Override
+	public TagMutationResult applyTagMutations(List<TagMutation> mutations) {
+		Exception[] failures = new Exception[mutations.size()];
+		int modified = 0;
+		for (int i = 0; i < mutations.size(); i++) {
+			TagMutation mutation = mutations.get(i);
+			synchronized (lockFor(toKey(mutation.getUserID()))) {
+				TagSet before;
+				try {
+					before = update(mutation.getUserID(), mutation.getOperation(), mutation.getTags(),
+							mutation.getPreconditions());
+				} catch (ConsistencyRuleViolationException e) {
+					failures[i] = e;
+					continue;
+				}
+				if (before == null) {
+					failures[i] = new UserNotFoundException(mutation.getUserID());
+				} else if (mutation.getOperation() == TaggableOperation.ADD_TAG
+						? fireTagsAdded(mutation.getUserID(), visibleTags(before), mutation.getTags())
+						: fireTagsRemoved(mutation.getUserID(), visibleTags(before), mutation.getTags())) {
+					modified++;
+				}
+			}
+		}
+		return new TagMutationResult(modified, failures);
+	}
+
+	@Override
+	public Tag insertTag(String tagName) {
+		Tag tag = new Tag(new ObjectId().toHexString(), tagName);
+		tagsByID.put(tag.getID(), tag);
+		TagRegistry.getInstance().register(tag);
+		return tag;
+	}
+
+	@Override
+	public boolean deleteTag(String tagID) {
+		Tag tag = tagsByID.remove(new ObjectId(tagID).toHexString());
+		TagRegistry.getInstance().unregister(tagID);
+		return tag != null;
+	}
+
+	@Override
+	public Tag getTag(String tagName) {
+		for (Tag tag : tagsByID.values()) {
+			if (tag.getName().equals(tagName)) {
+				return tag;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public ConnectionPoolStatistics getPoolStatistics() {
+		return null;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private TagSet update(String userID, TaggableOperation operation, Set<Tag> tags) {
+		try {
+			return update(userID, operation, tags, Collections.emptyList());
+		} catch (ConsistencyRuleViolationException e) {
+			throw violatedWithoutRules(e);
+		}
+	}
+
+	/**
+	 * Swaps in the user's new tags, retrying if another update got there first.
+	 *
+	 * @return the user's tags before the update, or null if the user does not exist.
+	 * @throws ConsistencyRuleViolationException if a precondition fails on the current
+	 *                                           tags.
+	 */
+	private TagSet update(String userID, TaggableOperation operation, Set<Tag> tags,
+			List<ConsistencyPrecondition> preconditions) throws ConsistencyRuleViolationException {
+		StoredUser user = users.get(toKey(userID));
+		if (user == null) {
+			return null;
+		}
+		while (true) {
+			TagSet before = user.tags.get();
+			if (before == null) {
+				return null;
+			}
+			if (!preconditions.isEmpty()) {
+				TagSet existingTags = visibleTags(before);
+				for (ConsistencyPrecondition precondition : preconditions) {
+					if (!precondition.test(existingTags)) {
+						throw new ConsistencyRuleViolationException(precondition.getRule());
+					}
+				}
+			}
+			TagSet after = operation == TaggableOperation.ADD_TAG ? before.union(tags) : before.difference(tags);
+			if (after.equals(before) || user.tags.compareAndSet(before, after)) {
+				return before;
+			}
+		}
+	}
+
+	private Object lockFor(String key) {
+		return userLocks[(key.hashCode() & 0x7FFFFFFF) % userLocks.length];
+	}
+
+	private static User toUser(String userID, StoredUser user) {
+		TagSet tags = user == null ? null : user.tags.get();
+		return tags == null ? null : new User(userID, user.name, visibleTags(tags));
+	}
+
+	/**
+	 * @return the user ID in the canonical form used as key.
+	 * @throws IllegalArgumentException if the ID is malformed, as with MongoDB.
+	 */
+	private static String toKey(String userID) {
+		return new ObjectId(userID).toHexString();
+	}
+}
@@ -0,0 +1,270 @@
+package tagging;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a response straight into the wire format of its protocol version, without
+ * building the text as a String first.
+ *
+ * The bytes go into a buffer that each thread reuses for all the responses it writes,
+ * behind room left for the frame header. A version 1 response is encoded as modified
+ * UTF-8, like DataOutputStream.writeUTF, and framed by {@link #finishV1()}. A version 2
+ * response is encoded as UTF-8 and sent in frames of {@link #CHUNK_SIZE} bytes as it is
+ * produced, so a response of any size is sent with constant memory; a frame always ends
+ * on a whole character, since the client decodes each frame on its own.
+ *
+ * The static helpers append the pieces of the response messages, such as a set of tags
+ * or a left-justified column, to any Appendable, exactly as String.format and
+ * Set.toString would render them.
+ */
+public final class ResponseWriter implements Appendable {
+
+	final static int CHUNK_SIZE = 16 * 1024;
+
+	// A buffer grown beyond this by a large version 1 response is not kept for reuse.
+	final static int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+	private final static ThreadLocal<ResponseWriter> writers = ThreadLocal.withInitial(ResponseWriter::new);
+
+	/**
+	 * Where the encoded frames go; may block to apply back pressure. The frame is only
+	 * valid during the call, so a sink that keeps it must copy it.
+	 */
+	@FunctionalInterface
+	public interface FrameSink {
+		void send(ByteBuffer frame) throws IOException;
+	}
+
+	private byte[] buffer = new byte[WireProtocol.V2_HEADER_LENGTH + CHUNK_SIZE + 4];
+	private int headerLength;
+	private int position;
+	private boolean modifiedUTF8;
+	private int requestID;
+	private FrameSink sink;
+	// A high surrogate waiting for the low surrogate of its pair.
+	private char highSurrogate;
+
+	private ResponseWriter() {
+	}
+
+	public static ResponseWriter forCurrentThread() {
+		return writers.get();
+	}
+
+	/**
+	 * Starts a protocol version 1 response, discarding whatever was written before.
+	 */
+	public ResponseWriter startV1() {
+		start(WireProtocol.V1_HEADER_LENGTH, true);
+		sink = null;
+		return this;
+	}
+
+	/**
+	 * Starts a protocol version 2 response to the given request, discarding whatever was
+	 * written before.
+	 */
+	public ResponseWriter startV2(int requestID, FrameSink sink) {
+		start(WireProtocol.V2_HEADER_LENGTH, false);
+		this.requestID = requestID;
+		this.sink = sink;
+		return this;
+	}
+
+	/**
+	 * @return the version 1 frame of the response, valid until the next response is
+	 *         started on this thread.
+	 * @throws UTFDataFormatException if the response is longer than 64 KB when encoded.
+	 */
+	public ByteBuffer finishV1() throws UTFDataFormatException {
+		// Modified UTF-8 encodes each surrogate on its own, so none is ever pending.
+		int length = position - headerLength;
+		if (length > WireProtocol.V1_MAX_PAYLOAD_LENGTH) {
+			throw new UTFDataFormatException(String.format("encoded string too long: %d bytes", length));
+		}
+		buffer[0] = (byte) (length >>> 8);
+		buffer[1] = (byte) length;
+		return ByteBuffer.wrap(buffer, 0, position);
+	}
+
+	/**
+	 * Sends whatever is buffered as the final frame of the version 2 response.
+	 */
+	public void finishV2() throws IOException {
+		flushHighSurrogate();
+		sendFrame(WireProtocol.FLAG_FINAL);
+	}
+
+	@Override
+	public ResponseWriter append(CharSequence text) throws IOException {
+		if (text == null) {
+			text = "null";
+		}
+		return append(text, 0, text.length());
+	}
+
+	@Override
+	public ResponseWriter append(CharSequence text, int start, int end) throws IOException {
+		if (text == null) {
+			text = "null";
+		}
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80 && c != 0 && highSurrogate == 0 && position < buffer.length) {
+				if (sink != null && position - headerLength >= CHUNK_SIZE) {
+					sendFrame((byte) 0);
+				}
+				buffer[position++] = (byte) c;
+			} else {
+				append(c);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public ResponseWriter append(char c) throws IOException {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (!modifiedUTF8 && Character.isLowSurrogate(c)) {
+				writeCodePoint(Character.toCodePoint(high, c));
+				return this;
+			}
+			writeCodePoint(high);
+		}
+		if (!modifiedUTF8 && Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else {
+			writeCodePoint(c);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the number in decimal, like Long.toString.
+	 */
+	public ResponseWriter append(long number) throws IOException {
+		if (number == Long.MIN_VALUE) {
+			return append(Long.toString(number));
+		}
+		if (number < 0) {
+			append('-');
+			number = -number;
+		}
+		long divisor = 1;
+		while (number / divisor >= 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			append((char) ('0' + number / divisor % 10));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the number as String.format("%d") renders it in an ASCII locale.
+	 */
+	public static Appendable appendNumber(Appendable out, long number) throws IOException {
+		if (out instanceof ResponseWriter) {
+			return ((ResponseWriter) out).append(number);
+		}
+		if (out instanceof StringBuilder) {
+			return ((StringBuilder) out).append(number);
+		}
+		return out.append(Long.toString(number));
+	}
+
+	/**
+	 * Appends the text left-justified in a column of the given width, as
+	 * String.format("%-<width>s") renders it.
+	 */
+	public static Appendable appendPadded(Appendable out, Object value, int width) throws IOException {
+		String text = String.valueOf(value);
+		out.append(text);
+		for (int i = text.length(); i < width; i++) {
+			out.append(' ');
+		}
+		return out;
+	}
+
+	/**
+	 * Appends the tags as Set.toString renders them, in the iteration order of the set.
+	 */
+	public static Appendable appendTags(Appendable out, Iterable<?> tags) throws IOException {
+		out.append('[');
+		boolean first = true;
+		for (Object tag : tags) {
+			if (!first) {
+				out.append(", ");
+			}
+			out.append(String.valueOf(tag));
+			first = false;
+		}
+		return out.append(']');
+	}
+
+	private void start(int headerLength, boolean modifiedUTF8) {
+		if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+			buffer = new byte[WireProtocol.V2_HEADER_LENGTH + CHUNK_SIZE + 4];
+		}
+		this.headerLength = headerLength;
+		this.modifiedUTF8 = modifiedUTF8;
+		position = headerLength;
+		highSurrogate = 0;
+	}
+
+	private void flushHighSurrogate() throws IOException {
+		if (highSurrogate != 0) {
+			// An unpaired surrogate, which String.getBytes replaces.
+			highSurrogate = 0;
+			writeCodePoint('?');
+		}
+	}
+
+	/**
+	 * Encodes one character, or with UTF-8 one code point; an unpaired surrogate is
+	 * replaced like String.getBytes does.
+	 */
+	private void writeCodePoint(int codePoint) throws IOException {
+		if (sink != null && position - headerLength >= CHUNK_SIZE) {
+			sendFrame((byte) 0);
+		}
+		if (!modifiedUTF8 && codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+			codePoint = '?';
+		}
+		ensureCapacity(4);
+		if (codePoint < 0x80 && (codePoint != 0 || !modifiedUTF8)) {
+			buffer[position++] = (byte) codePoint;
+		} else if (codePoint < 0x800) {
+			buffer[position++] = (byte) (0xC0 | codePoint >> 6);
+			buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+		} else if (codePoint < 0x10000) {
+			buffer[position++] = (byte) (0xE0 | codePoint >> 12);
+			buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+			buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+		} else {
+			buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+			buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+			buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+			buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+		}
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (position + bytes > buffer.length) {
+			byte[] larger = new byte[Math.max(buffer.length * 2, position + bytes)];
+			System.arraycopy(buffer, 0, larger, 0, position);
+			buffer = larger;
+		}
+	}
+
+	private void sendFrame(byte flags) throws IOException {
+		ByteBuffer frame = ByteBuffer.wrap(buffer, 0, position);
+		frame.putInt(position - WireProtocol.V2_LENGTH_FIELD_LENGTH).putInt(requestID).put(flags).position(0);
+		sink.send(frame);
+		position = headerLength;
+	}
+}
@@ -7,24 +7,25 @@ public class Tag {
 	
 	private String id;
 	private String name;
+	private int ordinal;
 	
 	public Tag(String id, String name) {
 		this.id = id;
 		this.name = name;
+		this.ordinal = TagRegistry.getInstance().assignOrdinal(this);
 	}
 	
 	public static Tag create(String tagName) {
-		UserTagDatabase udb = new UserTagDatabase();
-		Tag tag = udb.insertTag(tagName);
-		udb.close();
-		return tag;
+		return UserTagStore.getInstance().insertTag(tagName);
 	}
 	
+	/**
+	 * Resolves a tag name against the server-wide TagRegistry.
+	 * 
+	 * @return the tag, or null if no tag with this name exists.
+	 */
 	public static Tag fromName(String tagName) {
-		UserTagDatabase udb = new UserTagDatabase();
-		Tag tag = udb.getTag(tagName);
-		udb.close();
-		return tag;
+		return TagRegistry.getInstance().get(tagName);
 	}
 	
 	public String getID() {
@@ -35,18 +36,26 @@ public class Tag {
 		return name;
 	}
 	
+	/**
+	 * @return the dense ordinal of this tag's name, see {@link TagRegistry#getOrdinal(String)}.
+	 */
+	public int getOrdinal() {
+		return ordinal;
+	}
+	
 	// Ensure that tags with the same name aren't duplicated in a Set.
+	// Names map one-to-one to ordinals, so comparing ordinals is enough.
 	@Override
     public boolean equals(Object to_compare){
         if( !(to_compare instanceof Tag))
             return false;
         Tag other = (Tag) to_compare;
-        return this.getName().equals(other.getName());
+        return this.ordinal == other.ordinal;
     }
 	
 	@Override
     public int hashCode() {
-        return this.getName().hashCode();
+        return this.ordinal;
     }
 	
 	@Override
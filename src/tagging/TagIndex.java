@@ -0,0 +1,536 @@
+package tagging;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * In-memory inverted index from each tag to the users that carry it.
+ *
+ * Every user gets a dense user ordinal, and every tag ordinal maps to a compressed
+ * bitmap of user ordinals, so "which users have these tags" is a bitmap intersection
+ * instead of a collection scan. The index is built from the database before serving and
+ * then kept current as a {@link UserTagListener}, which relies on the store to tell it of
+ * the changes of each user in the order they were made.
+ */
+public final class TagIndex implements UserTagListener {
+
+	/**
+	 * Direct access to the bitmaps while the index is locked for reading. The bitmaps
+	 * must not be modified, nor used after the read returns.
+	 */
+	public interface Reader {
+
+		/**
+		 * @return the users that carry the tag with the given ordinal, or null if none.
+		 */
+		public RoaringBitmap getUsers(int tagOrdinal);
+
+		public RoaringBitmap getAllUsers();
+	}
+
+	/**
+	 * Is told about every actual change of a user's tags as the index applies it, with
+	 * the user's complete tags before and after, apart from the corrections of a
+	 * {@link Reconciliation}. Called under the index's write lock, so it must be quick.
+	 */
+	public interface ChangeListener {
+		public void tagsChanged(String userID, TagSet before, TagSet after);
+	}
+
+	/**
+	 * Corrects the index from a scan of the store, for the changes it was not told of,
+	 * such as the writes of other processes. Every user of the store is passed to it, in
+	 * any order, and then it is finished.
+	 *
+	 * A user that the index was told of a change of since the reconciliation started is
+	 * left alone, since the tags in the index are at least as new as those scanned. The
+	 * corrections are not reported to the change listeners: the one that reconciles
+	 * counts from the tags that each user is passed with.
+	 */
+	public final class Reconciliation {
+		private final long startChange;
+		private final RoaringBitmap passedUsers = new RoaringBitmap();
+		// The users deleted since the start, which the scan may still return.
+		private final Set<String> deletedUserIDs = new HashSet<>();
+		private int corrections;
+
+		private Reconciliation(long startChange) {
+			this.startChange = startChange;
+		}
+
+		/**
+		 * Corrects the user's tags in the index to the tags read from the store.
+		 *
+		 * @param visitor called with the user's tags in the index afterwards, under the
+		 *                index's write lock, so that the next change of the user is
+		 *                reported after it.
+		 */
+		public void pass(String userID, TagSet storedTags, Consumer<TagSet> visitor) {
+			lock.writeLock().lock();
+			try {
+				Integer userOrdinal = ordinalsByUserID.get(userID);
+				if (userOrdinal == null) {
+					if (deletedUserIDs.contains(userID)) {
+						visitor.accept(TagSet.EMPTY);
+						return;
+					}
+					// Inserted by another process.
+					userOrdinal = getOrAssignUserOrdinal(userID);
+					setTags(userOrdinal, TagSet.EMPTY, storedTags);
+					corrections++;
+				} else if (changedAt[userOrdinal] <= startChange) {
+					TagSet indexedTags = getTags(userOrdinal);
+					if (!indexedTags.equals(storedTags)) {
+						setTags(userOrdinal, indexedTags, storedTags);
+						corrections++;
+					}
+				} else {
+					passedUsers.add(userOrdinal);
+					visitor.accept(getTags(userOrdinal));
+					return;
+				}
+				passedUsers.add(userOrdinal);
+				visitor.accept(storedTags);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Removes the users that were not passed and have not changed since the start,
+		 * since the store no longer has them, and ends the reconciliation.
+		 *
+		 * @return the number of users that were corrected or removed.
+		 */
+		public int finish() {
+			lock.writeLock().lock();
+			try {
+				end();
+				RoaringBitmap removedUsers = RoaringBitmap.andNot(allUsers, passedUsers);
+				for (int userOrdinal : removedUsers) {
+					if (changedAt[userOrdinal] <= startChange) {
+						removeUser(userIDsByOrdinal[userOrdinal], userOrdinal);
+						corrections++;
+					}
+				}
+				return corrections;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Ends the reconciliation without removing any user, such as after a failed scan.
+		 */
+		public void cancel() {
+			lock.writeLock().lock();
+			try {
+				end();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private void end() {
+			if (reconciliation == this) {
+				reconciliation = null;
+			}
+		}
+	}
+
+	private final Reader reader = new Reader() {
+		@Override
+		public RoaringBitmap getUsers(int tagOrdinal) {
+			return getUsersOrNull(tagOrdinal);
+		}
+
+		@Override
+		public RoaringBitmap getAllUsers() {
+			return allUsers;
+		}
+	};
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ConcurrentHashMap<String, Integer> ordinalsByUserID = new ConcurrentHashMap<>();
+	private String[] userIDsByOrdinal = new String[1024];
+	// The number of the last change of each user, out of changeCount.
+	private long[] changedAt = new long[1024];
+	private long changeCount;
+	private int nextUserOrdinal;
+	private RoaringBitmap[] usersByTagOrdinal = new RoaringBitmap[64];
+	private final RoaringBitmap allUsers = new RoaringBitmap();
+	private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+	private Reconciliation reconciliation;
+
+	/**
+	 * Adds a listener. Add it before the index is built to have it see every user.
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	@Override
+	public void userInserted(String userID, TagSet tags) {
+		addTags(userID, tags, true);
+	}
+
+	/**
+	 * Starts to correct the index from a scan of the store, replacing any reconciliation
+	 * that has not finished.
+	 */
+	public Reconciliation startReconciliation() {
+		lock.writeLock().lock();
+		try {
+			reconciliation = new Reconciliation(changeCount);
+			return reconciliation;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void userDeleted(String userID, TagSet tags) {
+		lock.writeLock().lock();
+		try {
+			if (reconciliation != null) {
+				reconciliation.deletedUserIDs.add(userID);
+			}
+			Integer userOrdinal = ordinalsByUserID.get(userID);
+			if (userOrdinal == null) {
+				return;
+			}
+			TagSet before = changeListeners.isEmpty() ? null : getTags(userOrdinal);
+			removeUser(userID, userOrdinal);
+			if (before != null && !before.isEmpty()) {
+				fireTagsChanged(userID, before, TagSet.EMPTY);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Ignored for a user that the index does not know: the user is gone, and an index
+	 * entry for it would never be removed.
+	 */
+	@Override
+	public void tagsAdded(String userID, TagSet tags) {
+		addTags(userID, tags, false);
+	}
+
+	@Override
+	public void tagsRemoved(String userID, TagSet tags) {
+		lock.writeLock().lock();
+		try {
+			Integer userOrdinal = ordinalsByUserID.get(userID);
+			if (userOrdinal == null) {
+				return;
+			}
+			changedAt[userOrdinal] = ++changeCount;
+			TagSet before = changeListeners.isEmpty() ? null : getTags(userOrdinal);
+			boolean changed = false;
+			for (int tagOrdinal : tags.toOrdinals()) {
+				RoaringBitmap users = getUsersOrNull(tagOrdinal);
+				if (users != null) {
+					changed |= users.checkedRemove(userOrdinal);
+				}
+			}
+			if (before != null && changed) {
+				fireTagsChanged(userID, before, before.difference(tags));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true iff the user exists and carries every one of the tags.
+	 */
+	public boolean hasTags(String userID, TagSet tags) {
+		lock.readLock().lock();
+		try {
+			Integer userOrdinal = ordinalsByUserID.get(userID);
+			if (userOrdinal == null) {
+				return false;
+			}
+			for (int tagOrdinal : tags.toOrdinals()) {
+				RoaringBitmap users = getUsersOrNull(tagOrdinal);
+				if (users == null || !users.contains(userOrdinal)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of users that carry every one of the tags, or of all users if
+	 *         there are no tags.
+	 */
+	public int count(TagSet tags) {
+		lock.readLock().lock();
+		try {
+			int[] tagOrdinals = tags.toOrdinals();
+			if (tagOrdinals.length == 0) {
+				return allUsers.getCardinality();
+			}
+			if (tagOrdinals.length == 1) {
+				RoaringBitmap users = getUsersOrNull(tagOrdinals[0]);
+				return users == null ? 0 : users.getCardinality();
+			}
+			if (tagOrdinals.length == 2) {
+				RoaringBitmap first = getUsersOrNull(tagOrdinals[0]);
+				RoaringBitmap second = getUsersOrNull(tagOrdinals[1]);
+				return first == null || second == null ? 0 : RoaringBitmap.andCardinality(first, second);
+			}
+			return intersect(tagOrdinals).getCardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the users that carry every one of the tags, or of all users
+	 *         if there are no tags. Resolve them with {@link #getUserID(int)}.
+	 */
+	public RoaringBitmap find(TagSet tags) {
+		lock.readLock().lock();
+		try {
+			int[] tagOrdinals = tags.toOrdinals();
+			if (tagOrdinals.length == 0) {
+				return allUsers.clone();
+			}
+			return intersect(tagOrdinals);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the users that carry the tag with the given ordinal.
+	 */
+	public RoaringBitmap getUsers(int tagOrdinal) {
+		lock.readLock().lock();
+		try {
+			RoaringBitmap users = getUsersOrNull(tagOrdinal);
+			return users == null ? new RoaringBitmap() : users.clone();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of users that carry the tag with the given ordinal.
+	 */
+	public int getUserCount(int tagOrdinal) {
+		lock.readLock().lock();
+		try {
+			RoaringBitmap users = getUsersOrNull(tagOrdinal);
+			return users == null ? 0 : users.getCardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a snapshot of all users.
+	 */
+	public RoaringBitmap getAllUsers() {
+		lock.readLock().lock();
+		try {
+			return allUsers.clone();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Runs the function under the read lock with direct access to the bitmaps, so that
+	 * a computation over several tags sees one consistent state without copying them.
+	 */
+	public <T> T read(Function<Reader, T> function) {
+		lock.readLock().lock();
+		try {
+			return function.apply(reader);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the ID of the user with the given ordinal, or null if it was deleted.
+	 */
+	public String getUserID(int userOrdinal) {
+		lock.readLock().lock();
+		try {
+			return userOrdinal < nextUserOrdinal ? userIDsByOrdinal[userOrdinal] : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the IDs of the users in the bitmap, in user ordinal order, skipping users
+	 *         that were deleted since.
+	 */
+	public Iterator<String> getUserIDs(RoaringBitmap users) {
+		PeekableIntIterator ordinals = users.getIntIterator();
+		return new Iterator<String>() {
+			private String next = advance();
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public String next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				String userID = next;
+				next = advance();
+				return userID;
+			}
+
+			private String advance() {
+				while (ordinals.hasNext()) {
+					String userID = getUserID(ordinals.next());
+					if (userID != null) {
+						return userID;
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	public int size() {
+		return ordinalsByUserID.size();
+	}
+
+	private void addTags(String userID, TagSet tags, boolean inserted) {
+		lock.writeLock().lock();
+		try {
+			Integer knownOrdinal = ordinalsByUserID.get(userID);
+			if (knownOrdinal == null && !inserted) {
+				return;
+			}
+			int userOrdinal = knownOrdinal != null ? knownOrdinal : getOrAssignUserOrdinal(userID);
+			changedAt[userOrdinal] = ++changeCount;
+			TagSet before = changeListeners.isEmpty() ? null : knownOrdinal == null ? TagSet.EMPTY : getTags(userOrdinal);
+			boolean changed = false;
+			for (int tagOrdinal : tags.toOrdinals()) {
+				changed |= getOrCreateUsers(tagOrdinal).checkedAdd(userOrdinal);
+			}
+			if (before != null && changed) {
+				fireTagsChanged(userID, before, before.union(tags));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void setTags(int userOrdinal, TagSet before, TagSet after) {
+		for (int tagOrdinal : after.difference(before).toOrdinals()) {
+			getOrCreateUsers(tagOrdinal).add(userOrdinal);
+		}
+		for (int tagOrdinal : before.difference(after).toOrdinals()) {
+			getUsersOrNull(tagOrdinal).remove(userOrdinal);
+		}
+	}
+
+	private void removeUser(String userID, int userOrdinal) {
+		ordinalsByUserID.remove(userID);
+		// Clear every tag, not only the known ones, in case the index was ahead of them.
+		for (RoaringBitmap users : usersByTagOrdinal) {
+			if (users != null) {
+				users.remove(userOrdinal);
+			}
+		}
+		allUsers.remove(userOrdinal);
+		userIDsByOrdinal[userOrdinal] = null;
+	}
+
+	// Costs one bitmap lookup per tag, so it is only done when there are change listeners.
+	private TagSet getTags(int userOrdinal) {
+		int[] tagOrdinals = new int[usersByTagOrdinal.length];
+		int count = 0;
+		for (int tagOrdinal = 0; tagOrdinal < usersByTagOrdinal.length; tagOrdinal++) {
+			RoaringBitmap users = usersByTagOrdinal[tagOrdinal];
+			if (users != null && users.contains(userOrdinal)) {
+				tagOrdinals[count++] = tagOrdinal;
+			}
+		}
+		return TagSet.fromOrdinals(Arrays.copyOf(tagOrdinals, count));
+	}
+
+	private void fireTagsChanged(String userID, TagSet before, TagSet after) {
+		for (ChangeListener listener : changeListeners) {
+			listener.tagsChanged(userID, before, after);
+		}
+	}
+
+	// Starts from the smallest bitmap, so the intermediate results stay small.
+	private RoaringBitmap intersect(int[] tagOrdinals) {
+		RoaringBitmap[] bitmaps = new RoaringBitmap[tagOrdinals.length];
+		for (int i = 0; i < tagOrdinals.length; i++) {
+			bitmaps[i] = getUsersOrNull(tagOrdinals[i]);
+			if (bitmaps[i] == null) {
+				return new RoaringBitmap();
+			}
+		}
+		Arrays.sort(bitmaps, (a, b) -> Integer.compare(a.getCardinality(), b.getCardinality()));
+		RoaringBitmap result = bitmaps[0].clone();
+		for (int i = 1; i < bitmaps.length && !result.isEmpty(); i++) {
+			result.and(bitmaps[i]);
+		}
+		return result;
+	}
+
+	private RoaringBitmap getUsersOrNull(int tagOrdinal) {
+		return tagOrdinal < usersByTagOrdinal.length ? usersByTagOrdinal[tagOrdinal] : null;
+	}
+
+	private RoaringBitmap getOrCreateUsers(int tagOrdinal) {
+		if (tagOrdinal >= usersByTagOrdinal.length) {
+			usersByTagOrdinal = Arrays.copyOf(usersByTagOrdinal,
+					Math.max(tagOrdinal + 1, usersByTagOrdinal.length * 2));
+		}
+		if (usersByTagOrdinal[tagOrdinal] == null) {
+			usersByTagOrdinal[tagOrdinal] = new RoaringBitmap();
+		}
+		return usersByTagOrdinal[tagOrdinal];
+	}
+
+	private int getOrAssignUserOrdinal(String userID) {
+		Integer userOrdinal = ordinalsByUserID.get(userID);
+		if (userOrdinal != null) {
+			return userOrdinal;
+		}
+		if (nextUserOrdinal == userIDsByOrdinal.length) {
+			userIDsByOrdinal = Arrays.copyOf(userIDsByOrdinal, userIDsByOrdinal.length * 2);
+			changedAt = Arrays.copyOf(changedAt, changedAt.length * 2);
+		}
+		int newOrdinal = nextUserOrdinal++;
+		userIDsByOrdinal[newOrdinal] = userID;
+		ordinalsByUserID.put(userID, newOrdinal);
+		allUsers.add(newOrdinal);
+		return newOrdinal;
+	}
+}
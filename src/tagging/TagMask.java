@@ -0,0 +1,86 @@
+package tagging;
+
+import java.util.Collection;
+
+/**
+ * Word-wise operations on tag masks: bitsets indexed by {@link Tag#getOrdinal()}.
+ *
+ * A mask is a plain long[] where bit (ordinal % 64) of word (ordinal / 64) is set iff
+ * the tag is present. Masks of different lengths may be mixed; missing words are zero.
+ */
+public final class TagMask {
+
+	public static final long[] EMPTY = new long[0];
+
+	private TagMask() {
+	}
+
+	/**
+	 * @return the mask of the given tags. For a TagSet this is its shared backing mask.
+	 */
+	public static long[] of(Collection<Tag> tags) {
+		if (tags instanceof TagSet) {
+			return ((TagSet) tags).asMask();
+		}
+		if (tags.isEmpty()) {
+			return EMPTY;
+		}
+		int maxOrdinal = 0;
+		for (Tag tag : tags) {
+			maxOrdinal = Math.max(maxOrdinal, tag.getOrdinal());
+		}
+		long[] mask = new long[wordIndex(maxOrdinal) + 1];
+		for (Tag tag : tags) {
+			mask[wordIndex(tag.getOrdinal())] |= bit(tag.getOrdinal());
+		}
+		return mask;
+	}
+
+	public static int wordIndex(int ordinal) {
+		return ordinal >>> 6;
+	}
+
+	public static long bit(int ordinal) {
+		return 1L << ordinal;
+	}
+
+	public static long word(long[] mask, int index) {
+		return index < mask.length ? mask[index] : 0L;
+	}
+
+	/**
+	 * @return true iff every bit of required is set in tags.
+	 */
+	public static boolean containsAll(long[] tags, long[] required) {
+		for (int i = 0; i < required.length; i++) {
+			if ((required[i] & ~word(tags, i)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true iff every bit of required is set in (tags | added).
+	 */
+	public static boolean containsAllAfterAdd(long[] tags, long[] added, long[] required) {
+		for (int i = 0; i < required.length; i++) {
+			if ((required[i] & ~(word(tags, i) | word(added, i))) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true iff every bit of required is set in (tags & ~removed).
+	 */
+	public static boolean containsAllAfterRemove(long[] tags, long[] removed, long[] required) {
+		for (int i = 0; i < required.length; i++) {
+			if ((required[i] & ~(word(tags, i) & ~word(removed, i))) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,71 @@
+package tagging;
+
+import java.util.Collections;
+import java.util.List;
+
+import tagging.consistency.ConsistencyPrecondition;
+
+/**
+ * A validated change to one user's tags, ready to be written to the database.
+ *
+ * The mutation was validated against the tags the user was read with. Its preconditions
+ * hold the rules that validation relied on, so a store writes it only if the user still
+ * meets them when the write happens.
+ */
+public class TagMutation {
+
+	private final String userID;
+	private final TaggableOperation operation;
+	private final TagSet tags;
+	private final List<ConsistencyPrecondition> preconditions;
+
+	public TagMutation(String userID, TaggableOperation operation, TagSet tags) {
+		this(userID, operation, tags, Collections.emptyList());
+	}
+
+	public TagMutation(String userID, TaggableOperation operation, TagSet tags,
+			List<ConsistencyPrecondition> preconditions) {
+		if (operation == TaggableOperation.CREATE) {
+			throw new IllegalArgumentException("A tag mutation either adds or removes tags.");
+		}
+		this.userID = userID;
+		this.operation = operation;
+		this.tags = tags;
+		this.preconditions = preconditions;
+	}
+
+	public String getUserID() {
+		return userID;
+	}
+
+	/**
+	 * @return either ADD_TAG or REMOVE_TAG.
+	 */
+	public TaggableOperation getOperation() {
+		return operation;
+	}
+
+	public TagSet getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return the preconditions that the user's tags must meet at the time of the write,
+	 *         empty if the mutation is unconditional.
+	 */
+	public List<ConsistencyPrecondition> getPreconditions() {
+		return preconditions;
+	}
+
+	/**
+	 * @return true iff the tags already reflect this mutation.
+	 */
+	public boolean isAppliedTo(TagSet existingTags) {
+		return operation == TaggableOperation.ADD_TAG ? existingTags.containsAll(tags) : !existingTags.intersects(tags);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s %s", operation, userID, tags);
+	}
+}
@@ -0,0 +1,68 @@
+package tagging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a store made of a list of tag mutations: how many users it modified, and why
+ * each mutation that was not written failed.
+ */
+public class TagMutationResult {
+
+	private final int modifiedCount;
+	private final Exception[] failures;
+
+	/**
+	 * @param failures per mutation, in the order of the mutations: the reason it was not
+	 *                 written, or null if it was.
+	 */
+	public TagMutationResult(int modifiedCount, Exception[] failures) {
+		this.modifiedCount = modifiedCount;
+		this.failures = failures;
+	}
+
+	/**
+	 * @return the result of mutations that were all written.
+	 */
+	public static TagMutationResult written(int modifiedCount, List<TagMutation> mutations) {
+		return new TagMutationResult(modifiedCount, new Exception[mutations.size()]);
+	}
+
+	/**
+	 * @return the number of users that were modified.
+	 */
+	public int getModifiedCount() {
+		return modifiedCount;
+	}
+
+	/**
+	 * A mutation that was written, or found the user's tags already as it wanted them,
+	 * has no failure. Otherwise the failure is a
+	 * {@link tagging.consistency.ConsistencyRuleViolationException} if the user no longer
+	 * met a precondition, a {@link UserNotFoundException} if the user was gone, a
+	 * {@link UserUpdateConflictException} if the user kept changing, or the error of the
+	 * write.
+	 *
+	 * @return why the mutation at the index was not written, or null if it was.
+	 */
+	public Exception getFailure(int index) {
+		return failures[index];
+	}
+
+	public boolean isWritten(int index) {
+		return failures[index] == null;
+	}
+
+	/**
+	 * @return the mutations that were written, out of those this is the result of.
+	 */
+	public List<TagMutation> getWritten(List<TagMutation> mutations) {
+		List<TagMutation> written = new ArrayList<>(mutations.size());
+		for (int i = 0; i < mutations.size(); i++) {
+			if (failures[i] == null) {
+				written.add(mutations.get(i));
+			}
+		}
+		return written;
+	}
+}
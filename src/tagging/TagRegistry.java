@@ -0,0 +1,199 @@
+package tagging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server-wide dictionary of the known tags, keyed by tag name.
+ *
+ * The registry is loaded from the stored tags when the UserTagStore is set up and kept
+ * current by its insertTag/deleteTag operations, so that resolving a tag name
+ * never needs a database round trip.
+ *
+ * It also hands out dense ordinals, one per tag name, which index the bits of a
+ * {@link TagMask}. Ordinals are never reused, so a deleted and re-created tag keeps the
+ * ordinal of its name.
+ *
+ * Tag names can also be resolved straight from the UTF-8 bytes of a request, through a
+ * table of encoded names that is rebuilt on the first lookup after the tags change.
+ */
+public class TagRegistry {
+
+	private static final TagRegistry instance = new TagRegistry();
+
+	private final ConcurrentHashMap<String, Tag> tagsByName = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Integer> ordinalsByName = new ConcurrentHashMap<>();
+	private final AtomicInteger nextOrdinal = new AtomicInteger();
+	private volatile Tag[] tagsByOrdinal = new Tag[64];
+	// Counts the changes of tagsByName, so that a stale name table is noticed.
+	private final AtomicInteger version = new AtomicInteger();
+	private volatile NameTable nameTable = new NameTable(0, Collections.emptyList());
+
+	/**
+	 * An immutable open addressing table from encoded tag names to tags.
+	 */
+	private static final class NameTable {
+		final int version;
+		final byte[][] names;
+		final Tag[] tags;
+		final int mask;
+
+		NameTable(int version, Collection<Tag> tags) {
+			this.version = version;
+			// At most half full, so that probe sequences stay short.
+			int capacity = Integer.highestOneBit(Math.max(2, tags.size()) * 2) * 2;
+			this.names = new byte[capacity][];
+			this.tags = new Tag[capacity];
+			this.mask = capacity - 1;
+			for (Tag tag : tags) {
+				byte[] name = tag.getName().getBytes(StandardCharsets.UTF_8);
+				int slot = hash(name, 0, name.length) & mask;
+				while (names[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				names[slot] = name;
+				this.tags[slot] = tag;
+			}
+		}
+
+		Tag get(byte[] bytes, int offset, int length) {
+			int slot = hash(bytes, offset, length) & mask;
+			byte[] name;
+			while ((name = names[slot]) != null) {
+				if (Arrays.equals(name, 0, name.length, bytes, offset, offset + length)) {
+					return tags[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			return null;
+		}
+
+		static int hash(byte[] bytes, int offset, int length) {
+			int hash = 0;
+			for (int i = offset; i < offset + length; i++) {
+				hash = 31 * hash + bytes[i];
+			}
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	public static TagRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Replaces the contents of the registry with the given tags.
+	 */
+	public synchronized void load(Iterable<Tag> tags) {
+		tagsByName.clear();
+		version.incrementAndGet();
+		for (Tag tag : tags) {
+			register(tag);
+		}
+	}
+
+	public void register(Tag tag) {
+		tagsByName.put(tag.getName(), tag);
+		version.incrementAndGet();
+		setTagForOrdinal(tag, true);
+	}
+
+	/**
+	 * @return true iff a tag with the given ID was registered.
+	 */
+	public boolean unregister(String tagID) {
+		boolean removed = tagsByName.values().removeIf(tag -> tag.getID().equals(tagID));
+		version.incrementAndGet();
+		return removed;
+	}
+
+	/**
+	 * @return a number that changes whenever a tag is registered or unregistered, so that
+	 *         what is derived from the tags can tell when to derive it again.
+	 */
+	public int getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * @return the tag with the given name, or null if there is no such tag.
+	 */
+	public Tag get(String tagName) {
+		return tagsByName.get(tagName);
+	}
+
+	/**
+	 * Resolves a tag name given as UTF-8 bytes, without decoding it.
+	 * 
+	 * @return the tag with the given name, or null if there is no such tag.
+	 */
+	public Tag get(byte[] bytes, int offset, int length) {
+		NameTable table = nameTable;
+		int currentVersion = version.get();
+		if (table.version != currentVersion) {
+			// Changes made while the table is built bump the version again.
+			table = new NameTable(currentVersion, tagsByName.values());
+			nameTable = table;
+		}
+		return table.get(bytes, offset, length);
+	}
+
+	/**
+	 * @return the ordinal of the given tag name, assigning the next free one on first use.
+	 */
+	public int getOrdinal(String tagName) {
+		return ordinalsByName.computeIfAbsent(tagName, name -> nextOrdinal.getAndIncrement());
+	}
+
+	/**
+	 * Called by the Tag constructor: assigns the tag its ordinal and, if no tag was
+	 * registered for that ordinal yet, makes it the one resolved by {@link #getByOrdinal(int)}.
+	 */
+	int assignOrdinal(Tag tag) {
+		int ordinal = getOrdinal(tag.getName());
+		Tag[] tags = tagsByOrdinal;
+		if (ordinal >= tags.length || tags[ordinal] == null) {
+			setTagForOrdinal(tag, ordinal, false);
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Resolves an ordinal back to its tag. Tags that have been deleted keep resolving, so
+	 * that tag sets read before the deletion stay printable.
+	 * 
+	 * @return the tag with the given ordinal, or null if the ordinal was never assigned.
+	 */
+	public Tag getByOrdinal(int ordinal) {
+		Tag[] tags = tagsByOrdinal;
+		return ordinal < tags.length ? tags[ordinal] : null;
+	}
+
+	public Collection<Tag> getAll() {
+		return Collections.unmodifiableCollection(tagsByName.values());
+	}
+
+	public int size() {
+		return tagsByName.size();
+	}
+
+	private void setTagForOrdinal(Tag tag, boolean replace) {
+		setTagForOrdinal(tag, tag.getOrdinal(), replace);
+	}
+
+	// Writers copy on growth; readers only ever see a fully populated array.
+	private synchronized void setTagForOrdinal(Tag tag, int ordinal, boolean replace) {
+		Tag[] tags = tagsByOrdinal;
+		if (ordinal >= tags.length) {
+			tags = Arrays.copyOf(tags, Math.max(tags.length * 2, ordinal + 1));
+		} else if (tags[ordinal] != null && !replace) {
+			return;
+		}
+		tags[ordinal] = tag;
+		tagsByOrdinal = tags;
+	}
+}
@@ -0,0 +1,223 @@
+package tagging;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact, immutable set of tags backed by a {@link TagMask} of tag ordinals.
+ *
+ * A user's tags take one long per 64 tag ordinals instead of a HashSet of Tag objects,
+ * and union, difference and containsAll against another TagSet are word operations.
+ * Tags are resolved from their ordinals through the TagRegistry when iterated.
+ */
+public final class TagSet extends AbstractSet<Tag> {
+
+	public static final TagSet EMPTY = new TagSet(TagMask.EMPTY);
+
+	// Never has trailing zero words, so equal sets have equal arrays.
+	private final long[] words;
+
+	private TagSet(long[] words) {
+		this.words = words;
+	}
+
+	public static TagSet of(Collection<Tag> tags) {
+		if (tags instanceof TagSet) {
+			return (TagSet) tags;
+		}
+		return fromMask(TagMask.of(tags));
+	}
+
+	public static TagSet of(Tag... tags) {
+		return of(Arrays.asList(tags));
+	}
+
+	/**
+	 * @return a set of the tags whose bits are set in the mask. The mask is not retained.
+	 */
+	public static TagSet fromMask(long[] mask) {
+		int length = trimmedLength(mask);
+		return length == 0 ? EMPTY : new TagSet(Arrays.copyOf(mask, length));
+	}
+
+	/**
+	 * @return a set of the tags with the given ordinals.
+	 */
+	public static TagSet fromOrdinals(int... ordinals) {
+		int maxOrdinal = -1;
+		for (int ordinal : ordinals) {
+			maxOrdinal = Math.max(maxOrdinal, ordinal);
+		}
+		if (maxOrdinal < 0) {
+			return EMPTY;
+		}
+		long[] words = new long[TagMask.wordIndex(maxOrdinal) + 1];
+		for (int ordinal : ordinals) {
+			words[TagMask.wordIndex(ordinal)] |= TagMask.bit(ordinal);
+		}
+		return new TagSet(words);
+	}
+
+	/**
+	 * @return the backing mask of this set. It is shared and must not be modified.
+	 */
+	public long[] asMask() {
+		return words;
+	}
+
+	/**
+	 * @return the ordinals of the tags in this set, in ascending order.
+	 */
+	public int[] toOrdinals() {
+		int[] ordinals = new int[size()];
+		int i = 0;
+		for (int ordinal = nextOrdinal(0); ordinal >= 0; ordinal = nextOrdinal(ordinal + 1)) {
+			ordinals[i++] = ordinal;
+		}
+		return ordinals;
+	}
+
+	public TagSet union(Set<Tag> other) {
+		long[] otherWords = TagMask.of(other);
+		if (TagMask.containsAll(words, otherWords)) {
+			return this;
+		}
+		long[] result = Arrays.copyOf(words, Math.max(words.length, otherWords.length));
+		for (int i = 0; i < otherWords.length; i++) {
+			result[i] |= otherWords[i];
+		}
+		return new TagSet(result);
+	}
+
+	public TagSet difference(Set<Tag> other) {
+		long[] otherWords = TagMask.of(other);
+		long[] result = words.clone();
+		boolean changed = false;
+		for (int i = 0; i < result.length; i++) {
+			long word = result[i] & ~TagMask.word(otherWords, i);
+			changed |= word != result[i];
+			result[i] = word;
+		}
+		return changed ? fromMask(result) : this;
+	}
+
+	/**
+	 * @return true iff this set and the other have at least one tag in common.
+	 */
+	public boolean intersects(Set<Tag> other) {
+		long[] otherWords = TagMask.of(other);
+		int length = Math.min(words.length, otherWords.length);
+		for (int i = 0; i < length; i++) {
+			if ((words[i] & otherWords[i]) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> other) {
+		if (other instanceof TagSet) {
+			return TagMask.containsAll(words, ((TagSet) other).words);
+		}
+		return super.containsAll(other);
+	}
+
+	@Override
+	public boolean contains(Object object) {
+		if (!(object instanceof Tag)) {
+			return false;
+		}
+		return containsOrdinal(((Tag) object).getOrdinal());
+	}
+
+	/**
+	 * @return true iff the tag with the given ordinal is in this set.
+	 */
+	public boolean containsOrdinal(int ordinal) {
+		return (TagMask.word(words, TagMask.wordIndex(ordinal)) & TagMask.bit(ordinal)) != 0;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return words.length == 0;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (long word : words) {
+			size += Long.bitCount(word);
+		}
+		return size;
+	}
+
+	@Override
+	public Iterator<Tag> iterator() {
+		return new Iterator<Tag>() {
+			private int next = nextOrdinal(0);
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public Tag next() {
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+				Tag tag = TagRegistry.getInstance().getByOrdinal(next);
+				next = nextOrdinal(next + 1);
+				return tag;
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (other instanceof TagSet) {
+			return Arrays.equals(words, ((TagSet) other).words);
+		}
+		return super.equals(other);
+	}
+
+	// Tag.hashCode() is the ordinal, so the Set contract makes this the sum of ordinals.
+	@Override
+	public int hashCode() {
+		int hashCode = 0;
+		for (int ordinal = nextOrdinal(0); ordinal >= 0; ordinal = nextOrdinal(ordinal + 1)) {
+			hashCode += ordinal;
+		}
+		return hashCode;
+	}
+
+	private int nextOrdinal(int from) {
+		int index = TagMask.wordIndex(from);
+		if (index >= words.length) {
+			return -1;
+		}
+		long word = words[index] & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				return index * Long.SIZE + Long.numberOfTrailingZeros(word);
+			}
+			if (++index == words.length) {
+				return -1;
+			}
+			word = words[index];
+		}
+	}
+
+	private static int trimmedLength(long[] mask) {
+		int length = mask.length;
+		while (length > 0 && mask[length - 1] == 0) {
+			length--;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,294 @@
+package tagging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-tag user counts and pairwise tag co-occurrence counts, maintained on every change
+ * of a user's tags instead of by scanning the users.
+ *
+ * The counts are kept in {@link LongAdder} cells, which stripe concurrent increments over
+ * several cells, and the co-occurrence matrix is sparse: only pairs that occur have a
+ * cell. The statistics listen to the {@link TagIndex}, which reports the exact tags of a
+ * user before and after each change.
+ *
+ * Writes from other processes, such as a consistency migration, are not seen by this
+ * server, so {@link #reconcile(UserTagStore)} recounts everything from the store and
+ * corrects the tag index in the same scan. It can be scheduled to run in the background.
+ */
+public final class TagStatistics implements TagIndex.ChangeListener {
+
+	@FunctionalInterface
+	public interface TagCountVisitor {
+		/**
+		 * @param otherOrdinal the second tag of a pair, or -1 for a single tag.
+		 */
+		void visit(int tagOrdinal, int otherOrdinal, long count);
+	}
+
+	/**
+	 * The counters of one generation of statistics.
+	 */
+	private static final class Counts {
+		final ConcurrentHashMap<Integer, LongAdder> users = new ConcurrentHashMap<>();
+		final ConcurrentHashMap<Long, LongAdder> pairs = new ConcurrentHashMap<>();
+
+		void record(TagSet before, TagSet after) {
+			TagSet added = after.difference(before);
+			TagSet removed = before.difference(after);
+			for (int tagOrdinal : added.toOrdinals()) {
+				cell(users, tagOrdinal).increment();
+				// Each new pair once: pairs of two added tags are counted from the lower one.
+				for (int otherOrdinal : after.toOrdinals()) {
+					if (otherOrdinal != tagOrdinal
+							&& !(added.containsOrdinal(otherOrdinal) && otherOrdinal < tagOrdinal)) {
+						cell(pairs, pairKey(tagOrdinal, otherOrdinal)).increment();
+					}
+				}
+			}
+			for (int tagOrdinal : removed.toOrdinals()) {
+				cell(users, tagOrdinal).decrement();
+				for (int otherOrdinal : before.toOrdinals()) {
+					if (otherOrdinal != tagOrdinal
+							&& !(removed.containsOrdinal(otherOrdinal) && otherOrdinal < tagOrdinal)) {
+						cell(pairs, pairKey(tagOrdinal, otherOrdinal)).decrement();
+					}
+				}
+			}
+		}
+
+		void add(Counts other) {
+			other.users.forEach((key, cell) -> cell(users, key).add(cell.sum()));
+			other.pairs.forEach((key, cell) -> cell(pairs, key).add(cell.sum()));
+		}
+
+		private static <K> LongAdder cell(ConcurrentHashMap<K, LongAdder> cells, K key) {
+			LongAdder cell = cells.get(key);
+			return cell != null ? cell : cells.computeIfAbsent(key, k -> new LongAdder());
+		}
+	}
+
+	/**
+	 * A recount from the store in progress. The store is scanned in user ID order, so a
+	 * change to a user that the scan has already passed is missed by the scan and kept
+	 * aside to be added to its result.
+	 */
+	private static final class Reconciliation {
+		final Counts scanned = new Counts();
+		final Counts missed = new Counts();
+		volatile String position;
+
+		void pass(String userID, TagSet tags) {
+			position = userID;
+			scanned.record(TagSet.EMPTY, tags);
+		}
+
+		void record(String userID, TagSet before, TagSet after) {
+			String position = this.position;
+			if (position != null && userID.compareTo(position) <= 0) {
+				missed.record(before, after);
+			}
+		}
+	}
+
+	private final ReadWriteLock generationLock = new ReentrantReadWriteLock();
+	private Counts counts = new Counts();
+	private volatile Reconciliation reconciliation;
+	private volatile long lastReconciledMillis;
+	private volatile long lastDrift;
+	private volatile int lastIndexCorrections;
+
+	@Override
+	public void tagsChanged(String userID, TagSet before, TagSet after) {
+		// Many changes may record at once; only a reconciliation swapping the counts excludes them.
+		generationLock.readLock().lock();
+		try {
+			counts.record(before, after);
+			Reconciliation reconciliation = this.reconciliation;
+			if (reconciliation != null) {
+				reconciliation.record(userID, before, after);
+			}
+		} finally {
+			generationLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of users that carry the tag with the given ordinal.
+	 */
+	public long getUserCount(int tagOrdinal) {
+		generationLock.readLock().lock();
+		try {
+			LongAdder cell = counts.users.get(tagOrdinal);
+			return cell == null ? 0 : cell.sum();
+		} finally {
+			generationLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of users that carry both tags.
+	 */
+	public long getPairCount(int tagOrdinal, int otherOrdinal) {
+		generationLock.readLock().lock();
+		try {
+			LongAdder cell = counts.pairs.get(pairKey(tagOrdinal, otherOrdinal));
+			return cell == null ? 0 : cell.sum();
+		} finally {
+			generationLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Calls the visitor with every tag ordinal that is carried by at least one user.
+	 */
+	public void forEachTag(TagCountVisitor visitor) {
+		generationLock.readLock().lock();
+		try {
+			for (Map.Entry<Integer, LongAdder> entry : counts.users.entrySet()) {
+				long count = entry.getValue().sum();
+				if (count != 0) {
+					visitor.visit(entry.getKey(), -1, count);
+				}
+			}
+		} finally {
+			generationLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Calls the visitor with every pair of tag ordinals, lower one first, that is carried
+	 * together by at least one user.
+	 */
+	public void forEachPair(TagCountVisitor visitor) {
+		generationLock.readLock().lock();
+		try {
+			for (Map.Entry<Long, LongAdder> entry : counts.pairs.entrySet()) {
+				long count = entry.getValue().sum();
+				if (count != 0) {
+					long key = entry.getKey();
+					visitor.visit((int) (key >>> 32), (int) key, count);
+				}
+			}
+		} finally {
+			generationLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recounts every tag and pair by scanning the users in the store, and replaces the
+	 * counts with the result. Changes made during the scan are carried over. The same scan
+	 * corrects the store's tag index, and the counts follow the corrected index.
+	 *
+	 * @return the drift: the sum of the absolute differences between the old and the new
+	 *         counts.
+	 */
+	public synchronized long reconcile(UserTagStore database) {
+		TagIndex index = database.getTagIndex();
+		TagIndex.Reconciliation indexReconciliation = index == null ? null : index.startReconciliation();
+		Reconciliation reconciliation = new Reconciliation();
+		this.reconciliation = reconciliation;
+		try {
+			database.forEachUser(null, null, user -> {
+				if (indexReconciliation == null) {
+					reconciliation.pass(user.getID(), user.getLoadedTags());
+				} else {
+					indexReconciliation.pass(user.getID(), user.getLoadedTags(),
+							tags -> reconciliation.pass(user.getID(), tags));
+				}
+				return true;
+			});
+		} catch (RuntimeException e) {
+			this.reconciliation = null;
+			if (indexReconciliation != null) {
+				indexReconciliation.cancel();
+			}
+			throw e;
+		}
+		if (indexReconciliation != null) {
+			lastIndexCorrections = indexReconciliation.finish();
+		}
+
+		generationLock.writeLock().lock();
+		try {
+			this.reconciliation = null;
+			Counts reconciled = reconciliation.scanned;
+			reconciled.add(reconciliation.missed);
+			long drift = drift(counts.users, reconciled.users) + drift(counts.pairs, reconciled.pairs);
+			counts = reconciled;
+			lastDrift = drift;
+			lastReconciledMillis = System.currentTimeMillis();
+			return drift;
+		} finally {
+			generationLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Runs {@link #reconcile(UserTagStore)} at a fixed interval on a daemon thread.
+	 */
+	public ScheduledExecutorService scheduleReconcile(UserTagStore database, long intervalMinutes) {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "tagging-stats-reconcile");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				reconcile(database);
+			} catch (RuntimeException e) {
+				// Keep the schedule alive; the next run starts over.
+				e.printStackTrace();
+			}
+		}, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+		return executor;
+	}
+
+	/**
+	 * @return when the counts were last reconciled, or 0 if never.
+	 */
+	public long getLastReconciledMillis() {
+		return lastReconciledMillis;
+	}
+
+	/**
+	 * @return the drift found by the last reconciliation.
+	 */
+	public long getLastDrift() {
+		return lastDrift;
+	}
+
+	/**
+	 * @return the number of users whose tags the last reconciliation corrected in the tag
+	 *         index, or removed from it.
+	 */
+	public int getLastIndexCorrections() {
+		return lastIndexCorrections;
+	}
+
+	private static <K> long drift(Map<K, LongAdder> current, Map<K, LongAdder> reconciled) {
+		long drift = 0;
+		for (Map.Entry<K, LongAdder> entry : reconciled.entrySet()) {
+			LongAdder cell = current.get(entry.getKey());
+			drift += Math.abs(entry.getValue().sum() - (cell == null ? 0 : cell.sum()));
+		}
+		for (Map.Entry<K, LongAdder> entry : current.entrySet()) {
+			if (!reconciled.containsKey(entry.getKey())) {
+				drift += Math.abs(entry.getValue().sum());
+			}
+		}
+		return drift;
+	}
+
+	private static long pairKey(int tagOrdinal, int otherOrdinal) {
+		int low = Math.min(tagOrdinal, otherOrdinal);
+		int high = Math.max(tagOrdinal, otherOrdinal);
+		return ((long) low << 32) | (high & 0xFFFFFFFFL);
+	}
+}
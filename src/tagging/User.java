@@ -1,39 +1,75 @@
 package tagging;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import tagging.consistency.*;
+import tagging.metrics.ServerMetrics;
 
-public class User implements Taggable {
+public class User implements AsyncTaggable {
+
+	/**
+	 * The consistency rules built for a version of the TagRegistry.
+	 */
+	private static final class CompiledRules {
+		final int version;
+		final Set<ConsistencyRule> rules;
+
+		CompiledRules(int version, Set<ConsistencyRule> rules) {
+			this.version = version;
+			this.rules = rules;
+		}
+	}
+
+	private static volatile CompiledRules compiledRules;
 	
 	private String id;
 	private String name;
-	private Set<Tag> tags;
+	private TagSet tags;
 	
 	public User(String id, String name, Set<Tag> tags) {
 		this.id = id;
 		this.name = name;
-		this.tags = tags;
+		this.tags = TagSet.of(tags);
 	}
 	
 	public static User fromID(String userID) {
-		UserTagDatabase udb = new UserTagDatabase();
-		User user = udb.getUser(userID);
-		udb.close();
-		return user;
+		return UserTagStore.getInstance().getUser(userID);
 	}
 	
 	public static User create(String name, Set<Tag> tags) throws ConsistencyRuleViolationException {
-		User temp = new User("", name, tags);
-		for (ConsistencyRule rule : temp.getConsistencyRules()) {
-			if (!rule.validateOperation(new HashSet<Tag>(), TaggableOperation.CREATE, tags)) {
-				throw new ConsistencyRuleViolationException(rule);
-			}
+		validateCreate(name, tags);
+		return UserTagStore.getInstance().insertUser(name, tags);
+	}
+
+	/**
+	 * @return the user, or null if it does not exist.
+	 */
+	public static CompletableFuture<User> fromIDAsync(String userID) {
+		return AsyncUserTagStore.getInstance().getUser(userID);
+	}
+
+	/**
+	 * @return the new user; completes with a ConsistencyRuleViolationException if it would
+	 *         be inconsistent.
+	 */
+	public static CompletableFuture<User> createAsync(String name, Set<Tag> tags) {
+		try {
+			validateCreate(name, tags);
+		} catch (ConsistencyRuleViolationException e) {
+			return CompletableFuture.failedFuture(e);
 		}
-		UserTagDatabase udb = new UserTagDatabase();
-		User user = udb.insertUser(name, tags);
-		udb.close();
-		return user;
+		return AsyncUserTagStore.getInstance().insertUser(name, tags);
+	}
+
+	/**
+	 * Validates that a user with the given tags would be consistent, without creating it.
+	 * 
+	 * @throws ConsistencyRuleViolationException if the new user would be inconsistent.
+	 */
+	public static void validateCreate(String name, Set<Tag> tags) throws ConsistencyRuleViolationException {
+		User temp = new User("", name, tags);
+		temp.validateOperation(TagMask.EMPTY, TaggableOperation.CREATE, tags);
 	}
 	
 	public String getID() {
@@ -45,46 +81,145 @@ public class User implements Taggable {
 	}
 
 	@Override
-	public Set<Tag> getTags() {
-		UserTagDatabase udb = new UserTagDatabase();
-		this.tags = udb.getTagsForUser(this.id);
-		udb.close();
+	public TagSet getTags() {
+		this.tags = UserTagStore.getInstance().getTagsForUser(this.id);
 		return tags;
 	}
 
+	@Override
+	public CompletableFuture<TagSet> getTagsAsync() {
+		return AsyncUserTagStore.getInstance().getTagsForUser(this.id).thenApply(tags -> {
+			this.tags = tags;
+			return tags;
+		});
+	}
+
+	/**
+	 * @return the tags this user was loaded with, without reading the database.
+	 */
+	public TagSet getLoadedTags() {
+		return tags;
+	}
+
+	/**
+	 * Adds the tags in a single conditional update: the consistency rules are checked by
+	 * the database atomically with the write, so concurrent mutations cannot race.
+	 */
 	@Override
 	public boolean addTags(Set<Tag> tags) throws ConsistencyRuleViolationException {
+		return UserTagStore.getInstance().addTagsToUser(this.id, tags, getConsistencyRules());
+	}
+
+	/**
+	 * Removes the tags in a single conditional update: the consistency rules are checked
+	 * by the database atomically with the write, so concurrent mutations cannot race.
+	 */
+	@Override
+	public boolean removeTags(Set<Tag> tags) throws ConsistencyRuleViolationException {
+		return UserTagStore.getInstance().removeTagsFromUser(this.id, tags, getConsistencyRules());
+	}
+
+	/**
+	 * Adds the tags like {@link #addTags(Set)}, without blocking the caller.
+	 */
+	@Override
+	public CompletableFuture<Boolean> addTagsAsync(Set<Tag> tags) {
+		return AsyncUserTagStore.getInstance().addTagsToUser(this.id, tags, getConsistencyRules());
+	}
+
+	/**
+	 * Removes the tags like {@link #removeTags(Set)}, without blocking the caller.
+	 */
+	@Override
+	public CompletableFuture<Boolean> removeTagsAsync(Set<Tag> tags) {
+		return AsyncUserTagStore.getInstance().removeTagsFromUser(this.id, tags, getConsistencyRules());
+	}
+
+	/**
+	 * Validates adding tags against the tags this user was loaded with, without reading
+	 * the database. Used to validate batches of users in memory.
+	 * 
+	 * @return the mutation to write, or null if the user already has all the tags.
+	 * @throws ConsistencyRuleViolationException if the user would become inconsistent.
+	 */
+	public TagMutation planAddTags(Set<Tag> tags) throws ConsistencyRuleViolationException {
+		validateOperation(TagMask.of(this.tags), TaggableOperation.ADD_TAG, tags);
+		TagSet tagSet = TagSet.of(tags);
+		return this.tags.containsAll(tagSet) ? null
+				: new TagMutation(this.id, TaggableOperation.ADD_TAG, tagSet,
+						getPreconditions(TaggableOperation.ADD_TAG, tagSet));
+	}
+
+	/**
+	 * Validates removing tags against the tags this user was loaded with, without reading
+	 * the database. Used to validate batches of users in memory.
+	 * 
+	 * @return the mutation to write, or null if the user has none of the tags.
+	 * @throws ConsistencyRuleViolationException if the user would become inconsistent.
+	 */
+	public TagMutation planRemoveTags(Set<Tag> tags) throws ConsistencyRuleViolationException {
+		validateOperation(TagMask.of(this.tags), TaggableOperation.REMOVE_TAG, tags);
+		TagSet tagSet = TagSet.of(tags);
+		return this.tags.intersects(tagSet) ? new TagMutation(this.id, TaggableOperation.REMOVE_TAG, tagSet,
+				getPreconditions(TaggableOperation.REMOVE_TAG, tagSet)) : null;
+	}
+
+	/**
+	 * @return the preconditions under which the operation stays valid once the user's
+	 *         tags changed since it was validated.
+	 */
+	private List<ConsistencyPrecondition> getPreconditions(TaggableOperation operation, Set<Tag> tags) {
+		List<ConsistencyPrecondition> preconditions = new ArrayList<>();
 		for (ConsistencyRule rule : getConsistencyRules()) {
-			if (!rule.validateOperation(this.getTags(), TaggableOperation.ADD_TAG, tags)) {
-				throw new ConsistencyRuleViolationException(rule);
+			ConsistencyPrecondition precondition = rule.getPrecondition(operation, tags);
+			if (precondition != null) {
+				preconditions.add(precondition);
 			}
 		}
-
-		UserTagDatabase udb = new UserTagDatabase();
-		boolean result = udb.addTagsToUser(this.id, tags);
-		udb.close();
-		return result;
+		return preconditions;
 	}
 
-	@Override
-	public boolean removeTags(Set<Tag> tags) throws ConsistencyRuleViolationException {
+	private void validateOperation(long[] existingMask, TaggableOperation operation, Set<Tag> tags)
+			throws ConsistencyRuleViolationException {
+		long[] changeMask = TagMask.of(tags);
+		int evaluated = 0;
 		for (ConsistencyRule rule : getConsistencyRules()) {
-			if (!rule.validateOperation(this.getTags(), TaggableOperation.REMOVE_TAG, tags)) {
+			evaluated++;
+			if (!rule.validateOperation(existingMask, operation, changeMask)) {
+				ServerMetrics.getInstance().recordRuleEvaluations(evaluated);
 				throw new ConsistencyRuleViolationException(rule);
 			}
 		}
-
-		UserTagDatabase udb = new UserTagDatabase();
-		boolean result = udb.removeTagsFromUser(this.id, tags);
-		udb.close();
-		return result;
+		ServerMetrics.getInstance().recordRuleEvaluations(evaluated);
 	}
 
+	/**
+	 * Only rules whose tags all exist are returned: a user can never have a tag that does
+	 * not exist, so a NAND rule over it can never be violated.
+	 *
+	 * The rules are the same for every user, so they are built once and shared until the
+	 * tags in the TagRegistry change.
+	 */
 	@Override
 	public Set<ConsistencyRule> getConsistencyRules() {
-		return new HashSet<>(Arrays.asList(
-			new NANDConsistencyRule(Tag.fromName("T1"), Tag.fromName("T4")),
-			new NANDConsistencyRule(Tag.fromName("T2"), Tag.fromName("T3"))
-		));
+		CompiledRules compiled = compiledRules;
+		int version = TagRegistry.getInstance().getVersion();
+		if (compiled == null || compiled.version != version) {
+			// Tags changed while the rules are built bump the version again.
+			Set<ConsistencyRule> rules = new HashSet<>();
+			addNANDRule(rules, "T1", "T4");
+			addNANDRule(rules, "T2", "T3");
+			compiled = new CompiledRules(version, Collections.unmodifiableSet(rules));
+			compiledRules = compiled;
+		}
+		return compiled.rules;
+	}
+
+	private static void addNANDRule(Set<ConsistencyRule> rules, String tagNameA, String tagNameB) {
+		Tag tagA = Tag.fromName(tagNameA);
+		Tag tagB = Tag.fromName(tagNameB);
+		if (tagA != null && tagB != null) {
+			rules.add(new NANDConsistencyRule(tagA, tagB));
+		}
 	}
 }
@@ -0,0 +1,21 @@
+package tagging;
+
+/**
+ * Tells that a tag mutation was not written because its user no longer exists.
+ */
+public class UserNotFoundException extends RuntimeException {
+
+	private final String userID;
+
+	public UserNotFoundException(String userID) {
+		super(String.format("User with ID: %s does not exist.", userID));
+		this.userID = userID;
+	}
+
+	public String getUserID() {
+		return userID;
+	}
+
+	// Generated
+	private static final long serialVersionUID = 3650183216497712245L;
+}
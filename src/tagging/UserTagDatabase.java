@@ -1,35 +1,63 @@
 package tagging;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import com.mongodb.*;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.result.DeleteResult;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import tagging.consistency.ConsistencyPrecondition;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.metrics.DatabaseCommandListener;
+
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Updates.*;
 
 /**
  * MongoDB based storage for Users and Tags.
+ *
+ * Each instance owns a pooled MongoClient, so the process shares a single instance
+ * through {@link UserTagStore#initialize(UserTagStore)}. Its {@link #async()} view runs on
+ * the asynchronous driver instead, see {@link AsyncUserTagDatabase}. Both take turns to
+ * write a user through a {@link UserWriteOrder}, so that the listeners hear of the changes
+ * of a user in the order they were made.
  */
-public class UserTagDatabase {
-
-	final static String SERVER = "localhost";
-	final static int PORT = 27017;
-	final static String DB_NAME = "testdb";
+public class UserTagDatabase extends AbstractUserTagStore {
 
 	final static String DB_USERS_COLLECTION = "users";
 	final static String DB_TAGS_COLLECTION = "tags";
@@ -39,113 +67,476 @@ public class UserTagDatabase {
 	final static String DB_TAGS_NAME_FIELD = "name";
 	final static String DB_ID_FIELD = "_id";
 
+	// Maximum number of writes sent in one bulkWrite call.
+	final static int BULK_WRITE_CHUNK_SIZE = 1000;
+	// Maximum number of times a conditional update is tried while the user keeps changing.
+	final static int MAX_UPDATE_ATTEMPTS = 8;
+
+	// Number of sampled user IDs per range when splitting the users into ranges.
+	final static int SPLIT_SAMPLES_PER_PARTITION = 32;
+
 	private MongoClient mongoClient;
 	private MongoCollection<Document> userCollection;
 	private MongoCollection<Document> tagCollection;
+	private ConnectionPoolStatistics poolStatistics;
+	private final DatabaseConfiguration configuration;
+	// Opened on the first call of async(), under the lock of this.
+	private volatile AsyncUserTagDatabase async;
+	// Shared with the asynchronous view, which writes the same users.
+	final UserWriteOrder writeOrder = new UserWriteOrder();
 
-	public UserTagDatabase() {
+	public UserTagDatabase(DatabaseConfiguration configuration) {
+		this.configuration = configuration;
 		Logger mongoLogger = Logger.getLogger("org.mongodb.driver");
 		mongoLogger.setLevel(Level.SEVERE);
 
-		mongoClient = new MongoClient(SERVER, PORT);
-		MongoDatabase database = mongoClient.getDatabase(DB_NAME);
+		poolStatistics = new ConnectionPoolStatistics();
+		mongoClient = MongoClients.create(clientSettings(configuration, poolStatistics));
+		MongoDatabase database = mongoClient.getDatabase(configuration.getDbName());
 		this.userCollection = database.getCollection(DB_USERS_COLLECTION);
 		this.tagCollection = database.getCollection(DB_TAGS_COLLECTION);
+		loadTagRegistry();
 	}
 
+	@Override
 	public User insertUser(String name, Set<Tag> tags) {
 		List<String> tagNamesToAdd = tags.stream().map(tag -> tag.getName()).collect(Collectors.toList());
 		Document document = new Document(DB_USERS_NAME_FIELD, name).append(DB_USERS_TAGS_FIELD, tagNamesToAdd);
 		userCollection.insertOne(document);
-		return new User(document.get(DB_ID_FIELD).toString(), document.getString(DB_USERS_NAME_FIELD), new HashSet<>());
+		String userID = document.get(DB_ID_FIELD).toString();
+		fireUserInserted(userID, TagSet.of(tags));
+		return new User(document.get(DB_ID_FIELD).toString(), document.getString(DB_USERS_NAME_FIELD), TagSet.EMPTY);
+	}
+
+	/**
+	 * Inserts many users with chunked bulk writes.
+	 */
+	@Override
+	public List<User> insertUsers(List<String> names, List<? extends Set<Tag>> tags) {
+		List<User> users = new ArrayList<>(names.size());
+		for (int start = 0; start < names.size(); start += BULK_WRITE_CHUNK_SIZE) {
+			int end = Math.min(start + BULK_WRITE_CHUNK_SIZE, names.size());
+			List<InsertOneModel<Document>> inserts = new ArrayList<>(end - start);
+			for (int i = start; i < end; i++) {
+				List<String> tagNames = tags.get(i).stream().map(tag -> tag.getName()).collect(Collectors.toList());
+				inserts.add(new InsertOneModel<>(
+						new Document(DB_USERS_NAME_FIELD, names.get(i)).append(DB_USERS_TAGS_FIELD, tagNames)));
+			}
+			userCollection.bulkWrite(inserts, new BulkWriteOptions().ordered(false));
+			for (InsertOneModel<Document> insert : inserts) {
+				User user = userFromDocument(insert.getDocument());
+				fireUserInserted(user.getID(), user.getLoadedTags());
+				users.add(user);
+			}
+		}
+		return users;
 	}
 
+	@Override
 	public boolean deleteUser(String userID) {
-		DeleteResult result = userCollection.deleteOne(new Document(DB_ID_FIELD, new ObjectId(userID)));
-		return result.getDeletedCount() == 1;
+		ObjectId id = new ObjectId(userID);
+		try (UserWriteOrder.Turn turn = writeOrder.take(List.of(id.toHexString()))) {
+			turn.await();
+			Document doc = userCollection.findOneAndDelete(eq(DB_ID_FIELD, id));
+			if (doc == null) {
+				return false;
+			}
+			fireUserDeleted(userID, getTagSetFromDocument(doc));
+			return true;
+		}
 	}
 
+	@Override
 	public User getUser(String userID) {
 		Document document = this.userCollection.find(eq(DB_ID_FIELD, new ObjectId(userID))).first();
 		if (document == null) {
 			return null;
 		} else {
-			return new User(document.get(DB_ID_FIELD).toString(), document.getString(DB_USERS_NAME_FIELD),
-					getTagSetFromDocument(document));
+			return userFromDocument(document);
+		}
+	}
+
+	/**
+	 * Reads many users with a single query.
+	 */
+	@Override
+	public Map<String, User> getUsers(Collection<String> userIDs) {
+		List<ObjectId> ids = userIDs.stream().map(ObjectId::new).collect(Collectors.toList());
+		Map<String, User> users = new HashMap<>();
+		for (Document document : this.userCollection.find(in(DB_ID_FIELD, ids))) {
+			User user = userFromDocument(document);
+			users.put(user.getID(), user);
 		}
+		return users;
 	}
 
+	@Override
 	public List<User> getAllUsers() {
 		List<User> allUsers = new ArrayList<User>();
 		FindIterable<Document> documentIterator = this.userCollection.find();
 		Iterator<Document> it = documentIterator.iterator();
 		while (it.hasNext()) {
-			String userID = it.next().get(DB_ID_FIELD).toString();
-			allUsers.add(User.fromID(userID));
+			Document document = it.next();
+			allUsers.add(userFromDocument(document));
 		}
 		return allUsers;
 	}
 
-	public String getAllUsersAsString() {
-		String result = "";
-		FindIterable<Document> documentIterator = this.userCollection.find();
-		Iterator<Document> it = documentIterator.iterator();
-		while (it.hasNext()) {
-			Document doc = it.next();
-			result += String.format("ID: %-26s | Name: %-12s | Tags: %s\n", doc.get(DB_ID_FIELD).toString(),
-					doc.get(DB_USERS_NAME_FIELD), getTagSetFromDocument(doc));
+	/**
+	 * Streams the users through a cursor sorted by ID.
+	 */
+	@Override
+	public void forEachUser(String fromID, String toID, Predicate<User> visitor) {
+		List<Bson> filters = new ArrayList<>();
+		if (fromID != null) {
+			filters.add(gte(DB_ID_FIELD, new ObjectId(fromID)));
+		}
+		if (toID != null) {
+			filters.add(lt(DB_ID_FIELD, new ObjectId(toID)));
+		}
+		Bson filter = filters.isEmpty() ? new Document() : and(filters);
+		try (MongoCursor<Document> cursor = this.userCollection.find(filter).sort(Sorts.ascending(DB_ID_FIELD))
+				.iterator()) {
+			while (cursor.hasNext()) {
+				if (!visitor.test(userFromDocument(cursor.next()))) {
+					return;
+				}
+			}
 		}
-		return result;
 	}
 
-	public String getAllTagsAsString() {
-		String result = "";
-		FindIterable<Document> documentIterator = this.tagCollection.find();
-		Iterator<Document> it = documentIterator.iterator();
-		while (it.hasNext()) {
-			Document doc = it.next();
-			result += String.format("ID: %-26s | Name: %-5s\n", doc.get(DB_ID_FIELD).toString(),
-					doc.get(DB_TAGS_NAME_FIELD));
+	/**
+	 * Picks the split points from a random sample of the collection rather than a full
+	 * scan.
+	 */
+	@Override
+	public List<String> getUserIDSplitPoints(int partitions) {
+		List<ObjectId> sample = new ArrayList<>();
+		if (partitions > 1) {
+			for (Document document : this.userCollection.aggregate(Arrays.asList(
+					Aggregates.sample(partitions * SPLIT_SAMPLES_PER_PARTITION),
+					Aggregates.project(Projections.include(DB_ID_FIELD))))) {
+				sample.add(document.getObjectId(DB_ID_FIELD));
+			}
+		}
+		Collections.sort(sample);
+		List<String> splitPoints = new ArrayList<>();
+		for (int i = 1; i < partitions && !sample.isEmpty(); i++) {
+			String splitPoint = sample.get(i * sample.size() / partitions).toString();
+			if (splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint)) {
+				splitPoints.add(splitPoint);
+			}
+		}
+		return splitPoints;
+	}
+
+	/**
+	 * Formats the users while iterating an unsorted cursor, which spares the server a sort.
+	 */
+	@Override
+	public void writeAllUsers(Appendable out) throws IOException {
+		try (MongoCursor<Document> it = this.userCollection.find().iterator()) {
+			while (it.hasNext()) {
+				Document doc = it.next();
+				appendUserRow(out, doc.get(DB_ID_FIELD), doc.get(DB_USERS_NAME_FIELD), getTagSetFromDocument(doc));
+			}
 		}
-		return result;
 	}
 
+	@Override
+	public void writeAllTags(Appendable out) throws IOException {
+		try (MongoCursor<Document> it = this.tagCollection.find().iterator()) {
+			while (it.hasNext()) {
+				Document doc = it.next();
+				appendTagRow(out, doc.get(DB_ID_FIELD), doc.get(DB_TAGS_NAME_FIELD));
+			}
+		}
+	}
+
+	@Override
 	public boolean userHasTag(String userID, Tag tag) {
 		FindIterable<Document> result = this.userCollection.find(eq(DB_ID_FIELD, new ObjectId(userID)))
 				.filter(in(DB_USERS_TAGS_FIELD, tag.getName()));
 		return result.first() != null;
 	}
 
-	public Set<Tag> getTagsForUser(String userID) {
-		FindIterable<Document> result = this.userCollection.find(eq(DB_ID_FIELD, new ObjectId(userID)));
-		return getTagSetFromDocument(result.first());
+	@Override
+	public TagSet getTagsForUser(String userID) {
+		Document document = this.userCollection.find(eq(DB_ID_FIELD, new ObjectId(userID))).first();
+		return document == null ? TagSet.EMPTY : getTagSetFromDocument(document);
 	}
 
+	@Override
 	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd) {
 		List<String> tagNamesToAdd = tagsToAdd.stream().map(tag -> tag.getName()).collect(Collectors.toList());
-		Document doc = this.userCollection.findOneAndUpdate(eq(DB_ID_FIELD, new ObjectId(userID)),
-				addEachToSet(DB_USERS_TAGS_FIELD, tagNamesToAdd));
-		return doc != null && !getTagSetFromDocument(doc).containsAll(tagsToAdd);
+		ObjectId id = new ObjectId(userID);
+		try (UserWriteOrder.Turn turn = writeOrder.take(List.of(id.toHexString()))) {
+			turn.await();
+			Document doc = this.userCollection.findOneAndUpdate(eq(DB_ID_FIELD, id),
+					addEachToSet(DB_USERS_TAGS_FIELD, tagNamesToAdd));
+			return doc != null && fireTagsAdded(userID, getTagSetFromDocument(doc), tagsToAdd);
+		}
 	}
 
+	@Override
 	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove) {
 		List<String> tagNamesToRemove = tagsToRemove.stream().map(tag -> tag.getName()).collect(Collectors.toList());
-		Document doc = this.userCollection.findOneAndUpdate(eq(DB_ID_FIELD, new ObjectId(userID)),
-				pullAll(DB_USERS_TAGS_FIELD, tagNamesToRemove));
-		return doc != null && !Collections.disjoint(getTagSetFromDocument(doc), tagsToRemove);
+		ObjectId id = new ObjectId(userID);
+		try (UserWriteOrder.Turn turn = writeOrder.take(List.of(id.toHexString()))) {
+			turn.await();
+			Document doc = this.userCollection.findOneAndUpdate(eq(DB_ID_FIELD, id),
+					pullAll(DB_USERS_TAGS_FIELD, tagNamesToRemove));
+			return doc != null && fireTagsRemoved(userID, getTagSetFromDocument(doc), tagsToRemove);
+		}
+	}
+
+	/**
+	 * Adds tags to a user in one round trip. The rules are encoded into the update filter,
+	 * so the check and the write are atomic.
+	 */
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		List<String> tagNamesToAdd = tagsToAdd.stream().map(tag -> tag.getName()).collect(Collectors.toList());
+		try (UserWriteOrder.Turn turn = writeOrder.take(List.of(new ObjectId(userID).toHexString()))) {
+			turn.await();
+			Document doc = updateTagsIfConsistent(userID, TaggableOperation.ADD_TAG, tagsToAdd, rules,
+					addEachToSet(DB_USERS_TAGS_FIELD, tagNamesToAdd));
+			return doc != null && fireTagsAdded(userID, getTagSetFromDocument(doc), tagsToAdd);
+		}
+	}
+
+	/**
+	 * Removes tags from a user in one round trip. The rules are encoded into the update
+	 * filter, so the check and the write are atomic.
+	 */
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		List<String> tagNamesToRemove = tagsToRemove.stream().map(tag -> tag.getName()).collect(Collectors.toList());
+		try (UserWriteOrder.Turn turn = writeOrder.take(List.of(new ObjectId(userID).toHexString()))) {
+			turn.await();
+			Document doc = updateTagsIfConsistent(userID, TaggableOperation.REMOVE_TAG, tagsToRemove, rules,
+					pullAll(DB_USERS_TAGS_FIELD, tagNamesToRemove));
+			return doc != null && fireTagsRemoved(userID, getTagSetFromDocument(doc), tagsToRemove);
+		}
 	}
 
+	/**
+	 * @return the user document before the update, or null if the user does not exist.
+	 * @throws UserUpdateConflictException if the tags of the user changed in between every
+	 *                                     one of {@link #MAX_UPDATE_ATTEMPTS} attempts.
+	 */
+	private Document updateTagsIfConsistent(String userID, TaggableOperation operation, Set<Tag> tags,
+			Collection<ConsistencyRule> rules, Bson update) throws ConsistencyRuleViolationException {
+		ObjectId id = new ObjectId(userID);
+		List<ConsistencyPrecondition> preconditions = getPreconditions(operation, tags, rules);
+		Bson filter = toFilter(id, preconditions);
+		for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS; attempt++) {
+			Document doc = this.userCollection.findOneAndUpdate(filter, update);
+			if (doc != null || preconditions.isEmpty()) {
+				return doc;
+			}
+			// Either the user does not exist or a rule rejected the change. Only this failure
+			// path pays for a second read, to tell which.
+			Document current = this.userCollection.find(eq(DB_ID_FIELD, id)).first();
+			if (current == null) {
+				return null;
+			}
+			checkPreconditions(current, preconditions);
+			// The user's tags changed in between and now allow the change, so try again.
+		}
+		throw new UserUpdateConflictException(userID, MAX_UPDATE_ATTEMPTS);
+	}
+
+	/**
+	 * @return the filter that matches the user only while it meets every precondition.
+	 */
+	static Bson toFilter(ObjectId id, List<ConsistencyPrecondition> preconditions) {
+		List<Bson> filters = new ArrayList<>();
+		filters.add(eq(DB_ID_FIELD, id));
+		for (ConsistencyPrecondition precondition : preconditions) {
+			filters.add(toFilter(precondition));
+		}
+		return and(filters);
+	}
+
+	/**
+	 * @throws ConsistencyRuleViolationException if the user does not meet a precondition.
+	 */
+	void checkPreconditions(Document user, List<ConsistencyPrecondition> preconditions)
+			throws ConsistencyRuleViolationException {
+		TagSet existingTags = getTagSetFromDocument(user);
+		for (ConsistencyPrecondition precondition : preconditions) {
+			if (!precondition.test(existingTags)) {
+				throw new ConsistencyRuleViolationException(precondition.getRule());
+			}
+		}
+	}
+
+	private static Bson toFilter(ConsistencyPrecondition precondition) {
+		List<Bson> alternatives = new ArrayList<>(2);
+		if (!precondition.getForbiddenTags().isEmpty()) {
+			alternatives.add(not(all(DB_USERS_TAGS_FIELD, getTagNames(precondition.getForbiddenTags()))));
+		}
+		if (!precondition.getExemptingTags().isEmpty()) {
+			alternatives.add(all(DB_USERS_TAGS_FIELD, getTagNames(precondition.getExemptingTags())));
+		}
+		return alternatives.size() == 1 ? alternatives.get(0) : or(alternatives);
+	}
+
+	static List<String> getTagNames(Set<Tag> tags) {
+		return tags.stream().map(tag -> tag.getName()).collect(Collectors.toList());
+	}
+
+	/**
+	 * Writes the mutations with chunked, unordered bulk writes, each chunk in a turn of its
+	 * users like any other write. Each update is filtered by
+	 * the preconditions of its mutation, so a user that changed since it was validated is
+	 * not written. Only when fewer users matched than were written are those users read
+	 * again, to tell for each whether it is gone, broke a precondition or changed in
+	 * between, in which case its mutation is written again.
+	 */
+	@Override
+	public TagMutationResult applyTagMutations(List<TagMutation> mutations) {
+		Exception[] failures = new Exception[mutations.size()];
+		int modified = 0;
+		for (int start = 0; start < mutations.size(); start += BULK_WRITE_CHUNK_SIZE) {
+			List<Integer> chunk = range(start, Math.min(start + BULK_WRITE_CHUNK_SIZE, mutations.size()));
+			try (UserWriteOrder.Turn turn = writeOrder.take(toKeys(mutations, chunk))) {
+				turn.await();
+				List<Integer> indexes = chunk;
+				for (int attempt = 1; !indexes.isEmpty(); attempt++) {
+					BulkWriteResult result;
+					try {
+						result = userCollection.bulkWrite(toUpdates(mutations, indexes),
+								new BulkWriteOptions().ordered(false));
+					} catch (MongoBulkWriteException e) {
+						result = e.getWriteResult();
+						recordWriteErrors(e, indexes, failures);
+					}
+					modified += result.getModifiedCount();
+					List<Integer> written = withoutFailures(indexes, failures);
+					if (result.getMatchedCount() == written.size()) {
+						break;
+					}
+					indexes = checkUnmatched(mutations, written, readTags(mutations, written), failures, attempt);
+				}
+				fireTagMutations(select(mutations, withoutFailures(chunk, failures)));
+			}
+		}
+		return new TagMutationResult(modified, failures);
+	}
+
+	/**
+	 * @return the current tags of the users of the mutations, by user ID.
+	 */
+	private Map<String, TagSet> readTags(List<TagMutation> mutations, List<Integer> indexes) {
+		Map<String, TagSet> tags = new HashMap<>();
+		for (Document document : userCollection.find(in(DB_ID_FIELD, toIDs(mutations, indexes)))
+				.projection(Projections.include(DB_USERS_TAGS_FIELD))) {
+			tags.put(document.getObjectId(DB_ID_FIELD).toHexString(), getTagSetFromDocument(document));
+		}
+		return tags;
+	}
+
+	static List<Integer> range(int start, int end) {
+		List<Integer> indexes = new ArrayList<>(end - start);
+		for (int i = start; i < end; i++) {
+			indexes.add(i);
+		}
+		return indexes;
+	}
+
+	static List<TagMutation> select(List<TagMutation> mutations, List<Integer> indexes) {
+		return indexes.stream().map(mutations::get).collect(Collectors.toList());
+	}
+
+	static List<String> toKeys(List<TagMutation> mutations, List<Integer> indexes) {
+		return indexes.stream().map(index -> new ObjectId(mutations.get(index).getUserID()).toHexString())
+				.collect(Collectors.toList());
+	}
+
+	static List<ObjectId> toIDs(List<TagMutation> mutations, List<Integer> indexes) {
+		return indexes.stream().map(index -> new ObjectId(mutations.get(index).getUserID()))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Fails the mutations whose updates the database rejected.
+	 *
+	 * @param indexes the indexes of the mutations that were written, in the order of the
+	 *                updates.
+	 */
+	static void recordWriteErrors(MongoBulkWriteException e, List<Integer> indexes, Exception[] failures) {
+		for (BulkWriteError error : e.getWriteErrors()) {
+			failures[indexes.get(error.getIndex())] = new MongoException(error.getCode(), error.getMessage());
+		}
+	}
+
+	static List<Integer> withoutFailures(List<Integer> indexes, Exception[] failures) {
+		return indexes.stream().filter(index -> failures[index] == null).collect(Collectors.toList());
+	}
+
+	/**
+	 * Tells from the current tags of their users which of the mutations did not match,
+	 * and why. A mutation whose user meets its preconditions but does not reflect it lost
+	 * to a concurrent change, and is given up after {@link #MAX_UPDATE_ATTEMPTS}.
+	 *
+	 * @return the indexes of the mutations to write again.
+	 */
+	static List<Integer> checkUnmatched(List<TagMutation> mutations, List<Integer> indexes,
+			Map<String, TagSet> currentTags, Exception[] failures, int attempt) {
+		List<Integer> retries = new ArrayList<>();
+		for (int index : indexes) {
+			TagMutation mutation = mutations.get(index);
+			TagSet tags = currentTags.get(new ObjectId(mutation.getUserID()).toHexString());
+			if (tags == null) {
+				failures[index] = new UserNotFoundException(mutation.getUserID());
+			} else if (!mutation.isAppliedTo(tags)) {
+				ConsistencyPrecondition broken = mutation.getPreconditions().stream()
+						.filter(precondition -> !precondition.test(tags)).findFirst().orElse(null);
+				if (broken != null) {
+					failures[index] = new ConsistencyRuleViolationException(broken.getRule());
+				} else if (attempt == MAX_UPDATE_ATTEMPTS) {
+					failures[index] = new UserUpdateConflictException(mutation.getUserID(), attempt);
+				} else {
+					retries.add(index);
+				}
+			}
+		}
+		return retries;
+	}
+
+	static List<UpdateOneModel<Document>> toUpdates(List<TagMutation> mutations, List<Integer> indexes) {
+		List<UpdateOneModel<Document>> updates = new ArrayList<>(indexes.size());
+		for (int index : indexes) {
+			TagMutation mutation = mutations.get(index);
+			List<String> tagNames = getTagNames(mutation.getTags());
+			updates.add(new UpdateOneModel<>(toFilter(new ObjectId(mutation.getUserID()), mutation.getPreconditions()),
+					mutation.getOperation() == TaggableOperation.ADD_TAG ? addEachToSet(DB_USERS_TAGS_FIELD, tagNames)
+							: pullAll(DB_USERS_TAGS_FIELD, tagNames)));
+		}
+		return updates;
+	}
+
+	@Override
 	public Tag insertTag(String tagName) {
 		Document document = new Document(DB_TAGS_NAME_FIELD, tagName);
 		tagCollection.insertOne(document);
-		return new Tag(document.get(DB_ID_FIELD).toString(), document.getString(DB_TAGS_NAME_FIELD));
+		Tag tag = new Tag(document.get(DB_ID_FIELD).toString(), document.getString(DB_TAGS_NAME_FIELD));
+		TagRegistry.getInstance().register(tag);
+		return tag;
 	}
 
+	@Override
 	public boolean deleteTag(String tagID) {
 		DeleteResult result = tagCollection.deleteOne(new Document(DB_ID_FIELD, new ObjectId(tagID)));
+		TagRegistry.getInstance().unregister(tagID);
 		return result.getDeletedCount() == 1;
 	}
 
+	@Override
 	public Tag getTag(String tagName) {
 		Document document = this.tagCollection.find(eq(DB_TAGS_NAME_FIELD, tagName)).first();
 		if (document == null) {
@@ -155,16 +546,123 @@ public class UserTagDatabase {
 		}
 	}
 
+	/**
+	 * Follows the changes to the users, including those made by other nodes, on a daemon
+	 * thread until the store is closed. This needs a replica set, since a standalone
+	 * server has no change streams.
+	 *
+	 * @param changes called with the ID of each changed user and its tags as looked up
+	 *                after the change, or null tags if the user is gone.
+	 * @param stopped called if the stream of changes ends after it was opened.
+	 * @return false iff the stream of changes could not be opened.
+	 */
+	public boolean watchUsers(BiConsumer<String, TagSet> changes, Runnable stopped) {
+		MongoCursor<ChangeStreamDocument<Document>> opened;
+		try {
+			opened = this.userCollection.watch().fullDocument(FullDocument.UPDATE_LOOKUP).iterator();
+		} catch (MongoException e) {
+			System.out.println(String.format("Cannot watch the users: %s", e.getMessage()));
+			return false;
+		}
+		Thread watcher = new Thread(() -> {
+			try (MongoCursor<ChangeStreamDocument<Document>> cursor = opened) {
+				while (cursor.hasNext()) {
+					ChangeStreamDocument<Document> change = cursor.next();
+					if (change.getDocumentKey() == null) {
+						continue;
+					}
+					String userID = change.getDocumentKey().getObjectId(DB_ID_FIELD).getValue().toHexString();
+					Document document = change.getFullDocument();
+					changes.accept(userID, document == null ? null : getTagSetFromDocument(document));
+				}
+			} catch (MongoException | IllegalStateException e) {
+				// Closing the client ends the stream as well.
+				System.out.println(String.format("Stopped watching the users: %s", e.getMessage()));
+			} finally {
+				stopped.run();
+			}
+		}, "tagging-user-watch");
+		watcher.setDaemon(true);
+		watcher.start();
+		return true;
+	}
+
+	@Override
+	public ConnectionPoolStatistics getPoolStatistics() {
+		return poolStatistics;
+	}
+
+	/**
+	 * Serves the operations on the asynchronous driver, with a client and connection pool
+	 * of their own that are opened on the first call.
+	 */
+	@Override
+	public AsyncUserTagStore async() {
+		AsyncUserTagStore view = async;
+		if (view != null) {
+			return view;
+		}
+		synchronized (this) {
+			if (async == null) {
+				async = new AsyncUserTagDatabase(this, configuration);
+			}
+			return async;
+		}
+	}
+
+	@Override
 	public void close() {
+		synchronized (this) {
+			if (async != null) {
+				async.close();
+			}
+		}
 		mongoClient.close();
 	}
 
-	private Set<Tag> getTagSetFromDocument(Document document) {
-		HashSet<Tag> tags = new HashSet<>();
+	/**
+	 * @return the settings of a client of the database, whose pool reports to the
+	 *         statistics.
+	 */
+	static MongoClientSettings clientSettings(DatabaseConfiguration configuration,
+			ConnectionPoolStatistics poolStatistics) {
+		return MongoClientSettings.builder()
+				.applyToClusterSettings(cluster -> cluster.hosts(
+						Collections.singletonList(new ServerAddress(configuration.getHost(), configuration.getPort()))))
+				.applyToConnectionPoolSettings(pool -> pool.minSize(configuration.getMinPoolSize())
+						.maxSize(configuration.getMaxPoolSize())
+						.maxWaitTime(configuration.getMaxWaitTimeMillis(), TimeUnit.MILLISECONDS)
+						.maxConnectionIdleTime(configuration.getMaxIdleTimeMillis(), TimeUnit.MILLISECONDS)
+						.addConnectionPoolListener(poolStatistics))
+				.addCommandListener(new DatabaseCommandListener())
+				.build();
+	}
+
+	private void loadTagRegistry() {
+		List<Tag> allTags = new ArrayList<>();
+		for (Document document : this.tagCollection.find()) {
+			allTags.add(new Tag(document.get(DB_ID_FIELD).toString(), document.getString(DB_TAGS_NAME_FIELD)));
+		}
+		TagRegistry.getInstance().load(allTags);
+	}
+
+	User userFromDocument(Document document) {
+		return new User(document.get(DB_ID_FIELD).toString(), document.getString(DB_USERS_NAME_FIELD),
+				getTagSetFromDocument(document));
+	}
+
+	TagSet getTagSetFromDocument(Document document) {
+		TagRegistry registry = TagRegistry.getInstance();
 		ArrayList<?> tagsList = (ArrayList<?>) document.get(DB_USERS_TAGS_FIELD);
+		int[] ordinals = new int[tagsList.size()];
+		int count = 0;
 		for (Object tagName : tagsList) {
-			tags.add(Tag.fromName((String) tagName));
+			Tag tag = registry.get((String) tagName);
+			// Names of tags that have since been deleted are left out.
+			if (tag != null) {
+				ordinals[count++] = tag.getOrdinal();
+			}
 		}
-		return tags;
+		return TagSet.fromOrdinals(Arrays.copyOf(ordinals, count));
 	}
 }
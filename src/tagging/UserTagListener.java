@@ -0,0 +1,23 @@
+package tagging;
+
+/**
+ * Is told about every change that the UserTagStore writes to the users' tags, after
+ * the write succeeded. Listeners are called on the thread that made the change and must
+ * be thread-safe. The changes of each user reach them in the order the store made them.
+ *
+ * Bulk writes do not read the users back, so tagsAdded and tagsRemoved name the tags
+ * that the user now has or lacks, not necessarily the tags that changed.
+ */
+public interface UserTagListener {
+
+	public void userInserted(String userID, TagSet tags);
+
+	/**
+	 * @param tags the tags the user had when it was deleted.
+	 */
+	public void userDeleted(String userID, TagSet tags);
+
+	public void tagsAdded(String userID, TagSet tags);
+
+	public void tagsRemoved(String userID, TagSet tags);
+}
@@ -0,0 +1,197 @@
+package tagging;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+
+/**
+ * Storage for Users and Tags.
+ *
+ * {@link UserTagDatabase} stores them in MongoDB, {@link InMemoryUserTagStore} keeps
+ * them in memory, and {@link tagging.storage.LogUserTagStore} in local files. A single
+ * store is shared by the whole process: it is set up once at startup with
+ * {@link #initialize(UserTagStore)} and handed out by {@link #getInstance()}.
+ *
+ * User IDs are ObjectId hex strings in every store, and methods taking a user ID throw
+ * IllegalArgumentException if it is malformed. {@link #async()} offers the operations on
+ * single users without blocking the caller.
+ */
+public interface UserTagStore {
+
+	/**
+	 * Sets up the process-wide store.
+	 *
+	 * @throws IllegalStateException if the store has already been set up.
+	 */
+	public static UserTagStore initialize(UserTagStore store) {
+		return UserTagStoreHolder.initialize(store);
+	}
+
+	/**
+	 * @return the process-wide store, a UserTagDatabase set up from system properties if
+	 *         {@link #initialize(UserTagStore)} was not called.
+	 */
+	public static UserTagStore getInstance() {
+		return UserTagStoreHolder.getInstance();
+	}
+
+	/**
+	 * Closes the process-wide store, if it was set up.
+	 */
+	public static void shutdown() {
+		UserTagStoreHolder.shutdown();
+	}
+
+	/**
+	 * @return this store's operations without blocking the caller. Unless the store says
+	 *         otherwise, they run on the calling thread.
+	 */
+	public default AsyncUserTagStore async() {
+		return new BlockingAsyncUserTagStore(this);
+	}
+
+	public User insertUser(String name, Set<Tag> tags);
+
+	/**
+	 * Inserts many users. The users are not validated here.
+	 *
+	 * @return the new users, in the order of the names.
+	 */
+	public List<User> insertUsers(List<String> names, List<? extends Set<Tag>> tags);
+
+	public boolean deleteUser(String userID);
+
+	/**
+	 * @return the user, or null if it does not exist.
+	 */
+	public User getUser(String userID);
+
+	/**
+	 * @return the users that exist, keyed by ID.
+	 */
+	public Map<String, User> getUsers(Collection<String> userIDs);
+
+	public List<User> getAllUsers();
+
+	/**
+	 * Streams the users with IDs in [fromID, toID) in ID order, so memory use does not
+	 * grow with the size of the range.
+	 *
+	 * @param fromID  the first user ID of the range, or null to start at the lowest.
+	 * @param toID    the user ID to stop before, or null to run to the highest.
+	 * @param visitor called for each user; returns false to stop early.
+	 */
+	public void forEachUser(String fromID, String toID, Predicate<User> visitor);
+
+	/**
+	 * Picks user IDs that split the users into roughly equal ranges.
+	 *
+	 * @return at most partitions - 1 distinct user IDs in ascending order.
+	 */
+	public List<String> getUserIDSplitPoints(int partitions);
+
+	public String getAllUsersAsString();
+
+	/**
+	 * Formats every user straight into out, so memory use does not grow with the number
+	 * of users.
+	 *
+	 * @throws IOException if appending to out fails.
+	 */
+	public void writeAllUsers(Appendable out) throws IOException;
+
+	public String getAllTagsAsString();
+
+	/**
+	 * Formats every tag straight into out.
+	 *
+	 * @throws IOException if appending to out fails.
+	 */
+	public void writeAllTags(Appendable out) throws IOException;
+
+	public boolean userHasTag(String userID, Tag tag);
+
+	public TagSet getTagsForUser(String userID);
+
+	/**
+	 * @return true iff the user exists and was changed.
+	 */
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd);
+
+	/**
+	 * @return true iff the user exists and was changed.
+	 */
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove);
+
+	/**
+	 * Adds tags to a user iff this keeps every rule consistent, checking the rules
+	 * atomically with the write.
+	 *
+	 * @return true iff the user exists and was changed.
+	 * @throws ConsistencyRuleViolationException if the change would violate a rule.
+	 */
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException;
+
+	/**
+	 * Removes tags from a user iff this keeps every rule consistent, checking the rules
+	 * atomically with the write.
+	 *
+	 * @return true iff the user exists and was changed.
+	 * @throws ConsistencyRuleViolationException if the change would violate a rule.
+	 */
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException;
+
+	/**
+	 * Writes already validated tag mutations in bulk. A mutation is written only if the
+	 * user still meets its preconditions, checked atomically with the write, and the
+	 * listeners hear only of the mutations that were written.
+	 *
+	 * @return the number of users that were modified, and why any mutation failed.
+	 */
+	public TagMutationResult applyTagMutations(List<TagMutation> mutations);
+
+	public Tag insertTag(String tagName);
+
+	public boolean deleteTag(String tagID);
+
+	/**
+	 * @return the tag, or null if it does not exist.
+	 */
+	public Tag getTag(String tagName);
+
+	public void addListener(UserTagListener listener);
+
+	public void removeListener(UserTagListener listener);
+
+	/**
+	 * Builds the inverted tag index and the tag statistics from every user and keeps them
+	 * current from then on. Call it before serving, since changes made during the scan may
+	 * be overwritten.
+	 */
+	public TagIndex buildTagIndex();
+
+	/**
+	 * @return the inverted tag index, or null if {@link #buildTagIndex()} was not called.
+	 */
+	public TagIndex getTagIndex();
+
+	/**
+	 * @return the tag statistics, or null if {@link #buildTagIndex()} was not called.
+	 */
+	public TagStatistics getTagStatistics();
+
+	/**
+	 * @return the statistics of the connection pool, or null if the store has none.
+	 */
+	public ConnectionPoolStatistics getPoolStatistics();
+
+	public void close();
+}
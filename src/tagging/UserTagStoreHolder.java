@@ -0,0 +1,58 @@
+package tagging;
+
+/**
+ * Holds the process-wide {@link UserTagStore} and its {@link AsyncUserTagStore} view.
+ *
+ * Both are published through volatile fields, so that the commands, which look them up
+ * every time, only take the lock until they are set.
+ */
+final class UserTagStoreHolder {
+
+	private static volatile UserTagStore instance;
+	private static volatile AsyncUserTagStore asyncInstance;
+
+	private UserTagStoreHolder() {
+	}
+
+	static synchronized UserTagStore initialize(UserTagStore store) {
+		if (instance != null) {
+			throw new IllegalStateException("The user tag store has already been initialized.");
+		}
+		instance = store;
+		return store;
+	}
+
+	static UserTagStore getInstance() {
+		UserTagStore store = instance;
+		if (store != null) {
+			return store;
+		}
+		synchronized (UserTagStoreHolder.class) {
+			if (instance == null) {
+				instance = new UserTagDatabase(DatabaseConfiguration.fromSystemProperties());
+			}
+			return instance;
+		}
+	}
+
+	static AsyncUserTagStore getAsyncInstance() {
+		AsyncUserTagStore store = asyncInstance;
+		if (store != null) {
+			return store;
+		}
+		synchronized (UserTagStoreHolder.class) {
+			if (asyncInstance == null) {
+				asyncInstance = getInstance().async();
+			}
+			return asyncInstance;
+		}
+	}
+
+	static synchronized void shutdown() {
+		if (instance != null) {
+			instance.close();
+			instance = null;
+			asyncInstance = null;
+		}
+	}
+}
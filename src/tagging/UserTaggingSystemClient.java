@@ -2,21 +2,144 @@ package tagging;
 
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.commons.cli.*;
+
+import tagging.load.CommandMix;
+import tagging.load.LoadGenerator;
 
 public class UserTaggingSystemClient {
 
 	public final static String EXIT_COMMAND = "exit";
+	// Followed by one user per line, up to the next empty line.
+	final static String CREATE_USERS_COMMAND = "create users";
+
+	// Defaults of the load test mode.
+	final static int DEFAULT_LOAD_CONNECTIONS = 8;
+	final static int DEFAULT_LOAD_USERS = 1000;
+	final static long DEFAULT_LOAD_WARMUP_SECONDS = 5;
+	final static long DEFAULT_LOAD_DURATION_SECONDS = 30;
+	final static String DEFAULT_LOAD_TAGS = "T1,T2,T3,T4";
 
 	private Socket socket;
 	private BufferedReader userInput;
 	private DataInputStream in;
 	private DataOutputStream out;
+	private int protocolVersion = WireProtocol.VERSION_1;
+
+	// Protocol version 2 requests awaiting their response, by request ID.
+	private final Map<Integer, PendingResponse> pendingResponses = new ConcurrentHashMap<>();
+	private final AtomicInteger nextRequestID = new AtomicInteger();
 
 	public UserTaggingSystemClient(String address, int port) throws UnknownHostException, IOException {
 		socket = new Socket(address, port);
 		userInput = new BufferedReader(new InputStreamReader(System.in));
 		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-		out = new DataOutputStream(socket.getOutputStream());
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Connects and negotiates the given protocol version with the server.
+	 *
+	 * @throws IOException if the server does not support the protocol version.
+	 */
+	public UserTaggingSystemClient(String address, int port, int protocolVersion)
+			throws UnknownHostException, IOException {
+		this(address, port);
+		if (protocolVersion == WireProtocol.VERSION_2) {
+			out.writeUTF(WireProtocol.HELLO_V2);
+			out.flush();
+			String ack = in.readUTF();
+			if (!ack.equals(WireProtocol.HELLO_V2_ACK)) {
+				socket.close();
+				throw new IOException(String.format("Server does not support protocol version 2: \"%s\".", ack));
+			}
+			this.protocolVersion = WireProtocol.VERSION_2;
+			Thread reader = new Thread(this::readResponses, "tagging-client-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	// A protocol version 2 response may arrive in several frames.
+	private static class PendingResponse {
+		final Consumer<String> chunks;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		PendingResponse(Consumer<String> chunks) {
+			this.chunks = chunks;
+		}
+	}
+
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	/**
+	 * Sends a command without waiting for the response. Requires protocol version 2; any
+	 * number of commands may be in flight at once.
+	 *
+	 * @return the response, completed exceptionally if the connection fails.
+	 */
+	public CompletableFuture<String> send(String command) {
+		StringBuilder response = new StringBuilder();
+		return stream(command, response::append).thenApply(done -> response.toString());
+	}
+
+	/**
+	 * Sends a command and hands each part of the response to chunks as it arrives, on the
+	 * connection's reader thread. Requires protocol version 2.
+	 *
+	 * @return completed once the whole response has been received.
+	 */
+	public CompletableFuture<Void> stream(String command, Consumer<String> chunks) {
+		if (protocolVersion != WireProtocol.VERSION_2) {
+			throw new IllegalStateException("Pipelining requires protocol version 2.");
+		}
+		int requestID = nextRequestID.getAndIncrement();
+		PendingResponse response = new PendingResponse(chunks);
+		pendingResponses.put(requestID, response);
+		try {
+			synchronized (out) {
+				WireProtocol.writeV2(out, requestID, WireProtocol.FLAG_FINAL, command);
+				out.flush();
+			}
+		} catch (IOException e) {
+			pendingResponses.remove(requestID);
+			response.done.completeExceptionally(e);
+		}
+		return response.done;
+	}
+
+	/**
+	 * Sends a command and waits for its response, over either protocol version.
+	 */
+	public String request(String command) throws IOException {
+		if (protocolVersion == WireProtocol.VERSION_2) {
+			try {
+				return send(command).join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+		synchronized (out) {
+			out.writeUTF(command);
+			out.flush();
+			try {
+				return in.readUTF();
+			} catch (EOFException e) {
+				// No response from the server;
+				return "";
+			}
+		}
 	}
 
 	public void run() throws IOException {
@@ -24,28 +147,126 @@ public class UserTaggingSystemClient {
 
 		while (!line.equals(EXIT_COMMAND)) {
 			line = userInput.readLine().trim();
-			out.writeUTF(line);
-			String response = "";
-			try {
-				response = in.readUTF();
-			} catch (EOFException e) {
-				// No response from the server;
+			if (line.equalsIgnoreCase(CREATE_USERS_COMMAND)) {
+				line = readBatchLines(line);
+			}
+			if (protocolVersion == WireProtocol.VERSION_2) {
+				// Render long listings as their rows arrive.
+				boolean[] printed = new boolean[1];
+				CompletableFuture<Void> response = stream(line, chunk -> {
+					if (!chunk.isEmpty()) {
+						System.out.print(chunk);
+						printed[0] = true;
+					}
+				}).whenComplete((done, error) -> {
+					if (printed[0]) {
+						System.out.println();
+					}
+				});
+				if (line.equals(EXIT_COMMAND)) {
+					response.exceptionally(error -> null).join();
+				}
+				continue;
 			}
+			String response = request(line);
 			if (!response.isEmpty()) {
 				System.out.println(response);
 			}
 		}
 
+		close();
+	}
+
+	// Joins the command with the lines that follow it, up to an empty line or the end of input.
+	private String readBatchLines(String command) throws IOException {
+		StringBuilder batch = new StringBuilder(command);
+		String row;
+		while ((row = userInput.readLine()) != null && !row.isBlank()) {
+			batch.append('\n').append(row.trim());
+		}
+		return batch.toString();
+	}
+
+	public void close() throws IOException {
 		userInput.close();
 		out.close();
 		socket.close();
 	}
 
+	// Runs on the reader thread in protocol version 2.
+	private void readResponses() {
+		IOException failure;
+		try {
+			while (true) {
+				WireProtocol.Frame frame = WireProtocol.readV2(in);
+				PendingResponse response = frame.isFinal() ? pendingResponses.remove(frame.getRequestID())
+						: pendingResponses.get(frame.getRequestID());
+				if (response != null) {
+					response.chunks.accept(frame.getText());
+					if (frame.isFinal()) {
+						response.done.complete(null);
+					}
+				}
+			}
+		} catch (EOFException e) {
+			failure = new EOFException("The server closed the connection.");
+		} catch (IOException e) {
+			failure = e;
+		}
+		for (PendingResponse response : pendingResponses.values()) {
+			response.done.completeExceptionally(failure);
+		}
+		pendingResponses.clear();
+	}
+
+	private static Options generateOptions() {
+		Options options = new Options();
+		options.addOption("p", "protocol", true,
+				"Protocol version to use: 1 (one command at a time) or 2 (pipelined). Defaults to 1.")
+				.addOption("l", "load", false, "Run a load test instead of reading commands.")
+				.addOption("c", "connections", true,
+						String.format("Connections of the load test. Defaults to %d.", DEFAULT_LOAD_CONNECTIONS))
+				.addOption("m", "mix", true,
+						String.format("Command weights of the load test. Defaults to \"%s\".", CommandMix.DEFAULT_MIX))
+				.addOption("u", "users", true,
+						String.format("Users to create before the load test. Defaults to %d.", DEFAULT_LOAD_USERS))
+				.addOption("t", "tags", true, String.format(
+						"Existing tags the load test adds and removes. Defaults to \"%s\".", DEFAULT_LOAD_TAGS))
+				.addOption("r", "rate", true, "Requests per second of the load test over all connections (open loop). "
+						+ "Without it, each connection sends a command once the previous one is answered (closed loop).")
+				.addOption("w", "warmup", true, String.format("Seconds of the load test before measuring. Defaults to %d.",
+						DEFAULT_LOAD_WARMUP_SECONDS))
+				.addOption("d", "duration", true, String.format("Seconds of the load test to measure. Defaults to %d.",
+						DEFAULT_LOAD_DURATION_SECONDS))
+				.addOption("h", false, "Print usage information.");
+		return options;
+	}
+
 	public static void main(String args[]) throws UnknownHostException, IOException {
+		Options options = generateOptions();
+		CommandLine commandLine;
+		try {
+			commandLine = new DefaultParser().parse(options, args);
+		} catch (ParseException parseException) {
+			System.out.println("ERROR: Unable to parse command-line arguments " + Arrays.toString(args)
+					+ " due to: " + parseException);
+			return;
+		}
+		if (commandLine.hasOption('h')) {
+			new HelpFormatter().printHelp(UserTaggingSystemClient.class.getSimpleName(), options);
+			return;
+		}
+		int protocolVersion = Integer.parseInt(commandLine.getOptionValue('p', "1"));
+		if (commandLine.hasOption('l')) {
+			runLoadTest(commandLine, protocolVersion);
+			return;
+		}
+
 		System.out.println("Attempting to connect to server...");
 		UserTaggingSystemClient client;
 		try {
-			client = new UserTaggingSystemClient(UserTaggingSystemServer.ADDRESS, UserTaggingSystemServer.PORT);
+			client = new UserTaggingSystemClient(UserTaggingSystemServer.ADDRESS, UserTaggingSystemServer.PORT,
+					protocolVersion);
 		} catch (ConnectException e) {
 			System.out.println("Failed to connect to server. Please make sure the server is running and try again.");
 			return;
@@ -54,4 +275,32 @@ public class UserTaggingSystemClient {
 		System.out.println("Enter a command to get started, \"help\" to see possible commands, or \"exit\" at any time to disconnect.");
 		client.run();
 	}
+
+	private static void runLoadTest(CommandLine commandLine, int protocolVersion) throws IOException {
+		LoadGenerator generator;
+		try {
+			generator = new LoadGenerator(UserTaggingSystemServer.ADDRESS, UserTaggingSystemServer.PORT, protocolVersion,
+					Integer.parseInt(commandLine.getOptionValue('c', String.valueOf(DEFAULT_LOAD_CONNECTIONS))),
+					CommandMix.parse(commandLine.getOptionValue('m', CommandMix.DEFAULT_MIX)),
+					List.of(commandLine.getOptionValue('t', DEFAULT_LOAD_TAGS).split(",")));
+		} catch (IllegalArgumentException e) {
+			System.out.println("ERROR: Invalid load test options: " + e.getMessage());
+			return;
+		}
+		int users = Integer.parseInt(commandLine.getOptionValue('u', String.valueOf(DEFAULT_LOAD_USERS)));
+		double rate = Double.parseDouble(commandLine.getOptionValue('r', "0"));
+		long warmup = Long.parseLong(commandLine.getOptionValue('w', String.valueOf(DEFAULT_LOAD_WARMUP_SECONDS)));
+		long duration = Long.parseLong(commandLine.getOptionValue('d', String.valueOf(DEFAULT_LOAD_DURATION_SECONDS)));
+
+		try {
+			System.out.println(String.format("Creating %d users...", users));
+			List<String> userIDs = generator.seedUsers(users);
+			System.out.println(String.format("Running the load test for %d s after %d s of warmup...", duration, warmup));
+			System.out.print(generator.run(userIDs, rate, warmup, duration));
+		} catch (ConnectException e) {
+			System.out.println("Failed to connect to server. Please make sure the server is running and try again.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 }
@@ -0,0 +1,143 @@
+package tagging;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tagging.metrics.ServerMetrics;
+
+/**
+ * A Selector based front end for the user tagging system.
+ *
+ * One thread multiplexes all client sockets and a fixed pool of workers runs the
+ * commands, so idle connections cost a buffer rather than a thread. Requests and
+ * responses keep the writeUTF/readUTF framing of UserTaggingSystemServerThread, so
+ * existing clients are served unchanged.
+ */
+public class UserTaggingSystemSelectorServer {
+
+	final static int ACCEPT_BACKLOG = 4096;
+
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService workers;
+	private final Queue<UserTaggingSystemServerConnection> pendingUpdates = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+
+	public UserTaggingSystemSelectorServer(int port, int workerCount) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		AtomicInteger workerIndex = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+			Thread thread = new Thread(runnable, "tagging-worker-" + workerIndex.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Serves clients until the selector fails. Runs on the calling thread.
+	 */
+	public void run() throws IOException {
+		System.out.println("Waiting for clients to connect...");
+		while (true) {
+			selector.select();
+			UserTaggingSystemServerConnection connection;
+			while ((connection = pendingUpdates.poll()) != null) {
+				if (connection.getKey().isValid()) {
+					update(connection);
+				}
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				connection = (UserTaggingSystemServerConnection) key.attachment();
+				try {
+					if (key.isReadable() && !connection.read()) {
+						disconnect(connection);
+						continue;
+					}
+					if (key.isWritable()) {
+						connection.write();
+					}
+				} catch (IOException e) {
+					disconnect(connection);
+					continue;
+				}
+				update(connection);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of currently connected clients.
+	 */
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	void submit(Runnable task) {
+		workers.execute(task);
+	}
+
+	// Called by workers once a response has been queued for the connection.
+	void requestUpdate(UserTaggingSystemServerConnection connection) {
+		pendingUpdates.add(connection);
+		selector.wakeup();
+	}
+
+	private void update(UserTaggingSystemServerConnection connection) {
+		try {
+			if (connection.update()) {
+				return;
+			}
+		} catch (IOException e) {
+			// Malformed input; drop the client.
+		}
+		disconnect(connection);
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new UserTaggingSystemServerConnection(this, channel, key));
+		connectionCount.incrementAndGet();
+		ServerMetrics.getInstance().connectionOpened();
+		System.out.println("Client connected.");
+	}
+
+	private void disconnect(UserTaggingSystemServerConnection connection) {
+		connection.getKey().cancel();
+		connection.close();
+		connectionCount.decrementAndGet();
+		ServerMetrics.getInstance().connectionClosed();
+		System.out.println("Client disconnected.");
+	}
+}
@@ -2,37 +2,242 @@ package tagging;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.cli.*;
+
+import tagging.metrics.ServerMetrics;
+import tagging.storage.CachingUserTagStore;
+import tagging.storage.LogUserTagStore;
+import tagging.storage.ShardedUserTagStore;
+import tagging.storage.WriteAheadUserTagStore;
 
 public class UserTaggingSystemServer {
 
 	final static String ADDRESS = "127.0.0.1";
 	final static int PORT = 5000;
 
+	final static String MODE_THREAD = "thread";
+	final static String MODE_SELECTOR = "selector";
+
+	final static String STORE_MONGO = "mongo";
+	final static String STORE_MEMORY = "memory";
+	final static String STORE_LOG = "log";
+
+	final static String DEFAULT_DATA_DIRECTORY = "data";
+
+	final static long DEFAULT_GROUP_COMMIT_MICROS = 2000;
+	final static int DEFAULT_GROUP_COMMIT_RECORDS = 256;
+
+	final static long DEFAULT_RECONCILE_MINUTES = 60;
+
+	final static long DEFAULT_USER_CACHE_SIZE = 0;
+
+	final static int DEFAULT_SHARD_COUNT = 0;
+	final static int SHARD_USERS = 100000;
+
 	// Server runs indefinitely, so no need to explicitly close this resource.
 	@SuppressWarnings("resource")
 	public static void listen(int port) throws IOException {
 		// Start server and wait for a connection
-		
+
 		ServerSocket server;
 		try {
 			server = new ServerSocket(port);
 		} catch (BindException e) {
-			System.out.println(
-					"Another resource is already connected to this endpoint. Please terminate other instances of this server before starting a new one.");
+			printAddressInUse();
 			return;
 		}
-		
+
 		System.out.println("Waiting for clients to connect...");
 		while (true) {
 			Socket socket = server.accept();
+			ServerMetrics.getInstance().connectionOpened();
 			System.out.println("Client connected.");
 			new UserTaggingSystemServerThread(socket).start();
 		}
 	}
 
+	/**
+	 * Serves clients from one selector thread and a fixed pool of worker threads.
+	 */
+	public static void listenWithSelector(int port, int workerCount) throws IOException {
+		UserTaggingSystemSelectorServer server;
+		try {
+			server = new UserTaggingSystemSelectorServer(port, workerCount);
+		} catch (BindException e) {
+			printAddressInUse();
+			return;
+		}
+		server.run();
+	}
+
+	private static void printAddressInUse() {
+		System.out.println(
+				"Another resource is already connected to this endpoint. Please terminate other instances of this server before starting a new one.");
+	}
+
+	private static Options generateOptions() {
+		Options options = new Options();
+		options.addOption("m", "mode", true, String.format(
+				"Connection handling mode: '%s' for a thread per client, or '%s' for a selector feeding a bounded worker pool. Defaults to '%s'.",
+				MODE_THREAD, MODE_SELECTOR, MODE_THREAD))
+				.addOption("w", "workers", true,
+						"Number of worker threads in selector mode. Defaults to the database connection pool size.")
+				.addOption("s", "store", true, String.format(
+						"Storage for users and tags: '%s' for MongoDB, '%s' to keep them in this process until it exits, or '%s' for a log and snapshots in the data directory. Defaults to '%s'.",
+						STORE_MONGO, STORE_MEMORY, STORE_LOG, STORE_MONGO))
+				.addOption("d", "data-directory", true, String.format(
+						"Directory of the '%s' store. Defaults to '%s'.", STORE_LOG, DEFAULT_DATA_DIRECTORY))
+				.addOption("g", "group-commit", true,
+						"Directory of a write-ahead log in front of the store. Tag changes are acknowledged once synced to it together with concurrent ones, and written to the store in bulk afterwards.")
+				.addOption("G", "group-commit-micros", true, String.format(
+						"Microseconds a tag change may wait to share its sync with others. Defaults to %d.",
+						DEFAULT_GROUP_COMMIT_MICROS))
+				.addOption("B", "group-commit-records", true, String.format(
+						"Number of tag changes that are synced at most at once. Defaults to %d.",
+						DEFAULT_GROUP_COMMIT_RECORDS))
+				.addOption("c", "user-cache", true, String.format(
+						"Number of users cached in front of the store, or 0 for no cache. With the '%s' store, changes made by other servers reach the cache through a change stream, which needs a replica set. Defaults to %d.",
+						STORE_MONGO, DEFAULT_USER_CACHE_SIZE))
+				.addOption("S", "shards", true, String.format(
+						"Number of threads that each change the tags of their own users, or 0 to change them on the thread of the command. A shard checks the rules against the tags it holds for up to %d users in total. Defaults to %d.",
+						SHARD_USERS, DEFAULT_SHARD_COUNT))
+				.addOption("r", "reconcile-minutes", true, String.format(
+						"Minutes between recounts of the tag statistics from the database, or 0 to never recount. Defaults to %d.",
+						DEFAULT_RECONCILE_MINUTES))
+				.addOption("h", false, "Print usage information.");
+		return options;
+	}
+
 	public static void main(String args[]) throws IOException {
+		Options options = generateOptions();
+		CommandLine commandLine;
+		try {
+			commandLine = new DefaultParser().parse(options, args);
+		} catch (ParseException parseException) {
+			System.out.println("ERROR: Unable to parse command-line arguments " + Arrays.toString(args)
+					+ " due to: " + parseException);
+			return;
+		}
+		if (commandLine.hasOption('h')) {
+			new HelpFormatter().printHelp(UserTaggingSystemServer.class.getSimpleName(), options);
+			return;
+		}
+
+		String store = commandLine.getOptionValue('s', STORE_MONGO);
+		long groupCommitMicros = DEFAULT_GROUP_COMMIT_MICROS;
+		if (commandLine.hasOption('G')) {
+			groupCommitMicros = Long.parseLong(commandLine.getOptionValue('G'));
+		}
+		int groupCommitRecords = DEFAULT_GROUP_COMMIT_RECORDS;
+		if (commandLine.hasOption('B')) {
+			groupCommitRecords = Integer.parseInt(commandLine.getOptionValue('B'));
+		}
+		if (!store.equals(STORE_MONGO) && !store.equals(STORE_MEMORY) && !store.equals(STORE_LOG)) {
+			System.out.println(String.format("ERROR: Unknown store \"%s\".", store));
+			return;
+		}
+
 		System.out.println("Server started.");
-		listen(PORT);
+		DatabaseConfiguration configuration = DatabaseConfiguration.fromSystemProperties();
+		UserTagStore userTagStore;
+		// The database that tells the layers right in front of it about changes made by
+		// other servers, if any.
+		UserTagDatabase databaseStore = null;
+		if (store.equals(STORE_MEMORY)) {
+			userTagStore = new InMemoryUserTagStore();
+			System.out.println("Using the in-memory store.");
+		} else if (store.equals(STORE_LOG)) {
+			Path directory = Paths.get(commandLine.getOptionValue('d', DEFAULT_DATA_DIRECTORY));
+			long openStart = System.currentTimeMillis();
+			userTagStore = new LogUserTagStore(directory, true);
+			System.out.println(String.format("Opened the store in %s in %d ms.", directory.toAbsolutePath(),
+					System.currentTimeMillis() - openStart));
+		} else {
+			databaseStore = new UserTagDatabase(configuration);
+			userTagStore = databaseStore;
+			System.out.println(String.format("Using database %s.", configuration));
+		}
+		if (commandLine.hasOption('g')) {
+			Path directory = Paths.get(commandLine.getOptionValue('g'));
+			userTagStore = new WriteAheadUserTagStore(userTagStore, directory, groupCommitMicros,
+					groupCommitRecords);
+			databaseStore = null;
+			System.out.println(String.format("Logging tag changes to %s, synced every %d us or %d changes.",
+					directory.toAbsolutePath(), groupCommitMicros, groupCommitRecords));
+		}
+		int shardCount = DEFAULT_SHARD_COUNT;
+		if (commandLine.hasOption('S')) {
+			shardCount = Integer.parseInt(commandLine.getOptionValue('S'));
+		}
+		BiConsumer<String, TagSet> userChanges = null;
+		ShardedUserTagStore shardedStore = null;
+		if (shardCount > 0) {
+			shardedStore = new ShardedUserTagStore(userTagStore, shardCount, SHARD_USERS);
+			userChanges = shardedStore::refresh;
+			ServerMetrics.getInstance().setShardMetrics(shardedStore.getMetrics());
+			System.out.println(String.format("Changing users on %d shards.", shardCount));
+			userTagStore = shardedStore;
+		}
+		long userCacheSize = DEFAULT_USER_CACHE_SIZE;
+		if (commandLine.hasOption('c')) {
+			userCacheSize = Long.parseLong(commandLine.getOptionValue('c'));
+		}
+		if (userCacheSize > 0) {
+			CachingUserTagStore cachingStore = new CachingUserTagStore(userTagStore, userCacheSize);
+			userChanges = userChanges == null ? cachingStore::refresh : userChanges.andThen(cachingStore::refresh);
+			ServerMetrics.getInstance().setUserCacheMetrics(cachingStore.getMetrics());
+			userTagStore = cachingStore;
+			System.out.println(String.format("Caching up to %d users.", userCacheSize));
+		}
+		// Other servers may only change the users of a shared database, and the shards can
+		// only decide changes locally while they are told about those.
+		if (shardedStore != null) {
+			shardedStore.setDecidingLocally(!store.equals(STORE_MONGO) || databaseStore != null);
+		}
+		if (userChanges != null && databaseStore != null) {
+			ShardedUserTagStore watchedStore = shardedStore;
+			Runnable stopped = () -> {
+				if (watchedStore != null) {
+					watchedStore.setDecidingLocally(false);
+				}
+			};
+			if (!databaseStore.watchUsers(userChanges, stopped)) {
+				stopped.run();
+			}
+		}
+		UserTagStore.initialize(userTagStore);
+		ServerMetrics.getInstance().registerMBeans();
+		long indexStart = System.currentTimeMillis();
+		TagIndex tagIndex = UserTagStore.getInstance().buildTagIndex();
+		System.out.println(String.format("Indexed the tags of %d users in %d ms.", tagIndex.size(),
+				System.currentTimeMillis() - indexStart));
+		long reconcileMinutes = DEFAULT_RECONCILE_MINUTES;
+		if (commandLine.hasOption('r')) {
+			reconcileMinutes = Long.parseLong(commandLine.getOptionValue('r'));
+		}
+		if (reconcileMinutes > 0) {
+			UserTagStore.getInstance().getTagStatistics().scheduleReconcile(UserTagStore.getInstance(),
+					reconcileMinutes);
+		}
+
+		String mode = commandLine.getOptionValue('m', MODE_THREAD);
+		if (mode.equals(MODE_SELECTOR)) {
+			int workerCount = configuration.getMaxPoolSize();
+			if (commandLine.hasOption('w')) {
+				workerCount = Integer.parseInt(commandLine.getOptionValue('w'));
+			}
+			System.out.println(String.format("Running in selector mode with %d workers.", workerCount));
+			listenWithSelector(PORT, workerCount);
+		} else if (mode.equals(MODE_THREAD)) {
+			listen(PORT);
+		} else {
+			System.out.println(String.format("ERROR: Unknown mode \"%s\".", mode));
+		}
 	}
 
 }
@@ -0,0 +1,358 @@
+package tagging;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tagging.parsing.CommandParser;
+import tagging.parsing.CommandParserException;
+
+/**
+ * The state of one client connection of the UserTaggingSystemSelectorServer.
+ *
+ * Bytes are read and written only by the selector thread. With protocol version 1,
+ * complete request frames are handed to the worker pool one at a time, so that each
+ * client still sees its responses in request order, exactly as with a
+ * UserTaggingSystemServerThread. With protocol version 2 requests run concurrently. A
+ * command with an asynchronous form only holds its worker until it has been started, and
+ * is answered by whichever thread completes it.
+ *
+ * With either version, reading is paused while {@link #MAX_REQUESTS_IN_FLIGHT} requests of
+ * the connection are waiting or running, or while more than {@link #MAX_QUEUED_BYTES} of
+ * responses wait for the client, so a client that does not read its responses cannot
+ * make the server buffer without bound.
+ */
+class UserTaggingSystemServerConnection {
+
+	final static int INITIAL_BUFFER_SIZE = 512;
+	// Workers streaming a large response wait while more than this is queued for the client.
+	final static int MAX_QUEUED_BYTES = 256 * 1024;
+	final static int MAX_REQUESTS_IN_FLIGHT = UserTaggingSystemServerThread.MAX_REQUESTS_IN_FLIGHT;
+
+	private final UserTaggingSystemSelectorServer server;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+
+	// Only touched by the selector thread.
+	private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private int protocolVersion = WireProtocol.VERSION_1;
+	private boolean firstRequest = true;
+	private boolean exitReceived;
+	private int exitRequestID;
+
+	private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicInteger requestsInFlight = new AtomicInteger();
+	private volatile boolean closeAfterFlush;
+	private volatile boolean closed;
+
+	// Protocol version 1 requests waiting for their turn, counted in requestsInFlight;
+	// guarded by this.
+	private final Queue<String> pendingRequests = new ArrayDeque<>();
+	private boolean processing;
+
+	UserTaggingSystemServerConnection(UserTaggingSystemSelectorServer server, SocketChannel channel,
+			SelectionKey key) {
+		this.server = server;
+		this.channel = channel;
+		this.key = key;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Reads what is available from the channel.
+	 *
+	 * @return false iff the client has closed the connection.
+	 */
+	boolean read() throws IOException {
+		return channel.read(inbound) >= 0;
+	}
+
+	/**
+	 * Writes as much of the queued output as the channel accepts.
+	 */
+	void write() throws IOException {
+		ByteBuffer buffer;
+		while ((buffer = outbound.peek()) != null) {
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				return;
+			}
+			outbound.poll();
+			if (queuedBytes.addAndGet(-buffer.limit()) <= MAX_QUEUED_BYTES) {
+				synchronized (queuedBytes) {
+					queuedBytes.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called on the selector thread after any I/O or worker progress: dispatches every
+	 * complete request frame that may run, and selects for reading unless paused and for
+	 * writing when output is queued.
+	 *
+	 * @return false iff the connection is done and should be closed.
+	 */
+	boolean update() throws IOException {
+		dispatchRequests();
+		if (exitReceived && protocolVersion == WireProtocol.VERSION_2 && !closeAfterFlush
+				&& requestsInFlight.get() == 0) {
+			// Every earlier request has been answered, so say goodbye.
+			enqueue(WireProtocol.encodeV2(exitRequestID, WireProtocol.FLAG_FINAL, ""));
+			closeAfterFlush = true;
+		}
+		boolean flushed = outbound.isEmpty();
+		if (flushed && closeAfterFlush) {
+			return false;
+		}
+		int interestOps = flushed ? 0 : SelectionKey.OP_WRITE;
+		if (!isReadPaused()) {
+			interestOps |= SelectionKey.OP_READ;
+		}
+		key.interestOps(interestOps);
+		return true;
+	}
+
+	void close() {
+		closed = true;
+		synchronized (queuedBytes) {
+			queuedBytes.notifyAll();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private boolean isReadPaused() {
+		return exitReceived || closeAfterFlush || requestsInFlight.get() >= MAX_REQUESTS_IN_FLIGHT
+				|| queuedBytes.get() > MAX_QUEUED_BYTES;
+	}
+
+	private void dispatchRequests() throws IOException {
+		inbound.flip();
+		int frameLength;
+		while (!isReadPaused() && (frameLength = nextFrameLength()) > 0 && inbound.remaining() >= frameLength) {
+			if (protocolVersion == WireProtocol.VERSION_1) {
+				byte[] frame = new byte[frameLength];
+				inbound.get(frame);
+				String line = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+				if (firstRequest && line.equals(WireProtocol.HELLO_V2)) {
+					protocolVersion = WireProtocol.VERSION_2;
+					enqueue(ByteBuffer.wrap(WireProtocol.encodeV1(WireProtocol.HELLO_V2_ACK)));
+				} else {
+					exitReceived = line.equals(UserTaggingSystemClient.EXIT_COMMAND);
+					enqueueRequest(line);
+				}
+			} else {
+				WireProtocol.Frame frame = WireProtocol.decodeV2(inbound);
+				if (frame.isText(UserTaggingSystemClient.EXIT_COMMAND)) {
+					exitReceived = true;
+					exitRequestID = frame.getRequestID();
+				} else {
+					requestsInFlight.incrementAndGet();
+					server.submit(() -> processRequest(frame.getRequestID(), frame.getPayload()));
+				}
+			}
+			firstRequest = false;
+		}
+		inbound.compact();
+
+		// Make room for a frame larger than the buffer.
+		if (!inbound.hasRemaining() && !isReadPaused()) {
+			ByteBuffer larger = ByteBuffer.allocate(inbound.capacity() * 2);
+			inbound.flip();
+			larger.put(inbound);
+			inbound = larger;
+		}
+	}
+
+	/**
+	 * @return the length of the frame at the start of the buffer, or 0 if its header has
+	 *         not been read yet.
+	 */
+	private int nextFrameLength() throws IOException {
+		if (protocolVersion == WireProtocol.VERSION_1) {
+			if (inbound.remaining() < WireProtocol.V1_HEADER_LENGTH) {
+				return 0;
+			}
+			return WireProtocol.V1_HEADER_LENGTH + (inbound.getShort(inbound.position()) & 0xFFFF);
+		}
+		if (inbound.remaining() < WireProtocol.V2_LENGTH_FIELD_LENGTH) {
+			return 0;
+		}
+		int length = inbound.getInt(inbound.position());
+		WireProtocol.checkV2Length(length);
+		return WireProtocol.V2_LENGTH_FIELD_LENGTH + length;
+	}
+
+	private synchronized void enqueueRequest(String line) {
+		requestsInFlight.incrementAndGet();
+		pendingRequests.add(line);
+		if (!processing) {
+			processing = true;
+			server.submit(this::processNextRequest);
+		}
+	}
+
+	// Runs on a worker thread.
+	private void processNextRequest() {
+		String line;
+		synchronized (this) {
+			line = pendingRequests.poll();
+			if (line == null) {
+				processing = false;
+				return;
+			}
+		}
+
+		boolean next = false;
+		try {
+			ByteBuffer frame;
+			try {
+				frame = execute(line);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				frame = executeFailed(e);
+			}
+			enqueue(frame);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeAfterFlush = true;
+		} finally {
+			if (line.equals(UserTaggingSystemClient.EXIT_COMMAND)) {
+				closeAfterFlush = true;
+			}
+			requestsInFlight.decrementAndGet();
+			// Whatever happened, give the turn to the next request or give it up.
+			synchronized (this) {
+				next = !closeAfterFlush && !pendingRequests.isEmpty();
+				processing = next;
+			}
+			server.requestUpdate(this);
+		}
+		if (next) {
+			server.submit(this::processNextRequest);
+		}
+	}
+
+	// Runs on a worker thread.
+	private void processRequest(int requestID, byte[] request) {
+		CompletableFuture<String> pending;
+		try {
+			pending = CommandParser.parseLineAsync(request, 0, request.length);
+		} catch (CommandParserException e) {
+			pending = CompletableFuture.completedFuture(e.getMessage());
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			pending = CompletableFuture.completedFuture(CommandParser.describeFailure(e));
+		}
+		if (pending != null) {
+			pending.whenComplete((response, failure) -> finishRequest(requestID, response, failure));
+			return;
+		}
+
+		// Large responses go out in several frames as they are produced.
+		ResponseWriter response = ResponseWriter.forCurrentThread().startV2(requestID, this::sendAndAwaitDrain);
+		try {
+			try {
+				CommandParser.parseLine(request, 0, request.length, response);
+			} catch (CommandParserException e) {
+				response.append(e.getMessage());
+			}
+			response.finishV2();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			// End the response, so the client is not left waiting for it.
+			enqueue(WireProtocol.encodeV2(requestID, WireProtocol.FLAG_FINAL, CommandParser.describeFailure(e)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			requestsInFlight.decrementAndGet();
+			server.requestUpdate(this);
+		}
+	}
+
+	/**
+	 * Answers a request that was completed asynchronously, on the thread completing it. The
+	 * response is of a single user, so it is queued without waiting for the client to catch
+	 * up; the requests in flight bound how much can pile up.
+	 */
+	private void finishRequest(int requestID, String response, Throwable failure) {
+		if (failure != null) {
+			failure.printStackTrace();
+			response = CommandParser.describeFailure(failure);
+		}
+		try {
+			enqueue(WireProtocol.encodeV2(requestID, WireProtocol.FLAG_FINAL, response));
+		} finally {
+			requestsInFlight.decrementAndGet();
+			server.requestUpdate(this);
+		}
+	}
+
+	private void enqueue(ByteBuffer frame) {
+		queuedBytes.addAndGet(frame.remaining());
+		outbound.add(frame);
+	}
+
+	// Runs on a worker thread: queues a frame, then blocks while the client is behind.
+	private void sendAndAwaitDrain(ByteBuffer frame) throws IOException {
+		enqueue(copy(frame));
+		server.requestUpdate(this);
+		synchronized (queuedBytes) {
+			while (queuedBytes.get() > MAX_QUEUED_BYTES && !closed) {
+				try {
+					queuedBytes.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+		if (closed) {
+			throw new IOException("The client disconnected.");
+		}
+	}
+
+	// Runs on a worker thread: returns the version 1 frame of the response.
+	private static ByteBuffer execute(String line) throws IOException {
+		ResponseWriter response = ResponseWriter.forCurrentThread().startV1();
+		try {
+			CommandParser.parseLine(line, response);
+		} catch (CommandParserException e) {
+			response.startV1().append(e.getMessage());
+		}
+		return copy(response.finishV1());
+	}
+
+	// Runs on a worker thread: returns the version 1 frame answering a failed command.
+	private static ByteBuffer executeFailed(RuntimeException failure) throws IOException {
+		ResponseWriter response = ResponseWriter.forCurrentThread().startV1();
+		response.append(CommandParser.describeFailure(failure));
+		return copy(response.finishV1());
+	}
+
+	/**
+	 * @return a copy of a frame of the thread's ResponseWriter, which is reused by the
+	 *         next response while the copy waits in the outbound queue.
+	 */
+	private static ByteBuffer copy(ByteBuffer frame) {
+		return ByteBuffer.allocate(frame.remaining()).put(frame).flip();
+	}
+}
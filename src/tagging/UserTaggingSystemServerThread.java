@@ -1,16 +1,35 @@
 package tagging;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import tagging.parsing.CommandParser;
+import tagging.metrics.ServerMetrics;
 import tagging.parsing.CommandParserException;
 
 public class UserTaggingSystemServerThread extends Thread {
 
+	// Bounds how many pipelined protocol version 2 requests one client may have in flight.
+	final static int MAX_REQUESTS_IN_FLIGHT = 64;
+
+	// Runs the pipelined requests of all clients. Like the workers of the selector server,
+	// it is sized like the database pool, which a blocking command waits on.
+	private final static ExecutorService pipelineExecutor = Executors.newFixedThreadPool(
+			DatabaseConfiguration.fromSystemProperties().getMaxPoolSize(), runnable -> {
+				Thread thread = new Thread(runnable, "tagging-pipeline");
+				thread.setDaemon(true);
+				return thread;
+			});
+
 	private Socket socket;
 	private DataInputStream in;
 	private DataOutputStream out;
@@ -23,15 +42,27 @@ public class UserTaggingSystemServerThread extends Thread {
 
 	public void run() {
 		String line = "";
+		boolean firstRequest = true;
 		try {
 			while (!line.equals(UserTaggingSystemClient.EXIT_COMMAND)) {
+				line = in.readUTF();
+				if (firstRequest && line.equals(WireProtocol.HELLO_V2)) {
+					out.writeUTF(WireProtocol.HELLO_V2_ACK);
+					runV2();
+					break;
+				}
+				firstRequest = false;
+				ResponseWriter response = ResponseWriter.forCurrentThread().startV1();
 				try {
-					line = in.readUTF();
-					String response = CommandParser.parseLine(line);
-					out.writeUTF(response);
+					CommandParser.parseLine(line, response);
 				} catch (CommandParserException e) {
-					out.writeUTF(e.getMessage());
+					response.startV1().append(e.getMessage());
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					response.startV1().append(CommandParser.describeFailure(e));
 				}
+				ByteBuffer frame = response.finishV1();
+				out.write(frame.array(), 0, frame.limit());
 			}
 			System.out.println("Client disconnected.");
 			socket.close();
@@ -39,6 +70,100 @@ public class UserTaggingSystemServerThread extends Thread {
 			in.close();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			ServerMetrics.getInstance().connectionClosed();
+		}
+	}
+
+	/**
+	 * Serves protocol version 2: requests are read as they arrive and run concurrently,
+	 * and each response is written as soon as it is ready. A command with an asynchronous
+	 * form gives its thread back once it has been started, until it is answered.
+	 */
+	private void runV2() throws IOException {
+		DataOutputStream frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		Semaphore inFlight = new Semaphore(MAX_REQUESTS_IN_FLIGHT);
+		while (true) {
+			WireProtocol.Frame request = WireProtocol.readV2(in);
+			if (request.isText(UserTaggingSystemClient.EXIT_COMMAND)) {
+				// Let the requests in flight finish before saying goodbye.
+				inFlight.acquireUninterruptibly(MAX_REQUESTS_IN_FLIGHT);
+				respondV2(frameOut, request.getRequestID(), "");
+				return;
+			}
+			inFlight.acquireUninterruptibly();
+			pipelineExecutor.execute(() -> {
+				byte[] payload = request.getPayload();
+				CompletableFuture<String> pending;
+				try {
+					pending = CommandParser.parseLineAsync(payload, 0, payload.length);
+				} catch (CommandParserException e) {
+					pending = CompletableFuture.completedFuture(e.getMessage());
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					pending = CompletableFuture.completedFuture(CommandParser.describeFailure(e));
+				}
+				if (pending != null) {
+					// Writing to the client may block, which a thread of the store must not.
+					pending.whenCompleteAsync((text, failure) -> respondAsync(frameOut, request.getRequestID(), text,
+							failure, inFlight), pending.isDone() ? Runnable::run : pipelineExecutor);
+					return;
+				}
+
+				// Large responses go out in several frames as they are produced.
+				ResponseWriter response = ResponseWriter.forCurrentThread().startV2(request.getRequestID(),
+						frame -> sendV2(frameOut, frame));
+				try {
+					try {
+						CommandParser.parseLine(payload, 0, payload.length, response);
+					} catch (CommandParserException e) {
+						response.append(e.getMessage());
+					}
+					response.finishV2();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					respondFailed(frameOut, request.getRequestID(), e);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					inFlight.release();
+				}
+			});
+		}
+	}
+
+	// Ends the response of a request that failed unexpectedly, so the client is not left waiting.
+	private static void respondFailed(DataOutputStream frameOut, int requestID, RuntimeException failure) {
+		try {
+			respondV2(frameOut, requestID, CommandParser.describeFailure(failure));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void respondAsync(DataOutputStream frameOut, int requestID, String response, Throwable failure,
+			Semaphore inFlight) {
+		try {
+			if (failure != null) {
+				failure.printStackTrace();
+				response = CommandParser.describeFailure(failure);
+			}
+			respondV2(frameOut, requestID, response);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			inFlight.release();
+		}
+	}
+
+	private static void respondV2(DataOutputStream frameOut, int requestID, String response) throws IOException {
+		sendV2(frameOut, WireProtocol.encodeV2(requestID, WireProtocol.FLAG_FINAL, response));
+	}
+
+	private static void sendV2(DataOutputStream frameOut, ByteBuffer frame) throws IOException {
+		synchronized (frameOut) {
+			frameOut.write(frame.array(), frame.position(), frame.remaining());
+			frameOut.flush();
 		}
 	}
 
@@ -0,0 +1,16 @@
+package tagging;
+
+/**
+ * Thrown when a conditional update of a user keeps losing to concurrent changes of the
+ * same user, and is given up.
+ */
+public class UserUpdateConflictException extends RuntimeException {
+
+	public UserUpdateConflictException(String userID, int attempts) {
+		super(String.format("[%s] The tags of user %s changed during each of %d attempts to update them.",
+				UserUpdateConflictException.class.getSimpleName(), userID, attempts));
+	}
+
+	// Generated
+	private static final long serialVersionUID = 8127405512361094870L;
+}
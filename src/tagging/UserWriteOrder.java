@@ -0,0 +1,73 @@
+package tagging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders the writes of each user within the process, across the synchronous and the
+ * asynchronous driver, so that the listeners hear of the changes of a user in the order
+ * the database made them.
+ *
+ * A write takes a turn for its users before it starts, and ends the turn once it told
+ * the listeners. A turn starts when every earlier turn of its users has ended; writes of
+ * other users do not wait.
+ */
+final class UserWriteOrder {
+
+	static final class Turn implements AutoCloseable {
+		private final CompletableFuture<Void> started;
+		private final CompletableFuture<Void> ended;
+
+		private Turn(CompletableFuture<Void> started, CompletableFuture<Void> ended) {
+			this.started = started;
+			this.ended = ended;
+		}
+
+		/**
+		 * @return a future that completes once the turn starts.
+		 */
+		CompletableFuture<Void> started() {
+			return started;
+		}
+
+		/**
+		 * Blocks until the turn starts.
+		 */
+		void await() {
+			started.join();
+		}
+
+		@Override
+		public void close() {
+			ended.complete(null);
+		}
+	}
+
+	private final ConcurrentHashMap<String, CompletableFuture<Void>> lastTurns = new ConcurrentHashMap<>();
+
+	/**
+	 * @param keys the canonical IDs of the users to write.
+	 * @return the next turn of the users, which must be closed even if the write fails.
+	 */
+	Turn take(Collection<String> keys) {
+		Set<String> users = new HashSet<>(keys);
+		CompletableFuture<Void> ended = new CompletableFuture<>();
+		List<CompletableFuture<Void>> earlier = new ArrayList<>(users.size());
+		// Turns of many users are queued at once, so that two of them never wait for each other.
+		synchronized (this) {
+			for (String user : users) {
+				CompletableFuture<Void> last = lastTurns.put(user, ended);
+				if (last != null) {
+					earlier.add(last);
+				}
+			}
+		}
+		ended.whenComplete((unused, failure) -> users.forEach(user -> lastTurns.remove(user, ended)));
+		return new Turn(CompletableFuture.allOf(earlier.toArray(new CompletableFuture<?>[0])), ended);
+	}
+}
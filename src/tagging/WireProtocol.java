@@ -0,0 +1,164 @@
+package tagging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framing shared by the user tagging system server and client.
+ *
+ * Version 1 is DataOutputStream.writeUTF: a 2-byte length followed by modified UTF-8,
+ * strictly one response per request. It caps every message at 64 KB.
+ *
+ * Version 2 is negotiated by sending {@link #HELLO_V2} as the first version 1 frame and
+ * receiving {@link #HELLO_V2_ACK} back. After that both directions use frames of
+ * <pre>
+ * int length | int requestID | byte flags | UTF-8 payload
+ * </pre>
+ * where length counts the bytes after itself. A client may pipeline any number of
+ * requests; the server answers each with the request's ID, in whatever order they
+ * complete. The last (and usually only) response frame of a request carries
+ * {@link #FLAG_FINAL}.
+ */
+public final class WireProtocol {
+
+	public final static int VERSION_1 = 1;
+	public final static int VERSION_2 = 2;
+
+	public final static String HELLO_V2 = "PROTOCOL 2";
+	public final static String HELLO_V2_ACK = "PROTOCOL 2 OK";
+
+	public final static int V1_HEADER_LENGTH = 2;
+	public final static int V1_MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+	public final static int V2_LENGTH_FIELD_LENGTH = 4;
+	public final static int V2_HEADER_LENGTH = V2_LENGTH_FIELD_LENGTH + 4 + 1;
+	public final static int V2_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	public final static byte FLAG_FINAL = 1;
+
+	private WireProtocol() {
+	}
+
+	/**
+	 * A decoded version 2 frame.
+	 */
+	public static final class Frame {
+		private final int requestID;
+		private final byte flags;
+		private final byte[] payload;
+
+		public Frame(int requestID, byte flags, byte[] payload) {
+			this.requestID = requestID;
+			this.flags = flags;
+			this.payload = payload;
+		}
+
+		public int getRequestID() {
+			return requestID;
+		}
+
+		public boolean isFinal() {
+			return (flags & FLAG_FINAL) != 0;
+		}
+
+		public String getText() {
+			return new String(payload, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return the UTF-8 payload. It is shared and must not be modified.
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		/**
+		 * @return true iff the payload is the given ASCII text, compared without decoding.
+		 */
+		public boolean isText(String asciiText) {
+			if (payload.length != asciiText.length()) {
+				return false;
+			}
+			for (int i = 0; i < payload.length; i++) {
+				if (payload[i] != asciiText.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return the version 1 (writeUTF) encoding of the text.
+	 * @throws UTFDataFormatException if the text is longer than 64 KB when encoded.
+	 */
+	public static byte[] encodeV1(String text) throws UTFDataFormatException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() + V1_HEADER_LENGTH);
+		try {
+			new DataOutputStream(bytes).writeUTF(text);
+		} catch (UTFDataFormatException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing to memory cannot fail.", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return a version 2 frame carrying the payload, ready to be written.
+	 */
+	public static ByteBuffer encodeV2(int requestID, byte flags, byte[] payload, int offset, int length) {
+		ByteBuffer frame = ByteBuffer.allocate(V2_HEADER_LENGTH + length);
+		frame.putInt(V2_HEADER_LENGTH - V2_LENGTH_FIELD_LENGTH + length).putInt(requestID).put(flags)
+				.put(payload, offset, length).flip();
+		return frame;
+	}
+
+	public static ByteBuffer encodeV2(int requestID, byte flags, String text) {
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		return encodeV2(requestID, flags, payload, 0, payload.length);
+	}
+
+	public static void writeV2(DataOutputStream out, int requestID, byte flags, String text) throws IOException {
+		ByteBuffer frame = encodeV2(requestID, flags, text);
+		out.write(frame.array(), 0, frame.limit());
+	}
+
+	/**
+	 * Reads one version 2 frame.
+	 *
+	 * @throws IOException if the frame is malformed or larger than {@link #V2_MAX_FRAME_LENGTH}.
+	 */
+	public static Frame readV2(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		checkV2Length(length);
+		int requestID = in.readInt();
+		byte flags = in.readByte();
+		byte[] payload = new byte[length - (V2_HEADER_LENGTH - V2_LENGTH_FIELD_LENGTH)];
+		in.readFully(payload);
+		return new Frame(requestID, flags, payload);
+	}
+
+	/**
+	 * Decodes one version 2 frame whose bytes, length field included, are all in the buffer.
+	 */
+	public static Frame decodeV2(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		int requestID = buffer.getInt();
+		byte flags = buffer.get();
+		byte[] payload = new byte[length - (V2_HEADER_LENGTH - V2_LENGTH_FIELD_LENGTH)];
+		buffer.get(payload);
+		return new Frame(requestID, flags, payload);
+	}
+
+	public static void checkV2Length(int length) throws IOException {
+		if (length < V2_HEADER_LENGTH - V2_LENGTH_FIELD_LENGTH || length > V2_MAX_FRAME_LENGTH) {
+			throw new IOException(String.format("Invalid protocol version 2 frame length %d.", length));
+		}
+	}
+}
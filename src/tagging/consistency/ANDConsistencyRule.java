@@ -1,9 +1,13 @@
 package tagging.consistency;
 
+import java.util.Collections;
 import java.util.Set;
 
 import tagging.Tag;
+import tagging.TagMutation;
+import tagging.TagSet;
 import tagging.Taggable;
+import tagging.TaggableOperation;
 
 /**
  * Models the AND logic for two or more tags:
@@ -27,8 +31,26 @@ public class ANDConsistencyRule extends ConsistencyRule {
 	}
 
 	@Override
-	protected boolean evaluateTags(Set<Tag> tags) {
-		return tags.containsAll(this.tags);
+	public TagMutation planFix(String entityID, TagSet existingTags) {
+		if (this.evaluateTags(existingTags)) {
+			return null;
+		}
+		return new TagMutation(entityID, TaggableOperation.ADD_TAG, TagSet.of(this.tags).difference(existingTags));
+	}
+
+	@Override
+	public ConsistencyPrecondition getPrecondition(TaggableOperation operation, Set<Tag> tagsToAddOrRemove) {
+		if (operation != TaggableOperation.REMOVE_TAG || Collections.disjoint(this.tags, tagsToAddOrRemove)) {
+			// Only removing one of the tags can break the combination.
+			return null;
+		}
+		// Allowed unless the user currently has the whole combination.
+		return new ConsistencyPrecondition(this, this.tags, Collections.emptySet());
+	}
+
+	@Override
+	protected boolean evaluateCoverage(boolean hasAllTags) {
+		return hasAllTags;
 	}
 
 	@Override
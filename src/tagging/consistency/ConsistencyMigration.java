@@ -0,0 +1,305 @@
+package tagging.consistency;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tagging.Tag;
+import tagging.TagMutation;
+import tagging.TagMutationResult;
+import tagging.TagSet;
+import tagging.TaggableOperation;
+import tagging.User;
+import tagging.UserTagStore;
+
+/**
+ * Streams every user through the consistency rules.
+ *
+ * The users are split into ranges of IDs, and the ranges are spread over a fork-join
+ * pool. Each range is read through its own cursor and its users are evaluated in memory.
+ * In live mode the fixes are validated in memory as well, and written with batched bulk
+ * writes. A fix is written only if the user's tags that it was planned on are unchanged,
+ * checked atomically with the write, so that it never undoes a concurrent change.
+ *
+ * A {@link MigrationThrottle} paces the users and writes, and a {@link MigrationCheckpoint}
+ * records the progress of every range so that an interrupted migration can resume.
+ */
+final class ConsistencyMigration {
+
+	// Ranges per worker, so that a worker that finishes early can steal more work.
+	final static int RANGES_PER_WORKER = 4;
+
+	// Number of fixes written in one batch.
+	final static int FIX_BATCH_SIZE = 1000;
+
+	private final UserTagStore database;
+	private final Class<?> targetRuleClass;
+	private final boolean live;
+	private final int parallelism;
+	private final AtomicLong remainingUsers;
+	private final MigrationThrottle throttle;
+	private final Path checkpointFile;
+	private MigrationCheckpoint checkpoint;
+
+	/**
+	 * @param targetRuleClass the only rule class to check, or null for all rules.
+	 * @param maxUsers        the maximum number of users to check, or null for all.
+	 * @param checkpointFile  where to save progress and resume from, or null to always
+	 *                        start from the beginning.
+	 */
+	ConsistencyMigration(UserTagStore database, Class<?> targetRuleClass, boolean live, int parallelism,
+			Long maxUsers, MigrationThrottle throttle, Path checkpointFile) {
+		this.database = database;
+		this.targetRuleClass = targetRuleClass;
+		this.live = live;
+		this.parallelism = parallelism;
+		this.remainingUsers = new AtomicLong(maxUsers == null ? Long.MAX_VALUE : maxUsers);
+		this.throttle = throttle;
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * Loads the saved checkpoint, or splits the users into new ranges if there is none.
+	 * 
+	 * @return true iff the migration resumes from a saved checkpoint.
+	 * @throws IOException if the checkpoint cannot be read, or was saved by a migration in
+	 *                     another mode or for other rules.
+	 */
+	boolean prepare() throws IOException {
+		String settings = MigrationCheckpoint.formatSettings(live, targetRuleClass);
+		checkpoint = MigrationCheckpoint.load(checkpointFile, settings);
+		if (checkpoint != null) {
+			return true;
+		}
+		checkpoint = MigrationCheckpoint.create(checkpointFile, settings,
+				database.getUserIDSplitPoints(parallelism * RANGES_PER_WORKER));
+		return false;
+	}
+
+	MigrationCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	ConsistencyMigrationReport run() throws IOException {
+		if (checkpoint == null) {
+			prepare();
+		}
+		List<MigrationCheckpoint.Range> ranges = checkpoint.getPendingRanges();
+		ConsistencyMigrationReport report = new ConsistencyMigrationReport();
+		if (!ranges.isEmpty()) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				report = pool.invoke(new RangeTask(ranges));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				pool.shutdown();
+			}
+		}
+		report.setComplete(checkpoint.finish());
+		return report;
+	}
+
+	private final class RangeTask extends RecursiveTask<ConsistencyMigrationReport> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<MigrationCheckpoint.Range> ranges;
+
+		RangeTask(List<MigrationCheckpoint.Range> ranges) {
+			this.ranges = ranges;
+		}
+
+		@Override
+		protected ConsistencyMigrationReport compute() {
+			if (ranges.size() == 1) {
+				return new RangeMigration(ranges.get(0)).run();
+			}
+			int middle = ranges.size() / 2;
+			RangeTask upper = new RangeTask(ranges.subList(middle, ranges.size()));
+			upper.fork();
+			ConsistencyMigrationReport report = new RangeTask(ranges.subList(0, middle)).compute();
+			return report.merge(upper.join());
+		}
+	}
+
+	/**
+	 * Migrates one range of users on one thread. The checkpoint only moves past a user
+	 * once its fixes are written.
+	 */
+	private final class RangeMigration {
+
+		private final MigrationCheckpoint.Range range;
+		private final String resumeAfterID;
+		private final ConsistencyMigrationReport report = new ConsistencyMigrationReport();
+		private final List<TagMutation> fixes = new ArrayList<>();
+		private String lastUserID;
+		private int usersSinceFlush;
+		private boolean stopped;
+
+		RangeMigration(MigrationCheckpoint.Range range) {
+			this.range = range;
+			this.resumeAfterID = range.getLastID();
+		}
+
+		ConsistencyMigrationReport run() {
+			try {
+				database.forEachUser(range.getResumeID(), range.getToID(), this::visit);
+				flush();
+				if (!stopped) {
+					checkpoint.complete(range);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return report;
+		}
+
+		private boolean visit(User user) {
+			if (user.getID().equals(resumeAfterID)) {
+				// Already migrated before the checkpoint was saved.
+				return true;
+			}
+			if (remainingUsers.getAndDecrement() <= 0) {
+				stopped = true;
+				return false;
+			}
+			try {
+				throttle.acquireUser();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stopped = true;
+				return false;
+			}
+			migrateUser(user, report, fixes);
+			lastUserID = user.getID();
+			usersSinceFlush++;
+			if (fixes.size() >= throttle.getWriteBatchSize(FIX_BATCH_SIZE) || usersSinceFlush >= FIX_BATCH_SIZE) {
+				try {
+					flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return !stopped;
+		}
+
+		private void flush() throws IOException {
+			if (!fixes.isEmpty()) {
+				try {
+					throttle.acquireWrites(fixes.size());
+				} catch (InterruptedException e) {
+					// Still write the planned fixes, so that the checkpoint can move past them.
+					Thread.currentThread().interrupt();
+					stopped = true;
+				}
+				long start = System.nanoTime();
+				TagMutationResult result = database.applyTagMutations(fixes);
+				report.recordUsersModified(result.getModifiedCount());
+				Set<String> skippedUsers = new HashSet<>();
+				for (int i = 0; i < fixes.size(); i++) {
+					if (!result.isWritten(i)) {
+						skippedUsers.add(fixes.get(i).getUserID());
+					}
+				}
+				report.recordUsersSkipped(skippedUsers.size());
+				throttle.recordWriteLatency(System.nanoTime() - start);
+				fixes.clear();
+			}
+			if (lastUserID != null) {
+				checkpoint.advance(range, lastUserID);
+			}
+			usersSinceFlush = 0;
+		}
+	}
+
+	private void migrateUser(User user, ConsistencyMigrationReport report, List<TagMutation> fixes) {
+		Set<ConsistencyRule> rules = user.getConsistencyRules();
+		TagSet tags = user.getLoadedTags();
+		TagSet fixedTags = tags;
+		boolean consistent = true;
+		for (ConsistencyRule rule : rules) {
+			if (targetRuleClass != null && targetRuleClass != rule.getClass()) {
+				continue;
+			}
+			if (rule.evaluateTags(tags)) {
+				continue;
+			}
+			consistent = false;
+			report.recordViolation(rule);
+			if (!live) {
+				continue;
+			}
+			// Plan against the result of the earlier fixes, which may have fixed this rule too.
+			TagMutation fix = rule.planFix(user.getID(), fixedTags);
+			if (fix == null) {
+				continue;
+			}
+			if (!isAllowed(rules, fixedTags, fix)) {
+				report.recordFixRejected(rule);
+				continue;
+			}
+			report.recordFixPlanned(rule);
+			fixedTags = fix.getOperation() == TaggableOperation.ADD_TAG ? fixedTags.union(fix.getTags())
+					: fixedTags.difference(fix.getTags());
+		}
+		report.recordUser(consistent);
+
+		// The fixes of all rules collapse into at most one add and one disjoint remove, which
+		// commute, so they can go into the same unordered bulk write.
+		TagSet added = fixedTags.difference(tags);
+		TagSet removed = tags.difference(fixedTags);
+		if (added.isEmpty() && removed.isEmpty()) {
+			return;
+		}
+		List<ConsistencyPrecondition> preconditions = getUnchangedPreconditions(rules, tags, added.union(removed));
+		if (!added.isEmpty()) {
+			fixes.add(new TagMutation(user.getID(), TaggableOperation.ADD_TAG, added, preconditions));
+		}
+		if (!removed.isEmpty()) {
+			fixes.add(new TagMutation(user.getID(), TaggableOperation.REMOVE_TAG, removed, preconditions));
+		}
+		if (!added.isEmpty() || !removed.isEmpty()) {
+			report.recordUserFixed();
+		}
+	}
+
+	/**
+	 * The fixes were planned on the user's tags of its rules. Each of those tags, apart
+	 * from the ones the fixes change themselves, must still be there or still be missing,
+	 * so that the two fixes of a user also apply in either order.
+	 */
+	private static List<ConsistencyPrecondition> getUnchangedPreconditions(Set<ConsistencyRule> rules, TagSet tags,
+			TagSet changed) {
+		List<ConsistencyPrecondition> preconditions = new ArrayList<>();
+		Set<Tag> covered = new HashSet<>(changed);
+		for (ConsistencyRule rule : rules) {
+			for (Tag tag : rule.getTags()) {
+				if (covered.add(tag)) {
+					Set<Tag> single = Collections.singleton(tag);
+					preconditions.add(tags.contains(tag) ? new ConsistencyPrecondition(rule, Collections.emptySet(), single)
+							: new ConsistencyPrecondition(rule, single, Collections.emptySet()));
+				}
+			}
+		}
+		return preconditions;
+	}
+
+	// Fixes are held to the same rules as any other change, like fix() through addTags().
+	private static boolean isAllowed(Set<ConsistencyRule> rules, TagSet tags, TagMutation fix) {
+		for (ConsistencyRule rule : rules) {
+			if (!rule.validateOperation(tags.asMask(), fix.getOperation(), fix.getTags().asMask())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
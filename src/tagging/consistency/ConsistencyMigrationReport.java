@@ -0,0 +1,125 @@
+package tagging.consistency;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregated outcome of a consistency migration. Each range of users is counted in its
+ * own report on one thread, and the reports are merged when the ranges are joined.
+ */
+final class ConsistencyMigrationReport {
+
+	private static final class RuleCounts {
+		long violations;
+		long fixesPlanned;
+		long fixesRejected;
+
+		void add(RuleCounts other) {
+			violations += other.violations;
+			fixesPlanned += other.fixesPlanned;
+			fixesRejected += other.fixesRejected;
+		}
+	}
+
+	private long usersChecked;
+	private long usersInconsistent;
+	private long usersFixed;
+	private long usersModified;
+	private long usersSkipped;
+	private int ranges = 1;
+	private boolean complete = true;
+	private final Map<String, RuleCounts> countsByRule = new TreeMap<>();
+
+	void recordUser(boolean consistent) {
+		usersChecked++;
+		if (!consistent) {
+			usersInconsistent++;
+		}
+	}
+
+	void recordViolation(ConsistencyRule rule) {
+		countsFor(rule).violations++;
+	}
+
+	void recordFixPlanned(ConsistencyRule rule) {
+		countsFor(rule).fixesPlanned++;
+	}
+
+	void recordFixRejected(ConsistencyRule rule) {
+		countsFor(rule).fixesRejected++;
+	}
+
+	void recordUserFixed() {
+		usersFixed++;
+	}
+
+	void recordUsersModified(int modified) {
+		usersModified += modified;
+	}
+
+	/**
+	 * Records users whose fixes were not written, because the user changed or is gone.
+	 */
+	void recordUsersSkipped(int skipped) {
+		usersSkipped += skipped;
+	}
+
+	void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+
+	long getUsersChecked() {
+		return usersChecked;
+	}
+
+	ConsistencyMigrationReport merge(ConsistencyMigrationReport other) {
+		usersChecked += other.usersChecked;
+		usersInconsistent += other.usersInconsistent;
+		usersFixed += other.usersFixed;
+		usersModified += other.usersModified;
+		usersSkipped += other.usersSkipped;
+		ranges += other.ranges;
+		for (Map.Entry<String, RuleCounts> entry : other.countsByRule.entrySet()) {
+			countsByRule.computeIfAbsent(entry.getKey(), key -> new RuleCounts()).add(entry.getValue());
+		}
+		return this;
+	}
+
+	/**
+	 * @return a human readable summary of the migration.
+	 */
+	String format(boolean live, long elapsedMillis) {
+		StringBuilder result = new StringBuilder();
+		result.append(String.format("Checked %d users in %d ranges in %.1f s (%.0f users/s).%n", usersChecked,
+				ranges, elapsedMillis / 1000.0, usersChecked * 1000.0 / Math.max(elapsedMillis, 1)));
+		result.append(String.format("Inconsistent users: %d.%n", usersInconsistent));
+		for (Map.Entry<String, RuleCounts> entry : countsByRule.entrySet()) {
+			RuleCounts counts = entry.getValue();
+			result.append(String.format("  %-40s %10d violations", entry.getKey(), counts.violations));
+			if (live) {
+				result.append(String.format(", %10d fixes planned, %10d fixes rejected", counts.fixesPlanned,
+						counts.fixesRejected));
+			}
+			result.append(String.format("%n"));
+		}
+		if (live) {
+			result.append(String.format("Fixed users: %d, with %d updates that modified a user.%n", usersFixed,
+					usersModified));
+			if (usersSkipped > 0) {
+				result.append(String.format("Not fixed, as they changed or failed during the migration: %d users.%n",
+						usersSkipped));
+			}
+		} else {
+			result.append(String.format("Validation only: nothing was written.%n"));
+		}
+		if (!complete) {
+			result.append(String.format("Stopped before the end. Run again with the same checkpoint to resume.%n"));
+		}
+		return result.toString();
+	}
+
+	private RuleCounts countsFor(ConsistencyRule rule) {
+		return countsByRule.computeIfAbsent(rule.getClass().getSimpleName() + " " + rule.getTags(),
+				key -> new RuleCounts());
+	}
+}
@@ -0,0 +1,66 @@
+package tagging.consistency;
+
+import java.util.Collections;
+import java.util.Set;
+
+import tagging.Tag;
+import tagging.TagMask;
+
+/**
+ * The condition an entity's existing tags must meet for an operation to keep a
+ * consistency rule satisfied, so that a store can check it atomically with the write.
+ *
+ * The operation is allowed iff the existing tags do not contain all of the forbidden
+ * tags, or they contain all of the exempting tags (the rule was already violated, and
+ * pre-existing violations are not blamed on the operation).
+ */
+public class ConsistencyPrecondition {
+
+	private final ConsistencyRule rule;
+	private final Set<Tag> forbiddenTags;
+	private final Set<Tag> exemptingTags;
+	private final long[] forbiddenMask;
+	private final long[] exemptingMask;
+
+	/**
+	 * @param forbiddenTags may be empty, in which case only the exempting tags allow the
+	 *                      operation.
+	 * @param exemptingTags may be empty, in which case nothing exempts the operation.
+	 */
+	public ConsistencyPrecondition(ConsistencyRule rule, Set<Tag> forbiddenTags, Set<Tag> exemptingTags) {
+		if (forbiddenTags.isEmpty() && exemptingTags.isEmpty()) {
+			throw new IllegalArgumentException("A precondition needs forbidden or exempting tags.");
+		}
+		this.rule = rule;
+		this.forbiddenTags = Collections.unmodifiableSet(forbiddenTags);
+		this.exemptingTags = Collections.unmodifiableSet(exemptingTags);
+		this.forbiddenMask = TagMask.of(forbiddenTags);
+		this.exemptingMask = TagMask.of(exemptingTags);
+	}
+
+	/**
+	 * @return the rule that this precondition protects.
+	 */
+	public ConsistencyRule getRule() {
+		return rule;
+	}
+
+	public Set<Tag> getForbiddenTags() {
+		return forbiddenTags;
+	}
+
+	public Set<Tag> getExemptingTags() {
+		return exemptingTags;
+	}
+
+	/**
+	 * @return true iff an entity with the existing tags may undergo the operation.
+	 */
+	public boolean test(Set<Tag> existingTags) {
+		long[] existingMask = TagMask.of(existingTags);
+		if (!forbiddenTags.isEmpty() && !TagMask.containsAll(existingMask, forbiddenMask)) {
+			return true;
+		}
+		return !exemptingTags.isEmpty() && TagMask.containsAll(existingMask, exemptingMask);
+	}
+}
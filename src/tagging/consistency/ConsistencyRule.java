@@ -4,21 +4,42 @@ import java.util.HashSet;
 import java.util.Set;
 
 import tagging.Tag;
+import tagging.TagMask;
+import tagging.TagMutation;
+import tagging.TagSet;
 import tagging.TaggableOperation;
 import tagging.Taggable;
 
+/**
+ * A consistency rule constrains which combinations of its tags may be present on a
+ * Taggable object.
+ * 
+ * The rule's tags are compiled into a {@link TagMask} when it is constructed, so that
+ * evaluating it against a tag mask is a handful of word operations.
+ */
 public abstract class ConsistencyRule {
 
 	Set<Tag> tags;
+	final long[] mask;
 	
-	// A consistency rule must operate on two or more tags.
+	// A consistency rule must operate on two or more tags. A rule missing one of them
+	// would constrain the others differently, so callers skip rules over tags that could
+	// not be resolved.
 	public ConsistencyRule(Tag tagA, Tag tagB, Tag... tags) {
 		this.tags = new HashSet<Tag>();
-		this.tags.add(tagA);
-		this.tags.add(tagB);
+		addTag(tagA);
+		addTag(tagB);
 		for (Tag tag : tags) {
-			this.tags.add(tag);
+			addTag(tag);
 		}
+		this.mask = TagMask.of(this.tags);
+	}
+
+	private void addTag(Tag tag) {
+		if (tag == null) {
+			throw new IllegalArgumentException("A consistency rule cannot have a null tag.");
+		}
+		this.tags.add(tag);
 	}
 
 	/**
@@ -37,31 +58,45 @@ public abstract class ConsistencyRule {
 	 * @return true iff the Taggable object is consistent for the operation.
 	 */
 	public boolean validateOperation(Set<Tag> existingTags, TaggableOperation operation, Set<Tag> tagsToAddOrRemove) {
+		return validateOperation(TagMask.of(existingTags), operation, TagMask.of(tagsToAddOrRemove));
+	}
+
+	/**
+	 * Validate that a Taggable object with the existing tag mask remains consistent for
+	 * the given operation. This does not allocate.
+	 * 
+	 * @return true iff the Taggable object is consistent for the operation.
+	 */
+	public boolean validateOperation(long[] existingTags, TaggableOperation operation, long[] tagsToAddOrRemove) {
 		if (operation == TaggableOperation.CREATE) {
-			return evaluateTags(tagsToAddOrRemove);
+			return evaluateCoverage(TagMask.containsAll(tagsToAddOrRemove, mask));
 		}
 		// If the rule was violated before the operation, then we should not blame this
 		// operation for the inconsistency.
-		if (!evaluateTags(existingTags)) {
+		if (!evaluateCoverage(TagMask.containsAll(existingTags, mask))) {
 			return true;
 		}
 
-		// Validate the changeset on a copy to avoid mutating the entity's tags.
-		Set<Tag> tagsCopy = new HashSet<>(existingTags);
-		switch (operation) {
-		case ADD_TAG:
-			tagsCopy.addAll(tagsToAddOrRemove);
-			break;
-		case REMOVE_TAG:
-			tagsCopy.removeAll(tagsToAddOrRemove);
-			break;
-		case CREATE:
-			throw new IllegalStateException("This is unreachable since the create operation is handled above.");
-		}
+		boolean hasAllTags = switch (operation) {
+		case ADD_TAG -> TagMask.containsAllAfterAdd(existingTags, tagsToAddOrRemove, mask);
+		case REMOVE_TAG -> TagMask.containsAllAfterRemove(existingTags, tagsToAddOrRemove, mask);
+		case CREATE -> throw new IllegalStateException(
+				"This is unreachable since the create operation is handled above.");
+		};
 
-		return evaluateTags(tagsCopy);
+		return evaluateCoverage(hasAllTags);
 	}
 
+	/**
+	 * Express {@link #validateOperation} for an ADD_TAG or REMOVE_TAG operation as a
+	 * condition on the existing tags, so that a store can check it in the same atomic
+	 * step as the write.
+	 * 
+	 * @return the precondition, or null if the operation can never violate this rule.
+	 */
+	public abstract ConsistencyPrecondition getPrecondition(TaggableOperation operation,
+			Set<Tag> tagsToAddOrRemove);
+
 	/**
 	 * Fix the Taggable object so that it becomes consistent.
 	 * 
@@ -72,12 +107,30 @@ public abstract class ConsistencyRule {
 	public abstract boolean fix(Taggable taggable)
 			throws ConsistencyFixerViolationException, ConsistencyRuleViolationException;
 
+	/**
+	 * Plan the change that {@link #fix(Taggable)} would make to an entity with the given
+	 * tags, without writing it, so that fixes for many entities can be batched.
+	 * 
+	 * @return the change, or null if the tags are consistent with this rule.
+	 */
+	public abstract TagMutation planFix(String entityID, TagSet existingTags);
+
 	/**
 	 * Evaluate the set of tags for consistency.
 	 * 
 	 * @return true iff the set of tags is consistent.
 	 */
-	protected abstract boolean evaluateTags(Set<Tag> tags);
+	protected boolean evaluateTags(Set<Tag> tags) {
+		return evaluateCoverage(TagMask.containsAll(TagMask.of(tags), mask));
+	}
+
+	/**
+	 * Decide consistency from whether all of this rule's tags are present.
+	 * 
+	 * @param hasAllTags true iff every tag of this rule is present.
+	 * @return true iff a Taggable object with this coverage is consistent.
+	 */
+	protected abstract boolean evaluateCoverage(boolean hasAllTags);
 
 	/**
 	 * @return a descriptive message to be shown when this consistency rule is
@@ -91,4 +144,11 @@ public abstract class ConsistencyRule {
 	public Set<Tag> getTags() {
 		return this.tags;
 	}
+
+	/**
+	 * @return the tag mask of the tags that this rule checks.
+	 */
+	public long[] getMask() {
+		return this.mask.clone();
+	}
 }
@@ -0,0 +1,212 @@
+package tagging.consistency;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The progress of a consistency migration: its ranges of user IDs, and for each range the
+ * last user whose fixes were written. It is saved to a file so that a restarted migration
+ * resumes where the previous one stopped.
+ *
+ * The file starts with a line that records the settings of the migration, as in
+ * "mode live rules all", and has one line per range after it: the first user ID of the
+ * range, the user ID to stop before, the last processed user ID (each "-" if unset), and
+ * "done" or "pending". A migration only resumes from a checkpoint saved with its own
+ * settings, since users passed in one mode or for one rule were not migrated in another.
+ */
+final class MigrationCheckpoint {
+
+	// Progress is saved at most this often, and whenever a range completes.
+	final static long SAVE_INTERVAL_MILLIS = 1000;
+
+	private final static String UNSET = "-";
+	private final static String DONE = "done";
+	private final static String PENDING = "pending";
+	private final static String MODE = "mode";
+
+	static final class Range {
+		private final String fromID;
+		private final String toID;
+		private String lastID;
+		private boolean done;
+
+		Range(String fromID, String toID, String lastID, boolean done) {
+			this.fromID = fromID;
+			this.toID = toID;
+			this.lastID = lastID;
+			this.done = done;
+		}
+
+		/**
+		 * @return the user ID to continue from, or null to start at the lowest.
+		 */
+		synchronized String getResumeID() {
+			return lastID != null ? lastID : fromID;
+		}
+
+		/**
+		 * @return the last user ID whose fixes were written, or null.
+		 */
+		synchronized String getLastID() {
+			return lastID;
+		}
+
+		String getToID() {
+			return toID;
+		}
+	}
+
+	private final Path file;
+	private final String settings;
+	private final List<Range> ranges;
+	private long lastSaveMillis;
+
+	private MigrationCheckpoint(Path file, String settings, List<Range> ranges) {
+		this.file = file;
+		this.settings = settings;
+		this.ranges = ranges;
+	}
+
+	/**
+	 * @param targetRuleClass the only rule class that is migrated, or null for all.
+	 * @return the settings line of a migration.
+	 */
+	static String formatSettings(boolean live, Class<?> targetRuleClass) {
+		return String.join(" ", MODE, live ? "live" : "validate", "rules",
+				targetRuleClass == null ? "all" : targetRuleClass.getSimpleName());
+	}
+
+	/**
+	 * @param file     where to save progress, or null to keep it in memory only.
+	 * @param settings the settings line of the migration, see {@link #formatSettings}.
+	 */
+	static MigrationCheckpoint create(Path file, String settings, List<String> splitPoints) {
+		List<Range> ranges = new ArrayList<>();
+		String fromID = null;
+		for (String splitPoint : splitPoints) {
+			ranges.add(new Range(fromID, splitPoint, null, false));
+			fromID = splitPoint;
+		}
+		ranges.add(new Range(fromID, null, null, false));
+		return new MigrationCheckpoint(file, settings, ranges);
+	}
+
+	/**
+	 * @param settings the settings line of the migration that resumes.
+	 * @return the saved checkpoint, or null if the file does not exist.
+	 * @throws IOException if the file is malformed, or was saved with other settings.
+	 */
+	static MigrationCheckpoint load(Path file, String settings) throws IOException {
+		if (file == null || !Files.exists(file)) {
+			return null;
+		}
+		String savedSettings = null;
+		List<Range> ranges = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.isBlank()) {
+				continue;
+			}
+			if (savedSettings == null) {
+				savedSettings = line.trim().replaceAll("\\s+", " ");
+				if (!savedSettings.startsWith(MODE + " ")) {
+					throw new IOException(String.format("The checkpoint %s does not record its settings.", file));
+				}
+				if (!savedSettings.equals(settings)) {
+					throw new IOException(String.format(
+							"The checkpoint %s was saved with \"%s\", not \"%s\". Run with the same options or delete it.",
+							file, savedSettings, settings));
+				}
+				continue;
+			}
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length != 4) {
+				throw new IOException(String.format("Malformed checkpoint line in %s: %s", file, line));
+			}
+			ranges.add(new Range(parseID(fields[0]), parseID(fields[1]), parseID(fields[2]), fields[3].equals(DONE)));
+		}
+		if (savedSettings == null) {
+			throw new IOException(String.format("The checkpoint %s is empty.", file));
+		}
+		return new MigrationCheckpoint(file, settings, ranges);
+	}
+
+	List<Range> getPendingRanges() {
+		return ranges.stream().filter(range -> !range.done).collect(Collectors.toList());
+	}
+
+	int getRangeCount() {
+		return ranges.size();
+	}
+
+	/**
+	 * Records that the fixes of every user up to and including lastID were written.
+	 */
+	void advance(Range range, String lastID) throws IOException {
+		synchronized (range) {
+			range.lastID = lastID;
+		}
+		synchronized (this) {
+			if (System.currentTimeMillis() - lastSaveMillis >= SAVE_INTERVAL_MILLIS) {
+				save();
+			}
+		}
+	}
+
+	void complete(Range range) throws IOException {
+		synchronized (range) {
+			range.done = true;
+		}
+		synchronized (this) {
+			save();
+		}
+	}
+
+	/**
+	 * Deletes the file once every range is done, so that the next run starts over.
+	 *
+	 * @return true iff every range is done.
+	 */
+	synchronized boolean finish() throws IOException {
+		if (!getPendingRanges().isEmpty()) {
+			save();
+			return false;
+		}
+		if (file != null) {
+			Files.deleteIfExists(file);
+		}
+		return true;
+	}
+
+	// Writes a temporary file first, so a crash never leaves a half written checkpoint.
+	private void save() throws IOException {
+		lastSaveMillis = System.currentTimeMillis();
+		if (file == null) {
+			return;
+		}
+		List<String> lines = new ArrayList<>();
+		lines.add(settings);
+		for (Range range : ranges) {
+			synchronized (range) {
+				lines.add(String.join(" ", formatID(range.fromID), formatID(range.toID), formatID(range.lastID),
+						range.done ? DONE : PENDING));
+			}
+		}
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temporary, lines, StandardCharsets.UTF_8);
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String parseID(String field) {
+		return field.equals(UNSET) ? null : field;
+	}
+
+	private static String formatID(String id) {
+		return id == null ? UNSET : id;
+	}
+}
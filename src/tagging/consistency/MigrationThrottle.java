@@ -0,0 +1,79 @@
+package tagging.consistency;
+
+/**
+ * Paces a consistency migration so that it can run next to the serving traffic.
+ *
+ * Users and writes are limited to target rates. The rates adapt to the database with
+ * additive increase and multiplicative decrease: whenever a batch of writes takes longer
+ * than the target latency both rates are halved, and otherwise they grow back towards
+ * the targets in small steps.
+ */
+final class MigrationThrottle {
+
+	final static double MIN_RATE_FACTOR = 0.05;
+	final static double RATE_FACTOR_STEP = 0.05;
+	final static double BACKOFF_FACTOR = 0.5;
+
+	// A batch of writes holds about this many seconds' worth of the write rate.
+	final static double WRITE_BATCH_SECONDS = 0.1;
+
+	private final double usersPerSecond;
+	private final double writesPerSecond;
+	private final long targetLatencyNanos;
+	private final TokenBucket userBucket;
+	private final TokenBucket writeBucket;
+	private double rateFactor = 1.0;
+
+	/**
+	 * @param usersPerSecond     the target rate of users checked, or 0 for no limit.
+	 * @param writesPerSecond    the target rate of user updates, or 0 for no limit.
+	 * @param targetLatencyMillis the latency of a batch of writes above which to back off.
+	 */
+	MigrationThrottle(double usersPerSecond, double writesPerSecond, long targetLatencyMillis) {
+		this.usersPerSecond = usersPerSecond;
+		this.writesPerSecond = writesPerSecond;
+		this.targetLatencyNanos = targetLatencyMillis * 1_000_000;
+		this.userBucket = new TokenBucket(usersPerSecond);
+		this.writeBucket = new TokenBucket(writesPerSecond);
+	}
+
+	static MigrationThrottle unlimited() {
+		return new MigrationThrottle(0, 0, Long.MAX_VALUE / 1_000_000);
+	}
+
+	void acquireUser() throws InterruptedException {
+		userBucket.acquire(1);
+	}
+
+	void acquireWrites(int writes) throws InterruptedException {
+		writeBucket.acquire(writes);
+	}
+
+	/**
+	 * @return how many writes to batch together at the current write rate.
+	 */
+	int getWriteBatchSize(int maxBatchSize) {
+		double rate = writeBucket.getRate();
+		if (rate <= 0) {
+			return maxBatchSize;
+		}
+		return (int) Math.max(1, Math.min(maxBatchSize, rate * WRITE_BATCH_SECONDS));
+	}
+
+	synchronized void recordWriteLatency(long latencyNanos) {
+		if (latencyNanos > targetLatencyNanos) {
+			rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor * BACKOFF_FACTOR);
+		} else {
+			rateFactor = Math.min(1.0, rateFactor + RATE_FACTOR_STEP);
+		}
+		userBucket.setRate(usersPerSecond * rateFactor);
+		writeBucket.setRate(writesPerSecond * rateFactor);
+	}
+
+	/**
+	 * @return the fraction of the target rates that the migration currently runs at.
+	 */
+	synchronized double getRateFactor() {
+		return rateFactor;
+	}
+}
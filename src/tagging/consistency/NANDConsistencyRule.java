@@ -4,7 +4,10 @@ import java.util.HashSet;
 import java.util.Set;
 
 import tagging.Tag;
+import tagging.TagMutation;
+import tagging.TagSet;
 import tagging.Taggable;
+import tagging.TaggableOperation;
 
 /**
  * Models the NAND logic for two or more tags:
@@ -32,8 +35,29 @@ public class NANDConsistencyRule extends ConsistencyRule {
 	}
 
 	@Override
-	protected boolean evaluateTags(Set<Tag> tags) {
-		return !tags.containsAll(this.tags);
+	public TagMutation planFix(String entityID, TagSet existingTags) {
+		if (this.evaluateTags(existingTags)) {
+			return null;
+		}
+		// Removes the same tag as fix().
+		return new TagMutation(entityID, TaggableOperation.REMOVE_TAG, TagSet.of(this.tags.iterator().next()));
+	}
+
+	@Override
+	public ConsistencyPrecondition getPrecondition(TaggableOperation operation, Set<Tag> tagsToAddOrRemove) {
+		if (operation != TaggableOperation.ADD_TAG) {
+			// Removing tags can never complete the forbidden combination.
+			return null;
+		}
+		// Adding completes the combination iff the user already has the rest of it.
+		Set<Tag> remainingTags = new HashSet<>(this.tags);
+		remainingTags.removeAll(tagsToAddOrRemove);
+		return new ConsistencyPrecondition(this, remainingTags, this.tags);
+	}
+
+	@Override
+	protected boolean evaluateCoverage(boolean hasAllTags) {
+		return !hasAllTags;
 	}
 
 	@Override
@@ -0,0 +1,58 @@
+package tagging.consistency;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter shared by several threads.
+ *
+ * Permits beyond the available tokens are borrowed, and the caller sleeps until the debt
+ * is paid back, so callers are paced at the rate in the order that they asked. At most a
+ * tenth of a second of unused tokens is saved up, which bounds the size of a burst.
+ */
+final class TokenBucket {
+
+	private double rate;
+	private double tokens;
+	private long lastRefillNanos = System.nanoTime();
+
+	/**
+	 * @param permitsPerSecond the rate, or 0 for no limit.
+	 */
+	TokenBucket(double permitsPerSecond) {
+		this.rate = permitsPerSecond;
+	}
+
+	/**
+	 * Blocks until the permits may be used.
+	 */
+	void acquire(int permits) throws InterruptedException {
+		long waitNanos;
+		synchronized (this) {
+			if (rate <= 0) {
+				return;
+			}
+			refill();
+			tokens -= permits;
+			waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	synchronized void setRate(double permitsPerSecond) {
+		refill();
+		this.rate = permitsPerSecond;
+	}
+
+	synchronized double getRate() {
+		return rate;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		double capacity = Math.max(1, rate / 10);
+		tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+		lastRefillNanos = now;
+	}
+}
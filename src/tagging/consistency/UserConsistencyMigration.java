@@ -1,19 +1,22 @@
 package tagging.consistency;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Set;
 
 import org.apache.commons.cli.*;
 
-import tagging.User;
-import tagging.UserTagDatabase;
+import tagging.UserTagStore;
 
 /**
  * This is a command line script to run a consistency migration on the User database.
  * By default it runs in dry mode (validation only) unless the live (-l) option is added, 
  * in which case it will also run the rule's fixer.
  * 
+ * Users are streamed in ranges of IDs that are migrated in parallel, and the outcome is
+ * printed as one aggregated report.
+ * 
  * Run with help (-h) option for more detailed usage information.
  * 
  * @author amerhesson
@@ -21,12 +24,19 @@ import tagging.UserTagDatabase;
  */
 final class UserConsistencyMigration {
 
+	final static long DEFAULT_TARGET_LATENCY_MILLIS = 100;
+
 	private static Options generateOptions() {
 		Options options = new Options();
 		options.addOption("r", "rule", true, "Consistency rule class name to validate, e.g 'NANDConsistencyRule'. If unspecified, all rules will be validated.")
 				.addOption("l", "do-it-live", false,
 						"Run the consistency migration live on production data. If unspecified, the migration will run in 'validation-only mode'.")
 				.addOption("m", true, "Max number of entities to process. If unspecified, all entities will be processed.")
+				.addOption("p", true, "Number of user ID ranges to migrate in parallel. Defaults to the number of processors.")
+				.addOption("u", "users-per-second", true, "Target number of users to check per second. If unspecified, users are not rate limited.")
+				.addOption("w", "writes-per-second", true, "Target number of user updates per second in live mode. If unspecified, writes are not rate limited.")
+				.addOption("L", "target-latency", true, "Write batch latency in milliseconds above which the rates are backed off. Defaults to " + DEFAULT_TARGET_LATENCY_MILLIS + ".")
+				.addOption("c", "checkpoint", true, "File to save progress to. If it exists, the migration resumes from it.")
 				.addOption("h", false, "Print usage information.");
 		return options;
 	}
@@ -48,8 +58,7 @@ final class UserConsistencyMigration {
 		formatter.printHelp(UserConsistencyMigration.class.getSimpleName(), options);
 	}
 
-	public static void main(String[] args)
-			throws ClassNotFoundException, ConsistencyFixerViolationException, ConsistencyRuleViolationException {
+	public static void main(String[] args) throws ClassNotFoundException, IOException {
 		Options options = generateOptions();
 		CommandLine commandLine = generateCommandLine(options, args);
 		if (commandLine.hasOption('h')) {
@@ -68,43 +77,49 @@ final class UserConsistencyMigration {
 			targetRuleClass = Class.forName(ConsistencyRule.class.getPackageName() + "." + targetRuleClassName);
 		}
 
-		UserTagDatabase udb = new UserTagDatabase();
-		List<User> allUsers = udb.getAllUsers();
-		udb.close();
-
-		System.out.println(String.format("Checking %d users.", allUsers.size()));
-		int i = 0;
-		for (User user : allUsers) {
-			if (maxNumberToProcess != null && i >= maxNumberToProcess) {
-				break;
-			}
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		if (commandLine.hasOption('p')) {
+			parallelism = Integer.parseInt(commandLine.getOptionValue('p'));
+		}
 
-			Set<ConsistencyRule> consistencyRules = user.getConsistencyRules();
-			for (ConsistencyRule rule : consistencyRules) {
-				if (targetRuleClass == null || targetRuleClass == rule.getClass()) {
-					boolean evaluation = rule.evaluate(user);
-					System.out.println(String.format(
-							"Validating user %-10s (ID: %-24s) with tags %-15s for rule %-10s %-10s: %6s.",
-							user.getName(), user.getID(), user.getTags(), rule.getClass().getSimpleName(),
-							rule.getTags(), evaluation ? "OK" : "INVALID"));
-					if (!evaluation && doItLive) {
-						System.out.println("Attempting to fix...");
-						rule.fix(user);
-						boolean afterFixEvaluation = rule.evaluate(user);
-						if (afterFixEvaluation) {
-							System.out.println("OK.");
-						}
-						assert afterFixEvaluation : "Fixer failed to make entity consistent.";
-					}
-				} else if (targetRuleClass != null) {
-					System.out.println(String.format(
-							"User %-10s (ID: %-24s) has rule %s which is not targeted. Skipped.",
-							user.getName(), user.getID(), rule.getClass().getSimpleName()));
-				}
-			}
+		double usersPerSecond = 0;
+		double writesPerSecond = 0;
+		long targetLatencyMillis = DEFAULT_TARGET_LATENCY_MILLIS;
+		if (commandLine.hasOption('u')) {
+			usersPerSecond = Double.parseDouble(commandLine.getOptionValue('u'));
+		}
+		if (commandLine.hasOption('w')) {
+			writesPerSecond = Double.parseDouble(commandLine.getOptionValue('w'));
+		}
+		if (commandLine.hasOption('L')) {
+			targetLatencyMillis = Long.parseLong(commandLine.getOptionValue('L'));
+		}
+		MigrationThrottle throttle = new MigrationThrottle(usersPerSecond, writesPerSecond, targetLatencyMillis);
+		Path checkpointFile = commandLine.hasOption('c') ? Paths.get(commandLine.getOptionValue('c')) : null;
 
-			i++;
+		ConsistencyMigration migration = new ConsistencyMigration(UserTagStore.getInstance(), targetRuleClass,
+				doItLive, parallelism, maxNumberToProcess == null ? null : maxNumberToProcess.longValue(), throttle,
+				checkpointFile);
+		boolean resuming;
+		try {
+			resuming = migration.prepare();
+		} catch (IOException e) {
+			System.out.println(String.format("[Error] %s", e.getMessage()));
+			UserTagStore.shutdown();
+			return;
+		}
+		if (resuming) {
+			MigrationCheckpoint checkpoint = migration.getCheckpoint();
+			System.out.println(String.format("Resuming %d of %d ranges from %s.",
+					checkpoint.getPendingRanges().size(), checkpoint.getRangeCount(), checkpointFile));
+		}
+		long start = System.currentTimeMillis();
+		ConsistencyMigrationReport report = migration.run();
+		System.out.print(report.format(doItLive, System.currentTimeMillis() - start));
+		if (usersPerSecond > 0 || writesPerSecond > 0) {
+			System.out.println(String.format("Finished at %.0f%% of the target rates.", throttle.getRateFactor() * 100));
 		}
 
+		UserTagStore.shutdown();
 	}
 }
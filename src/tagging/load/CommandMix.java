@@ -0,0 +1,92 @@
+package tagging.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The relative weights of the commands of a load test, such as
+ * "show=70,add=12,remove=12,create=6".
+ */
+public final class CommandMix {
+
+	public final static String DEFAULT_MIX = "show=70,add=12,remove=12,create=6";
+
+	private final Map<LoadCommand, Integer> weights;
+	private final LoadCommand[] commands;
+	private final int[] cumulativeWeights;
+
+	private CommandMix(Map<LoadCommand, Integer> weights) {
+		this.weights = weights;
+		this.commands = weights.keySet().toArray(new LoadCommand[0]);
+		this.cumulativeWeights = new int[commands.length];
+		int total = 0;
+		for (int i = 0; i < commands.length; i++) {
+			total += weights.get(commands[i]);
+			cumulativeWeights[i] = total;
+		}
+	}
+
+	/**
+	 * Parses comma-separated "command=weight" pairs. Commands left out are not sent.
+	 *
+	 * @throws IllegalArgumentException if the mix is malformed or has no positive weight.
+	 */
+	public static CommandMix parse(String mix) {
+		Map<LoadCommand, Integer> weights = new EnumMap<>(LoadCommand.class);
+		for (String pair : mix.split(",")) {
+			String[] parts = pair.trim().split("=");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException(String.format("Expected \"command=weight\" but got \"%s\".", pair));
+			}
+			LoadCommand command = null;
+			for (LoadCommand candidate : LoadCommand.values()) {
+				if (candidate.getMixName().equalsIgnoreCase(parts[0].trim())) {
+					command = candidate;
+				}
+			}
+			if (command == null) {
+				throw new IllegalArgumentException(String.format("Unexpected command \"%s\".", parts[0].trim()));
+			}
+			int weight;
+			try {
+				weight = Integer.parseInt(parts[1].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Unexpected weight \"%s\".", parts[1].trim()));
+			}
+			if (weight < 0) {
+				throw new IllegalArgumentException(String.format("Negative weight for \"%s\".", parts[0].trim()));
+			}
+			if (weight > 0) {
+				weights.put(command, weight);
+			}
+		}
+		if (weights.isEmpty()) {
+			throw new IllegalArgumentException("The command mix has no positive weight.");
+		}
+		return new CommandMix(weights);
+	}
+
+	/**
+	 * @return a command, picked with the probability of its weight.
+	 */
+	public LoadCommand next(Random random) {
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < commands.length; i++) {
+			if (pick < cumulativeWeights[i]) {
+				return commands[i];
+			}
+		}
+		throw new IllegalStateException("The pick is below the total weight.");
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder mix = new StringBuilder();
+		for (Map.Entry<LoadCommand, Integer> weight : weights.entrySet()) {
+			mix.append(mix.length() == 0 ? "" : ",").append(weight.getKey().getMixName()).append('=')
+					.append(weight.getValue());
+		}
+		return mix.toString();
+	}
+}
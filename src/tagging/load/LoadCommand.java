@@ -0,0 +1,31 @@
+package tagging.load;
+
+/**
+ * The commands a load test sends, each against a random user of the seeded population.
+ */
+public enum LoadCommand {
+	CREATE_USER("create", "create user"),
+	ADD_TAGS("add", "add tags"),
+	REMOVE_TAGS("remove", "remove tags"),
+	SHOW_USER("show", "show user");
+
+	private final String mixName;
+	private final String displayName;
+
+	LoadCommand(String mixName, String displayName) {
+		this.mixName = mixName;
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @return the name of the command in a {@link CommandMix}.
+	 */
+	public String getMixName() {
+		return mixName;
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
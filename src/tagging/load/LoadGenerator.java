@@ -0,0 +1,240 @@
+package tagging.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import tagging.UserTaggingSystemClient;
+
+/**
+ * Drives a server over many connections with a mix of commands against a seeded user
+ * population, and measures the latency of every command.
+ *
+ * In a closed loop every connection sends its next command once the previous one is
+ * answered, so the load adapts to the server. In an open loop commands are due at a fixed
+ * rate whatever the server does, spread evenly over the connections, and each latency
+ * counts from the time the command was due. A connection waiting for a slow response thus
+ * records the delay of every command that was due meanwhile, rather than omitting them.
+ */
+public final class LoadGenerator {
+
+	// Matches the user ID in the response to "create user" and "create users".
+	private final static Pattern CREATED_USER_ID = Pattern.compile("with ID: ([0-9a-f]{24})");
+	private final static String SUCCESS_PREFIX = "[Success]";
+	// Keeps the response to a batch within the 64KB a protocol version 1 response can hold.
+	private final static int SEED_BATCH_USERS = 500;
+
+	private final String address;
+	private final int port;
+	private final int protocolVersion;
+	private final int connections;
+	private final CommandMix mix;
+	private final List<String> tagNames;
+
+	/**
+	 * @param tagNames the existing tags the commands add and remove.
+	 */
+	public LoadGenerator(String address, int port, int protocolVersion, int connections, CommandMix mix,
+			List<String> tagNames) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("A load test needs at least one connection.");
+		}
+		if (tagNames.isEmpty()) {
+			throw new IllegalArgumentException("A load test needs at least one tag.");
+		}
+		this.address = address;
+		this.port = port;
+		this.protocolVersion = protocolVersion;
+		this.connections = connections;
+		this.mix = mix;
+		this.tagNames = tagNames;
+	}
+
+	/**
+	 * Creates the users the commands of the load test run against, each with one tag.
+	 *
+	 * @return the IDs of the users.
+	 * @throws IOException if the server fails to create a user.
+	 */
+	public List<String> seedUsers(int count) throws IOException {
+		List<String> userIDs = new ArrayList<>(count);
+		Random random = new Random(count);
+		UserTaggingSystemClient client = new UserTaggingSystemClient(address, port, protocolVersion);
+		try {
+			while (userIDs.size() < count) {
+				StringBuilder command = new StringBuilder("create users");
+				int batch = Math.min(SEED_BATCH_USERS, count - userIDs.size());
+				for (int i = 0; i < batch; i++) {
+					command.append('\n').append("seed").append(userIDs.size() + i).append(' ')
+							.append(tagNames.get(random.nextInt(tagNames.size())));
+				}
+				String response = client.request(command.toString());
+				int created = 0;
+				for (String line : response.split("\n")) {
+					Matcher matcher = CREATED_USER_ID.matcher(line);
+					if (!line.startsWith(SUCCESS_PREFIX) || !matcher.find()) {
+						throw new IOException(String.format("Failed to seed a user: \"%s\".", line));
+					}
+					userIDs.add(matcher.group(1));
+					created++;
+				}
+				if (created != batch) {
+					throw new IOException(String.format("Seeded %d of %d users.", created, batch));
+				}
+			}
+		} finally {
+			client.close();
+		}
+		return userIDs;
+	}
+
+	/**
+	 * Runs the load test. Commands due during the warmup are sent but not measured.
+	 *
+	 * @param requestsPerSecond the rate of an open loop over all connections, or 0 for a
+	 *                          closed loop.
+	 * @throws IOException if a connection cannot be opened.
+	 */
+	public LoadReport run(List<String> userIDs, double requestsPerSecond, long warmupSeconds, long durationSeconds)
+			throws IOException, InterruptedException {
+		if (userIDs.isEmpty()) {
+			throw new IllegalArgumentException("A load test needs at least one seeded user.");
+		}
+		List<UserTaggingSystemClient> clients = new ArrayList<>(connections);
+		try {
+			for (int i = 0; i < connections; i++) {
+				clients.add(new UserTaggingSystemClient(address, port, protocolVersion));
+			}
+			// Give every connection time to get ready before the first command is due.
+			long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+			long measureNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+			long endNanos = measureNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+			List<LoadReport> reports = new ArrayList<>(connections);
+			CountDownLatch done = new CountDownLatch(connections);
+			for (int i = 0; i < connections; i++) {
+				LoadReport report = new LoadReport();
+				reports.add(report);
+				Connection connection = new Connection(i, clients.get(i), userIDs, report, measureNanos, endNanos);
+				if (requestsPerSecond > 0) {
+					// Connection i sends the commands due at i, i + connections, and so on.
+					double intervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+					connection.schedule(startNanos + (long) (i * intervalNanos), (long) (connections * intervalNanos));
+				} else {
+					connection.schedule(startNanos, 0);
+				}
+				Thread thread = new Thread(() -> {
+					try {
+						connection.run();
+					} finally {
+						done.countDown();
+					}
+				}, "tagging-load-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			done.await();
+
+			LoadReport total = new LoadReport();
+			for (LoadReport report : reports) {
+				total.add(report);
+			}
+			String description = requestsPerSecond > 0
+					? String.format("Open loop at %.1f requests/s over %d connections for %d s", requestsPerSecond,
+							connections, durationSeconds)
+					: String.format("Closed loop over %d connections for %d s", connections, durationSeconds);
+			total.setMeasurement(String.format("%s, mix %s", description, mix), requestsPerSecond > 0,
+					endNanos - measureNanos);
+			return total;
+		} finally {
+			for (UserTaggingSystemClient client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	// Sends the commands of one connection, on its own thread.
+	private final class Connection implements Runnable {
+		private final int index;
+		private final UserTaggingSystemClient client;
+		private final List<String> userIDs;
+		private final LoadReport report;
+		private final long measureNanos;
+		private final long endNanos;
+		private long dueNanos;
+		private long intervalNanos;
+		private int createdUsers;
+
+		Connection(int index, UserTaggingSystemClient client, List<String> userIDs, LoadReport report,
+				long measureNanos, long endNanos) {
+			this.index = index;
+			this.client = client;
+			this.userIDs = userIDs;
+			this.report = report;
+			this.measureNanos = measureNanos;
+			this.endNanos = endNanos;
+		}
+
+		/**
+		 * @param intervalNanos the time between two due commands, or 0 to send each command
+		 *                      once the previous one is answered.
+		 */
+		void schedule(long firstDueNanos, long intervalNanos) {
+			this.dueNanos = firstDueNanos;
+			this.intervalNanos = intervalNanos;
+		}
+
+		@Override
+		public void run() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long now;
+			while ((now = System.nanoTime()) < dueNanos) {
+				LockSupport.parkNanos(dueNanos - now);
+			}
+			while (dueNanos < endNanos) {
+				LoadCommand command = mix.next(random);
+				String line = format(command, random);
+				long sentNanos = System.nanoTime();
+				String response;
+				try {
+					response = client.request(line);
+				} catch (IOException e) {
+					report.recordFailedConnection();
+					return;
+				}
+				long answeredNanos = System.nanoTime();
+				if (dueNanos >= measureNanos) {
+					long serviceTimeNanos = answeredNanos - sentNanos;
+					report.record(command, intervalNanos == 0 ? serviceTimeNanos : answeredNanos - dueNanos,
+							serviceTimeNanos, response.startsWith(SUCCESS_PREFIX));
+				}
+				if (intervalNanos == 0) {
+					dueNanos = answeredNanos;
+					continue;
+				}
+				// A late connection sends the commands it fell behind on right away.
+				dueNanos += intervalNanos;
+				while ((now = System.nanoTime()) < dueNanos && dueNanos < endNanos) {
+					LockSupport.parkNanos(dueNanos - now);
+				}
+			}
+		}
+
+		private String format(LoadCommand command, Random random) {
+			String userID = userIDs.get(random.nextInt(userIDs.size()));
+			String tagName = tagNames.get(random.nextInt(tagNames.size()));
+			return switch (command) {
+			case CREATE_USER -> String.format("create user load%d-%d %s", index, createdUsers++, tagName);
+			case ADD_TAGS -> String.format("add tags %s %s", tagName, userID);
+			case REMOVE_TAGS -> String.format("remove tags %s %s", tagName, userID);
+			case SHOW_USER -> String.format("show user %s", userID);
+			};
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package tagging.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * The latencies a load test measured, per command.
+ *
+ * Latency is measured from the time a command was meant to be sent, and service time from
+ * the time it was actually sent. In a closed loop the two are the same. In an open loop a
+ * connection that falls behind its schedule sends late, and only the latency counts the
+ * time its commands spent waiting for the slow one before them: service time alone would
+ * hide a stall behind the few commands that were sent during it.
+ */
+public final class LoadReport {
+
+	// Three significant digits, so a p99.9 of 1.234 ms is told apart from 1.235 ms.
+	private final static int SIGNIFICANT_DIGITS = 3;
+
+	private final Map<LoadCommand, Histogram> latencies = new EnumMap<>(LoadCommand.class);
+	private final Map<LoadCommand, Histogram> serviceTimes = new EnumMap<>(LoadCommand.class);
+	private final Map<LoadCommand, Long> unsuccessful = new EnumMap<>(LoadCommand.class);
+	private long failedConnections;
+	private long measuredNanos;
+	private String description = "";
+	private boolean openLoop;
+
+	LoadReport() {
+		for (LoadCommand command : LoadCommand.values()) {
+			latencies.put(command, new Histogram(SIGNIFICANT_DIGITS));
+			serviceTimes.put(command, new Histogram(SIGNIFICANT_DIGITS));
+			unsuccessful.put(command, 0L);
+		}
+	}
+
+	/**
+	 * @param successful whether the server answered with a success.
+	 */
+	void record(LoadCommand command, long latencyNanos, long serviceTimeNanos, boolean successful) {
+		latencies.get(command).recordValue(latencyNanos);
+		serviceTimes.get(command).recordValue(serviceTimeNanos);
+		if (!successful) {
+			unsuccessful.merge(command, 1L, Long::sum);
+		}
+	}
+
+	void recordFailedConnection() {
+		failedConnections++;
+	}
+
+	void add(LoadReport other) {
+		for (LoadCommand command : LoadCommand.values()) {
+			latencies.get(command).add(other.latencies.get(command));
+			serviceTimes.get(command).add(other.serviceTimes.get(command));
+			unsuccessful.merge(command, other.unsuccessful.get(command), Long::sum);
+		}
+		failedConnections += other.failedConnections;
+	}
+
+	void setMeasurement(String description, boolean openLoop, long measuredNanos) {
+		this.description = description;
+		this.openLoop = openLoop;
+		this.measuredNanos = measuredNanos;
+	}
+
+	/**
+	 * @return the latency histogram of a command, in nanoseconds.
+	 */
+	public Histogram getLatencies(LoadCommand command) {
+		return latencies.get(command);
+	}
+
+	/**
+	 * @return the service time histogram of a command, in nanoseconds.
+	 */
+	public Histogram getServiceTimes(LoadCommand command) {
+		return serviceTimes.get(command);
+	}
+
+	public long getUnsuccessful(LoadCommand command) {
+		return unsuccessful.get(command);
+	}
+
+	/**
+	 * @return the number of connections that failed during the test.
+	 */
+	public long getFailedConnections() {
+		return failedConnections;
+	}
+
+	public long getTotalCount() {
+		long count = 0;
+		for (Histogram histogram : latencies.values()) {
+			count += histogram.getTotalCount();
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		double seconds = measuredNanos / (double) TimeUnit.SECONDS.toNanos(1);
+		report.append(String.format("%s: %d requests, %.1f requests/s", description, getTotalCount(),
+				seconds > 0 ? getTotalCount() / seconds : 0));
+		if (failedConnections > 0) {
+			report.append(String.format(", %d connections failed", failedConnections));
+		}
+		if (!openLoop) {
+			report.append(".\nLatency in ms:\n");
+			appendTable(report, latencies);
+			return report.toString();
+		}
+		report.append(".\nLatency from the intended send time, in ms:\n");
+		appendTable(report, latencies);
+		report.append("Service time from the actual send time, in ms:\n");
+		appendTable(report, serviceTimes);
+		return report.toString();
+	}
+
+	private void appendTable(StringBuilder report, Map<LoadCommand, Histogram> histograms) {
+		report.append(String.format("%-12s %10s %12s %10s %10s %10s %10s\n", "Command", "Count", "Unsuccessful", "p50",
+				"p99", "p99.9", "Max"));
+		Histogram all = new Histogram(SIGNIFICANT_DIGITS);
+		long allUnsuccessful = 0;
+		for (LoadCommand command : LoadCommand.values()) {
+			Histogram histogram = histograms.get(command);
+			if (histogram.getTotalCount() > 0) {
+				appendRow(report, command.toString(), histogram, unsuccessful.get(command));
+				all.add(histogram);
+				allUnsuccessful += unsuccessful.get(command);
+			}
+		}
+		appendRow(report, "all", all, allUnsuccessful);
+	}
+
+	private static void appendRow(StringBuilder report, String name, Histogram histogram, long unsuccessful) {
+		report.append(String.format("%-12s %10d %12d %10.3f %10.3f %10.3f %10.3f\n", name, histogram.getTotalCount(),
+				unsuccessful, toMillis(histogram.getValueAtPercentile(50)), toMillis(histogram.getValueAtPercentile(99)),
+				toMillis(histogram.getValueAtPercentile(99.9)), toMillis(histogram.getMaxValue())));
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1 @@
+package tagging.load;
\ No newline at end of file
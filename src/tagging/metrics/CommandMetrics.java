@@ -0,0 +1,51 @@
+package tagging.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The calls and latencies of a command, and the database round trips and consistency rule
+ * evaluations they caused. Calls that ran asynchronously, across threads, only count with
+ * their latency, so the round trips are averaged over the other calls.
+ */
+public final class CommandMetrics extends LatencyMetrics implements CommandMetricsMXBean {
+
+	private final LongAdder roundTrips = new LongAdder();
+	private final LongAdder ruleEvaluations = new LongAdder();
+	private final LongAdder mutations = new LongAdder();
+	// The calls whose round trips were counted.
+	private final LongAdder attributedCalls = new LongAdder();
+
+	CommandMetrics(String name) {
+		super(name);
+	}
+
+	void record(long nanos, boolean failed, long roundTrips, long ruleEvaluations, long mutations) {
+		record(nanos, failed);
+		attributedCalls.increment();
+		if (roundTrips > 0) {
+			this.roundTrips.add(roundTrips);
+		}
+		if (mutations > 0) {
+			this.ruleEvaluations.add(ruleEvaluations);
+			this.mutations.add(mutations);
+		}
+	}
+
+	@Override
+	public double getRoundTripsPerCommand() {
+		long count = attributedCalls.sum();
+		return count == 0 ? 0 : (double) roundTrips.sum() / count;
+	}
+
+	@Override
+	public double getRuleEvaluationsPerMutation() {
+		long count = mutations.sum();
+		return count == 0 ? 0 : (double) ruleEvaluations.sum() / count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s | Round trips: %.2f per command | Rule evaluations: %.2f per mutation",
+				super.toString(), getRoundTripsPerCommand(), getRuleEvaluationsPerMutation());
+	}
+}
@@ -0,0 +1,18 @@
+package tagging.metrics;
+
+/**
+ * The calls and latencies of a command, and the work done on their behalf, as seen over
+ * JMX.
+ */
+public interface CommandMetricsMXBean extends LatencyMetricsMXBean {
+
+	/**
+	 * @return the mean number of database round trips of a command.
+	 */
+	public double getRoundTripsPerCommand();
+
+	/**
+	 * @return the mean number of consistency rules evaluated for a mutation of one user.
+	 */
+	public double getRuleEvaluationsPerMutation();
+}
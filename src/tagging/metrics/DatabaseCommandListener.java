@@ -0,0 +1,35 @@
+package tagging.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Counts every command the MongoDB driver sends as one database round trip and records
+ * its latency in {@link ServerMetrics}.
+ *
+ * The synchronous driver raises these events on the thread sending the command, so the
+ * round trips are attributed to the command of the server running on that thread.
+ */
+public final class DatabaseCommandListener implements CommandListener {
+
+	private final ServerMetrics metrics = ServerMetrics.getInstance();
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		metrics.recordRoundTrip();
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		metrics.recordDatabaseCommand(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), false);
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		metrics.recordDatabaseCommand(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), true);
+	}
+}
@@ -0,0 +1,101 @@
+package tagging.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Counts the calls of an operation and records their latencies.
+ *
+ * Latencies go into an HdrHistogram {@link Recorder}, whose recording is wait-free, so
+ * that callers never contend with each other or with a reader. A reader swaps out the
+ * values recorded since the last read and adds them to a cumulative histogram.
+ */
+public class LatencyMetrics implements LatencyMetricsMXBean {
+
+	// Latencies are recorded in microseconds, with two significant digits, up to an hour.
+	private final static long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+	private final static int SIGNIFICANT_DIGITS = 2;
+
+	private final String name;
+	private final Recorder recorder = new Recorder(HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+	private final Histogram cumulative = new Histogram(HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+	private final LongAdder errors = new LongAdder();
+	private Histogram interval;
+
+	LatencyMetrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param failed whether the operation failed.
+	 */
+	public void record(long nanos, boolean failed) {
+		recorder.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_MICROS));
+		if (failed) {
+			errors.increment();
+		}
+	}
+
+	@Override
+	public long getCount() {
+		return snapshot().getTotalCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		return snapshot().getMean();
+	}
+
+	@Override
+	public long get50thPercentileMicros() {
+		return snapshot().getValueAtPercentile(50);
+	}
+
+	@Override
+	public long get99thPercentileMicros() {
+		return snapshot().getValueAtPercentile(99);
+	}
+
+	@Override
+	public long get999thPercentileMicros() {
+		return snapshot().getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return snapshot().getMaxValue();
+	}
+
+	/**
+	 * @return a copy of the latencies recorded so far, in microseconds.
+	 */
+	public Histogram getHistogram() {
+		return snapshot().copy();
+	}
+
+	private synchronized Histogram snapshot() {
+		interval = recorder.getIntervalHistogram(interval);
+		cumulative.add(interval);
+		return cumulative;
+	}
+
+	@Override
+	public synchronized String toString() {
+		Histogram histogram = snapshot();
+		return String.format("Count: %d | Errors: %d | Latency: mean %.0fus, p50 %dus, p99 %dus, p99.9 %dus, max %dus",
+				histogram.getTotalCount(), errors.sum(), histogram.getMean(), histogram.getValueAtPercentile(50),
+				histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+	}
+}
@@ -0,0 +1,24 @@
+package tagging.metrics;
+
+/**
+ * The calls and latencies of an operation, as seen over JMX.
+ */
+public interface LatencyMetricsMXBean {
+
+	public long getCount();
+
+	/**
+	 * @return the number of calls that failed.
+	 */
+	public long getErrors();
+
+	public double getMeanMicros();
+
+	public long get50thPercentileMicros();
+
+	public long get99thPercentileMicros();
+
+	public long get999thPercentileMicros();
+
+	public long getMaxMicros();
+}
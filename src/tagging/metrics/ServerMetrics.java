@@ -0,0 +1,323 @@
+package tagging.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The process-wide metrics of the server: the calls and latencies of every command and of
+ * every database command, and the connections of clients.
+ *
+ * A command runs on one thread from {@link #startCommand()} to
+ * {@link #finishCommand(String, long, boolean)}, and the database round trips and rule
+ * evaluations in between are counted in plain fields of that thread and attributed to the
+ * command when it finishes. A command that continues on other threads once it has been
+ * started is recorded by {@link #finishAsyncCommand(String, long, boolean)} instead, with
+ * its latency only, while work that a command hands to another thread and waits for is
+ * attributed to it by {@link #addCommandCounters(CommandCounters)}. The metrics of the
+ * user cache and the user shards, if the store has them, are handed in by
+ * {@link #setUserCacheMetrics(UserCacheMetrics)} and {@link #setShardMetrics(ShardMetrics)}.
+ * Recording thus never contends between threads, so the metrics can stay on in
+ * production. They are served by the "stats" command and, once {@link #registerMBeans()}
+ * is called, as MXBeans in the "tagging" JMX domain.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+	final static String JMX_DOMAIN = "tagging";
+
+	// The name under which commands that are not recognized are counted.
+	public final static String INVALID_COMMAND = "invalid";
+
+	private final static ServerMetrics instance = new ServerMetrics();
+
+	/**
+	 * What the command running on a thread has caused so far.
+	 */
+	public static final class CommandCounters {
+		long roundTrips;
+		long ruleEvaluations;
+		long mutations;
+
+		private CommandCounters() {
+		}
+	}
+
+	private final ThreadLocal<CommandCounters> commandCounters = ThreadLocal.withInitial(CommandCounters::new);
+	private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LatencyMetrics> databaseCommands = new ConcurrentHashMap<>();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder roundTrips = new LongAdder();
+	private volatile UserCacheMetrics userCache;
+	private volatile ShardMetrics shards;
+	private volatile MBeanServer mbeanServer;
+
+	private ServerMetrics() {
+	}
+
+	public static ServerMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts attributing round trips and rule evaluations on this thread to a new command.
+	 */
+	public void startCommand() {
+		CommandCounters counters = commandCounters.get();
+		counters.roundTrips = 0;
+		counters.ruleEvaluations = 0;
+		counters.mutations = 0;
+	}
+
+	/**
+	 * Records a command that ran on this thread since {@link #startCommand()}.
+	 *
+	 * @param command the name of the command, in any case.
+	 * @param failed  whether the command was rejected.
+	 */
+	public void finishCommand(String command, long nanos, boolean failed) {
+		CommandCounters counters = commandCounters.get();
+		getCommandMetrics(command).record(nanos, failed, counters.roundTrips, counters.ruleEvaluations,
+				counters.mutations);
+	}
+
+	/**
+	 * Records a command that was completed asynchronously, on any thread. What it caused
+	 * on other threads cannot be told apart from other commands, so its round trips only
+	 * count in the total of the server.
+	 *
+	 * @param command the name of the command, in any case.
+	 * @param failed  whether the command was rejected.
+	 */
+	public void finishAsyncCommand(String command, long nanos, boolean failed) {
+		getCommandMetrics(command).record(nanos, failed);
+	}
+
+	/**
+	 * @return a copy of what the command running on this thread has caused since
+	 *         {@link #startCommand()}, for {@link #addCommandCounters(CommandCounters)}.
+	 */
+	public CommandCounters getCommandCounters() {
+		CommandCounters counters = commandCounters.get();
+		CommandCounters copy = new CommandCounters();
+		copy.roundTrips = counters.roundTrips;
+		copy.ruleEvaluations = counters.ruleEvaluations;
+		copy.mutations = counters.mutations;
+		return copy;
+	}
+
+	/**
+	 * Attributes what another thread caused on behalf of the command running on this
+	 * thread to the command.
+	 */
+	public void addCommandCounters(CommandCounters caused) {
+		CommandCounters counters = commandCounters.get();
+		counters.roundTrips += caused.roundTrips;
+		counters.ruleEvaluations += caused.ruleEvaluations;
+		counters.mutations += caused.mutations;
+	}
+
+	/**
+	 * Counts a database round trip, for the command running on this thread if any.
+	 */
+	public void recordRoundTrip() {
+		commandCounters.get().roundTrips++;
+		roundTrips.increment();
+	}
+
+	/**
+	 * Counts the consistency rules evaluated for a mutation of one user, for the command
+	 * running on this thread if any.
+	 */
+	public void recordRuleEvaluations(int rules) {
+		CommandCounters counters = commandCounters.get();
+		counters.ruleEvaluations += rules;
+		counters.mutations++;
+	}
+
+	/**
+	 * Records the latency of a database command, such as "find" or "update".
+	 */
+	public void recordDatabaseCommand(String command, long nanos, boolean failed) {
+		LatencyMetrics metrics = databaseCommands.get(command);
+		if (metrics == null) {
+			metrics = databaseCommands.computeIfAbsent(command,
+					name -> register("DatabaseCommand", new LatencyMetrics(name)));
+		}
+		metrics.record(nanos, failed);
+	}
+
+	public void connectionOpened() {
+		activeConnections.incrementAndGet();
+		acceptedConnections.increment();
+	}
+
+	public void connectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	/**
+	 * @return the metrics of every command run so far, by name.
+	 */
+	public List<CommandMetrics> getCommandMetrics() {
+		List<CommandMetrics> metrics = new ArrayList<>(commands.values());
+		metrics.sort(Comparator.comparing(LatencyMetrics::getName));
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics of every database command sent so far, by name.
+	 */
+	public List<LatencyMetrics> getDatabaseCommandMetrics() {
+		List<LatencyMetrics> metrics = new ArrayList<>(databaseCommands.values());
+		metrics.sort(Comparator.comparing(LatencyMetrics::getName));
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics of the user cache, or null if the store has none.
+	 */
+	public UserCacheMetrics getUserCacheMetrics() {
+		return userCache;
+	}
+
+	/**
+	 * Serves the metrics of the user cache, also over JMX once {@link #registerMBeans()}
+	 * is called.
+	 */
+	public synchronized void setUserCacheMetrics(UserCacheMetrics metrics) {
+		userCache = metrics;
+		if (mbeanServer != null) {
+			try {
+				registerUserCacheMBean();
+			} catch (JMException e) {
+				throw new IllegalStateException("Failed to register the metrics with JMX.", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the metrics of the user shards, or null if the store has none.
+	 */
+	public ShardMetrics getShardMetrics() {
+		return shards;
+	}
+
+	/**
+	 * Serves the metrics of the user shards, also over JMX once {@link #registerMBeans()}
+	 * is called.
+	 */
+	public synchronized void setShardMetrics(ShardMetrics metrics) {
+		shards = metrics;
+		if (mbeanServer != null) {
+			try {
+				registerShardMBean();
+			} catch (JMException e) {
+				throw new IllegalStateException("Failed to register the metrics with JMX.", e);
+			}
+		}
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	@Override
+	public long getRoundTrips() {
+		return roundTrips.sum();
+	}
+
+	/**
+	 * Registers these metrics, and those of every command from now on, with the platform
+	 * MBean server.
+	 *
+	 * @throws IllegalStateException if the MXBeans cannot be registered.
+	 */
+	public synchronized void registerMBeans() {
+		if (mbeanServer != null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, new ObjectName(JMX_DOMAIN, "type", "Server"));
+			mbeanServer = server;
+			// Commands that appear meanwhile are registered by register() itself.
+			for (CommandMetrics metrics : commands.values()) {
+				registerMBean("Command", metrics);
+			}
+			for (LatencyMetrics metrics : databaseCommands.values()) {
+				registerMBean("DatabaseCommand", metrics);
+			}
+			if (userCache != null) {
+				registerUserCacheMBean();
+			}
+			if (shards != null) {
+				registerShardMBean();
+			}
+		} catch (JMException e) {
+			throw new IllegalStateException("Failed to register the metrics with JMX.", e);
+		}
+	}
+
+	private CommandMetrics getCommandMetrics(String command) {
+		CommandMetrics metrics = commands.get(command);
+		if (metrics == null) {
+			metrics = commands.computeIfAbsent(command, name -> register("Command", new CommandMetrics(name.toLowerCase())));
+		}
+		return metrics;
+	}
+
+	private <T extends LatencyMetrics> T register(String type, T metrics) {
+		if (mbeanServer != null) {
+			try {
+				registerMBean(type, metrics);
+			} catch (JMException e) {
+				throw new IllegalStateException("Failed to register the metrics with JMX.", e);
+			}
+		}
+		return metrics;
+	}
+
+	private synchronized void registerMBean(String type, LatencyMetrics metrics) throws JMException {
+		ObjectName name = new ObjectName(String.format("%s:type=%s,name=%s", JMX_DOMAIN, type, metrics.getName()));
+		if (!mbeanServer.isRegistered(name)) {
+			mbeanServer.registerMBean(metrics, name);
+		}
+	}
+
+	private void registerUserCacheMBean() throws JMException {
+		ObjectName name = new ObjectName(JMX_DOMAIN, "type", "UserCache");
+		if (mbeanServer.isRegistered(name)) {
+			mbeanServer.unregisterMBean(name);
+		}
+		mbeanServer.registerMBean(userCache, name);
+	}
+
+	private void registerShardMBean() throws JMException {
+		ObjectName name = new ObjectName(JMX_DOMAIN, "type", "Shards");
+		if (mbeanServer.isRegistered(name)) {
+			mbeanServer.unregisterMBean(name);
+		}
+		mbeanServer.registerMBean(shards, name);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Active connections: %d | Accepted connections: %d | Round trips: %d",
+				getActiveConnections(), getAcceptedConnections(), getRoundTrips());
+	}
+}
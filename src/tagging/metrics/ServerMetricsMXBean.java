@@ -0,0 +1,16 @@
+package tagging.metrics;
+
+/**
+ * The connections and database round trips of the server, as seen over JMX.
+ */
+public interface ServerMetricsMXBean {
+
+	public int getActiveConnections();
+
+	public long getAcceptedConnections();
+
+	/**
+	 * @return the number of database round trips, including those of background work.
+	 */
+	public long getRoundTrips();
+}
@@ -0,0 +1,95 @@
+package tagging.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The queue depths and completed operations of the user shards as counted by their
+ * executors, and what the shards decided from the state they hold.
+ */
+public final class ShardMetrics implements ShardMetricsMXBean {
+
+	private final List<ThreadPoolExecutor> executors;
+	private final LongAdder stateLoads = new LongAdder();
+	private final LongAdder localDecisions = new LongAdder();
+	private final LongAdder staleStates = new LongAdder();
+
+	/**
+	 * @param executors the executor of each shard, in shard order.
+	 */
+	public ShardMetrics(List<ThreadPoolExecutor> executors) {
+		this.executors = executors;
+	}
+
+	public void recordStateLoad() {
+		stateLoads.increment();
+	}
+
+	public void recordLocalDecision() {
+		localDecisions.increment();
+	}
+
+	public void recordStaleState() {
+		staleStates.increment();
+	}
+
+	@Override
+	public int getShardCount() {
+		return executors.size();
+	}
+
+	@Override
+	public int[] getQueueDepths() {
+		int[] depths = new int[executors.size()];
+		for (int i = 0; i < depths.length; i++) {
+			depths[i] = executors.get(i).getQueue().size();
+		}
+		return depths;
+	}
+
+	@Override
+	public int getTotalQueueDepth() {
+		return Arrays.stream(getQueueDepths()).sum();
+	}
+
+	@Override
+	public int getMaxQueueDepth() {
+		return Arrays.stream(getQueueDepths()).max().orElse(0);
+	}
+
+	@Override
+	public long getCompletedTaskCount() {
+		long completed = 0;
+		for (ThreadPoolExecutor executor : executors) {
+			completed += executor.getCompletedTaskCount();
+		}
+		return completed;
+	}
+
+	@Override
+	public long getStateLoadCount() {
+		return stateLoads.sum();
+	}
+
+	@Override
+	public long getLocalDecisionCount() {
+		return localDecisions.sum();
+	}
+
+	@Override
+	public long getStaleStateCount() {
+		return staleStates.sum();
+	}
+
+	@Override
+	public String toString() {
+		int[] depths = getQueueDepths();
+		return String.format(
+				"Shards: %d | Queued: %d | Deepest queue: %d | Completed: %d | State loads: %d | Decided locally: %d | Stale states: %d | Queue depths: %s",
+				depths.length, Arrays.stream(depths).sum(), Arrays.stream(depths).max().orElse(0),
+				getCompletedTaskCount(), getStateLoadCount(), getLocalDecisionCount(), getStaleStateCount(),
+				Arrays.toString(depths));
+	}
+}
@@ -0,0 +1,41 @@
+package tagging.metrics;
+
+/**
+ * The queues and the state of the user shards, as seen over JMX.
+ */
+public interface ShardMetricsMXBean {
+
+	public int getShardCount();
+
+	/**
+	 * @return the number of operations waiting in the queue of each shard.
+	 */
+	public int[] getQueueDepths();
+
+	public int getTotalQueueDepth();
+
+	/**
+	 * @return the number of operations waiting in the fullest queue, which tells a hot
+	 *         user or a skewed hash apart from an evenly loaded server.
+	 */
+	public int getMaxQueueDepth();
+
+	public long getCompletedTaskCount();
+
+	/**
+	 * @return the number of times a shard read the tags of a user it did not hold.
+	 */
+	public long getStateLoadCount();
+
+	/**
+	 * @return the number of mutations that a shard rejected or found to change nothing
+	 *         from the tags it holds, without a write to the store.
+	 */
+	public long getLocalDecisionCount();
+
+	/**
+	 * @return the number of held users found to differ from the store, because another
+	 *         node changed them.
+	 */
+	public long getStaleStateCount();
+}
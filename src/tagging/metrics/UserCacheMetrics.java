@@ -0,0 +1,72 @@
+package tagging.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * The hits, misses and evictions of a user cache as counted by the cache itself, and the
+ * stale reads found by the store that owns it.
+ */
+public final class UserCacheMetrics implements UserCacheMetricsMXBean {
+
+	private final Cache<?, ?> cache;
+	private final long maximumSize;
+	private final LongAdder staleReads = new LongAdder();
+
+	/**
+	 * @param cache a cache that records its statistics.
+	 */
+	public UserCacheMetrics(Cache<?, ?> cache, long maximumSize) {
+		this.cache = cache;
+		this.maximumSize = maximumSize;
+	}
+
+	public void recordStaleRead() {
+		staleReads.increment();
+	}
+
+	@Override
+	public long getSize() {
+		return cache.estimatedSize();
+	}
+
+	@Override
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+
+	@Override
+	public long getHitCount() {
+		return cache.stats().hitCount();
+	}
+
+	@Override
+	public long getMissCount() {
+		return cache.stats().missCount();
+	}
+
+	@Override
+	public double getHitRate() {
+		return cache.stats().hitRate();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return cache.stats().evictionCount();
+	}
+
+	@Override
+	public long getStaleReadCount() {
+		return staleReads.sum();
+	}
+
+	@Override
+	public String toString() {
+		CacheStats stats = cache.stats();
+		return String.format("Size: %d of %d | Hits: %d | Misses: %d | Hit rate: %.3f | Evictions: %d | Stale reads: %d",
+				getSize(), maximumSize, stats.hitCount(), stats.missCount(), stats.hitRate(), stats.evictionCount(),
+				getStaleReadCount());
+	}
+}
@@ -0,0 +1,31 @@
+package tagging.metrics;
+
+/**
+ * The effectiveness of the user cache, as seen over JMX.
+ */
+public interface UserCacheMetricsMXBean {
+
+	public long getSize();
+
+	public long getMaximumSize();
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	/**
+	 * @return the fraction of lookups served from the cache, or 1 before the first lookup.
+	 */
+	public double getHitRate();
+
+	/**
+	 * @return the number of users evicted to keep the cache within its maximum size.
+	 */
+	public long getEvictionCount();
+
+	/**
+	 * @return the number of cached users found to differ from the store, because another
+	 *         node changed them or changes raced.
+	 */
+	public long getStaleReadCount();
+}
@@ -0,0 +1 @@
+package tagging.metrics;
\ No newline at end of file
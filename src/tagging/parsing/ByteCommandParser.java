@@ -0,0 +1,228 @@
+package tagging.parsing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import tagging.Tag;
+import tagging.TagMask;
+import tagging.TagRegistry;
+import tagging.TagSet;
+
+/**
+ * Parses the frequent single-user commands straight from the bytes of a request.
+ *
+ * The line is split into tokens in one pass, recording where each token starts and
+ * ends, and keywords and tag names are matched against the bytes in place. A parser is
+ * reused by its thread, so the only objects a command allocates are those it keeps: the
+ * user ID, the name of a new user and the set of tags. Errors carry the same messages
+ * as those of {@link CommandParser}.
+ *
+ * Lines that are not plain ASCII, and commands of any other form, are left to the
+ * String parser, which also produces their error messages.
+ */
+final class ByteCommandParser {
+
+	private final static Command[] COMMANDS = Command.values();
+
+	private final static ThreadLocal<ByteCommandParser> parsers = ThreadLocal.withInitial(ByteCommandParser::new);
+
+	private byte[] bytes;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int tokenCount;
+	private long[] mask = new long[4];
+
+	private ByteCommandParser() {
+	}
+
+	static ByteCommandParser forCurrentThread() {
+		return parsers.get();
+	}
+
+	/**
+	 * Splits the line into tokens at the delimiters of StringTokenizer.
+	 *
+	 * @return false if the line has bytes outside of printable ASCII and those
+	 *         delimiters, which only the String parser handles.
+	 */
+	boolean tokenize(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		tokenCount = 0;
+		int start = -1;
+		for (int i = offset; i < offset + length; i++) {
+			byte b = bytes[i];
+			if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f') {
+				if (start >= 0) {
+					addToken(start, i);
+					start = -1;
+				}
+			} else if (b < 0x21 || b > 0x7E) {
+				return false;
+			} else if (start < 0) {
+				start = i;
+			}
+		}
+		if (start >= 0) {
+			addToken(start, offset + length);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the command of the tokenized line if this parser handles its form, or null.
+	 */
+	Command match() {
+		if (tokenCount < 2) {
+			return null;
+		}
+		Command command = null;
+		for (Command candidate : COMMANDS) {
+			if (tokenEquals(0, candidate.name())) {
+				command = candidate;
+				break;
+			}
+		}
+		if (command == null) {
+			return null;
+		}
+		boolean handled = switch (command) {
+		case CREATE -> tokenEquals(1, CreateParameter.USER.name());
+		case ADD -> tokenEquals(1, AddParameter.TAGS.name()) && !hasToken(2, CommandParser.BATCH_ADD_KEYWORD);
+		case REMOVE -> tokenEquals(1, RemoveParameter.TAGS.name())
+				&& !hasToken(2, CommandParser.BATCH_REMOVE_KEYWORD);
+		case SHOW -> tokenEquals(1, ShowParameter.USER.name());
+		case FIND -> tokenEquals(1, FindParameter.USER.name()) || tokenEquals(1, FindParameter.USERS.name())
+				|| tokenEquals(1, FindParameter.COUNT.name());
+		default -> false;
+		};
+		return handled ? command : null;
+	}
+
+	/**
+	 * Validates the tokenized line as a command returned by {@link #match()}, checking in
+	 * the same order as the String parser.
+	 *
+	 * @throws CommandParserException if the command is malformed.
+	 */
+	ParsedCommand parse(Command command) throws CommandParserException {
+		int remaining = tokenCount - 2;
+		switch (command) {
+		case CREATE -> {
+			if (remaining == 0) {
+				throw new CommandParserException(CommandParser.EXPECTED_MORE_PARAMETERS);
+			}
+			return new ParsedCommand(ParsedCommand.Kind.CREATE_USER, tokenString(2), null, resolveTags(3, tokenCount));
+		}
+		case ADD, REMOVE -> {
+			if (remaining < 2) {
+				throw new CommandParserException(CommandParser.EXPECTED_MORE_PARAMETERS);
+			}
+			return new ParsedCommand(
+					command == Command.ADD ? ParsedCommand.Kind.ADD_TAGS : ParsedCommand.Kind.REMOVE_TAGS, null,
+					tokenString(tokenCount - 1), resolveTags(2, tokenCount - 1));
+		}
+		case SHOW -> {
+			if (remaining == 0) {
+				throw new CommandParserException(CommandParser.EXPECTED_USER_ID);
+			} else if (remaining > 1) {
+				throw new CommandParserException(CommandParser.TOO_MANY_PARAMETERS);
+			}
+			return new ParsedCommand(ParsedCommand.Kind.SHOW_USER, null, tokenString(2), null);
+		}
+		case FIND -> {
+			CommandParser.getTagIndex();
+			if (tokenEquals(1, FindParameter.USER.name())) {
+				if (remaining < 2) {
+					throw new CommandParserException(CommandParser.EXPECTED_MORE_PARAMETERS);
+				}
+				return new ParsedCommand(ParsedCommand.Kind.FIND_USER, null, tokenString(2),
+						resolveTags(3, tokenCount));
+			}
+			if (remaining == 0) {
+				throw new CommandParserException(CommandParser.EXPECTED_MORE_PARAMETERS);
+			}
+			return new ParsedCommand(tokenEquals(1, FindParameter.USERS.name()) ? ParsedCommand.Kind.FIND_USERS
+					: ParsedCommand.Kind.FIND_COUNT, null, null, resolveTags(2, tokenCount));
+		}
+		default -> throw new IllegalStateException(String.format("The command %s is not matched.", command));
+		}
+	}
+
+	private void addToken(int start, int end) {
+		if (tokenCount == starts.length) {
+			starts = Arrays.copyOf(starts, tokenCount * 2);
+			ends = Arrays.copyOf(ends, tokenCount * 2);
+		}
+		starts[tokenCount] = start;
+		ends[tokenCount] = end;
+		tokenCount++;
+	}
+
+	/**
+	 * @return true iff the token equals the ASCII keyword, ignoring case.
+	 */
+	private boolean tokenEquals(int token, String keyword) {
+		int start = starts[token];
+		if (ends[token] - start != keyword.length()) {
+			return false;
+		}
+		for (int i = 0; i < keyword.length(); i++) {
+			int b = bytes[start + i];
+			int c = keyword.charAt(i);
+			if (b != c && toLowerCase(b) != toLowerCase(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * @return true iff a token from the given one on equals the keyword, ignoring case.
+	 */
+	private boolean hasToken(int from, String keyword) {
+		for (int i = from; i < tokenCount; i++) {
+			if (tokenEquals(i, keyword)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String tokenString(int token) {
+		return new String(bytes, starts[token], ends[token] - starts[token], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Resolves the tokens from..to (exclusive) as tag names.
+	 *
+	 * @return the tags, or null if one of the names does not exist.
+	 */
+	private TagSet resolveTags(int from, int to) {
+		TagRegistry registry = TagRegistry.getInstance();
+		int words = 0;
+		TagSet tags = null;
+		boolean resolved = true;
+		for (int i = from; i < to; i++) {
+			Tag tag = registry.get(bytes, starts[i], ends[i] - starts[i]);
+			if (tag == null) {
+				resolved = false;
+				break;
+			}
+			int word = TagMask.wordIndex(tag.getOrdinal());
+			if (word >= mask.length) {
+				mask = Arrays.copyOf(mask, Math.max(mask.length * 2, word + 1));
+			}
+			mask[word] |= TagMask.bit(tag.getOrdinal());
+			words = Math.max(words, word + 1);
+		}
+		if (resolved) {
+			tags = TagSet.fromMask(mask);
+		}
+		Arrays.fill(mask, 0, words, 0L);
+		return tags;
+	}
+}
@@ -0,0 +1,5 @@
+package tagging.parsing;
+
+enum Command {
+	CREATE, ADD, REMOVE, SHOW, FIND, QUERY, STATS, HELP,
+}
@@ -1,257 +1,954 @@
 package tagging.parsing;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
+import org.bson.types.ObjectId;
+import org.roaringbitmap.RoaringBitmap;
+
+import tagging.ConnectionPoolStatistics;
+import tagging.ResponseWriter;
 import tagging.Tag;
+import tagging.TagIndex;
+import tagging.TagMutation;
+import tagging.TagMutationResult;
+import tagging.TagRegistry;
+import tagging.TagSet;
+import tagging.TagStatistics;
+import tagging.TaggableOperation;
 import tagging.User;
-import tagging.UserTagDatabase;
+import tagging.UserNotFoundException;
+import tagging.UserTagStore;
 import tagging.UserTaggingSystemClient;
+import tagging.UserUpdateConflictException;
 import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.metrics.CommandMetrics;
+import tagging.metrics.LatencyMetrics;
+import tagging.metrics.ServerMetrics;
+import tagging.metrics.ShardMetrics;
+import tagging.metrics.UserCacheMetrics;
+import tagging.query.TagQuery;
+import tagging.query.TagQueryException;
+import tagging.query.TagQueryPage;
 
-enum Command {
-	CREATE, ADD, REMOVE, SHOW, HELP,
-}
+public final class CommandParser {
 
-enum CreateParameter {
-	USER,
-}
+	// Messages of CommandParserException shared with ByteCommandParser.
+	final static String EXPECTED_MORE_PARAMETERS = "Expected more parameters for this command.";
+	final static String TOO_MANY_PARAMETERS = "Too many parameters passed for this command.";
+	final static String EXPECTED_USER_ID = "Expected additional userID parameter for this command.";
+	final static String INVALID_TAG_NAME = "Invalid tag name passed.";
+	final static String UNEXPECTED_COMMAND = "Unexpected command \"%s\".";
+	final static String UNEXPECTED_PARAMETER = "Unexpected parameter \"%s\".";
 
-enum AddParameter {
-	TAGS,
-}
+	// Separates the tags from the users in the batch forms of "add tags" and "remove tags".
+	final static String BATCH_ADD_KEYWORD = "to";
+	final static String BATCH_REMOVE_KEYWORD = "from";
 
-enum RemoveParameter {
-	TAGS,
-}
+	// Number of users read, validated and written together by the batch commands.
+	final static int BATCH_CHUNK_SIZE = 1000;
 
-enum ShowParameter {
-	USER, USERS, TAGS,
-}
+	// Options of "query", which may precede the query expression.
+	final static String QUERY_LIMIT_KEYWORD = "limit";
+	final static String QUERY_AFTER_KEYWORD = "after";
+	final static int QUERY_DEFAULT_LIMIT = 100;
+	final static int QUERY_MAX_LIMIT = 10000;
+
+	/**
+	 * @return the response to a command that failed with an unexpected exception, which
+	 *         the server sends rather than leave the client waiting for an answer.
+	 */
+	public static String describeFailure(Throwable failure) {
+		if (failure instanceof CompletionException && failure.getCause() != null) {
+			failure = failure.getCause();
+		}
+		return String.format("[Error] The command failed unexpectedly: %s", failure);
+	}
 
-public final class CommandParser {
 	public static String parseLine(String line) throws CommandParserException {
+		StringBuilder response = new StringBuilder();
+		try {
+			parseLine(line, response);
+		} catch (IOException e) {
+			throw new IllegalStateException("Appending to a StringBuilder cannot fail.", e);
+		}
+		return response.toString();
+	}
+
+	/**
+	 * Parses and runs a command, appending its response to out as it is produced.
+	 * Listings such as "show users" are streamed row by row rather than built up first.
+	 * The latency of the command is recorded in {@link ServerMetrics}, along with the
+	 * database round trips and rule evaluations it causes on this thread.
+	 * 
+	 * @throws IOException if appending to out fails.
+	 */
+	public static void parseLine(String line, Appendable out) throws CommandParserException, IOException {
 		line = line.trim();
 		StringTokenizer tokenizer = new StringTokenizer(line);
 		if (tokenizer.countTokens() == 0 || line.equals(UserTaggingSystemClient.EXIT_COMMAND)) {
-			return "";
+			return;
+		}
+		ServerMetrics metrics = ServerMetrics.getInstance();
+		long startNanos = System.nanoTime();
+		metrics.startCommand();
+		String commandName = ServerMetrics.INVALID_COMMAND;
+		boolean failed = true;
+		try {
+			Command command = getCommand(tokenizer.nextToken());
+			commandName = command.name();
+			runCommand(command, tokenizer, line, out);
+			failed = false;
+		} finally {
+			metrics.finishCommand(commandName, System.nanoTime() - startNanos, failed);
+		}
+	}
+
+	/**
+	 * Parses and runs a command given as the UTF-8 bytes of a request, like
+	 * {@link #parseLine(String, Appendable)}. The frequent single-user commands are parsed
+	 * in place by {@link ByteCommandParser}, without decoding the line; any other line is
+	 * decoded and handed to the String parser.
+	 * 
+	 * @throws IOException if appending to out fails.
+	 */
+	public static void parseLine(byte[] bytes, int offset, int length, Appendable out)
+			throws CommandParserException, IOException {
+		ByteCommandParser parser = ByteCommandParser.forCurrentThread();
+		Command command = parser.tokenize(bytes, offset, length) ? parser.match() : null;
+		if (command == null) {
+			parseLine(new String(bytes, offset, length, StandardCharsets.UTF_8), out);
+			return;
+		}
+		ServerMetrics metrics = ServerMetrics.getInstance();
+		long startNanos = System.nanoTime();
+		metrics.startCommand();
+		boolean failed = true;
+		try {
+			runParsedCommand(parser.parse(command), out);
+			failed = false;
+		} finally {
+			metrics.finishCommand(command.name(), System.nanoTime() - startNanos, failed);
+		}
+	}
+
+	/**
+	 * Starts a command given as the UTF-8 bytes of a request without blocking on the store.
+	 * The single-user commands that read or change a user compose the calls of
+	 * {@link tagging.AsyncUserTagStore} and complete once the last of them does, so a few
+	 * threads can keep many commands in flight. The response is formatted only then, on
+	 * the thread completing the command, which must not block.
+	 *
+	 * @return the response, or null if the command has no asynchronous form, in which case
+	 *         it is to be run by {@link #parseLine(byte[], int, int, Appendable)}.
+	 * @throws CommandParserException if the command is malformed.
+	 */
+	public static CompletableFuture<String> parseLineAsync(byte[] bytes, int offset, int length)
+			throws CommandParserException {
+		ByteCommandParser parser = ByteCommandParser.forCurrentThread();
+		Command command = parser.tokenize(bytes, offset, length) ? parser.match() : null;
+		if (command == null || command == Command.FIND) {
+			// Finds are answered from the tag index in memory, so they never wait.
+			return null;
+		}
+		ServerMetrics metrics = ServerMetrics.getInstance();
+		long startNanos = System.nanoTime();
+		metrics.startCommand();
+		CompletableFuture<String> response;
+		try {
+			response = runParsedCommandAsync(parser.parse(command));
+		} catch (CommandParserException | RuntimeException e) {
+			metrics.finishCommand(command.name(), System.nanoTime() - startNanos, true);
+			throw e;
+		}
+		if (response.isDone()) {
+			// Completed on this thread, so everything it caused was counted here.
+			metrics.finishCommand(command.name(), System.nanoTime() - startNanos,
+					response.isCompletedExceptionally());
+		} else {
+			response.whenComplete((text, failure) -> metrics.finishAsyncCommand(command.name(),
+					System.nanoTime() - startNanos, failure != null));
+		}
+		return response;
+	}
+
+	private static void runParsedCommand(ParsedCommand command, Appendable out)
+			throws CommandParserException, IOException {
+		switch (command.kind) {
+		case CREATE_USER -> {
+			insertUser(command.name, command.getTags(), out);
+		}
+		case ADD_TAGS -> {
+			User user = getUser(command.userID);
+			addTags(command.userID, user, command.getTags(), out);
+		}
+		case REMOVE_TAGS -> {
+			User user = getUser(command.userID);
+			removeTags(command.userID, user, command.getTags(), out);
+		}
+		case SHOW_USER -> {
+			showUser(command.userID, out);
+		}
+		case FIND_USER -> {
+			findUser(getTagIndex(), command.userID, command.getTags(), out);
+		}
+		case FIND_USERS -> {
+			findUsers(getTagIndex(), command.getTags(), out);
+		}
+		case FIND_COUNT -> {
+			countUsers(getTagIndex(), command.getTags(), out);
+		}
+		}
+	}
+
+	/**
+	 * Runs a command like {@link #runParsedCommand(ParsedCommand, Appendable)}, reading
+	 * and writing the same and producing the same response.
+	 */
+	private static CompletableFuture<String> runParsedCommandAsync(ParsedCommand command)
+			throws CommandParserException {
+		switch (command.kind) {
+		case CREATE_USER -> {
+			TagSet tags = command.getTags();
+			return orRuleViolation(User.createAsync(command.name, tags).thenCompose(newUser -> newUser.getTagsAsync()
+					.thenApply(newTags -> format(out -> appendCreated(newUser, newTags, out)))));
+		}
+		case ADD_TAGS -> {
+			CompletableFuture<User> user = getUserAsync(command.userID);
+			TagSet tags = command.getTags();
+			return orRuleViolation(user.thenCompose(found -> found == null ? missingUser(command.userID)
+					: found.addTagsAsync(tags).thenApply(successful -> format(
+							out -> appendMutationResult(TaggableOperation.ADD_TAG, successful, tags, found, out)))));
+		}
+		case REMOVE_TAGS -> {
+			CompletableFuture<User> user = getUserAsync(command.userID);
+			TagSet tags = command.getTags();
+			return orRuleViolation(user.thenCompose(found -> found == null ? missingUser(command.userID)
+					: found.removeTagsAsync(tags).thenApply(successful -> format(
+							out -> appendMutationResult(TaggableOperation.REMOVE_TAG, successful, tags, found, out)))));
+		}
+		case SHOW_USER -> {
+			return getUserAsync(command.userID).thenCompose(user -> user == null ? missingUser(command.userID)
+					: user.getTagsAsync().thenApply(tags -> format(out -> appendUser(user, tags, out))));
+		}
+		default -> {
+			throw new IllegalArgumentException(String.format("No asynchronous form of %s.", command.kind));
+		}
+		}
+	}
+
+	private static CompletableFuture<String> missingUser(String userID) {
+		return CompletableFuture.completedFuture(format(out -> appendMissingUser(userID, out)));
+	}
+
+	/**
+	 * Turns a rule violation or an update conflict into the error response that the
+	 * blocking commands give.
+	 */
+	private static CompletableFuture<String> orRuleViolation(CompletableFuture<String> response) {
+		return response.exceptionally(failure -> {
+			Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+			if (cause instanceof ConsistencyRuleViolationException || cause instanceof UserUpdateConflictException) {
+				return format(out -> appendError((Exception) cause, out));
+			}
+			throw failure instanceof CompletionException ? (CompletionException) failure
+					: new CompletionException(failure);
+		});
+	}
+
+	@FunctionalInterface
+	private interface ResponseFormatter {
+		void appendTo(Appendable out) throws IOException;
+	}
+
+	private static String format(ResponseFormatter formatter) {
+		StringBuilder response = new StringBuilder();
+		try {
+			formatter.appendTo(response);
+		} catch (IOException e) {
+			throw new IllegalStateException("Appending to a StringBuilder cannot fail.", e);
 		}
-		Command command = getCommand(tokenizer.nextToken());
-		return switch (command) {
+		return response.toString();
+	}
+
+	private static void runCommand(Command command, StringTokenizer tokenizer, String line, Appendable out)
+			throws CommandParserException, IOException {
+		switch (command) {
 		case CREATE -> {
-			yield create(tokenizer);
+			create(tokenizer, line, out);
 		}
 		case ADD -> {
-			yield add(tokenizer);
+			add(tokenizer, out);
 		}
 		case REMOVE -> {
-			yield remove(tokenizer);
+			remove(tokenizer, out);
 		}
 		case SHOW -> {
-			yield show(tokenizer);
+			show(tokenizer, out);
+		}
+		case FIND -> {
+			find(tokenizer, out);
+		}
+		case QUERY -> {
+			query(tokenizer, out);
+		}
+		case STATS -> {
+			stats(tokenizer, out);
 		}
 		case HELP -> {
-			yield help();
+			out.append(help());
+		}
 		}
-		};
 	}
 
 	private static Command getCommand(String command) throws CommandParserException {
 		try {
 			return Command.valueOf(command.toUpperCase());
 		} catch (IllegalArgumentException e) {
-			throw new CommandParserException(String.format("Unexpected command \"%s\".", command));
+			throw new CommandParserException(String.format(UNEXPECTED_COMMAND, command));
 		}
 	}
 
-	private static String create(StringTokenizer tokenizer) throws CommandParserException {
+	private static void create(StringTokenizer tokenizer, String line, Appendable out)
+			throws CommandParserException, IOException {
 		if (tokenizer.countTokens() == 0) {
-			throw new CommandParserException("Expected more parameters for this command.");
+			throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
 		}
 		String parameter = tokenizer.nextToken();
 		CreateParameter createParameter;
 		try {
 			createParameter = CreateParameter.valueOf(parameter.toUpperCase());
 		} catch (IllegalArgumentException e) {
-			throw new CommandParserException(String.format("Unexpected parameter \"%s\".", parameter));
+			throw new CommandParserException(String.format(UNEXPECTED_PARAMETER, parameter));
 		}
 
-		return switch (createParameter) {
+		switch (createParameter) {
 		case USER -> {
 			Set<String> tagNames = new HashSet<String>();
 			if (tokenizer.countTokens() == 0) {
-				throw new CommandParserException("Expected more parameters for this command.");
+				throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
 			}
 			String name = tokenizer.nextToken();
 			while (tokenizer.hasMoreTokens()) {
 				tagNames.add(tokenizer.nextToken());
 			}
-			yield createUser(name, tagNames);
+			insertUser(name, getTagsFromTagNames(tagNames), out);
+		}
+		case USERS -> {
+			// One user per following line, each as "<name> <tag1> <...> <tagN>".
+			String[] rows = line.split("\\R");
+			if (new StringTokenizer(rows[0]).countTokens() > 2) {
+				throw new CommandParserException(TOO_MANY_PARAMETERS);
+			}
+			if (rows.length < 2) {
+				throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
+			}
+			createUsers(Arrays.asList(rows).subList(1, rows.length), out);
+		}
 		}
-		};
 	}
 
-	private static String createUser(String name, Set<String> tagNames) throws CommandParserException {
-		Set<Tag> tags = getTagsFromTagNames(tagNames);
+	private static void insertUser(String name, Set<Tag> tags, Appendable out) throws IOException {
 		User newUser;
 		try {
 			newUser = User.create(name, tags);
 		} catch (ConsistencyRuleViolationException e) {
-			return String.format("[Error] %s", e.getMessage());
+			appendError(e, out);
+			return;
 		}
-		return String.format("[Success] Created new user \"%s\" with ID: %s and tags %s.", newUser.getName(),
-				newUser.getID(), newUser.getTags());
+		appendCreated(newUser, newUser.getTags(), out);
 	}
 
-	private static String add(StringTokenizer tokenizer) throws CommandParserException {
+	private static void appendCreated(User newUser, Set<Tag> tags, Appendable out) throws IOException {
+		out.append("[Success] Created new user \"").append(newUser.getName()).append("\" with ID: ")
+				.append(newUser.getID()).append(" and tags ");
+		ResponseWriter.appendTags(out, tags).append('.');
+	}
+
+	private static void appendError(Exception e, Appendable out) throws IOException {
+		out.append("[Error] ").append(e.getMessage());
+	}
+
+	private static void add(StringTokenizer tokenizer, Appendable out) throws CommandParserException, IOException {
 		if (tokenizer.countTokens() == 0) {
-			throw new CommandParserException("Expected more parameters for this command.");
+			throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
 		}
 		String parameter = tokenizer.nextToken();
 		AddParameter addParameter;
 		try {
 			addParameter = AddParameter.valueOf(parameter.toUpperCase());
 		} catch (IllegalArgumentException e) {
-			throw new CommandParserException(String.format("Unexpected parameter \"%s\".", parameter));
+			throw new CommandParserException(String.format(UNEXPECTED_PARAMETER, parameter));
 		}
 
-		return switch (addParameter) {
+		switch (addParameter) {
 		case TAGS -> {
 			if (tokenizer.countTokens() < 2) {
-				throw new CommandParserException("Expected more parameters for this command.");
+				throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
 			}
 			Set<String> tagNames = new HashSet<>();
-			while (tokenizer.hasMoreTokens() && tokenizer.countTokens() > 1) {
-				tagNames.add(tokenizer.nextToken());
+			List<String> userIDs = new ArrayList<>();
+			if (splitBatch(tokenizer, BATCH_ADD_KEYWORD, tagNames, userIDs)) {
+				mutateUsers(TaggableOperation.ADD_TAG, getTagsFromTagNames(tagNames), userIDs, out);
+				break;
 			}
-			yield addTags(tagNames, tokenizer.nextToken());
+			User user = getUser(userIDs.get(0));
+			addTags(userIDs.get(0), user, getTagsFromTagNames(tagNames), out);
+		}
 		}
-		};
 	}
 
-	private static String addTags(Set<String> tagNames, String userID) throws CommandParserException {
-		User user = getUser(userID);
-		Set<Tag> tags = getTagsFromTagNames(tagNames);
+	private static void addTags(String userID, User user, Set<Tag> tags, Appendable out) throws IOException {
+		if (user == null) {
+			appendMissingUser(userID, out);
+			return;
+		}
 		boolean successful = false;
 		try {
 			successful = user.addTags(tags);
-		} catch (ConsistencyRuleViolationException e) {
-			return String.format("[Error] %s", e.getMessage());
-		}
-
-		if (successful) {
-			return String.format("[Success] Added tags %s to user \"%s\" (ID: %s).", tags, user.getName(),
-					user.getID());
+		} catch (ConsistencyRuleViolationException | UserUpdateConflictException e) {
+			appendError(e, out);
+			return;
 		}
-		return String.format(
-				"[Failure] Tags %s could not be added to user \"%s\" (ID: %s). Most likely they all already exist.",
-				tags, user.getName(), user.getID());
 
+		appendMutationResult(TaggableOperation.ADD_TAG, successful, tags, user, out);
 	}
 
-	private static String remove(StringTokenizer tokenizer) throws CommandParserException {
+	private static void remove(StringTokenizer tokenizer, Appendable out) throws CommandParserException, IOException {
 		if (tokenizer.countTokens() == 0) {
-			throw new CommandParserException("Expected more parameters for this command.");
+			throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
 		}
 		String parameter = tokenizer.nextToken();
 		RemoveParameter removeParameter;
 		try {
 			removeParameter = RemoveParameter.valueOf(parameter.toUpperCase());
 		} catch (IllegalArgumentException e) {
-			throw new CommandParserException(String.format("Unexpected parameter \"%s\".", parameter));
+			throw new CommandParserException(String.format(UNEXPECTED_PARAMETER, parameter));
 		}
 
-		return switch (removeParameter) {
+		switch (removeParameter) {
 		case TAGS -> {
 			if (tokenizer.countTokens() < 2) {
-				throw new CommandParserException("Expected more parameters for this command.");
+				throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
 			}
 			Set<String> tagNames = new HashSet<>();
-			while (tokenizer.hasMoreTokens() && tokenizer.countTokens() > 1) {
-				tagNames.add(tokenizer.nextToken());
+			List<String> userIDs = new ArrayList<>();
+			if (splitBatch(tokenizer, BATCH_REMOVE_KEYWORD, tagNames, userIDs)) {
+				mutateUsers(TaggableOperation.REMOVE_TAG, getTagsFromTagNames(tagNames), userIDs, out);
+				break;
 			}
-			yield removeTags(tagNames, tokenizer.nextToken());
+			User user = getUser(userIDs.get(0));
+			removeTags(userIDs.get(0), user, getTagsFromTagNames(tagNames), out);
+		}
 		}
-		};
 	}
 
-	private static String removeTags(Set<String> tagNames, String userID) throws CommandParserException {
-		User user = getUser(userID);
-		Set<Tag> tags = getTagsFromTagNames(tagNames);
+	/**
+	 * Splits the remaining tokens of "add tags"/"remove tags" into tag names and user IDs.
+	 * Without the batch keyword the last token is the only user ID; with it, every token
+	 * after the keyword is a user ID.
+	 * 
+	 * @return true iff the batch form was used.
+	 */
+	private static boolean splitBatch(StringTokenizer tokenizer, String keyword, Set<String> tagNames,
+			List<String> userIDs) throws CommandParserException {
+		List<String> tokens = new ArrayList<>();
+		while (tokenizer.hasMoreTokens()) {
+			tokens.add(tokenizer.nextToken());
+		}
+		int keywordIndex = -1;
+		for (int i = 0; i < tokens.size(); i++) {
+			if (tokens.get(i).equalsIgnoreCase(keyword)) {
+				keywordIndex = i;
+				break;
+			}
+		}
+		if (keywordIndex < 0) {
+			tagNames.addAll(tokens.subList(0, tokens.size() - 1));
+			userIDs.add(tokens.get(tokens.size() - 1));
+			return false;
+		}
+		if (keywordIndex == 0 || keywordIndex == tokens.size() - 1) {
+			throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
+		}
+		tagNames.addAll(tokens.subList(0, keywordIndex));
+		userIDs.addAll(tokens.subList(keywordIndex + 1, tokens.size()));
+		return true;
+	}
+
+	/**
+	 * Adds or removes the tags on many users. Each chunk of users is read with one query,
+	 * validated in memory and written with one bulk write, which checks the rules again
+	 * for users changed in between. Every user gets its own result line, taken from the
+	 * write, so an inconsistent or missing user does not fail the rest of the batch.
+	 */
+	private static void mutateUsers(TaggableOperation operation, Set<Tag> tags, List<String> userIDs,
+			Appendable out) throws IOException {
+		UserTagStore udb = UserTagStore.getInstance();
+		boolean firstLine = true;
+		for (int start = 0; start < userIDs.size(); start += BATCH_CHUNK_SIZE) {
+			// Valid IDs in the canonical form that the store keys its users by.
+			List<String> chunk = userIDs.subList(start, Math.min(start + BATCH_CHUNK_SIZE, userIDs.size())).stream()
+					.map(userID -> ObjectId.isValid(userID) ? new ObjectId(userID).toHexString() : userID)
+					.collect(Collectors.toList());
+			Map<String, User> users = udb
+					.getUsers(chunk.stream().filter(ObjectId::isValid).collect(Collectors.toList()));
+			List<TagMutation> mutations = new ArrayList<>();
+			// Each user gets either an error message or, once applied, its mutation result.
+			String[] errors = new String[chunk.size()];
+			User[] mutatedUsers = new User[chunk.size()];
+			int[] mutationIndexes = new int[chunk.size()];
+			Arrays.fill(mutationIndexes, -1);
+			for (int i = 0; i < chunk.size(); i++) {
+				String userID = chunk.get(i);
+				if (!ObjectId.isValid(userID)) {
+					errors[i] = new CommandParserException(String.format("Invalid userID \"%s\".", userID))
+							.getMessage();
+					continue;
+				}
+				User user = users.get(userID);
+				if (user == null) {
+					errors[i] = String.format("[Failure] User with ID: %s does not exist.", userID);
+					continue;
+				}
+				TagMutation mutation;
+				try {
+					mutation = operation == TaggableOperation.ADD_TAG ? user.planAddTags(tags)
+							: user.planRemoveTags(tags);
+				} catch (ConsistencyRuleViolationException e) {
+					errors[i] = String.format("[Error] %s", e.getMessage());
+					continue;
+				}
+				if (mutation != null) {
+					mutationIndexes[i] = mutations.size();
+					mutations.add(mutation);
+				}
+				mutatedUsers[i] = user;
+			}
+			TagMutationResult result = udb.applyTagMutations(mutations);
+			for (int i = 0; i < chunk.size(); i++) {
+				out.append(firstLine ? "" : "\n");
+				Exception failure = mutationIndexes[i] < 0 ? null : result.getFailure(mutationIndexes[i]);
+				if (errors[i] != null) {
+					out.append(errors[i]);
+				} else if (failure instanceof UserNotFoundException) {
+					appendMissingUser(chunk.get(i), out);
+				} else if (failure != null) {
+					out.append(String.format("[Error] %s", failure.getMessage()));
+				} else {
+					appendMutationResult(operation, mutationIndexes[i] >= 0, tags, mutatedUsers[i], out);
+				}
+				firstLine = false;
+			}
+		}
+	}
+
+	private static void appendMutationResult(TaggableOperation operation, boolean successful, Set<Tag> tags,
+			User user, Appendable out) throws IOException {
+		String userText;
+		String suffix = ").";
+		if (operation == TaggableOperation.ADD_TAG) {
+			if (successful) {
+				out.append("[Success] Added tags ");
+				userText = " to user \"";
+			} else {
+				out.append("[Failure] Tags ");
+				userText = " could not be added to user \"";
+				suffix = "). Most likely they all already exist.";
+			}
+		} else if (successful) {
+			out.append("[Success] Removed tags ");
+			userText = " from user \"";
+		} else {
+			out.append("[Failure] Tags ");
+			userText = " were not removed from user \"";
+			suffix = "). Most likely they didn't exist.";
+		}
+		ResponseWriter.appendTags(out, tags).append(userText).append(user.getName()).append("\" (ID: ")
+				.append(user.getID()).append(suffix);
+	}
+
+	/**
+	 * Creates one user per row. Rows are validated in memory and the valid ones are
+	 * inserted in chunks with one bulk write each. Every row gets its own result line.
+	 */
+	private static void createUsers(List<String> rows, Appendable out) throws IOException {
+		boolean firstLine = true;
+		for (int start = 0; start < rows.size(); start += BATCH_CHUNK_SIZE) {
+			List<String> chunk = rows.subList(start, Math.min(start + BATCH_CHUNK_SIZE, rows.size()));
+			String[] results = new String[chunk.size()];
+			List<Integer> validRows = new ArrayList<>();
+			List<String> names = new ArrayList<>();
+			List<TagSet> tagSets = new ArrayList<>();
+			for (int i = 0; i < chunk.size(); i++) {
+				StringTokenizer tokenizer = new StringTokenizer(chunk.get(i));
+				if (!tokenizer.hasMoreTokens()) {
+					continue;
+				}
+				String name = tokenizer.nextToken();
+				Set<String> tagNames = new HashSet<>();
+				while (tokenizer.hasMoreTokens()) {
+					tagNames.add(tokenizer.nextToken());
+				}
+				try {
+					TagSet tags = TagSet.of(getTagsFromTagNames(tagNames));
+					User.validateCreate(name, tags);
+					validRows.add(i);
+					names.add(name);
+					tagSets.add(tags);
+				} catch (CommandParserException e) {
+					results[i] = e.getMessage();
+				} catch (ConsistencyRuleViolationException e) {
+					results[i] = String.format("[Error] %s", e.getMessage());
+				}
+			}
+			List<User> newUsers = UserTagStore.getInstance().insertUsers(names, tagSets);
+			int created = 0;
+			for (int i = 0; i < chunk.size(); i++) {
+				if (created < newUsers.size() && validRows.get(created) == i) {
+					out.append(firstLine ? "" : "\n");
+					appendCreated(newUsers.get(created), tagSets.get(created), out);
+					created++;
+				} else if (results[i] != null) {
+					out.append(firstLine ? "" : "\n").append(results[i]);
+				} else {
+					continue;
+				}
+				firstLine = false;
+			}
+		}
+	}
+
+	private static void removeTags(String userID, User user, Set<Tag> tags, Appendable out) throws IOException {
+		if (user == null) {
+			appendMissingUser(userID, out);
+			return;
+		}
 		boolean successful = false;
 		try {
 			successful = user.removeTags(tags);
-		} catch (ConsistencyRuleViolationException e) {
-			return String.format("[Error] %s", e.getMessage());
+		} catch (ConsistencyRuleViolationException | UserUpdateConflictException e) {
+			appendError(e, out);
+			return;
 		}
 
-		if (successful) {
-			return String.format("[Success] Removed tags %s from user \"%s\" (ID: %s).", tags, user.getName(),
-					user.getID());
-		}
-		return String.format(
-				"[Failure] Tags %s were not removed from user \"%s\" (ID: %s). Most likely they didn't exist.", tags,
-				user.getName(), user.getID());
-
+		appendMutationResult(TaggableOperation.REMOVE_TAG, successful, tags, user, out);
 	}
 
-	private static String show(StringTokenizer tokenizer) throws CommandParserException {
+	private static void show(StringTokenizer tokenizer, Appendable out) throws CommandParserException, IOException {
 		if (tokenizer.countTokens() == 0) {
-			throw new CommandParserException("Expected more parameters for this command.");
+			throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
 		}
 		String parameter = tokenizer.nextToken();
 		ShowParameter showParameter;
 		try {
 			showParameter = ShowParameter.valueOf(parameter.toUpperCase());
 		} catch (IllegalArgumentException e) {
-			throw new CommandParserException(String.format("Unexpected parameter \"%s\".", parameter));
+			throw new CommandParserException(String.format(UNEXPECTED_PARAMETER, parameter));
 		}
 		int tokensRemaining = tokenizer.countTokens();
 
-		return switch (showParameter) {
+		switch (showParameter) {
 		case USER -> {
 			if (tokensRemaining == 0) {
-				throw new CommandParserException("Expected additional userID parameter for this command.");
+				throw new CommandParserException(EXPECTED_USER_ID);
 			} else if (tokensRemaining > 1) {
-				throw new CommandParserException("Too many parameters passed for this command.");
+				throw new CommandParserException(TOO_MANY_PARAMETERS);
 			}
-			yield showUser(tokenizer.nextToken());
+			showUser(tokenizer.nextToken(), out);
 		}
 		case USERS -> {
 			if (tokenizer.countTokens() != 0) {
-				throw new CommandParserException("Too many parameters passed for this command.");
+				throw new CommandParserException(TOO_MANY_PARAMETERS);
 			}
-			yield showAllUsers();
+			showAllUsers(out);
 		}
 		case TAGS -> {
 			if (tokenizer.countTokens() != 0) {
-				throw new CommandParserException("Too many parameters passed for this command.");
+				throw new CommandParserException(TOO_MANY_PARAMETERS);
+			}
+			showAllTags(out);
+		}
+		case POOL -> {
+			if (tokenizer.countTokens() != 0) {
+				throw new CommandParserException(TOO_MANY_PARAMETERS);
 			}
-			yield showAllTags();
+			out.append(showPool());
+		}
 		}
-		};
 	}
 
-	private static String showUser(String userID) throws CommandParserException {
+	private static void showUser(String userID, Appendable out) throws CommandParserException, IOException {
 		User user = getUser(userID);
-		return String.format("[Success] ID: %s | Name: %s | Tags: %s", user.getID(), user.getName(), user.getTags());
+		if (user == null) {
+			appendMissingUser(userID, out);
+			return;
+		}
+		appendUser(user, user.getTags(), out);
+	}
+
+	private static void appendMissingUser(String userID, Appendable out) throws IOException {
+		out.append("[Failure] User with ID: ").append(userID).append(" does not exist.");
+	}
+
+	private static void appendUser(User user, Set<Tag> tags, Appendable out) throws IOException {
+		out.append("[Success] ID: ").append(user.getID()).append(" | Name: ").append(user.getName())
+				.append(" | Tags: ");
+		ResponseWriter.appendTags(out, tags);
+	}
+
+	private static void showAllUsers(Appendable out) throws CommandParserException, IOException {
+		UserTagStore.getInstance().writeAllUsers(out);
+	}
+
+	private static void showAllTags(Appendable out) throws CommandParserException, IOException {
+		UserTagStore.getInstance().writeAllTags(out);
+	}
+
+	private static String showPool() throws CommandParserException {
+		ConnectionPoolStatistics statistics = UserTagStore.getInstance().getPoolStatistics();
+		if (statistics == null) {
+			return "[Failure] The user tag store has no connection pool.";
+		}
+		return String.format("[Success] %s", statistics);
+	}
+
+	/**
+	 * Answers queries by tag from the in-memory TagIndex, without reading the database.
+	 */
+	private static void find(StringTokenizer tokenizer, Appendable out) throws CommandParserException, IOException {
+		if (tokenizer.countTokens() == 0) {
+			throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
+		}
+		String parameter = tokenizer.nextToken();
+		FindParameter findParameter;
+		try {
+			findParameter = FindParameter.valueOf(parameter.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new CommandParserException(String.format(UNEXPECTED_PARAMETER, parameter));
+		}
+		TagIndex tagIndex = getTagIndex();
+
+		switch (findParameter) {
+		case USER -> {
+			if (tokenizer.countTokens() < 2) {
+				throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
+			}
+			String userID = tokenizer.nextToken();
+			findUser(tagIndex, userID, TagSet.of(getTagsFromTagNames(remainingTokens(tokenizer))), out);
+		}
+		case USERS -> {
+			if (tokenizer.countTokens() == 0) {
+				throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
+			}
+			findUsers(tagIndex, TagSet.of(getTagsFromTagNames(remainingTokens(tokenizer))), out);
+		}
+		case COUNT -> {
+			if (tokenizer.countTokens() == 0) {
+				throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
+			}
+			countUsers(tagIndex, TagSet.of(getTagsFromTagNames(remainingTokens(tokenizer))), out);
+		}
+		}
+	}
+
+	private static void findUser(TagIndex tagIndex, String userID, TagSet tags, Appendable out) throws IOException {
+		if (!tagIndex.hasTags(userID, TagSet.EMPTY)) {
+			appendMissingUser(userID, out);
+			return;
+		}
+		out.append("[Success] User with ID: ").append(userID)
+				.append(tagIndex.hasTags(userID, tags) ? " has tags " : " does not have tags ");
+		ResponseWriter.appendTags(out, tags).append('.');
+	}
+
+	private static void findUsers(TagIndex tagIndex, TagSet tags, Appendable out) throws IOException {
+		RoaringBitmap users = tagIndex.find(tags);
+		ResponseWriter.appendNumber(out.append("[Success] Found "), users.getCardinality()).append(" users with tags ");
+		ResponseWriter.appendTags(out, tags).append(':');
+		Iterator<String> userIDs = tagIndex.getUserIDs(users);
+		while (userIDs.hasNext()) {
+			out.append("\nID: ").append(userIDs.next());
+		}
 	}
 
-	private static String showAllUsers() throws CommandParserException {
-		UserTagDatabase udb = new UserTagDatabase();
-		String allUsers = udb.getAllUsersAsString();
-		udb.close();
-		return allUsers;
+	private static void countUsers(TagIndex tagIndex, TagSet tags, Appendable out) throws IOException {
+		ResponseWriter.appendNumber(out.append("[Success] "), tagIndex.count(tags)).append(" users have tags ");
+		ResponseWriter.appendTags(out, tags).append('.');
 	}
 
-	private static String showAllTags() throws CommandParserException {
-		UserTagDatabase udb = new UserTagDatabase();
-		String allTags = udb.getAllTagsAsString();
-		udb.close();
-		return allTags;
+	/**
+	 * Runs a boolean tag query on the TagIndex and returns one page of the matching user
+	 * IDs, with the exact count and the cursor of the next page.
+	 */
+	private static void query(StringTokenizer tokenizer, Appendable out) throws CommandParserException, IOException {
+		int limit = QUERY_DEFAULT_LIMIT;
+		String cursor = null;
+		StringBuilder expression = new StringBuilder();
+		boolean options = true;
+		while (tokenizer.hasMoreTokens()) {
+			String token = tokenizer.nextToken();
+			if (options && token.equalsIgnoreCase(QUERY_LIMIT_KEYWORD) && tokenizer.hasMoreTokens()) {
+				String value = tokenizer.nextToken();
+				try {
+					limit = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw new CommandParserException(String.format("Invalid limit \"%s\".", value));
+				}
+				if (limit < 1 || limit > QUERY_MAX_LIMIT) {
+					throw new CommandParserException(
+							String.format("The limit must be between 1 and %d.", QUERY_MAX_LIMIT));
+				}
+			} else if (options && token.equalsIgnoreCase(QUERY_AFTER_KEYWORD) && tokenizer.hasMoreTokens()) {
+				cursor = tokenizer.nextToken();
+			} else {
+				options = false;
+				expression.append(token).append(' ');
+			}
+		}
+		TagIndex tagIndex = getTagIndex();
+
+		TagQueryPage page;
+		TagQuery query;
+		try {
+			query = TagQuery.parse(expression.toString());
+			page = query.page(tagIndex, cursor, limit);
+		} catch (TagQueryException e) {
+			throw new CommandParserException(e.getMessage());
+		}
+		out.append(String.format("[Success] %d users match %s. Showing %d.", page.getTotalCount(), query,
+				page.getUserIDs().size()));
+		for (String userID : page.getUserIDs()) {
+			out.append("\nID: ").append(userID);
+		}
+		if (page.getNextCursor() != null) {
+			out.append(String.format("\nMore results: query %s %d %s %s %s", QUERY_LIMIT_KEYWORD, limit,
+					QUERY_AFTER_KEYWORD, page.getNextCursor(), expression.toString().trim()));
+		}
+	}
+
+	private static void stats(StringTokenizer tokenizer, Appendable out) throws CommandParserException, IOException {
+		if (tokenizer.countTokens() == 0) {
+			throw new CommandParserException(EXPECTED_MORE_PARAMETERS);
+		}
+		String parameter = tokenizer.nextToken();
+		StatsParameter statsParameter;
+		try {
+			statsParameter = StatsParameter.valueOf(parameter.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new CommandParserException(String.format(UNEXPECTED_PARAMETER, parameter));
+		}
+		if (tokenizer.countTokens() != 0) {
+			throw new CommandParserException(TOO_MANY_PARAMETERS);
+		}
+
+		switch (statsParameter) {
+		case TAGS -> {
+			showTagStatistics(out);
+		}
+		case COMMANDS -> {
+			List<CommandMetrics> commands = ServerMetrics.getInstance().getCommandMetrics();
+			out.append(String.format("[Success] Metrics of %d commands.", commands.size()));
+			for (CommandMetrics command : commands) {
+				out.append(String.format("\nCommand: %-8s | %s", command.getName(), command));
+			}
+		}
+		case DATABASE -> {
+			ServerMetrics metrics = ServerMetrics.getInstance();
+			List<LatencyMetrics> databaseCommands = metrics.getDatabaseCommandMetrics();
+			out.append(String.format("[Success] %d database round trips in %d kinds of database commands.",
+					metrics.getRoundTrips(), databaseCommands.size()));
+			for (LatencyMetrics databaseCommand : databaseCommands) {
+				out.append(String.format("\nDatabase command: %-14s | %s", databaseCommand.getName(), databaseCommand));
+			}
+		}
+		case CONNECTIONS -> {
+			out.append(String.format("[Success] %s", ServerMetrics.getInstance()));
+		}
+		case CACHE -> {
+			UserCacheMetrics cache = ServerMetrics.getInstance().getUserCacheMetrics();
+			if (cache == null) {
+				out.append("[Failure] The user tag store has no user cache.");
+			} else {
+				out.append(String.format("[Success] %s", cache));
+			}
+		}
+		case SHARDS -> {
+			ShardMetrics shards = ServerMetrics.getInstance().getShardMetrics();
+			if (shards == null) {
+				out.append("[Failure] The user tag store has no shards.");
+			} else {
+				out.append(String.format("[Success] %s", shards));
+			}
+		}
+		}
+	}
+
+	/**
+	 * Serves the incrementally maintained tag counts: users per tag, then the pairs of
+	 * tags that occur together, most frequent first.
+	 */
+	private static void showTagStatistics(Appendable out) throws CommandParserException, IOException {
+		TagStatistics statistics = UserTagStore.getInstance().getTagStatistics();
+		if (statistics == null) {
+			throw new CommandParserException("The tag statistics are not available on this server.");
+		}
+		TagRegistry registry = TagRegistry.getInstance();
+		List<String> tagLines = new ArrayList<>();
+		statistics.forEachTag((tagOrdinal, unused, count) -> {
+			tagLines.add(String.format("\nTag: %-5s | Users: %d", registry.getByOrdinal(tagOrdinal), count));
+		});
+		Collections.sort(tagLines);
+		List<long[]> pairs = new ArrayList<>();
+		statistics.forEachPair((tagOrdinal, otherOrdinal, count) -> {
+			pairs.add(new long[] { tagOrdinal, otherOrdinal, count });
+		});
+		pairs.sort((a, b) -> Long.compare(b[2], a[2]));
+
+		long reconciledMillis = statistics.getLastReconciledMillis();
+		out.append(String.format("[Success] Tag statistics for %d tags and %d pairs, %s.", tagLines.size(),
+				pairs.size(),
+				reconciledMillis == 0 ? "not reconciled yet"
+						: String.format("last reconciled %s with a drift of %d and %d tag index corrections",
+								Instant.ofEpochMilli(reconciledMillis), statistics.getLastDrift(),
+								statistics.getLastIndexCorrections())));
+		for (String tagLine : tagLines) {
+			out.append(tagLine);
+		}
+		for (long[] pair : pairs) {
+			out.append(String.format("\nPair: %s & %s | Users: %d", registry.getByOrdinal((int) pair[0]),
+					registry.getByOrdinal((int) pair[1]), pair[2]));
+		}
+	}
+
+	static TagIndex getTagIndex() throws CommandParserException {
+		TagIndex tagIndex = UserTagStore.getInstance().getTagIndex();
+		if (tagIndex == null) {
+			throw new CommandParserException("The tag index is not available on this server.");
+		}
+		return tagIndex;
+	}
+
+	private static Set<String> remainingTokens(StringTokenizer tokenizer) {
+		Set<String> tokens = new HashSet<>();
+		while (tokenizer.hasMoreTokens()) {
+			tokens.add(tokenizer.nextToken());
+		}
+		return tokens;
 	}
 
 	private static String help() throws CommandParserException {
@@ -264,17 +961,37 @@ public final class CommandParser {
 			switch (command) {
 			case CREATE:
 				helpText = helpText.concat("create user <name> <tag1> <tag2> <...> <tagN>\n");
+				helpText = helpText.concat("create users, followed by one \"<name> <tag1> <...> <tagN>\" line per user\n");
 				break;
 			case ADD:
 				helpText = helpText.concat("add tags <tag1> <tag2> <...> <tagN> <userID>\n");
+				helpText = helpText.concat("add tags <tag1> <tag2> <...> <tagN> to <userID1> <...> <userIDM>\n");
 				break;
 			case REMOVE:
 				helpText = helpText.concat("remove tags <tag1> <tag2> <...> <tagN> <userID>\n");
+				helpText = helpText.concat("remove tags <tag1> <tag2> <...> <tagN> from <userID1> <...> <userIDM>\n");
 				break;
 			case SHOW:
 				helpText = helpText.concat("show user <userID>\n");
 				helpText = helpText.concat("show users\n");
 				helpText = helpText.concat("show tags\n");
+				helpText = helpText.concat("show pool\n");
+				break;
+			case FIND:
+				helpText = helpText.concat("find users <tag1> <tag2> <...> <tagN>\n");
+				helpText = helpText.concat("find count <tag1> <tag2> <...> <tagN>\n");
+				helpText = helpText.concat("find user <userID> <tag1> <tag2> <...> <tagN>\n");
+				break;
+			case QUERY:
+				helpText = helpText.concat("query [limit <n>] [after <cursor>] <expression>, e.g. query (T1 AND T2) OR NOT T4\n");
+				break;
+			case STATS:
+				helpText = helpText.concat("stats tags\n");
+				helpText = helpText.concat("stats commands\n");
+				helpText = helpText.concat("stats database\n");
+				helpText = helpText.concat("stats connections\n");
+				helpText = helpText.concat("stats cache\n");
+				helpText = helpText.concat("stats shards\n");
 				break;
 			case HELP:
 				helpText = helpText.concat("help\n");
@@ -295,11 +1012,27 @@ public final class CommandParser {
 		return user;
 	}
 
-	private static Set<Tag> getTagsFromTagNames(Set<String> tagNames) throws CommandParserException {
-		Set<Tag> tags = tagNames.stream().map(tagName -> Tag.fromName(tagName)).collect(Collectors.toSet());
-		if (tags.contains(null)) {
-			throw new CommandParserException("Invalid tag name passed.");
+	private static CompletableFuture<User> getUserAsync(String userID) throws CommandParserException {
+		try {
+			return User.fromIDAsync(userID);
+		} catch (IllegalArgumentException e) {
+			throw new CommandParserException(String.format("Invalid userID \"%s\".", userID));
+		}
+	}
+
+	/**
+	 * @return the tags, as a TagSet so that they are listed in the same order however the
+	 *         names were given.
+	 */
+	private static TagSet getTagsFromTagNames(Set<String> tagNames) throws CommandParserException {
+		List<Tag> tags = new ArrayList<>(tagNames.size());
+		for (String tagName : tagNames) {
+			Tag tag = Tag.fromName(tagName);
+			if (tag == null) {
+				throw new CommandParserException(INVALID_TAG_NAME);
+			}
+			tags.add(tag);
 		}
-		return tags;
+		return TagSet.of(tags);
 	}
 }
@@ -0,0 +1,5 @@
+package tagging.parsing;
+
+enum FindParameter {
+	USER, USERS, COUNT,
+}
@@ -0,0 +1,43 @@
+package tagging.parsing;
+
+import tagging.TagSet;
+
+/**
+ * A command validated by {@link ByteCommandParser}, ready to be run by
+ * {@link CommandParser}.
+ */
+final class ParsedCommand {
+
+	enum Kind {
+		CREATE_USER, ADD_TAGS, REMOVE_TAGS, SHOW_USER, FIND_USER, FIND_USERS, FIND_COUNT,
+	}
+
+	final Kind kind;
+	// The name of a new user, or null.
+	final String name;
+	// The user the command is about, or null.
+	final String userID;
+	private final TagSet tags;
+
+	/**
+	 * @param tags the tags of the command, or null if one of the tag names does not
+	 *             exist. The String parser reports that only after reading the user, so
+	 *             it is reported when the tags are used rather than while parsing.
+	 */
+	ParsedCommand(Kind kind, String name, String userID, TagSet tags) {
+		this.kind = kind;
+		this.name = name;
+		this.userID = userID;
+		this.tags = tags;
+	}
+
+	/**
+	 * @throws CommandParserException if one of the tag names does not exist.
+	 */
+	TagSet getTags() throws CommandParserException {
+		if (tags == null) {
+			throw new CommandParserException(CommandParser.INVALID_TAG_NAME);
+		}
+		return tags;
+	}
+}
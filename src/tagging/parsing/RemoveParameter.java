@@ -0,0 +1,5 @@
+package tagging.parsing;
+
+enum RemoveParameter {
+	TAGS,
+}
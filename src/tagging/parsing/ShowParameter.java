@@ -0,0 +1,5 @@
+package tagging.parsing;
+
+enum ShowParameter {
+	USER, USERS, TAGS, POOL,
+}
@@ -0,0 +1,5 @@
+package tagging.parsing;
+
+enum StatsParameter {
+	TAGS, COMMANDS, DATABASE, CONNECTIONS, CACHE, SHARDS,
+}
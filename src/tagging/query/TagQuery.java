@@ -0,0 +1,283 @@
+package tagging.query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import tagging.Tag;
+import tagging.TagIndex;
+
+/**
+ * A boolean expression over tags, such as "(T1 AND T2) OR NOT T4", compiled into a plan
+ * that is evaluated on the bitmaps of a {@link TagIndex}.
+ *
+ * The plan is simplified when it is built: nested ANDs and ORs are flattened, double
+ * negations cancel, and a NOT under an AND becomes an and-not of its operand instead of
+ * a complement. The operands of an AND are intersected smallest first, so the running
+ * result only shrinks, and the evaluation stops as soon as it is empty. Only a NOT that
+ * is not under an AND needs the complement against all users.
+ */
+public abstract class TagQuery {
+
+	// Page cursors are user ordinals in this radix, so that they are short and opaque.
+	private final static int CURSOR_RADIX = Character.MAX_RADIX;
+
+	public static TagQuery parse(String expression) throws TagQueryException {
+		return new TagQueryParser(expression).parse();
+	}
+
+	static TagQuery tag(Tag tag) {
+		return new TagLeaf(tag);
+	}
+
+	static TagQuery not(TagQuery operand) {
+		if (operand instanceof Not) {
+			return ((Not) operand).operand;
+		}
+		return new Not(operand);
+	}
+
+	static TagQuery and(List<TagQuery> operands) {
+		List<TagQuery> flattened = new ArrayList<>();
+		for (TagQuery operand : operands) {
+			if (operand instanceof And) {
+				flattened.addAll(((And) operand).operands);
+			} else {
+				flattened.add(operand);
+			}
+		}
+		return flattened.size() == 1 ? flattened.get(0) : new And(flattened);
+	}
+
+	static TagQuery or(List<TagQuery> operands) {
+		List<TagQuery> flattened = new ArrayList<>();
+		for (TagQuery operand : operands) {
+			if (operand instanceof Or) {
+				flattened.addAll(((Or) operand).operands);
+			} else {
+				flattened.add(operand);
+			}
+		}
+		return flattened.size() == 1 ? flattened.get(0) : new Or(flattened);
+	}
+
+	/**
+	 * @return the users that match this query.
+	 */
+	public RoaringBitmap evaluate(TagIndex index) {
+		return index.read(this::evaluate);
+	}
+
+	/**
+	 * Evaluates the query and returns one page of it, in user ordinal order. Ordinals
+	 * are never reused and new users get higher ones, so paging with the cursor neither
+	 * skips nor repeats users that exist throughout.
+	 *
+	 * @param cursor the cursor of the previous page, or null for the first page.
+	 * @throws TagQueryException if the cursor is malformed.
+	 */
+	public TagQueryPage page(TagIndex index, String cursor, int limit) throws TagQueryException {
+		int after = -1;
+		if (cursor != null) {
+			try {
+				after = Integer.parseInt(cursor, CURSOR_RADIX);
+			} catch (NumberFormatException e) {
+				throw new TagQueryException(String.format("Invalid cursor \"%s\".", cursor));
+			}
+		}
+		RoaringBitmap users = evaluate(index);
+		PeekableIntIterator ordinals = users.getIntIterator();
+		if (after >= 0) {
+			ordinals.advanceIfNeeded(after + 1);
+		}
+		List<String> userIDs = new ArrayList<>(Math.min(limit, users.getCardinality()));
+		int last = after;
+		while (ordinals.hasNext() && userIDs.size() < limit) {
+			last = ordinals.next();
+			String userID = index.getUserID(last);
+			if (userID != null) {
+				userIDs.add(userID);
+			}
+		}
+		String nextCursor = ordinals.hasNext() ? Integer.toString(last, CURSOR_RADIX) : null;
+		return new TagQueryPage(users.getLongCardinality(), userIDs, nextCursor);
+	}
+
+	/**
+	 * @return the matching users, as a new bitmap owned by the caller.
+	 */
+	abstract RoaringBitmap evaluate(TagIndex.Reader reader);
+
+	/**
+	 * @return an upper bound of the number of matching users, cheap to compute.
+	 */
+	abstract long estimate(TagIndex.Reader reader);
+
+	void andInto(RoaringBitmap result, TagIndex.Reader reader) {
+		result.and(evaluate(reader));
+	}
+
+	void andNotInto(RoaringBitmap result, TagIndex.Reader reader) {
+		result.andNot(evaluate(reader));
+	}
+
+	void orInto(RoaringBitmap result, TagIndex.Reader reader) {
+		result.or(evaluate(reader));
+	}
+
+	private static final class TagLeaf extends TagQuery {
+
+		private final Tag tag;
+
+		TagLeaf(Tag tag) {
+			this.tag = tag;
+		}
+
+		// The leaves use the index's bitmaps in place, without copying them.
+		private RoaringBitmap users(TagIndex.Reader reader) {
+			RoaringBitmap users = reader.getUsers(tag.getOrdinal());
+			return users == null ? new RoaringBitmap() : users;
+		}
+
+		@Override
+		RoaringBitmap evaluate(TagIndex.Reader reader) {
+			return users(reader).clone();
+		}
+
+		@Override
+		long estimate(TagIndex.Reader reader) {
+			return users(reader).getLongCardinality();
+		}
+
+		@Override
+		void andInto(RoaringBitmap result, TagIndex.Reader reader) {
+			result.and(users(reader));
+		}
+
+		@Override
+		void andNotInto(RoaringBitmap result, TagIndex.Reader reader) {
+			result.andNot(users(reader));
+		}
+
+		@Override
+		void orInto(RoaringBitmap result, TagIndex.Reader reader) {
+			result.or(users(reader));
+		}
+
+		@Override
+		public String toString() {
+			return tag.getName();
+		}
+	}
+
+	private static final class Not extends TagQuery {
+
+		private final TagQuery operand;
+
+		Not(TagQuery operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		RoaringBitmap evaluate(TagIndex.Reader reader) {
+			RoaringBitmap result = reader.getAllUsers().clone();
+			operand.andNotInto(result, reader);
+			return result;
+		}
+
+		@Override
+		long estimate(TagIndex.Reader reader) {
+			return reader.getAllUsers().getLongCardinality();
+		}
+
+		@Override
+		void andInto(RoaringBitmap result, TagIndex.Reader reader) {
+			operand.andNotInto(result, reader);
+		}
+
+		@Override
+		public String toString() {
+			return "NOT " + operand;
+		}
+	}
+
+	private static final class And extends TagQuery {
+
+		private final List<TagQuery> operands;
+
+		And(List<TagQuery> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		RoaringBitmap evaluate(TagIndex.Reader reader) {
+			List<TagQuery> positive = new ArrayList<>();
+			List<TagQuery> negated = new ArrayList<>();
+			for (TagQuery operand : operands) {
+				(operand instanceof Not ? negated : positive).add(operand);
+			}
+			positive.sort(Comparator.comparingLong(operand -> operand.estimate(reader)));
+			RoaringBitmap result = positive.isEmpty() ? reader.getAllUsers().clone()
+					: positive.get(0).evaluate(reader);
+			for (int i = 1; i < positive.size() && !result.isEmpty(); i++) {
+				positive.get(i).andInto(result, reader);
+			}
+			for (int i = 0; i < negated.size() && !result.isEmpty(); i++) {
+				negated.get(i).andInto(result, reader);
+			}
+			return result;
+		}
+
+		@Override
+		long estimate(TagIndex.Reader reader) {
+			long estimate = reader.getAllUsers().getLongCardinality();
+			for (TagQuery operand : operands) {
+				if (!(operand instanceof Not)) {
+					estimate = Math.min(estimate, operand.estimate(reader));
+				}
+			}
+			return estimate;
+		}
+
+		@Override
+		public String toString() {
+			return operands.stream().map(TagQuery::toString).collect(Collectors.joining(" AND ", "(", ")"));
+		}
+	}
+
+	private static final class Or extends TagQuery {
+
+		private final List<TagQuery> operands;
+
+		Or(List<TagQuery> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		RoaringBitmap evaluate(TagIndex.Reader reader) {
+			RoaringBitmap result = new RoaringBitmap();
+			for (TagQuery operand : operands) {
+				operand.orInto(result, reader);
+			}
+			return result;
+		}
+
+		@Override
+		long estimate(TagIndex.Reader reader) {
+			long estimate = 0;
+			for (TagQuery operand : operands) {
+				estimate += operand.estimate(reader);
+			}
+			return Math.min(estimate, reader.getAllUsers().getLongCardinality());
+		}
+
+		@Override
+		public String toString() {
+			return operands.stream().map(TagQuery::toString).collect(Collectors.joining(" OR ", "(", ")"));
+		}
+	}
+}
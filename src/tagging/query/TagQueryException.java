@@ -0,0 +1,14 @@
+package tagging.query;
+
+/**
+ * Thrown when a tag query expression or a page cursor cannot be parsed.
+ */
+public class TagQueryException extends Exception {
+
+	public TagQueryException(String message) {
+		super(message);
+	}
+
+	// Generated
+	private static final long serialVersionUID = -2203871964153310473L;
+}
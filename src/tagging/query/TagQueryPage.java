@@ -0,0 +1,37 @@
+package tagging.query;
+
+import java.util.List;
+
+/**
+ * One page of the users that match a tag query.
+ */
+public class TagQueryPage {
+
+	private final long totalCount;
+	private final List<String> userIDs;
+	private final String nextCursor;
+
+	TagQueryPage(long totalCount, List<String> userIDs, String nextCursor) {
+		this.totalCount = totalCount;
+		this.userIDs = userIDs;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * @return the exact number of users that match the query, over all pages.
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public List<String> getUserIDs() {
+		return userIDs;
+	}
+
+	/**
+	 * @return the cursor of the next page, or null if this is the last page.
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+}
@@ -0,0 +1,140 @@
+package tagging.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tagging.Tag;
+
+/**
+ * Recursive descent parser of tag query expressions:
+ *
+ * <pre>
+ * expression := term ( OR term )*
+ * term       := factor ( AND factor )*
+ * factor     := NOT factor | "(" expression ")" | tag name
+ * </pre>
+ *
+ * The keywords are case insensitive, and NOT binds tighter than AND, which binds tighter
+ * than OR. Tag names are resolved through the TagRegistry. A query may have at most
+ * {@link #MAX_TOKENS} tokens and nest NOT and parentheses at most {@link #MAX_DEPTH}
+ * deep, so that neither parsing nor evaluating it can exhaust the stack.
+ */
+final class TagQueryParser {
+
+	private final static String AND = "AND";
+	private final static String OR = "OR";
+	private final static String NOT = "NOT";
+	private final static String OPEN = "(";
+	private final static String CLOSE = ")";
+
+	final static int MAX_TOKENS = 1024;
+	final static int MAX_DEPTH = 64;
+
+	private final List<String> tokens = new ArrayList<>();
+	private int position;
+	private int depth;
+
+	TagQueryParser(String expression) {
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i < expression.length(); i++) {
+			char c = expression.charAt(i);
+			if (Character.isWhitespace(c) || c == '(' || c == ')') {
+				if (token.length() > 0) {
+					tokens.add(token.toString());
+					token.setLength(0);
+				}
+				if (!Character.isWhitespace(c)) {
+					tokens.add(String.valueOf(c));
+				}
+			} else {
+				token.append(c);
+			}
+		}
+		if (token.length() > 0) {
+			tokens.add(token.toString());
+		}
+	}
+
+	TagQuery parse() throws TagQueryException {
+		if (tokens.isEmpty()) {
+			throw new TagQueryException("Expected a query expression.");
+		}
+		if (tokens.size() > MAX_TOKENS) {
+			throw new TagQueryException(String.format("A query may have at most %d tokens.", MAX_TOKENS));
+		}
+		TagQuery query = parseExpression();
+		if (position < tokens.size()) {
+			throw new TagQueryException(String.format("Unexpected \"%s\" in query.", tokens.get(position)));
+		}
+		return query;
+	}
+
+	private TagQuery parseExpression() throws TagQueryException {
+		List<TagQuery> terms = new ArrayList<>();
+		terms.add(parseTerm());
+		while (accept(OR)) {
+			terms.add(parseTerm());
+		}
+		return TagQuery.or(terms);
+	}
+
+	private TagQuery parseTerm() throws TagQueryException {
+		List<TagQuery> factors = new ArrayList<>();
+		factors.add(parseFactor());
+		while (accept(AND)) {
+			factors.add(parseFactor());
+		}
+		return TagQuery.and(factors);
+	}
+
+	private TagQuery parseFactor() throws TagQueryException {
+		if (position == tokens.size()) {
+			throw new TagQueryException("Unexpected end of query.");
+		}
+		if (accept(NOT)) {
+			enter();
+			TagQuery query = TagQuery.not(parseFactor());
+			depth--;
+			return query;
+		}
+		if (accept(OPEN)) {
+			enter();
+			TagQuery query = parseExpression();
+			if (!accept(CLOSE)) {
+				throw new TagQueryException("Expected \")\" in query.");
+			}
+			depth--;
+			return query;
+		}
+		String token = tokens.get(position);
+		if (isReserved(token)) {
+			throw new TagQueryException(String.format("Unexpected \"%s\" in query.", token));
+		}
+		position++;
+		Tag tag = Tag.fromName(token);
+		if (tag == null) {
+			throw new TagQueryException(String.format("Unknown tag \"%s\" in query.", token));
+		}
+		return TagQuery.tag(tag);
+	}
+
+	private void enter() throws TagQueryException {
+		if (++depth > MAX_DEPTH) {
+			throw new TagQueryException(String.format("A query may nest NOT and parentheses at most %d deep.",
+					MAX_DEPTH));
+		}
+	}
+
+	private boolean accept(String keyword) {
+		if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(keyword)) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private static boolean isReserved(String token) {
+		return token.equalsIgnoreCase(AND) || token.equalsIgnoreCase(OR) || token.equalsIgnoreCase(NOT)
+				|| token.equals(OPEN) || token.equals(CLOSE);
+	}
+}
@@ -0,0 +1 @@
+package tagging.query;
\ No newline at end of file
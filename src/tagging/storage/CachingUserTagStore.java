@@ -0,0 +1,611 @@
+package tagging.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import tagging.AbstractUserTagStore;
+import tagging.AsyncUserTagStore;
+import tagging.ConnectionPoolStatistics;
+import tagging.Tag;
+import tagging.TagIndex;
+import tagging.TagMutation;
+import tagging.TagMutationResult;
+import tagging.TagSet;
+import tagging.TagStatistics;
+import tagging.TaggableOperation;
+import tagging.User;
+import tagging.UserTagListener;
+import tagging.UserTagStore;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.metrics.UserCacheMetrics;
+
+import static tagging.storage.UserKeys.STRIPES;
+import static tagging.storage.UserKeys.stripe;
+import static tagging.storage.UserKeys.toKey;
+
+/**
+ * A bounded cache of users in front of another store, which serves the reads of hot
+ * users from memory.
+ *
+ * The cache holds a snapshot of the name and tags of each user, and evicts by W-TinyLFU,
+ * which keeps the users read often over those read once. Changes made through this store
+ * are written through: once the store has applied a change, the snapshot is changed the
+ * same way. Every snapshot has a version that no other snapshot has. A change notes the
+ * version before it goes to the store, and if the snapshot was replaced meanwhile, by a
+ * racing change or a load that may have read the user before the change, the snapshot is
+ * dropped rather than updated, since the order of the two is not known. A change that
+ * fails may still have reached the store, so it drops the snapshot as well.
+ *
+ * A single user is loaded under the cache's lock for its key, which a change waits for.
+ * Users loaded in bulk or asynchronously are not, so each change also counts itself in a
+ * stripe of counters before it touches the cache, and such a user is kept only if no
+ * change to it was counted while it was loaded.
+ *
+ * The asynchronous view serves cached users right away, and goes to the asynchronous view
+ * of the store for the rest and for changes.
+ *
+ * Changes made by other nodes do not pass through here; {@link #invalidate(String)} and
+ * {@link #refresh(String, TagSet)} are their hooks. A change whose outcome contradicts the
+ * snapshot, such as an addition that changed nothing although the snapshot lacked the
+ * tags, proves the snapshot stale, and it is dropped as well. Both count as stale reads.
+ *
+ * Scans, listings, tags and the tag index go straight to the store.
+ */
+public class CachingUserTagStore extends AbstractUserTagStore {
+
+	private static final class CachedUser {
+		final String name;
+		final TagSet tags;
+		final long version;
+
+		CachedUser(String name, TagSet tags, long version) {
+			this.name = name;
+			this.tags = tags;
+			this.version = version;
+		}
+	}
+
+	// The version of a user that is not cached.
+	private final static long NOT_CACHED = -1;
+
+	private final UserTagStore store;
+	private final Cache<String, CachedUser> cache;
+	private final UserCacheMetrics metrics;
+	private final AtomicLong versions = new AtomicLong();
+	private final AtomicLongArray changeCounts = new AtomicLongArray(STRIPES);
+	private volatile AsyncUserTagStore async;
+
+	/**
+	 * @param maximumSize the number of users the cache holds at most.
+	 */
+	public CachingUserTagStore(UserTagStore store, long maximumSize) {
+		this.store = store;
+		cache = Caffeine.newBuilder().maximumSize(maximumSize).recordStats().build();
+		metrics = new UserCacheMetrics(cache, maximumSize);
+	}
+
+	public UserCacheMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Drops the cached snapshot of a user that another node changed or deleted.
+	 */
+	public void invalidate(String userID) {
+		forget(toKey(userID));
+	}
+
+	/**
+	 * Replaces the cached tags of a user that another node changed, if the user is cached.
+	 *
+	 * @param tags the tags of the user after the change, or null if it was deleted.
+	 */
+	public void refresh(String userID, TagSet tags) {
+		String key = toKey(userID);
+		countChange(key);
+		cache.asMap().computeIfPresent(key, (unused, cached) -> {
+			if (cached.tags.equals(tags)) {
+				return cached;
+			}
+			metrics.recordStaleRead();
+			return tags == null ? null : new CachedUser(cached.name, tags, versions.incrementAndGet());
+		});
+	}
+
+	@Override
+	public User insertUser(String name, Set<Tag> tags) {
+		User user = store.insertUser(name, tags);
+		cache.put(toKey(user.getID()), new CachedUser(user.getName(), TagSet.of(tags), versions.incrementAndGet()));
+		return user;
+	}
+
+	@Override
+	public List<User> insertUsers(List<String> names, List<? extends Set<Tag>> tags) {
+		List<User> users = store.insertUsers(names, tags);
+		for (int i = 0; i < users.size(); i++) {
+			User user = users.get(i);
+			cache.put(toKey(user.getID()),
+					new CachedUser(user.getName(), TagSet.of(tags.get(i)), versions.incrementAndGet()));
+		}
+		return users;
+	}
+
+	@Override
+	public boolean deleteUser(String userID) {
+		String key = toKey(userID);
+		try {
+			return store.deleteUser(key);
+		} finally {
+			forget(key);
+		}
+	}
+
+	@Override
+	public User getUser(String userID) {
+		String key = toKey(userID);
+		CachedUser cached = cache.get(key, this::load);
+		return cached == null ? null : new User(key, cached.name, visibleTags(cached.tags));
+	}
+
+	/**
+	 * Reads the users that are not cached from the store with a single query, and caches
+	 * those that did not change meanwhile.
+	 */
+	@Override
+	public Map<String, User> getUsers(Collection<String> userIDs) {
+		Set<String> keys = new LinkedHashSet<>();
+		for (String userID : userIDs) {
+			keys.add(toKey(userID));
+		}
+		Map<String, User> users = new HashMap<>();
+		Map<String, Long> missing = new HashMap<>();
+		for (String key : keys) {
+			CachedUser cached = cache.getIfPresent(key);
+			if (cached != null) {
+				users.put(key, new User(key, cached.name, visibleTags(cached.tags)));
+			} else {
+				missing.put(key, changeCounts.get(stripe(key)));
+			}
+		}
+		if (missing.isEmpty()) {
+			return users;
+		}
+		for (User user : store.getUsers(new ArrayList<>(missing.keySet())).values()) {
+			String key = toKey(user.getID());
+			CachedUser cached = cacheLoaded(key, user, missing.get(key));
+			users.put(key, new User(key, cached.name, visibleTags(cached.tags)));
+		}
+		return users;
+	}
+
+	@Override
+	public List<User> getAllUsers() {
+		return store.getAllUsers();
+	}
+
+	@Override
+	public void forEachUser(String fromID, String toID, Predicate<User> visitor) {
+		store.forEachUser(fromID, toID, visitor);
+	}
+
+	@Override
+	public List<String> getUserIDSplitPoints(int partitions) {
+		return store.getUserIDSplitPoints(partitions);
+	}
+
+	@Override
+	public void writeAllUsers(Appendable out) throws IOException {
+		store.writeAllUsers(out);
+	}
+
+	@Override
+	public void writeAllTags(Appendable out) throws IOException {
+		store.writeAllTags(out);
+	}
+
+	@Override
+	public boolean userHasTag(String userID, Tag tag) {
+		return getTagsForUser(userID).contains(tag);
+	}
+
+	@Override
+	public TagSet getTagsForUser(String userID) {
+		CachedUser cached = cache.get(toKey(userID), this::load);
+		return cached == null ? TagSet.EMPTY : visibleTags(cached.tags);
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd) {
+		String key = toKey(userID);
+		long version = getVersion(key);
+		boolean changed;
+		try {
+			changed = store.addTagsToUser(key, tagsToAdd);
+		} catch (RuntimeException e) {
+			forget(key);
+			throw e;
+		}
+		writeThrough(key, version, TaggableOperation.ADD_TAG, tagsToAdd, changed);
+		return changed;
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove) {
+		String key = toKey(userID);
+		long version = getVersion(key);
+		boolean changed;
+		try {
+			changed = store.removeTagsFromUser(key, tagsToRemove);
+		} catch (RuntimeException e) {
+			forget(key);
+			throw e;
+		}
+		writeThrough(key, version, TaggableOperation.REMOVE_TAG, tagsToRemove, changed);
+		return changed;
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		String key = toKey(userID);
+		long version = getVersion(key);
+		boolean changed;
+		try {
+			changed = store.addTagsToUser(key, tagsToAdd, rules);
+		} catch (RuntimeException e) {
+			forget(key);
+			throw e;
+		}
+		writeThrough(key, version, TaggableOperation.ADD_TAG, tagsToAdd, changed);
+		return changed;
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		String key = toKey(userID);
+		long version = getVersion(key);
+		boolean changed;
+		try {
+			changed = store.removeTagsFromUser(key, tagsToRemove, rules);
+		} catch (RuntimeException e) {
+			forget(key);
+			throw e;
+		}
+		writeThrough(key, version, TaggableOperation.REMOVE_TAG, tagsToRemove, changed);
+		return changed;
+	}
+
+	/**
+	 * Writes the mutations that the store wrote through, and drops the users of those it
+	 * did not write, whose tags the store saw differ from the snapshot. A bulk write does
+	 * not tell which users it changed, so it cannot prove a snapshot stale otherwise.
+	 */
+	@Override
+	public TagMutationResult applyTagMutations(List<TagMutation> mutations) {
+		long[] versionsBefore = new long[mutations.size()];
+		for (int i = 0; i < mutations.size(); i++) {
+			versionsBefore[i] = getVersion(toKey(mutations.get(i).getUserID()));
+		}
+		TagMutationResult result;
+		try {
+			result = store.applyTagMutations(mutations);
+		} catch (RuntimeException e) {
+			for (TagMutation mutation : mutations) {
+				forget(toKey(mutation.getUserID()));
+			}
+			throw e;
+		}
+		for (int i = 0; i < mutations.size(); i++) {
+			TagMutation mutation = mutations.get(i);
+			String key = toKey(mutation.getUserID());
+			if (result.isWritten(i)) {
+				writeThrough(key, versionsBefore[i], mutation.getOperation(), mutation.getTags(), null);
+			} else {
+				forget(key);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Tag insertTag(String tagName) {
+		return store.insertTag(tagName);
+	}
+
+	@Override
+	public boolean deleteTag(String tagID) {
+		return store.deleteTag(tagID);
+	}
+
+	@Override
+	public Tag getTag(String tagName) {
+		return store.getTag(tagName);
+	}
+
+	@Override
+	public void addListener(UserTagListener listener) {
+		store.addListener(listener);
+	}
+
+	@Override
+	public void removeListener(UserTagListener listener) {
+		store.removeListener(listener);
+	}
+
+	@Override
+	public TagIndex buildTagIndex() {
+		return store.buildTagIndex();
+	}
+
+	@Override
+	public TagIndex getTagIndex() {
+		return store.getTagIndex();
+	}
+
+	@Override
+	public TagStatistics getTagStatistics() {
+		return store.getTagStatistics();
+	}
+
+	@Override
+	public ConnectionPoolStatistics getPoolStatistics() {
+		return store.getPoolStatistics();
+	}
+
+	/**
+	 * The view that serves cached users right away, and goes to the asynchronous view of
+	 * the store for the rest.
+	 */
+	@Override
+	public AsyncUserTagStore async() {
+		AsyncUserTagStore view = async;
+		if (view != null) {
+			return view;
+		}
+		synchronized (this) {
+			if (async == null) {
+				async = new AsyncCachingUserTagStore(store.async());
+			}
+			return async;
+		}
+	}
+
+	@Override
+	public void close() {
+		cache.invalidateAll();
+		store.close();
+	}
+
+	private CachedUser load(String key) {
+		User user = store.getUser(key);
+		return user == null ? null : newCachedUser(user);
+	}
+
+	private CachedUser newCachedUser(User user) {
+		return new CachedUser(user.getName(), user.getLoadedTags(), versions.incrementAndGet());
+	}
+
+	/**
+	 * Caches a user loaded without the cache's lock, unless a change to it was counted
+	 * since the count was read before the load.
+	 *
+	 * @return the cached user, or the loaded one if it was not cached.
+	 */
+	private CachedUser cacheLoaded(String key, User user, long count) {
+		CachedUser loaded = newCachedUser(user);
+		CachedUser cached = cache.asMap().putIfAbsent(key, loaded);
+		if (cached != null) {
+			return cached;
+		}
+		// Counted after the change reached the store, which the load may predate. A change
+		// counted later sees this version and drops it itself.
+		if (changeCounts.get(stripe(key)) != count) {
+			cache.asMap().remove(key, loaded);
+		}
+		return loaded;
+	}
+
+	/**
+	 * @return the version of the cached user, without counting a lookup.
+	 */
+	private long getVersion(String key) {
+		CachedUser cached = cache.asMap().get(key);
+		return cached == null ? NOT_CACHED : cached.version;
+	}
+
+	/**
+	 * Applies a change that the store has made to the cached user, if its snapshot is
+	 * still the one from before the change.
+	 *
+	 * @param changed whether the store changed the user, or null if not known.
+	 */
+	private void writeThrough(String key, long version, TaggableOperation operation, Set<Tag> tags,
+			Boolean changed) {
+		countChange(key);
+		cache.asMap().computeIfPresent(key, (unused, cached) -> {
+			if (cached.version != version) {
+				// A racing change or load replaced the snapshot; their order is not known.
+				return null;
+			}
+			TagSet after = operation == TaggableOperation.ADD_TAG ? cached.tags.union(tags)
+					: cached.tags.difference(tags);
+			if (changed != null && after.equals(cached.tags) == changed) {
+				// The store saw other tags than the snapshot.
+				metrics.recordStaleRead();
+				return null;
+			}
+			return new CachedUser(cached.name, after, versions.incrementAndGet());
+		});
+	}
+
+	/**
+	 * Drops the cached user after a change whose outcome the snapshot cannot follow, such
+	 * as one that failed after it may have reached the store.
+	 */
+	private void forget(String key) {
+		countChange(key);
+		cache.invalidate(key);
+	}
+
+	/**
+	 * Counts a change of the user that has reached the store, before it touches the cache.
+	 */
+	private void countChange(String key) {
+		changeCounts.incrementAndGet(stripe(key));
+	}
+
+	/**
+	 * Serves cached users like the blocking operations do, loads the others with the
+	 * asynchronous view of the store, and writes changes through once it has made them.
+	 */
+	private final class AsyncCachingUserTagStore implements AsyncUserTagStore {
+
+		private final AsyncUserTagStore store;
+
+		AsyncCachingUserTagStore(AsyncUserTagStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public CompletableFuture<User> insertUser(String name, Set<Tag> tags) {
+			return store.insertUser(name, tags).thenApply(user -> {
+				cache.put(toKey(user.getID()),
+						new CachedUser(user.getName(), TagSet.of(tags), versions.incrementAndGet()));
+				return user;
+			});
+		}
+
+		@Override
+		public CompletableFuture<Boolean> deleteUser(String userID) {
+			String key = toKey(userID);
+			return store.deleteUser(key).whenComplete((deleted, e) -> forget(key));
+		}
+
+		@Override
+		public CompletableFuture<User> getUser(String userID) {
+			String key = toKey(userID);
+			return getCached(key).thenApply(
+					cached -> cached == null ? null : new User(key, cached.name, visibleTags(cached.tags)));
+		}
+
+		@Override
+		public CompletableFuture<Map<String, User>> getUsers(Collection<String> userIDs) {
+			Set<String> keys = new LinkedHashSet<>();
+			for (String userID : userIDs) {
+				keys.add(toKey(userID));
+			}
+			Map<String, User> users = new HashMap<>();
+			Map<String, Long> missing = new HashMap<>();
+			for (String key : keys) {
+				CachedUser cached = cache.getIfPresent(key);
+				if (cached != null) {
+					users.put(key, new User(key, cached.name, visibleTags(cached.tags)));
+				} else {
+					missing.put(key, changeCounts.get(stripe(key)));
+				}
+			}
+			if (missing.isEmpty()) {
+				return CompletableFuture.completedFuture(users);
+			}
+			return store.getUsers(new ArrayList<>(missing.keySet())).thenApply(loaded -> {
+				for (User user : loaded.values()) {
+					String key = toKey(user.getID());
+					CachedUser cached = cacheLoaded(key, user, missing.get(key));
+					users.put(key, new User(key, cached.name, visibleTags(cached.tags)));
+				}
+				return users;
+			});
+		}
+
+		@Override
+		public CompletableFuture<TagSet> getTagsForUser(String userID) {
+			return getCached(toKey(userID))
+					.thenApply(cached -> cached == null ? TagSet.EMPTY : visibleTags(cached.tags));
+		}
+
+		@Override
+		public CompletableFuture<Boolean> addTagsToUser(String userID, Set<Tag> tagsToAdd,
+				Collection<ConsistencyRule> rules) {
+			String key = toKey(userID);
+			long version = getVersion(key);
+			return whenWritten(key, version, TaggableOperation.ADD_TAG, tagsToAdd,
+					store.addTagsToUser(key, tagsToAdd, rules));
+		}
+
+		@Override
+		public CompletableFuture<Boolean> removeTagsFromUser(String userID, Set<Tag> tagsToRemove,
+				Collection<ConsistencyRule> rules) {
+			String key = toKey(userID);
+			long version = getVersion(key);
+			return whenWritten(key, version, TaggableOperation.REMOVE_TAG, tagsToRemove,
+					store.removeTagsFromUser(key, tagsToRemove, rules));
+		}
+
+		/**
+		 * Writes the mutations through like the blocking operation does.
+		 */
+		@Override
+		public CompletableFuture<TagMutationResult> applyTagMutations(List<TagMutation> mutations) {
+			long[] versionsBefore = new long[mutations.size()];
+			for (int i = 0; i < mutations.size(); i++) {
+				versionsBefore[i] = getVersion(toKey(mutations.get(i).getUserID()));
+			}
+			return store.applyTagMutations(mutations).whenComplete((result, e) -> {
+				for (int i = 0; i < mutations.size(); i++) {
+					TagMutation mutation = mutations.get(i);
+					String key = toKey(mutation.getUserID());
+					if (e == null && result.isWritten(i)) {
+						writeThrough(key, versionsBefore[i], mutation.getOperation(), mutation.getTags(), null);
+					} else {
+						forget(key);
+					}
+				}
+			});
+		}
+
+		/**
+		 * @return the cached user, or the one loaded from the store if it is not cached.
+		 */
+		private CompletableFuture<CachedUser> getCached(String key) {
+			CachedUser cached = cache.getIfPresent(key);
+			if (cached != null) {
+				return CompletableFuture.completedFuture(cached);
+			}
+			long count = changeCounts.get(stripe(key));
+			return store.getUser(key).thenApply(user -> user == null ? null : cacheLoaded(key, user, count));
+		}
+
+		/**
+		 * Writes a change through once the store has made it, and drops the cached user if
+		 * the change fails other than by breaking a rule, since it may have reached the
+		 * store.
+		 */
+		private CompletableFuture<Boolean> whenWritten(String key, long version, TaggableOperation operation,
+				Set<Tag> tags, CompletableFuture<Boolean> change) {
+			return change.whenComplete((changed, e) -> {
+				Throwable failure = e instanceof CompletionException ? e.getCause() : e;
+				if (failure == null) {
+					writeThrough(key, version, operation, tags, changed);
+				} else if (!(failure instanceof ConsistencyRuleViolationException)) {
+					forget(key);
+				}
+			});
+		}
+	}
+}
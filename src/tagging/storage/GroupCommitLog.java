@@ -0,0 +1,225 @@
+package tagging.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes the records of many concurrent writers durable with one sync of a
+ * {@link SegmentedLog}.
+ *
+ * Writers append and then wait in {@link #awaitDurable(long)}, or are told by
+ * {@link #whenDurable(long)} without waiting. A syncing thread collects
+ * the records appended meanwhile into a batch, which is closed once it holds the maximum
+ * number of records or its first record has waited the maximum delay, and then syncs the
+ * log once for the whole batch. A writer alone thus waits at most the delay plus one sync,
+ * while under load each sync is shared by up to a batch of writers.
+ */
+public final class GroupCommitLog implements Closeable {
+
+	private final SegmentedLog log;
+	private final long maxDelayNanos;
+	private final int maxBatchRecords;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private final Condition synced = lock.newCondition();
+	private final Thread syncer;
+	private long lastAppendedLSN;
+	private long lastDurableLSN;
+	private long batchStartNanos;
+	private IOException failure;
+	private boolean closed;
+	private long syncs;
+	private long syncedRecords;
+	// Completed by the syncing thread once their LSN is durable.
+	private final TreeMap<Long, CompletableFuture<Void>> durableFutures = new TreeMap<>();
+
+	/**
+	 * @param maxDelayMicros  how long the first record of a batch may wait for more.
+	 * @param maxBatchRecords the number of records that closes a batch early.
+	 */
+	public GroupCommitLog(SegmentedLog log, long maxDelayMicros, int maxBatchRecords) {
+		this.log = log;
+		this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+		this.maxBatchRecords = maxBatchRecords;
+		this.lastAppendedLSN = log.getNextLSN() - 1;
+		this.lastDurableLSN = lastAppendedLSN;
+		syncer = new Thread(this::syncBatches, "tagging-group-commit");
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	/**
+	 * Appends a record, which becomes durable with the next batch.
+	 *
+	 * @return the LSN of the record.
+	 */
+	public long append(byte[] payload) throws IOException {
+		long lsn = log.append(payload);
+		lock.lock();
+		try {
+			if (lastAppendedLSN == lastDurableLSN) {
+				batchStartNanos = System.nanoTime();
+			}
+			// Appends are ordered by the log, but may get here out of order.
+			lastAppendedLSN = Math.max(lastAppendedLSN, lsn);
+			appended.signal();
+		} finally {
+			lock.unlock();
+		}
+		return lsn;
+	}
+
+	/**
+	 * Waits until the record with the given LSN is durable.
+	 *
+	 * @throws IOException if syncing the log failed.
+	 */
+	public void awaitDurable(long lsn) throws IOException {
+		lock.lock();
+		try {
+			while (lastDurableLSN < lsn) {
+				if (failure != null) {
+					throw new IOException("Syncing the log failed.", failure);
+				}
+				synced.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a future completed on the syncing thread once the record with the given LSN
+	 *         is durable, or completed with an IOException if syncing the log failed.
+	 */
+	public CompletableFuture<Void> whenDurable(long lsn) {
+		lock.lock();
+		try {
+			if (lastDurableLSN >= lsn) {
+				return CompletableFuture.completedFuture(null);
+			}
+			if (failure != null) {
+				return CompletableFuture.failedFuture(new IOException("Syncing the log failed.", failure));
+			}
+			return durableFutures.computeIfAbsent(lsn, unused -> new CompletableFuture<>());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the average number of records made durable by one sync.
+	 */
+	public double getAverageBatchRecords() {
+		lock.lock();
+		try {
+			return syncs == 0 ? 0 : (double) syncedRecords / syncs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public SegmentedLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Syncs the records appended so far and stops the syncing thread. The log itself stays
+	 * open, and records appended from now on are not synced.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			appended.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			syncer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void syncBatches() {
+		while (true) {
+			long batchEnd;
+			lock.lock();
+			try {
+				while (lastAppendedLSN == lastDurableLSN && !closed) {
+					appended.awaitUninterruptibly();
+				}
+				if (lastAppendedLSN == lastDurableLSN) {
+					// Closed, with every record synced.
+					return;
+				}
+				long deadline = batchStartNanos + maxDelayNanos;
+				long now;
+				while (lastAppendedLSN - lastDurableLSN < maxBatchRecords && (now = System.nanoTime()) < deadline
+						&& !closed) {
+					try {
+						appended.awaitNanos(deadline - now);
+					} catch (InterruptedException e) {
+						// Only close stops this thread.
+					}
+				}
+				batchEnd = lastAppendedLSN;
+			} finally {
+				lock.unlock();
+			}
+
+			IOException syncFailure = null;
+			try {
+				log.sync();
+			} catch (IOException e) {
+				syncFailure = e;
+			}
+
+			List<CompletableFuture<Void>> completed = new ArrayList<>();
+			lock.lock();
+			try {
+				if (syncFailure != null) {
+					failure = syncFailure;
+					completed.addAll(durableFutures.values());
+					durableFutures.clear();
+				} else {
+					syncs++;
+					syncedRecords += batchEnd - lastDurableLSN;
+					lastDurableLSN = batchEnd;
+					if (lastAppendedLSN > lastDurableLSN) {
+						// Records appended during the sync start the next batch now.
+						batchStartNanos = System.nanoTime();
+					}
+					Map<Long, CompletableFuture<Void>> durable = durableFutures.headMap(lastDurableLSN, true);
+					completed.addAll(durable.values());
+					durable.clear();
+				}
+				synced.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			// Outside the lock, as they run the stages that depend on them.
+			for (CompletableFuture<Void> future : completed) {
+				if (syncFailure != null) {
+					future.completeExceptionally(new IOException("Syncing the log failed.", syncFailure));
+				} else {
+					future.complete(null);
+				}
+			}
+			if (syncFailure != null) {
+				// The log cannot be trusted anymore; every waiter now fails.
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,664 @@
+package tagging.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+
+import tagging.AbstractUserTagStore;
+import tagging.ConnectionPoolStatistics;
+import tagging.Tag;
+import tagging.TagMutation;
+import tagging.TagMutationResult;
+import tagging.TagRegistry;
+import tagging.TagSet;
+import tagging.TaggableOperation;
+import tagging.User;
+import tagging.UserNotFoundException;
+import tagging.consistency.ConsistencyPrecondition;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+
+import static tagging.storage.UserKeys.newLocks;
+import static tagging.storage.UserKeys.readID;
+import static tagging.storage.UserKeys.readTags;
+import static tagging.storage.UserKeys.stripe;
+import static tagging.storage.UserKeys.toKey;
+import static tagging.storage.UserKeys.writeID;
+import static tagging.storage.UserKeys.writeTags;
+
+/**
+ * Embedded, persistent storage for Users and Tags in one local directory, for deployments
+ * without MongoDB.
+ *
+ * Every change is appended to a {@link SegmentedLog} before it is applied. The users are
+ * read from the latest {@link UserSnapshot}, which is memory-mapped rather than loaded,
+ * overlaid with the users changed since, which are held in memory. Once enough log has
+ * accumulated, a new snapshot is written in the background, the overlay is pruned and the
+ * covered log segments are deleted. Opening the store maps the latest snapshot and
+ * replays only the log written after it, so recovery does not grow with the number of
+ * users.
+ *
+ * Snapshots are written while users keep changing, so a snapshot may already reflect
+ * some changes logged after its LSN. Log records therefore carry the complete new state
+ * of a user rather than a difference, which makes replaying them over such a snapshot
+ * converge to the same state.
+ *
+ * Changes to one user are serialized by a striped lock, so that their log records are in
+ * the same order as their effects.
+ */
+public class LogUserTagStore extends AbstractUserTagStore {
+
+	final static String LOG_DIRECTORY = "log";
+	final static long SEGMENT_BYTES = 64L << 20;
+	// Log written since the last snapshot that triggers the next one.
+	final static long SNAPSHOT_LOG_BYTES = 256L << 20;
+
+	private final static byte INSERT_USER = 1;
+	private final static byte DELETE_USER = 2;
+	private final static byte SET_TAGS = 3;
+	private final static byte INSERT_TAG = 4;
+	private final static byte DELETE_TAG = 5;
+
+	/**
+	 * A user changed since the snapshot, or a deleted user if tags is null.
+	 */
+	private static final class StoredUser {
+		final String name;
+		final TagSet tags;
+		// LSN of the record that produced this state.
+		final long lsn;
+
+		StoredUser(String name, TagSet tags, long lsn) {
+			this.name = name;
+			this.tags = tags;
+			this.lsn = lsn;
+		}
+	}
+
+	private final Path directory;
+	private final boolean syncEachWrite;
+	private final SegmentedLog log;
+	// Guards switching to a new snapshot against readers of the snapshot and the overlay.
+	private final StampedLock snapshotLock = new StampedLock();
+	// Held shared while a change is logged and applied, and exclusively to roll the log.
+	private final ReentrantReadWriteLock rollLock = new ReentrantReadWriteLock();
+	private volatile UserSnapshot snapshot;
+	private final ConcurrentSkipListMap<String, StoredUser> changes = new ConcurrentSkipListMap<>();
+	private final Object[] userLocks = newLocks();
+	private final ConcurrentHashMap<String, Tag> tagsByID = new ConcurrentHashMap<>();
+	private final ExecutorService snapshotExecutor;
+	private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+	private volatile long logBytesAtSnapshot;
+
+	/**
+	 * Opens the store in the directory, creating it if needed.
+	 *
+	 * @param syncEachWrite whether each change is forced to disk before it returns. If
+	 *                      not, a crash of the machine may lose the latest changes.
+	 */
+	public LogUserTagStore(Path directory, boolean syncEachWrite) throws IOException {
+		this.directory = directory;
+		this.syncEachWrite = syncEachWrite;
+		Files.createDirectories(directory);
+		// Scratch files of a snapshot that was interrupted.
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tmp")) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+
+		snapshot = UserSnapshot.openLatest(directory);
+		long lsn = 0;
+		if (snapshot != null) {
+			lsn = snapshot.getLSN();
+			for (Tag tag : snapshot.getTags()) {
+				tagsByID.put(tag.getID(), tag);
+			}
+		}
+		TagRegistry.getInstance().load(tagsByID.values());
+		log = new SegmentedLog(directory.resolve(LOG_DIRECTORY), SEGMENT_BYTES, lsn);
+		log.replay(lsn, this::replay);
+
+		snapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "tagging-log-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public User insertUser(String name, Set<Tag> tags) {
+		String userID = new ObjectId().toHexString();
+		TagSet tagSet = TagSet.of(tags);
+		insert(userID, name, tagSet, syncEachWrite);
+		fireUserInserted(userID, tagSet);
+		return new User(userID, name, TagSet.EMPTY);
+	}
+
+	/**
+	 * Inserts the users with a single sync at the end.
+	 */
+	@Override
+	public List<User> insertUsers(List<String> names, List<? extends Set<Tag>> tags) {
+		List<User> users = new ArrayList<>(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			String userID = new ObjectId().toHexString();
+			TagSet tagSet = TagSet.of(tags.get(i));
+			insert(userID, names.get(i), tagSet, false);
+			users.add(new User(userID, names.get(i), tagSet));
+		}
+		sync();
+		for (User user : users) {
+			fireUserInserted(user.getID(), user.getLoadedTags());
+		}
+		return users;
+	}
+
+	@Override
+	public boolean deleteUser(String userID) {
+		String key = toKey(userID);
+		synchronized (lockFor(key)) {
+			StoredUser user = lookup(key);
+			if (user == null) {
+				return false;
+			}
+			append(encode(DELETE_USER, key, null, null), syncEachWrite,
+					lsn -> changes.put(key, new StoredUser(user.name, null, lsn)));
+			fireUserDeleted(key, visibleTags(user.tags));
+			return true;
+		}
+	}
+
+	@Override
+	public User getUser(String userID) {
+		String key = toKey(userID);
+		return toUser(key, lookup(key));
+	}
+
+	@Override
+	public Map<String, User> getUsers(Collection<String> userIDs) {
+		List<String> keys = new ArrayList<>(userIDs.size());
+		for (String userID : userIDs) {
+			keys.add(toKey(userID));
+		}
+		Map<String, User> users = new HashMap<>();
+		for (String key : keys) {
+			User user = toUser(key, lookup(key));
+			if (user != null) {
+				users.put(key, user);
+			}
+		}
+		return users;
+	}
+
+	@Override
+	public List<User> getAllUsers() {
+		List<User> allUsers = new ArrayList<>();
+		forEachUser(null, null, allUsers::add);
+		return allUsers;
+	}
+
+	/**
+	 * Merges the users of the snapshot with the changed users, both sorted by ID.
+	 */
+	@Override
+	public void forEachUser(String fromID, String toID, Predicate<User> visitor) {
+		String fromKey = fromID == null ? null : toKey(fromID);
+		String toKey = toID == null ? null : toKey(toID);
+		long stamp = snapshotLock.readLock();
+		try {
+			UserSnapshot snapshot = this.snapshot;
+			ConcurrentNavigableMap<String, StoredUser> range = changes;
+			if (fromKey != null) {
+				range = range.tailMap(fromKey, true);
+			}
+			if (toKey != null) {
+				range = range.headMap(toKey, false);
+			}
+			Iterator<Map.Entry<String, StoredUser>> changed = range.entrySet().iterator();
+			Map.Entry<String, StoredUser> change = changed.hasNext() ? changed.next() : null;
+			int position = snapshot == null || fromKey == null ? 0 : lowerBound(snapshot, fromKey);
+			int end = snapshot == null ? 0 : toKey == null ? snapshot.size() : lowerBound(snapshot, toKey);
+			String snapshotID = position < end ? snapshot.getUserID(position) : null;
+
+			while (change != null || snapshotID != null) {
+				int comparison = change == null ? 1 : snapshotID == null ? -1 : change.getKey().compareTo(snapshotID);
+				User user;
+				if (comparison <= 0) {
+					user = toUser(change.getKey(), change.getValue());
+					change = changed.hasNext() ? changed.next() : null;
+				} else {
+					user = new User(snapshotID, snapshot.getName(position), visibleTags(snapshot.getTags(position)));
+				}
+				if (comparison >= 0) {
+					position++;
+					snapshotID = position < end ? snapshot.getUserID(position) : null;
+				}
+				if (user != null && !visitor.test(user)) {
+					return;
+				}
+			}
+		} finally {
+			snapshotLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Picks the split points from the snapshot index, or from the changed users if there
+	 * is no snapshot yet.
+	 */
+	@Override
+	public List<String> getUserIDSplitPoints(int partitions) {
+		List<String> splitPoints = new ArrayList<>();
+		if (partitions <= 1) {
+			return splitPoints;
+		}
+		UserSnapshot snapshot = this.snapshot;
+		if (snapshot != null && snapshot.size() > 0) {
+			for (int i = 1; i < partitions; i++) {
+				String splitPoint = snapshot.getUserID((int) ((long) i * snapshot.size() / partitions));
+				if (splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint)) {
+					splitPoints.add(splitPoint);
+				}
+			}
+			return splitPoints;
+		}
+		int count = changes.size();
+		int index = 0;
+		int next = 1;
+		for (String userID : changes.keySet()) {
+			if (index++ == (int) ((long) next * count / partitions)) {
+				splitPoints.add(userID);
+				if (++next == partitions) {
+					break;
+				}
+			}
+		}
+		return splitPoints;
+	}
+
+	@Override
+	public void writeAllTags(Appendable out) throws IOException {
+		for (Tag tag : tagsByID.values()) {
+			appendTagRow(out, tag.getID(), tag.getName());
+		}
+	}
+
+	@Override
+	public boolean userHasTag(String userID, Tag tag) {
+		StoredUser user = lookup(toKey(userID));
+		return user != null && visibleTags(user.tags).contains(tag);
+	}
+
+	@Override
+	public TagSet getTagsForUser(String userID) {
+		StoredUser user = lookup(toKey(userID));
+		return user == null ? TagSet.EMPTY : visibleTags(user.tags);
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd) {
+		return update(userID, TaggableOperation.ADD_TAG, tagsToAdd, syncEachWrite);
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove) {
+		return update(userID, TaggableOperation.REMOVE_TAG, tagsToRemove, syncEachWrite);
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		return update(userID, TaggableOperation.ADD_TAG, tagsToAdd,
+				getPreconditions(TaggableOperation.ADD_TAG, tagsToAdd, rules), syncEachWrite);
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		return update(userID, TaggableOperation.REMOVE_TAG, tagsToRemove,
+				getPreconditions(TaggableOperation.REMOVE_TAG, tagsToRemove, rules), syncEachWrite);
+	}
+
+	/**
+	 * Applies the mutations, each checking its preconditions under the user's lock, with a
+	 * single sync at the end.
+	 */
+	@Override
+	public TagMutationResult applyTagMutations(List<TagMutation> mutations) {
+		Exception[] failures = new Exception[mutations.size()];
+		int modified = 0;
+		for (int i = 0; i < mutations.size(); i++) {
+			TagMutation mutation = mutations.get(i);
+			try {
+				if (update(mutation.getUserID(), mutation.getOperation(), mutation.getTags(),
+						mutation.getPreconditions(), false)) {
+					modified++;
+				} else if (lookup(toKey(mutation.getUserID())) == null) {
+					failures[i] = new UserNotFoundException(mutation.getUserID());
+				}
+			} catch (ConsistencyRuleViolationException e) {
+				failures[i] = e;
+			}
+		}
+		sync();
+		return new TagMutationResult(modified, failures);
+	}
+
+	@Override
+	public Tag insertTag(String tagName) {
+		Tag tag = new Tag(new ObjectId().toHexString(), tagName);
+		append(encode(INSERT_TAG, tag.getID(), tagName, null), syncEachWrite,
+				lsn -> tagsByID.put(tag.getID(), tag));
+		TagRegistry.getInstance().register(tag);
+		return tag;
+	}
+
+	@Override
+	public boolean deleteTag(String tagID) {
+		String key = toKey(tagID);
+		boolean[] deleted = new boolean[1];
+		append(encode(DELETE_TAG, key, null, null), syncEachWrite,
+				lsn -> deleted[0] = tagsByID.remove(key) != null);
+		TagRegistry.getInstance().unregister(tagID);
+		return deleted[0];
+	}
+
+	@Override
+	public Tag getTag(String tagName) {
+		for (Tag tag : tagsByID.values()) {
+			if (tag.getName().equals(tagName)) {
+				return tag;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public ConnectionPoolStatistics getPoolStatistics() {
+		return null;
+	}
+
+	/**
+	 * Writes a new snapshot of every user, then drops the changes and the log segments it
+	 * covers.
+	 */
+	public synchronized void snapshot() throws IOException {
+		long lsn;
+		// Every record before the LSN has been applied once the roll holds this lock, so
+		// the scan below sees it, and pruning the changes and the log cannot lose it.
+		rollLock.writeLock().lock();
+		try {
+			lsn = log.roll();
+		} finally {
+			rollLock.writeLock().unlock();
+		}
+		logBytesAtSnapshot = log.getBytesWritten();
+		try (UserSnapshot.Writer writer = new UserSnapshot.Writer(directory, lsn)) {
+			try {
+				forEachUser(null, null, user -> {
+					try {
+						writer.add(user.getID(), user.getName(), user.getLoadedTags());
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return true;
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			UserSnapshot written = UserSnapshot.open(writer.finish(tagsByID.values()));
+
+			long stamp = snapshotLock.writeLock();
+			try {
+				snapshot = written;
+				// A change before the snapshot's LSN is in the snapshot, unless the user
+				// changed again, in which case the later change is kept.
+				changes.values().removeIf(user -> user.lsn < lsn);
+			} finally {
+				snapshotLock.unlockWrite(stamp);
+			}
+			UserSnapshot.deleteOthers(directory, written.getFile());
+			log.deleteBefore(lsn);
+		}
+	}
+
+	@Override
+	public void close() {
+		snapshotExecutor.shutdown();
+		try {
+			snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			log.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void insert(String key, String name, TagSet tags, boolean sync) {
+		append(encode(INSERT_USER, key, name, tags), sync,
+				lsn -> changes.put(key, new StoredUser(name, tags, lsn)));
+	}
+
+	private boolean update(String userID, TaggableOperation operation, Set<Tag> tags, boolean sync) {
+		try {
+			return update(userID, operation, tags, Collections.emptyList(), sync);
+		} catch (ConsistencyRuleViolationException e) {
+			throw violatedWithoutRules(e);
+		}
+	}
+
+	/**
+	 * Logs and applies the user's new tags, and tells the listeners, all under the user's
+	 * lock.
+	 *
+	 * @return true iff the user exists and was changed.
+	 */
+	private boolean update(String userID, TaggableOperation operation, Set<Tag> tags,
+			List<ConsistencyPrecondition> preconditions, boolean sync) throws ConsistencyRuleViolationException {
+		String key = toKey(userID);
+		synchronized (lockFor(key)) {
+			StoredUser user = lookup(key);
+			if (user == null) {
+				return false;
+			}
+			TagSet before = visibleTags(user.tags);
+			for (ConsistencyPrecondition precondition : preconditions) {
+				if (!precondition.test(before)) {
+					throw new ConsistencyRuleViolationException(precondition.getRule());
+				}
+			}
+			TagSet after = operation == TaggableOperation.ADD_TAG ? before.union(tags) : before.difference(tags);
+			if (after.equals(before)) {
+				return false;
+			}
+			append(encode(SET_TAGS, key, null, after), sync,
+					lsn -> changes.put(key, new StoredUser(user.name, after, lsn)));
+			return operation == TaggableOperation.ADD_TAG ? fireTagsAdded(key, before, tags)
+					: fireTagsRemoved(key, before, tags);
+		}
+	}
+
+	/**
+	 * @return the user, or null if it does not exist.
+	 */
+	private StoredUser lookup(String key) {
+		long stamp = snapshotLock.tryOptimisticRead();
+		StoredUser user = lookup(key, snapshot);
+		if (!snapshotLock.validate(stamp)) {
+			stamp = snapshotLock.readLock();
+			try {
+				user = lookup(key, snapshot);
+			} finally {
+				snapshotLock.unlockRead(stamp);
+			}
+		}
+		return user;
+	}
+
+	private StoredUser lookup(String key, UserSnapshot snapshot) {
+		StoredUser user = changes.get(key);
+		if (user != null) {
+			return user.tags == null ? null : user;
+		}
+		if (snapshot != null) {
+			int position = snapshot.find(key);
+			if (position >= 0) {
+				return new StoredUser(snapshot.getName(position), snapshot.getTags(position), -1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Logs the record and applies it in memory, with no snapshot rolling the log in between.
+	 */
+	private void append(byte[] record, boolean sync, LongConsumer apply) {
+		try {
+			rollLock.readLock().lock();
+			try {
+				long lsn = log.append(record);
+				if (sync) {
+					log.sync();
+				}
+				apply.accept(lsn);
+			} finally {
+				rollLock.readLock().unlock();
+			}
+			if (log.getBytesWritten() - logBytesAtSnapshot > SNAPSHOT_LOG_BYTES
+					&& snapshotScheduled.compareAndSet(false, true)) {
+				snapshotExecutor.execute(() -> {
+					try {
+						snapshot();
+					} catch (IOException | RuntimeException e) {
+						// The log keeps growing; the next trigger tries again.
+						e.printStackTrace();
+					} finally {
+						snapshotScheduled.set(false);
+					}
+				});
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void sync() {
+		try {
+			log.sync();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Applies a log record while opening the store. Records may already be reflected in
+	 * the snapshot, so applying one is idempotent.
+	 */
+	private void replay(long lsn, ByteBuffer payload) throws IOException {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		byte type = in.readByte();
+		String key = readID(in);
+		switch (type) {
+		case INSERT_USER: {
+			String name = in.readUTF();
+			TagSet tags = readTags(in);
+			changes.put(key, new StoredUser(name, tags, lsn));
+			break;
+		}
+		case DELETE_USER: {
+			StoredUser user = lookup(key);
+			if (user != null) {
+				changes.put(key, new StoredUser(user.name, null, lsn));
+			}
+			break;
+		}
+		case SET_TAGS: {
+			TagSet tags = readTags(in);
+			StoredUser user = lookup(key);
+			if (user != null) {
+				changes.put(key, new StoredUser(user.name, tags, lsn));
+			}
+			break;
+		}
+		case INSERT_TAG: {
+			Tag tag = new Tag(key, in.readUTF());
+			tagsByID.put(key, tag);
+			TagRegistry.getInstance().register(tag);
+			break;
+		}
+		case DELETE_TAG:
+			tagsByID.remove(key);
+			TagRegistry.getInstance().unregister(key);
+			break;
+		default:
+			throw new IOException(String.format("Unknown log record type %d at LSN %d.", type, lsn));
+		}
+	}
+
+	/**
+	 * Encodes a record as its type, an ObjectId, and then the name and tags if given. Tags
+	 * are written by name, since ordinals are only valid within one process.
+	 */
+	private static byte[] encode(byte type, String id, String name, TagSet tags) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			writeID(out, id);
+			if (name != null) {
+				out.writeUTF(name);
+			}
+			if (tags != null) {
+				writeTags(out, tags);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing to a ByteArrayOutputStream cannot fail.", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static User toUser(String userID, StoredUser user) {
+		return user == null || user.tags == null ? null : new User(userID, user.name, visibleTags(user.tags));
+	}
+
+	private static int lowerBound(UserSnapshot snapshot, String userID) {
+		int position = snapshot.find(userID);
+		return position >= 0 ? position : -(position + 1);
+	}
+
+	private Object lockFor(String key) {
+		return userLocks[stripe(key)];
+	}
+}
@@ -0,0 +1,248 @@
+package tagging.storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of opaque records, split over segment files in one directory.
+ *
+ * Every record gets the next log sequence number (LSN). A segment is named after the LSN
+ * of its first record, and a new segment is started once the current one exceeds the
+ * segment size, so that segments whose records are all covered by a snapshot can simply
+ * be deleted.
+ *
+ * Each record is framed as its payload length, its LSN, the payload and a CRC32 of LSN
+ * and payload. A crash can leave a torn frame at the end of the last segment; it is cut
+ * off when the log is opened.
+ */
+public final class SegmentedLog implements Closeable {
+
+	@FunctionalInterface
+	public interface RecordVisitor {
+		void visit(long lsn, ByteBuffer payload) throws IOException;
+	}
+
+	final static String SEGMENT_SUFFIX = ".log";
+
+	// Length, LSN and CRC.
+	private final static int FRAME_OVERHEAD = 4 + 8 + 4;
+
+	private final Path directory;
+	private final long maxSegmentBytes;
+	private final List<Long> segmentStarts = new ArrayList<>();
+	private FileChannel segment;
+	private long segmentBytes;
+	private long nextLSN;
+	private long bytesWritten;
+
+	/**
+	 * Opens the log in the directory, creating it if needed, and cuts off a torn record at
+	 * its end.
+	 *
+	 * @param firstLSN the LSN of the first record if the log is empty, so that numbering
+	 *                 continues after the records covered by a snapshot.
+	 */
+	public SegmentedLog(Path directory, long maxSegmentBytes, long firstLSN) throws IOException {
+		this.directory = directory;
+		this.maxSegmentBytes = maxSegmentBytes;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segmentStarts.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			}
+		}
+		Collections.sort(segmentStarts);
+
+		if (segmentStarts.isEmpty()) {
+			openSegment(firstLSN);
+			nextLSN = firstLSN;
+		} else {
+			long lastStart = segmentStarts.get(segmentStarts.size() - 1);
+			long[] end = { lastStart, 0 };
+			long validBytes = scan(segmentPath(lastStart), (lsn, payload) -> end[0] = lsn + 1);
+			segment = FileChannel.open(segmentPath(lastStart), StandardOpenOption.WRITE);
+			segment.truncate(validBytes);
+			segment.position(validBytes);
+			segmentBytes = validBytes;
+			nextLSN = end[0];
+		}
+	}
+
+	/**
+	 * Appends a record. It is not durable until {@link #sync()} returns.
+	 *
+	 * @return the LSN of the record.
+	 */
+	public synchronized long append(byte[] payload) throws IOException {
+		if (segmentBytes >= maxSegmentBytes) {
+			segment.force(false);
+			segment.close();
+			openSegment(nextLSN);
+		}
+		long lsn = nextLSN;
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_OVERHEAD + payload.length);
+		frame.putInt(payload.length).putLong(lsn).put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(frame.array(), 4, 8 + payload.length);
+		frame.putInt((int) crc.getValue());
+		frame.flip();
+		while (frame.hasRemaining()) {
+			segment.write(frame);
+		}
+		segmentBytes += frame.limit();
+		bytesWritten += frame.limit();
+		nextLSN++;
+		return lsn;
+	}
+
+	/**
+	 * Starts a new segment, so that the records before it can later be deleted as a whole.
+	 *
+	 * @return the LSN of the first record of the new segment.
+	 */
+	public synchronized long roll() throws IOException {
+		if (segmentBytes > 0) {
+			segment.force(false);
+			segment.close();
+			openSegment(nextLSN);
+		}
+		return nextLSN;
+	}
+
+	/**
+	 * Forces every appended record to disk.
+	 */
+	public void sync() throws IOException {
+		FileChannel segment;
+		synchronized (this) {
+			segment = this.segment;
+		}
+		try {
+			segment.force(false);
+		} catch (ClosedChannelException e) {
+			// A roll closed the segment, and forced it before.
+		}
+	}
+
+	/**
+	 * @return the LSN the next appended record will get.
+	 */
+	public synchronized long getNextLSN() {
+		return nextLSN;
+	}
+
+	/**
+	 * @return the number of bytes appended since the log was opened.
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Calls the visitor with every record from the given LSN on, in LSN order. The
+	 * payload buffer is only valid during the call.
+	 */
+	public void replay(long fromLSN, RecordVisitor visitor) throws IOException {
+		List<Long> starts;
+		synchronized (this) {
+			starts = new ArrayList<>(segmentStarts);
+		}
+		for (int i = 0; i < starts.size(); i++) {
+			if (i + 1 < starts.size() && starts.get(i + 1) <= fromLSN) {
+				continue;
+			}
+			scan(segmentPath(starts.get(i)), (lsn, payload) -> {
+				if (lsn >= fromLSN) {
+					visitor.visit(lsn, payload);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Deletes the segments that hold only records before the given LSN.
+	 */
+	public void deleteBefore(long lsn) throws IOException {
+		List<Long> deletable = new ArrayList<>();
+		synchronized (this) {
+			// The last segment is being appended to and always stays.
+			while (segmentStarts.size() > 1 && segmentStarts.get(1) <= lsn) {
+				deletable.add(segmentStarts.remove(0));
+			}
+		}
+		for (long start : deletable) {
+			Files.deleteIfExists(segmentPath(start));
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		segment.force(false);
+		segment.close();
+	}
+
+	private void openSegment(long firstLSN) throws IOException {
+		segment = FileChannel.open(segmentPath(firstLSN), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		segmentBytes = 0;
+		segmentStarts.add(firstLSN);
+		// Make the new file itself durable, not just its contents.
+		try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			directoryChannel.force(true);
+		} catch (IOException e) {
+			// Not every platform can open a directory; the segment is still written.
+		}
+	}
+
+	private Path segmentPath(long firstLSN) {
+		return directory.resolve(String.format("%020d%s", firstLSN, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * Reads the valid records of a segment.
+	 *
+	 * @return the length of the valid prefix of the segment.
+	 */
+	private static long scan(Path file, RecordVisitor visitor) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			long size = Files.size(file);
+			byte[] body = new byte[1024];
+			long position = 0;
+			CRC32 crc = new CRC32();
+			while (position + FRAME_OVERHEAD <= size) {
+				int length = in.readInt();
+				long lsn = in.readLong();
+				if (length < 0 || position + FRAME_OVERHEAD + length > size) {
+					break;
+				}
+				if (body.length < 8 + length) {
+					body = new byte[Math.max(8 + length, body.length * 2)];
+				}
+				ByteBuffer.wrap(body).putLong(0, lsn);
+				in.readFully(body, 8, length);
+				crc.reset();
+				crc.update(body, 0, 8 + length);
+				if ((int) crc.getValue() != in.readInt()) {
+					break;
+				}
+				visitor.visit(lsn, ByteBuffer.wrap(body, 8, length).slice());
+				position += FRAME_OVERHEAD + length;
+			}
+			return position;
+		}
+	}
+}
@@ -0,0 +1,673 @@
+package tagging.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import tagging.AbstractUserTagStore;
+import tagging.AsyncUserTagStore;
+import tagging.ConnectionPoolStatistics;
+import tagging.Tag;
+import tagging.TagIndex;
+import tagging.TagMutation;
+import tagging.TagMutationResult;
+import tagging.TagSet;
+import tagging.TagStatistics;
+import tagging.TaggableOperation;
+import tagging.User;
+import tagging.UserTagListener;
+import tagging.UserTagStore;
+import tagging.consistency.ConsistencyPrecondition;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.metrics.ServerMetrics;
+import tagging.metrics.ServerMetrics.CommandCounters;
+import tagging.metrics.ShardMetrics;
+
+import static tagging.storage.UserKeys.toKey;
+
+/**
+ * Routes the changes of each user to one of a fixed set of shards in front of another
+ * store, so that the changes of a user run one after the other while those of different
+ * users run in parallel.
+ *
+ * A shard is a single thread with a queue, chosen by a hash of the user ID, and only that
+ * thread touches the tags it holds for its users, in a map of bounded size that forgets
+ * the user changed least recently. While {@link #setDecidingLocally(boolean) deciding
+ * locally}, a change is checked against these tags without a lock: one that a rule
+ * rejects, or that would change nothing, is answered without a write, and the others are
+ * written through to the store. A user the shard does not hold is read from the store
+ * first. Otherwise every change is written through to the store.
+ *
+ * The tags held are exact as long as the changes of the user pass through this store,
+ * which is why a change is only decided locally when no other node changes the users, or
+ * when {@link #refresh(String, TagSet)} is told about the changes of the others. The
+ * rules still go to the store with the write, which checks them atomically as before, so
+ * a change made by another node also shows when the store disagrees with the shard,
+ * which then forgets the user; {@link #invalidate(String)} is the hook to forget it
+ * earlier.
+ * Listeners are told about changes on the thread of the shard, and must not wait for
+ * changes of this store.
+ *
+ * Reads, scans, bulk inserts, tags and the tag index go straight to the store.
+ */
+public class ShardedUserTagStore extends AbstractUserTagStore {
+
+	private static final class Shard {
+		final ThreadPoolExecutor executor;
+		// Touched by the thread of the executor only.
+		final Map<String, TagSet> users;
+
+		Shard(int index, int maximumUsers) {
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+					task -> {
+						Thread thread = new Thread(task, "tagging-shard-" + index);
+						thread.setDaemon(true);
+						return thread;
+					});
+			users = new LinkedHashMap<>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, TagSet> eldest) {
+					return size() > maximumUsers;
+				}
+			};
+		}
+	}
+
+	private final UserTagStore store;
+	private final Shard[] shards;
+	private final ShardMetrics metrics;
+	private volatile boolean decidingLocally;
+	private volatile AsyncUserTagStore async;
+
+	/**
+	 * @param shardCount   the number of shards, and thus of users changed in parallel.
+	 * @param maximumUsers the number of users whose tags the shards hold at most.
+	 */
+	public ShardedUserTagStore(UserTagStore store, int shardCount, int maximumUsers) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("There must be at least one shard.");
+		}
+		this.store = store;
+		shards = new Shard[shardCount];
+		List<ThreadPoolExecutor> executors = new ArrayList<>();
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i, Math.max(1, maximumUsers / shardCount));
+			executors.add(shards[i].executor);
+		}
+		metrics = new ShardMetrics(executors);
+	}
+
+	public ShardMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets whether the shards may answer a change that a rule rejects, or that would
+	 * change nothing, from the tags they hold, without asking the store. This is only
+	 * correct while no other node changes the users behind the store, or while every
+	 * change of another node is passed to {@link #refresh(String, TagSet)}. It is off
+	 * until set.
+	 */
+	public void setDecidingLocally(boolean decidingLocally) {
+		this.decidingLocally = decidingLocally;
+	}
+
+	/**
+	 * Forgets the tags of a user that another node changed or deleted.
+	 */
+	public void invalidate(String userID) {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		submit(shard, () -> shard.users.remove(key));
+	}
+
+	/**
+	 * Forgets the tags of a user that another node changed, if the shard holds others.
+	 *
+	 * @param tags the tags of the user after the change, or null if it was deleted.
+	 */
+	public void refresh(String userID, TagSet tags) {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		submit(shard, () -> {
+			TagSet held = shard.users.get(key);
+			if (held != null && !held.equals(tags)) {
+				forgetStale(shard, key);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * The view in which changes are queued at their shards without blocking the caller,
+	 * and reads go to the asynchronous view of the store.
+	 */
+	@Override
+	public AsyncUserTagStore async() {
+		AsyncUserTagStore view = async;
+		if (view != null) {
+			return view;
+		}
+		synchronized (this) {
+			if (async == null) {
+				async = new AsyncShardedUserTagStore(store.async());
+			}
+			return async;
+		}
+	}
+
+	@Override
+	public User insertUser(String name, Set<Tag> tags) {
+		User user = store.insertUser(name, tags);
+		hold(user.getID(), TagSet.of(tags));
+		return user;
+	}
+
+	@Override
+	public List<User> insertUsers(List<String> names, List<? extends Set<Tag>> tags) {
+		List<User> users = store.insertUsers(names, tags);
+		for (int i = 0; i < users.size(); i++) {
+			hold(users.get(i).getID(), TagSet.of(tags.get(i)));
+		}
+		return users;
+	}
+
+	@Override
+	public boolean deleteUser(String userID) {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		return callWithoutRules(shard, () -> delete(shard, key));
+	}
+
+	@Override
+	public User getUser(String userID) {
+		return store.getUser(userID);
+	}
+
+	@Override
+	public Map<String, User> getUsers(Collection<String> userIDs) {
+		return store.getUsers(userIDs);
+	}
+
+	@Override
+	public List<User> getAllUsers() {
+		return store.getAllUsers();
+	}
+
+	@Override
+	public void forEachUser(String fromID, String toID, Predicate<User> visitor) {
+		store.forEachUser(fromID, toID, visitor);
+	}
+
+	@Override
+	public List<String> getUserIDSplitPoints(int partitions) {
+		return store.getUserIDSplitPoints(partitions);
+	}
+
+	@Override
+	public void writeAllUsers(Appendable out) throws IOException {
+		store.writeAllUsers(out);
+	}
+
+	@Override
+	public void writeAllTags(Appendable out) throws IOException {
+		store.writeAllTags(out);
+	}
+
+	@Override
+	public boolean userHasTag(String userID, Tag tag) {
+		return store.userHasTag(userID, tag);
+	}
+
+	@Override
+	public TagSet getTagsForUser(String userID) {
+		return store.getTagsForUser(userID);
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd) {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		return callWithoutRules(shard, () -> change(shard, key, TaggableOperation.ADD_TAG, tagsToAdd, null));
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove) {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		return callWithoutRules(shard, () -> change(shard, key, TaggableOperation.REMOVE_TAG, tagsToRemove, null));
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		return call(shard, () -> change(shard, key, TaggableOperation.ADD_TAG, tagsToAdd, rules));
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		return call(shard, () -> change(shard, key, TaggableOperation.REMOVE_TAG, tagsToRemove, rules));
+	}
+
+	/**
+	 * Writes the mutations of each shard in bulk on its thread, all shards in parallel.
+	 */
+	@Override
+	public TagMutationResult applyTagMutations(List<TagMutation> mutations) {
+		ServerMetrics serverMetrics = ServerMetrics.getInstance();
+		Map<Shard, List<Integer>> indexesByShard = splitByShard(mutations);
+		List<CompletableFuture<TagMutationResult>> parts = new ArrayList<>();
+		List<CommandCounters[]> caused = new ArrayList<>();
+		indexesByShard.forEach((shard, indexes) -> {
+			CommandCounters[] partCaused = new CommandCounters[1];
+			parts.add(submit(shard, () -> {
+				serverMetrics.startCommand();
+				try {
+					return apply(shard, select(mutations, indexes));
+				} finally {
+					partCaused[0] = serverMetrics.getCommandCounters();
+				}
+			}));
+			caused.add(partCaused);
+		});
+		List<TagMutationResult> results = new ArrayList<>();
+		RuntimeException failure = null;
+		for (int i = 0; i < parts.size(); i++) {
+			try {
+				results.add(parts.get(i).join());
+			} catch (CompletionException e) {
+				failure = failure == null ? unchecked(e.getCause()) : failure;
+			} finally {
+				if (caused.get(i)[0] != null) {
+					serverMetrics.addCommandCounters(caused.get(i)[0]);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return merge(mutations.size(), new ArrayList<>(indexesByShard.values()), results);
+	}
+
+	@Override
+	public Tag insertTag(String tagName) {
+		return store.insertTag(tagName);
+	}
+
+	@Override
+	public boolean deleteTag(String tagID) {
+		return store.deleteTag(tagID);
+	}
+
+	@Override
+	public Tag getTag(String tagName) {
+		return store.getTag(tagName);
+	}
+
+	@Override
+	public void addListener(UserTagListener listener) {
+		store.addListener(listener);
+	}
+
+	@Override
+	public void removeListener(UserTagListener listener) {
+		store.removeListener(listener);
+	}
+
+	@Override
+	public TagIndex buildTagIndex() {
+		return store.buildTagIndex();
+	}
+
+	@Override
+	public TagIndex getTagIndex() {
+		return store.getTagIndex();
+	}
+
+	@Override
+	public TagStatistics getTagStatistics() {
+		return store.getTagStatistics();
+	}
+
+	@Override
+	public ConnectionPoolStatistics getPoolStatistics() {
+		return store.getPoolStatistics();
+	}
+
+	/**
+	 * Lets the shards finish the changes in their queues, and closes the store.
+	 */
+	@Override
+	public void close() {
+		for (Shard shard : shards) {
+			shard.executor.shutdown();
+		}
+		try {
+			for (Shard shard : shards) {
+				shard.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Checks a change against the tags that the shard holds for the user, and writes it
+	 * to the store unless that settles it. Runs on the thread of the shard.
+	 *
+	 * @param rules the rules to keep consistent, or null to change the user regardless.
+	 * @return true iff the user exists and was changed.
+	 */
+	private boolean change(Shard shard, String key, TaggableOperation operation, Set<Tag> tags,
+			Collection<ConsistencyRule> rules) throws ConsistencyRuleViolationException {
+		if (!decidingLocally) {
+			// The tags held may be stale, so neither use nor keep them.
+			shard.users.remove(key);
+			return write(key, operation, tags, rules);
+		}
+		TagSet before = shard.users.get(key);
+		if (before == null) {
+			User user = store.getUser(key);
+			metrics.recordStateLoad();
+			if (user == null) {
+				return false;
+			}
+			before = user.getLoadedTags();
+			shard.users.put(key, before);
+		}
+		if (rules != null) {
+			for (ConsistencyRule rule : rules) {
+				ConsistencyPrecondition precondition = rule.getPrecondition(operation, tags);
+				if (precondition != null && !precondition.test(before)) {
+					// The store counts the rules it evaluates itself, but is not asked.
+					ServerMetrics.getInstance().recordRuleEvaluations(rules.size());
+					metrics.recordLocalDecision();
+					throw new ConsistencyRuleViolationException(rule);
+				}
+			}
+		}
+		TagSet after = operation == TaggableOperation.ADD_TAG ? before.union(tags) : before.difference(tags);
+		if (after.equals(before)) {
+			if (rules != null) {
+				ServerMetrics.getInstance().recordRuleEvaluations(rules.size());
+			}
+			metrics.recordLocalDecision();
+			return false;
+		}
+		boolean changed;
+		try {
+			changed = write(key, operation, tags, rules);
+		} catch (ConsistencyRuleViolationException e) {
+			// The store saw other tags than the shard.
+			forgetStale(shard, key);
+			throw e;
+		} catch (RuntimeException e) {
+			// Whether the change was made is not known.
+			shard.users.remove(key);
+			throw e;
+		}
+		if (changed) {
+			shard.users.put(key, after);
+		} else {
+			forgetStale(shard, key);
+		}
+		return changed;
+	}
+
+	private boolean write(String key, TaggableOperation operation, Set<Tag> tags, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		if (operation == TaggableOperation.ADD_TAG) {
+			return rules == null ? store.addTagsToUser(key, tags) : store.addTagsToUser(key, tags, rules);
+		}
+		return rules == null ? store.removeTagsFromUser(key, tags) : store.removeTagsFromUser(key, tags, rules);
+	}
+
+	private boolean delete(Shard shard, String key) {
+		try {
+			return store.deleteUser(key);
+		} finally {
+			shard.users.remove(key);
+		}
+	}
+
+	/**
+	 * Writes already validated mutations of the users of one shard, and applies those that
+	 * were written to the tags it holds. It forgets the users of the others, or of all if
+	 * the write failed. Runs on the thread of the shard.
+	 */
+	private TagMutationResult apply(Shard shard, List<TagMutation> mutations) {
+		TagMutationResult result;
+		try {
+			result = store.applyTagMutations(mutations);
+		} catch (RuntimeException e) {
+			// Which of the mutations were made is not known.
+			for (TagMutation mutation : mutations) {
+				shard.users.remove(toKey(mutation.getUserID()));
+			}
+			throw e;
+		}
+		for (int i = 0; i < mutations.size(); i++) {
+			TagMutation mutation = mutations.get(i);
+			String key = toKey(mutation.getUserID());
+			TagSet held = shard.users.get(key);
+			if (held == null) {
+				continue;
+			} else if (!result.isWritten(i)) {
+				shard.users.remove(key);
+			} else {
+				shard.users.put(key, mutation.getOperation() == TaggableOperation.ADD_TAG
+						? held.union(mutation.getTags())
+						: held.difference(mutation.getTags()));
+			}
+		}
+		return result;
+	}
+
+	private void forgetStale(Shard shard, String key) {
+		shard.users.remove(key);
+		metrics.recordStaleState();
+	}
+
+	/**
+	 * Lets the shard of a new user hold its tags, once the changes queued before have run.
+	 */
+	private void hold(String userID, TagSet tags) {
+		String key = toKey(userID);
+		Shard shard = shardFor(key);
+		submit(shard, () -> shard.users.put(key, tags));
+	}
+
+	/**
+	 * @return the indexes of the mutations of each shard.
+	 */
+	private Map<Shard, List<Integer>> splitByShard(List<TagMutation> mutations) {
+		Map<Shard, List<Integer>> parts = new LinkedHashMap<>();
+		for (int i = 0; i < mutations.size(); i++) {
+			parts.computeIfAbsent(shardFor(toKey(mutations.get(i).getUserID())), shard -> new ArrayList<>()).add(i);
+		}
+		return parts;
+	}
+
+	private static List<TagMutation> select(List<TagMutation> mutations, List<Integer> indexes) {
+		return indexes.stream().map(mutations::get).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the result of all mutations, out of the results of each shard's part.
+	 */
+	private static TagMutationResult merge(int size, List<List<Integer>> parts, List<TagMutationResult> results) {
+		Exception[] failures = new Exception[size];
+		int modified = 0;
+		for (int i = 0; i < parts.size(); i++) {
+			List<Integer> indexes = parts.get(i);
+			TagMutationResult result = results.get(i);
+			modified += result.getModifiedCount();
+			for (int j = 0; j < indexes.size(); j++) {
+				failures[indexes.get(j)] = result.getFailure(j);
+			}
+		}
+		return new TagMutationResult(modified, failures);
+	}
+
+	private Shard shardFor(String key) {
+		int hash = key.hashCode();
+		return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+	}
+
+	/**
+	 * Runs an operation on the thread of the shard and waits for it, attributing the
+	 * round trips and rule evaluations it causes there to the command on this thread.
+	 */
+	private <T> T call(Shard shard, Callable<T> operation) throws ConsistencyRuleViolationException {
+		ServerMetrics serverMetrics = ServerMetrics.getInstance();
+		CommandCounters[] caused = new CommandCounters[1];
+		CompletableFuture<T> future = submit(shard, () -> {
+			serverMetrics.startCommand();
+			try {
+				return operation.call();
+			} finally {
+				caused[0] = serverMetrics.getCommandCounters();
+			}
+		});
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof ConsistencyRuleViolationException) {
+				throw (ConsistencyRuleViolationException) e.getCause();
+			}
+			throw unchecked(e.getCause());
+		} finally {
+			if (caused[0] != null) {
+				serverMetrics.addCommandCounters(caused[0]);
+			}
+		}
+	}
+
+	private <T> T callWithoutRules(Shard shard, Callable<T> operation) {
+		try {
+			return call(shard, operation);
+		} catch (ConsistencyRuleViolationException e) {
+			throw violatedWithoutRules(e);
+		}
+	}
+
+	/**
+	 * @return a future of the operation, queued at the shard.
+	 */
+	private static <T> CompletableFuture<T> submit(Shard shard, Callable<T> operation) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			shard.executor.execute(() -> {
+				try {
+					future.complete(operation.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The store has been closed.
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private static RuntimeException unchecked(Throwable failure) {
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		return failure instanceof RuntimeException ? (RuntimeException) failure : new IllegalStateException(failure);
+	}
+
+	/**
+	 * Queues changes at their shards like the blocking operations do, and completes their
+	 * futures on the thread of the shard.
+	 */
+	private final class AsyncShardedUserTagStore implements AsyncUserTagStore {
+
+		private final AsyncUserTagStore reads;
+
+		AsyncShardedUserTagStore(AsyncUserTagStore reads) {
+			this.reads = reads;
+		}
+
+		@Override
+		public CompletableFuture<User> insertUser(String name, Set<Tag> tags) {
+			return reads.insertUser(name, tags).thenApply(user -> {
+				hold(user.getID(), TagSet.of(tags));
+				return user;
+			});
+		}
+
+		@Override
+		public CompletableFuture<Boolean> deleteUser(String userID) {
+			String key = toKey(userID);
+			Shard shard = shardFor(key);
+			return submit(shard, () -> delete(shard, key));
+		}
+
+		@Override
+		public CompletableFuture<User> getUser(String userID) {
+			return reads.getUser(userID);
+		}
+
+		@Override
+		public CompletableFuture<Map<String, User>> getUsers(Collection<String> userIDs) {
+			return reads.getUsers(userIDs);
+		}
+
+		@Override
+		public CompletableFuture<TagSet> getTagsForUser(String userID) {
+			return reads.getTagsForUser(userID);
+		}
+
+		@Override
+		public CompletableFuture<Boolean> addTagsToUser(String userID, Set<Tag> tagsToAdd,
+				Collection<ConsistencyRule> rules) {
+			String key = toKey(userID);
+			Shard shard = shardFor(key);
+			return submit(shard, () -> change(shard, key, TaggableOperation.ADD_TAG, tagsToAdd, rules));
+		}
+
+		@Override
+		public CompletableFuture<Boolean> removeTagsFromUser(String userID, Set<Tag> tagsToRemove,
+				Collection<ConsistencyRule> rules) {
+			String key = toKey(userID);
+			Shard shard = shardFor(key);
+			return submit(shard, () -> change(shard, key, TaggableOperation.REMOVE_TAG, tagsToRemove, rules));
+		}
+
+		@Override
+		public CompletableFuture<TagMutationResult> applyTagMutations(List<TagMutation> mutations) {
+			Map<Shard, List<Integer>> indexesByShard = splitByShard(mutations);
+			List<CompletableFuture<TagMutationResult>> parts = new ArrayList<>();
+			indexesByShard.forEach((shard, indexes) -> parts
+					.add(submit(shard, () -> apply(shard, select(mutations, indexes)))));
+			return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+					.thenApply(unused -> merge(mutations.size(), new ArrayList<>(indexesByShard.values()),
+							parts.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+		}
+	}
+}
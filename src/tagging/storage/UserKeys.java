@@ -0,0 +1,92 @@
+package tagging.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import tagging.Tag;
+import tagging.TagRegistry;
+import tagging.TagSet;
+
+/**
+ * What the stores of this package share about users: the canonical form of user IDs used
+ * as keys, the stripes that keys are spread over for locks and counters, and how IDs and
+ * tags are encoded in log records.
+ */
+final class UserKeys {
+
+	final static int STRIPES = 1024;
+
+	private UserKeys() {
+	}
+
+	/**
+	 * @return the ID in the canonical form used as key.
+	 * @throws IllegalArgumentException if the ID is malformed, as with MongoDB.
+	 */
+	static String toKey(String id) {
+		return new ObjectId(id).toHexString();
+	}
+
+	/**
+	 * @return the stripe of the key, below {@link #STRIPES}.
+	 */
+	static int stripe(String key) {
+		return (key.hashCode() & 0x7FFFFFFF) % STRIPES;
+	}
+
+	/**
+	 * @return one lock per stripe, which serializes the changes to the users of a stripe.
+	 */
+	static Object[] newLocks() {
+		Object[] locks = new Object[STRIPES];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+
+	/**
+	 * Writes the ID as the 12 bytes of its ObjectId.
+	 */
+	static void writeID(DataOutput out, String id) throws IOException {
+		out.write(new ObjectId(id).toByteArray());
+	}
+
+	/**
+	 * @return the ID written by {@link #writeID(DataOutput, String)}, as a key.
+	 */
+	static String readID(DataInput in) throws IOException {
+		byte[] id = new byte[12];
+		in.readFully(id);
+		return new ObjectId(id).toHexString();
+	}
+
+	/**
+	 * Writes the tags by name, since ordinals are only valid within one process.
+	 */
+	static void writeTags(DataOutput out, Set<Tag> tags) throws IOException {
+		out.writeShort(tags.size());
+		for (Tag tag : tags) {
+			out.writeUTF(tag.getName());
+		}
+	}
+
+	static TagSet readTags(DataInput in) throws IOException {
+		int count = in.readUnsignedShort();
+		List<Tag> tags = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			// Names of tags that have since been deleted are left out.
+			Tag tag = TagRegistry.getInstance().get(in.readUTF());
+			if (tag != null) {
+				tags.add(tag);
+			}
+		}
+		return TagSet.of(tags);
+	}
+}
@@ -0,0 +1,382 @@
+package tagging.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+import tagging.Tag;
+import tagging.TagSet;
+
+/**
+ * A compact, read-only file of users and their tags, read through memory mappings so that
+ * opening it costs nothing per user.
+ *
+ * The file starts with a fixed header, followed by an index of fixed-width entries sorted
+ * by user ID, the user records the index points to, and the tag table:
+ *
+ * <pre>
+ * header := magic, version, lsn, userCount, indexOffset, dataOffset, tagsOffset, tagCount
+ * entry  := user ID (12 bytes), offset of the record from dataOffset (8 bytes)
+ * record := name length (2 bytes), UTF-8 name, tag count (2 bytes), tag table indexes (4 bytes each)
+ * tag    := ID length (2 bytes), ID, name length (2 bytes), UTF-8 name
+ * </pre>
+ *
+ * Users refer to tags by their position in the tag table, which is resolved to registry
+ * ordinals once when the snapshot is opened. Tags with an empty ID were deleted but are
+ * still named by some users; they are left out when read.
+ *
+ * The mappings are released when the snapshot is garbage collected, and the file may be
+ * deleted while it is still mapped.
+ */
+public final class UserSnapshot {
+
+	final static int MAGIC = 0x54414753;
+	final static int VERSION = 1;
+	final static int HEADER_BYTES = 64;
+	final static int ENTRY_BYTES = 12 + 8;
+
+	// Files may exceed what one mapping can hold, so they are mapped in regions. Each region
+	// overlaps the next by more than the largest record, so every record lies in one region.
+	private final static int REGION_SHIFT = 30;
+	private final static long REGION_BYTES = 1L << REGION_SHIFT;
+	private final static long REGION_OVERLAP = 1L << 20;
+
+	private final static String SNAPSHOT_PREFIX = "snapshot-";
+	private final static String SNAPSHOT_SUFFIX = ".snap";
+
+	private final Path file;
+	private final MappedByteBuffer[] regions;
+	private final long lsn;
+	private final int userCount;
+	private final long indexOffset;
+	private final long dataOffset;
+	private final List<Tag> tags = new ArrayList<>();
+	// Registry ordinal of each tag table entry, or -1 for a deleted tag.
+	private final int[] ordinals;
+
+	private UserSnapshot(Path file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			regions = new MappedByteBuffer[(int) ((size + REGION_BYTES - 1) >>> REGION_SHIFT)];
+			for (int i = 0; i < regions.length; i++) {
+				long start = (long) i << REGION_SHIFT;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(REGION_BYTES + REGION_OVERLAP, size - start));
+			}
+		}
+		if (regions.length == 0 || getInt(0) != MAGIC || getInt(4) != VERSION) {
+			throw new IOException(String.format("%s is not a user snapshot.", file));
+		}
+		lsn = getLong(8);
+		userCount = (int) getLong(16);
+		indexOffset = getLong(24);
+		dataOffset = getLong(32);
+		long position = getLong(40);
+		ordinals = new int[getInt(48)];
+		for (int i = 0; i < ordinals.length; i++) {
+			String id = getString(position);
+			position += 2 + getShort(position);
+			String name = getString(position);
+			position += 2 + getShort(position);
+			if (id.isEmpty()) {
+				ordinals[i] = -1;
+			} else {
+				Tag tag = new Tag(id, name);
+				tags.add(tag);
+				ordinals[i] = tag.getOrdinal();
+			}
+		}
+	}
+
+	/**
+	 * Maps the snapshot in the file.
+	 */
+	static UserSnapshot open(Path file) throws IOException {
+		return new UserSnapshot(file);
+	}
+
+	/**
+	 * Maps the newest snapshot in the directory.
+	 *
+	 * @return the snapshot, or null if there is none.
+	 */
+	public static UserSnapshot openLatest(Path directory) throws IOException {
+		Path latest = null;
+		if (Files.isDirectory(directory)) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+					SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+				for (Path file : files) {
+					// Names hold the zero-padded LSN, so the newest sorts last.
+					if (latest == null || file.getFileName().compareTo(latest.getFileName()) > 0) {
+						latest = file;
+					}
+				}
+			}
+		}
+		return latest == null ? null : new UserSnapshot(latest);
+	}
+
+	/**
+	 * @return the LSN from which the log has to be replayed on top of this snapshot.
+	 */
+	public long getLSN() {
+		return lsn;
+	}
+
+	public int size() {
+		return userCount;
+	}
+
+	/**
+	 * @return the tags that existed when the snapshot was written.
+	 */
+	public List<Tag> getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return the position of the user in the snapshot, or -(insertion point) - 1 if it is
+	 *         not there.
+	 */
+	public int find(String userID) {
+		byte[] key = new ObjectId(userID).toByteArray();
+		long keyHigh = ByteBuffer.wrap(key).getLong(0);
+		int keyLow = ByteBuffer.wrap(key).getInt(8);
+		int low = 0;
+		int high = userCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long entry = indexOffset + (long) middle * ENTRY_BYTES;
+			int comparison = Long.compareUnsigned(getLong(entry), keyHigh);
+			if (comparison == 0) {
+				comparison = Integer.compareUnsigned(getInt(entry + 8), keyLow);
+			}
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	public String getUserID(int position) {
+		long entry = indexOffset + (long) position * ENTRY_BYTES;
+		byte[] id = new byte[12];
+		region(entry).get(offset(entry), id);
+		return new ObjectId(id).toHexString();
+	}
+
+	public String getName(int position) {
+		return getString(record(position));
+	}
+
+	/**
+	 * @return the user's tags, without those that were deleted before the snapshot.
+	 */
+	public TagSet getTags(int position) {
+		long record = record(position);
+		long tagsPosition = record + 2 + getShort(record);
+		int count = getShort(tagsPosition);
+		int[] userOrdinals = new int[count];
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			int ordinal = ordinals[getInt(tagsPosition + 2 + 4L * i)];
+			if (ordinal >= 0) {
+				userOrdinals[kept++] = ordinal;
+			}
+		}
+		return TagSet.fromOrdinals(kept == count ? userOrdinals : Arrays.copyOf(userOrdinals, kept));
+	}
+
+	Path getFile() {
+		return file;
+	}
+
+	private long record(int position) {
+		return dataOffset + getLong(indexOffset + (long) position * ENTRY_BYTES + 12);
+	}
+
+	private MappedByteBuffer region(long position) {
+		return regions[(int) (position >>> REGION_SHIFT)];
+	}
+
+	private static int offset(long position) {
+		return (int) (position & (REGION_BYTES - 1));
+	}
+
+	private long getLong(long position) {
+		return region(position).getLong(offset(position));
+	}
+
+	private int getInt(long position) {
+		return region(position).getInt(offset(position));
+	}
+
+	private int getShort(long position) {
+		return region(position).getShort(offset(position)) & 0xFFFF;
+	}
+
+	private String getString(long position) {
+		byte[] bytes = new byte[getShort(position)];
+		region(position).get(offset(position) + 2, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a snapshot from users added in ascending ID order. The index and the records
+	 * are streamed into two scratch files and joined behind the header once the number of
+	 * users is known.
+	 */
+	public static final class Writer implements Closeable {
+
+		private final Path directory;
+		private final long lsn;
+		private final Path indexFile;
+		private final Path dataFile;
+		private final DataOutputStream index;
+		private final DataOutputStream data;
+		private final Map<String, Integer> tagIndexes = new HashMap<>();
+		private final List<String> tagNames = new ArrayList<>();
+		private long dataBytes;
+		private long userCount;
+
+		/**
+		 * @param lsn the LSN of the first log record that the snapshot may not reflect.
+		 */
+		public Writer(Path directory, long lsn) throws IOException {
+			this.directory = directory;
+			this.lsn = lsn;
+			Files.createDirectories(directory);
+			indexFile = Files.createTempFile(directory, "index", ".tmp");
+			dataFile = Files.createTempFile(directory, "data", ".tmp");
+			index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile), 1 << 16));
+			data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dataFile), 1 << 16));
+		}
+
+		public void add(String userID, String name, TagSet tags) throws IOException {
+			index.write(new ObjectId(userID).toByteArray());
+			index.writeLong(dataBytes);
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			data.writeShort(nameBytes.length);
+			data.write(nameBytes);
+			data.writeShort(tags.size());
+			for (Tag tag : tags) {
+				Integer tagIndex = tagIndexes.get(tag.getName());
+				if (tagIndex == null) {
+					tagIndex = tagNames.size();
+					tagIndexes.put(tag.getName(), tagIndex);
+					tagNames.add(tag.getName());
+				}
+				data.writeInt(tagIndex);
+			}
+			dataBytes += 2 + nameBytes.length + 2 + 4 * tags.size();
+			userCount++;
+		}
+
+		/**
+		 * Writes the snapshot file and makes it durable.
+		 *
+		 * @param registeredTags the tags that exist now.
+		 * @return the snapshot file.
+		 */
+		public Path finish(Collection<Tag> registeredTags) throws IOException {
+			index.close();
+			data.close();
+			Map<String, String> tagIDs = new HashMap<>();
+			for (Tag tag : registeredTags) {
+				tagIDs.put(tag.getName(), tag.getID());
+				if (!tagIndexes.containsKey(tag.getName())) {
+					tagIndexes.put(tag.getName(), tagNames.size());
+					tagNames.add(tag.getName());
+				}
+			}
+
+			long indexOffset = HEADER_BYTES;
+			long dataOffset = indexOffset + userCount * ENTRY_BYTES;
+			Path target = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, lsn, SNAPSHOT_SUFFIX));
+			Path temporary = Files.createTempFile(directory, "snapshot", ".tmp");
+			try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+				header.putInt(MAGIC).putInt(VERSION).putLong(lsn).putLong(userCount).putLong(indexOffset)
+						.putLong(dataOffset).putLong(dataOffset + dataBytes).putInt(tagNames.size());
+				header.clear();
+				out.write(header);
+				append(out, indexFile);
+				append(out, dataFile);
+				try (DataOutputStream tags = new DataOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(dataFile), 1 << 16))) {
+					for (String name : tagNames) {
+						byte[] id = tagIDs.getOrDefault(name, "").getBytes(StandardCharsets.UTF_8);
+						byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+						tags.writeShort(id.length);
+						tags.write(id);
+						tags.writeShort(nameBytes.length);
+						tags.write(nameBytes);
+					}
+				}
+				append(out, dataFile);
+				out.force(true);
+			}
+			Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+			close();
+			return target;
+		}
+
+		/**
+		 * Deletes the scratch files. Called by {@link #finish(Collection)}, or to abandon
+		 * the snapshot.
+		 */
+		@Override
+		public void close() throws IOException {
+			index.close();
+			data.close();
+			Files.deleteIfExists(indexFile);
+			Files.deleteIfExists(dataFile);
+		}
+
+		private static void append(FileChannel out, Path file) throws IOException {
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the snapshots in the directory other than the given one.
+	 */
+	static void deleteOthers(Path directory, Path keep) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+			for (Path file : files) {
+				if (!file.equals(keep)) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+}
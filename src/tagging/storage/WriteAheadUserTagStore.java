@@ -0,0 +1,866 @@
+package tagging.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+
+import tagging.AbstractUserTagStore;
+import tagging.AsyncUserTagStore;
+import tagging.ConnectionPoolStatistics;
+import tagging.Tag;
+import tagging.TagMutation;
+import tagging.TagMutationResult;
+import tagging.TagSet;
+import tagging.TaggableOperation;
+import tagging.User;
+import tagging.UserNotFoundException;
+import tagging.UserTagStore;
+import tagging.consistency.ConsistencyPrecondition;
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+
+import static tagging.storage.UserKeys.STRIPES;
+import static tagging.storage.UserKeys.newLocks;
+import static tagging.storage.UserKeys.readID;
+import static tagging.storage.UserKeys.readTags;
+import static tagging.storage.UserKeys.stripe;
+import static tagging.storage.UserKeys.toKey;
+import static tagging.storage.UserKeys.writeID;
+import static tagging.storage.UserKeys.writeTags;
+
+/**
+ * A local write-ahead log in front of another store, which takes tag changes off the
+ * store's write path.
+ *
+ * A tag change is appended to a {@link GroupCommitLog} and acknowledged once its batch is
+ * synced, so concurrent changes share one sync. The changes are then written to the store
+ * in bulk by a background thread. Until then the new tags of the user are kept in memory
+ * and shown by every read, and rules are checked against them.
+ *
+ * The log is the only copy of a change until it reaches the store. A checkpoint file
+ * records how far the log has been written to the store, and opening the log writes the
+ * rest before anything else. Tag changes are written to the store as additions and
+ * removals, so writing one twice does no harm.
+ *
+ * Creating and deleting users and tags goes straight to the store.
+ *
+ * The asynchronous view logs a change without blocking: the tags of a user without
+ * pending ones are read with the asynchronous view of the store, and the change is
+ * acknowledged when its batch is synced. Pending tags that reach the store and deleted
+ * users are counted per stripe of users, and a change whose read may predate them reads
+ * again.
+ *
+ * Nothing else may change the tags in the store. Rules are checked against the tags shown
+ * here, and the changes are written to the store without conditions, so a change made to
+ * the store directly could be merged with them into tags that break a rule.
+ */
+public class WriteAheadUserTagStore extends AbstractUserTagStore {
+
+	final static long SEGMENT_BYTES = 64L << 20;
+	final static int DRAIN_BATCH_SIZE = 1000;
+	final static long DRAIN_RETRY_MILLIS = 1000;
+	final static String CHECKPOINT_FILE = "drained";
+
+	private final static byte ADD_TAGS = 1;
+	private final static byte REMOVE_TAGS = 2;
+	// What logging a change returns when the user does not exist.
+	private final static long NO_USER = -2;
+
+	/**
+	 * The tags of a user after a logged change that has not reached the store yet.
+	 */
+	private static final class PendingUser {
+		final TagSet tags;
+		final long lsn;
+		// Whether the asynchronous view is deleting the user, meanwhile no change finds it.
+		final boolean deleting;
+
+		PendingUser(TagSet tags, long lsn) {
+			this(tags, lsn, false);
+		}
+
+		PendingUser(TagSet tags, long lsn, boolean deleting) {
+			this.tags = tags;
+			this.lsn = lsn;
+			this.deleting = deleting;
+		}
+	}
+
+	private static final class LoggedMutation {
+		final long lsn;
+		final TagMutation mutation;
+
+		LoggedMutation(long lsn, TagMutation mutation) {
+			this.lsn = lsn;
+			this.mutation = mutation;
+		}
+	}
+
+	private final UserTagStore store;
+	private final SegmentedLog segments;
+	private final GroupCommitLog log;
+	private final Path checkpointFile;
+	private final ConcurrentHashMap<String, PendingUser> pending = new ConcurrentHashMap<>();
+	// Logged changes in LSN order, appended to under appendLock.
+	private final LinkedBlockingQueue<LoggedMutation> undrained = new LinkedBlockingQueue<>();
+	private final Object appendLock = new Object();
+	private final Object[] userLocks = newLocks();
+	private final AtomicLongArray changeCounts = new AtomicLongArray(STRIPES);
+	private final Thread drainer;
+	// The last LSN written to the store.
+	private volatile long drainedLSN = -1;
+	private volatile boolean closed;
+	private volatile AsyncUserTagStore async;
+
+	/**
+	 * Opens the log in the directory, and writes the changes in it that have not reached
+	 * the store yet.
+	 *
+	 * @param maxDelayMicros  how long a change may wait for others to share its sync.
+	 * @param maxBatchRecords the number of changes that are synced at once.
+	 */
+	public WriteAheadUserTagStore(UserTagStore store, Path directory, long maxDelayMicros, int maxBatchRecords)
+			throws IOException {
+		this.store = store;
+		checkpointFile = directory.resolve(CHECKPOINT_FILE);
+		long firstLSN = 0;
+		if (Files.exists(checkpointFile)) {
+			firstLSN = Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim())
+					+ 1;
+		}
+		segments = new SegmentedLog(directory, SEGMENT_BYTES, firstLSN);
+
+		List<LoggedMutation> recovered = new ArrayList<>();
+		segments.replay(firstLSN, (lsn, payload) -> recovered.add(new LoggedMutation(lsn, decode(payload))));
+		for (int start = 0; start < recovered.size(); start += DRAIN_BATCH_SIZE) {
+			List<LoggedMutation> batch = recovered.subList(start,
+					Math.min(start + DRAIN_BATCH_SIZE, recovered.size()));
+			store.applyTagMutations(coalesce(batch));
+			checkpoint(batch.get(batch.size() - 1).lsn);
+		}
+
+		log = new GroupCommitLog(segments, maxDelayMicros, maxBatchRecords);
+		drainer = new Thread(this::drain, "tagging-wal-drain");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	@Override
+	public User insertUser(String name, Set<Tag> tags) {
+		User user = store.insertUser(name, tags);
+		fireUserInserted(user.getID(), TagSet.of(tags));
+		return user;
+	}
+
+	@Override
+	public List<User> insertUsers(List<String> names, List<? extends Set<Tag>> tags) {
+		List<User> users = store.insertUsers(names, tags);
+		for (User user : users) {
+			fireUserInserted(user.getID(), user.getLoadedTags());
+		}
+		return users;
+	}
+
+	@Override
+	public boolean deleteUser(String userID) {
+		String key = toKey(userID);
+		synchronized (lockFor(key)) {
+			PendingUser pendingUser = pending.get(key);
+			if (pendingUser != null && pendingUser.deleting) {
+				return false;
+			}
+			TagSet tags = getTagsForUser(key);
+			if (!store.deleteUser(key)) {
+				return false;
+			}
+			// Logged changes still to be written find no user and do nothing.
+			countChange(key);
+			pending.remove(key);
+			fireUserDeleted(key, tags);
+			return true;
+		}
+	}
+
+	@Override
+	public User getUser(String userID) {
+		return withPendingTags(store.getUser(userID));
+	}
+
+	@Override
+	public Map<String, User> getUsers(Collection<String> userIDs) {
+		Map<String, User> users = new HashMap<>();
+		for (User user : store.getUsers(userIDs).values()) {
+			users.put(user.getID(), withPendingTags(user));
+		}
+		return users;
+	}
+
+	@Override
+	public List<User> getAllUsers() {
+		List<User> allUsers = new ArrayList<>();
+		forEachUser(null, null, allUsers::add);
+		return allUsers;
+	}
+
+	@Override
+	public void forEachUser(String fromID, String toID, Predicate<User> visitor) {
+		store.forEachUser(fromID, toID, user -> visitor.test(withPendingTags(user)));
+	}
+
+	@Override
+	public List<String> getUserIDSplitPoints(int partitions) {
+		return store.getUserIDSplitPoints(partitions);
+	}
+
+	@Override
+	public void writeAllTags(Appendable out) throws IOException {
+		store.writeAllTags(out);
+	}
+
+	@Override
+	public boolean userHasTag(String userID, Tag tag) {
+		PendingUser user = pending.get(toKey(userID));
+		return user != null ? user.tags.contains(tag) : store.userHasTag(userID, tag);
+	}
+
+	@Override
+	public TagSet getTagsForUser(String userID) {
+		PendingUser user = pending.get(toKey(userID));
+		return user != null ? user.tags : store.getTagsForUser(userID);
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd) {
+		return awaitDurable(log(userID, TaggableOperation.ADD_TAG, tagsToAdd));
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove) {
+		return awaitDurable(log(userID, TaggableOperation.REMOVE_TAG, tagsToRemove));
+	}
+
+	@Override
+	public boolean addTagsToUser(String userID, Set<Tag> tagsToAdd, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		return awaitDurable(log(userID, TaggableOperation.ADD_TAG, tagsToAdd,
+				getPreconditions(TaggableOperation.ADD_TAG, tagsToAdd, rules)));
+	}
+
+	@Override
+	public boolean removeTagsFromUser(String userID, Set<Tag> tagsToRemove, Collection<ConsistencyRule> rules)
+			throws ConsistencyRuleViolationException {
+		return awaitDurable(log(userID, TaggableOperation.REMOVE_TAG, tagsToRemove,
+				getPreconditions(TaggableOperation.REMOVE_TAG, tagsToRemove, rules)));
+	}
+
+	/**
+	 * Logs the mutations, each checking its preconditions under the user's lock, and waits
+	 * once for all of them to be durable.
+	 */
+	@Override
+	public TagMutationResult applyTagMutations(List<TagMutation> mutations) {
+		Exception[] failures = new Exception[mutations.size()];
+		int modified = 0;
+		long lastLSN = -1;
+		for (int i = 0; i < mutations.size(); i++) {
+			TagMutation mutation = mutations.get(i);
+			try {
+				long lsn = log(mutation.getUserID(), mutation.getOperation(), mutation.getTags(),
+						mutation.getPreconditions());
+				if (lsn >= 0) {
+					modified++;
+					lastLSN = lsn;
+				} else if (lsn == NO_USER) {
+					failures[i] = new UserNotFoundException(mutation.getUserID());
+				}
+			} catch (ConsistencyRuleViolationException e) {
+				failures[i] = e;
+			}
+		}
+		awaitDurable(lastLSN);
+		return new TagMutationResult(modified, failures);
+	}
+
+	@Override
+	public Tag insertTag(String tagName) {
+		return store.insertTag(tagName);
+	}
+
+	@Override
+	public boolean deleteTag(String tagID) {
+		return store.deleteTag(tagID);
+	}
+
+	@Override
+	public Tag getTag(String tagName) {
+		return store.getTag(tagName);
+	}
+
+	@Override
+	public ConnectionPoolStatistics getPoolStatistics() {
+		return store.getPoolStatistics();
+	}
+
+	/**
+	 * The view in which changes are logged without blocking the caller, and the users
+	 * without pending tags are read with the asynchronous view of the store.
+	 */
+	@Override
+	public AsyncUserTagStore async() {
+		AsyncUserTagStore view = async;
+		if (view != null) {
+			return view;
+		}
+		synchronized (this) {
+			if (async == null) {
+				async = new AsyncWriteAheadUserTagStore(store.async());
+			}
+			return async;
+		}
+	}
+
+	/**
+	 * @return the number of logged changes that have not reached the store yet.
+	 */
+	public int getUndrainedCount() {
+		return undrained.size();
+	}
+
+	/**
+	 * @return the average number of changes made durable by one sync.
+	 */
+	public double getAverageBatchRecords() {
+		return log.getAverageBatchRecords();
+	}
+
+	/**
+	 * Writes the remaining changes to the store, unless it fails, and closes the log and
+	 * the store.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.close();
+		try {
+			segments.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			store.close();
+		}
+	}
+
+	private long log(String userID, TaggableOperation operation, Set<Tag> tags) {
+		try {
+			return log(userID, operation, tags, Collections.emptyList());
+		} catch (ConsistencyRuleViolationException e) {
+			throw violatedWithoutRules(e);
+		}
+	}
+
+	/**
+	 * Logs the change of the user's tags, shows it to readers and tells the listeners,
+	 * under the user's lock. The change is not durable yet.
+	 *
+	 * @return the LSN of the change, -1 if the user is unchanged, or NO_USER.
+	 */
+	private long log(String userID, TaggableOperation operation, Set<Tag> tags,
+			List<ConsistencyPrecondition> preconditions) throws ConsistencyRuleViolationException {
+		String key = toKey(userID);
+		synchronized (lockFor(key)) {
+			PendingUser pendingUser = pending.get(key);
+			TagSet before;
+			if (pendingUser != null) {
+				before = getExistingTags(pendingUser);
+			} else {
+				User user = store.getUser(key);
+				before = user == null ? null : user.getLoadedTags();
+			}
+			return log(key, operation, tags, preconditions, before);
+		}
+	}
+
+	/**
+	 * Logs the change of the user's tags from the given ones, shows it to readers and tells
+	 * the listeners. The caller holds the user's lock.
+	 *
+	 * @param before the tags of the user, or null if it does not exist.
+	 * @return the LSN of the change, -1 if the user is unchanged, or NO_USER.
+	 */
+	private long log(String key, TaggableOperation operation, Set<Tag> tags,
+			List<ConsistencyPrecondition> preconditions, TagSet before) throws ConsistencyRuleViolationException {
+		if (before == null) {
+			return NO_USER;
+		}
+		for (ConsistencyPrecondition precondition : preconditions) {
+			if (!precondition.test(before)) {
+				throw new ConsistencyRuleViolationException(precondition.getRule());
+			}
+		}
+		TagSet changed = operation == TaggableOperation.ADD_TAG ? TagSet.of(tags).difference(before)
+				: before.difference(before.difference(tags));
+		if (changed.isEmpty()) {
+			return -1;
+		}
+		TagMutation mutation = new TagMutation(key, operation, changed);
+		TagSet after = operation == TaggableOperation.ADD_TAG ? before.union(changed) : before.difference(changed);
+		long lsn;
+		synchronized (appendLock) {
+			try {
+				lsn = log.append(encode(mutation));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			// Shown before the drainer can see the change, which then clears it once the
+			// change is in the store.
+			pending.put(key, new PendingUser(after, lsn));
+			undrained.add(new LoggedMutation(lsn, mutation));
+		}
+		if (operation == TaggableOperation.ADD_TAG) {
+			fireTagsAdded(key, before, changed);
+		} else {
+			fireTagsRemoved(key, before, changed);
+		}
+		return lsn;
+	}
+
+	/**
+	 * Logs the change without blocking, reading the user from the asynchronous view of
+	 * the store if it has no pending tags.
+	 *
+	 * @return the LSN of the change, -1 if the user is unchanged, or NO_USER.
+	 */
+	private CompletableFuture<Long> logAsync(AsyncUserTagStore reads, String key, TaggableOperation operation,
+			Set<Tag> tags, List<ConsistencyPrecondition> preconditions) {
+		long count = changeCounts.get(stripe(key));
+		synchronized (lockFor(key)) {
+			PendingUser pendingUser = pending.get(key);
+			if (pendingUser != null) {
+				return logNow(key, operation, tags, preconditions, getExistingTags(pendingUser));
+			}
+		}
+		return reads.getUser(key)
+				.thenCompose(user -> logRead(reads, key, operation, tags, preconditions, user, count));
+	}
+
+	/**
+	 * Logs the change against the user as read from the store while the stripe had the
+	 * given count, or reads again if the store may have changed since.
+	 */
+	private CompletableFuture<Long> logRead(AsyncUserTagStore reads, String key, TaggableOperation operation,
+			Set<Tag> tags, List<ConsistencyPrecondition> preconditions, User user, long count) {
+		synchronized (lockFor(key)) {
+			PendingUser pendingUser = pending.get(key);
+			if (pendingUser != null) {
+				return logNow(key, operation, tags, preconditions, getExistingTags(pendingUser));
+			}
+			if (changeCounts.get(stripe(key)) == count) {
+				return logNow(key, operation, tags, preconditions, user == null ? null : user.getLoadedTags());
+			}
+		}
+		return logAsync(reads, key, operation, tags, preconditions);
+	}
+
+	private CompletableFuture<Long> logNow(String key, TaggableOperation operation, Set<Tag> tags,
+			List<ConsistencyPrecondition> preconditions, TagSet before) {
+		try {
+			return CompletableFuture.completedFuture(log(key, operation, tags, preconditions, before));
+		} catch (ConsistencyRuleViolationException | RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * @return the tags of the user, or null if it is being deleted.
+	 */
+	private static TagSet getExistingTags(PendingUser user) {
+		return user.deleting ? null : user.tags;
+	}
+
+	/**
+	 * Counts a change of the store that a read of the user may predate, before the pending
+	 * tags it makes obsolete are dropped.
+	 */
+	private void countChange(String key) {
+		changeCounts.incrementAndGet(stripe(key));
+	}
+
+	/**
+	 * @return a future of whether a change was logged, completed once it is durable.
+	 */
+	private CompletableFuture<Boolean> whenDurable(long lsn) {
+		if (lsn < 0) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return log.whenDurable(lsn).thenApply(unused -> true);
+	}
+
+	/**
+	 * @return whether a change was logged, once it is durable.
+	 */
+	private boolean awaitDurable(long lsn) {
+		if (lsn < 0) {
+			return false;
+		}
+		try {
+			log.awaitDurable(lsn);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return true;
+	}
+
+	private User withPendingTags(User user) {
+		if (user == null) {
+			return null;
+		}
+		PendingUser pendingUser = pending.get(user.getID());
+		return pendingUser == null ? user : new User(user.getID(), user.getName(), pendingUser.tags);
+	}
+
+	/**
+	 * Writes the logged changes to the store in bulk, retrying while the store fails.
+	 */
+	private void drain() {
+		List<LoggedMutation> batch = new ArrayList<>(DRAIN_BATCH_SIZE);
+		while (!closed || !undrained.isEmpty()) {
+			try {
+				LoggedMutation first = undrained.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				undrained.drainTo(batch, DRAIN_BATCH_SIZE - 1);
+				long lastLSN = batch.get(batch.size() - 1).lsn;
+				// The store must never be ahead of the log.
+				log.awaitDurable(lastLSN);
+				// Checked against the tags shown here when logged, which nothing else changes.
+				List<TagMutation> mutations = coalesce(batch);
+				while (true) {
+					try {
+						store.applyTagMutations(mutations);
+						break;
+					} catch (RuntimeException e) {
+						if (closed) {
+							// The log still holds the changes for the next start.
+							return;
+						}
+						e.printStackTrace();
+						Thread.sleep(DRAIN_RETRY_MILLIS);
+					}
+				}
+				drainedLSN = lastLSN;
+				for (LoggedMutation written : batch) {
+					pending.computeIfPresent(written.mutation.getUserID(), (key, user) -> {
+						if (user.lsn > lastLSN) {
+							return user;
+						}
+						countChange(key);
+						return null;
+					});
+				}
+				checkpoint(lastLSN);
+				batch.clear();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				// The log failed, and with it every waiting change.
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records that the changes up to the LSN are in the store, and deletes the log segments
+	 * that hold only such changes.
+	 */
+	private void checkpoint(long lsn) throws IOException {
+		Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+		Files.write(temporary, Long.toString(lsn).getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		segments.deleteBefore(lsn + 1);
+	}
+
+	/**
+	 * Folds the changes of a batch into at most one addition and one removal per user.
+	 * They are disjoint, so the store may write them in any order.
+	 */
+	private static List<TagMutation> coalesce(List<LoggedMutation> batch) {
+		Map<String, TagSet[]> changes = new LinkedHashMap<>();
+		for (LoggedMutation logged : batch) {
+			TagMutation mutation = logged.mutation;
+			TagSet[] change = changes.computeIfAbsent(mutation.getUserID(),
+					key -> new TagSet[] { TagSet.EMPTY, TagSet.EMPTY });
+			if (mutation.getOperation() == TaggableOperation.ADD_TAG) {
+				change[0] = change[0].union(mutation.getTags());
+				change[1] = change[1].difference(mutation.getTags());
+			} else {
+				change[0] = change[0].difference(mutation.getTags());
+				change[1] = change[1].union(mutation.getTags());
+			}
+		}
+		List<TagMutation> mutations = new ArrayList<>();
+		for (Map.Entry<String, TagSet[]> change : changes.entrySet()) {
+			if (!change.getValue()[0].isEmpty()) {
+				mutations.add(new TagMutation(change.getKey(), TaggableOperation.ADD_TAG, change.getValue()[0]));
+			}
+			if (!change.getValue()[1].isEmpty()) {
+				mutations.add(new TagMutation(change.getKey(), TaggableOperation.REMOVE_TAG, change.getValue()[1]));
+			}
+		}
+		return mutations;
+	}
+
+	/**
+	 * Encodes a change as its operation, the user's ObjectId and the tag names, since
+	 * ordinals are only valid within one process.
+	 */
+	private static byte[] encode(TagMutation mutation) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(mutation.getOperation() == TaggableOperation.ADD_TAG ? ADD_TAGS : REMOVE_TAGS);
+			writeID(out, mutation.getUserID());
+			writeTags(out, mutation.getTags());
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing to a ByteArrayOutputStream cannot fail.", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static TagMutation decode(ByteBuffer payload) throws IOException {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		byte type = in.readByte();
+		if (type != ADD_TAGS && type != REMOVE_TAGS) {
+			throw new IOException(String.format("Unknown log record type %d.", type));
+		}
+		return new TagMutation(readID(in),
+				type == ADD_TAGS ? TaggableOperation.ADD_TAG : TaggableOperation.REMOVE_TAG, readTags(in));
+	}
+
+	private Object lockFor(String key) {
+		return userLocks[stripe(key)];
+	}
+
+	/**
+	 * Logs changes like the blocking operations do, but reads the users without pending
+	 * tags with the asynchronous view of the store, and completes the futures of changes
+	 * when their batch is synced.
+	 *
+	 * A user being deleted is marked in the pending users, so that no change finds it
+	 * until the store is done. If the store does not delete it, the mark is taken back.
+	 */
+	private final class AsyncWriteAheadUserTagStore implements AsyncUserTagStore {
+
+		private final AsyncUserTagStore reads;
+
+		AsyncWriteAheadUserTagStore(AsyncUserTagStore reads) {
+			this.reads = reads;
+		}
+
+		@Override
+		public CompletableFuture<User> insertUser(String name, Set<Tag> tags) {
+			return reads.insertUser(name, tags).thenApply(user -> {
+				fireUserInserted(user.getID(), TagSet.of(tags));
+				return user;
+			});
+		}
+
+		@Override
+		public CompletableFuture<Boolean> deleteUser(String userID) {
+			return delete(toKey(userID));
+		}
+
+		@Override
+		public CompletableFuture<User> getUser(String userID) {
+			return reads.getUser(userID).thenApply(WriteAheadUserTagStore.this::withPendingTags);
+		}
+
+		@Override
+		public CompletableFuture<Map<String, User>> getUsers(Collection<String> userIDs) {
+			return reads.getUsers(userIDs).thenApply(found -> {
+				Map<String, User> users = new HashMap<>();
+				for (User user : found.values()) {
+					users.put(user.getID(), withPendingTags(user));
+				}
+				return users;
+			});
+		}
+
+		@Override
+		public CompletableFuture<TagSet> getTagsForUser(String userID) {
+			String key = toKey(userID);
+			PendingUser user = pending.get(key);
+			if (user != null) {
+				return CompletableFuture.completedFuture(user.tags);
+			}
+			return reads.getTagsForUser(key).thenApply(tags -> {
+				PendingUser logged = pending.get(key);
+				return logged != null ? logged.tags : tags;
+			});
+		}
+
+		@Override
+		public CompletableFuture<Boolean> addTagsToUser(String userID, Set<Tag> tagsToAdd,
+				Collection<ConsistencyRule> rules) {
+			return logAsync(reads, toKey(userID), TaggableOperation.ADD_TAG, tagsToAdd,
+					getPreconditions(TaggableOperation.ADD_TAG, tagsToAdd, rules))
+					.thenCompose(WriteAheadUserTagStore.this::whenDurable);
+		}
+
+		@Override
+		public CompletableFuture<Boolean> removeTagsFromUser(String userID, Set<Tag> tagsToRemove,
+				Collection<ConsistencyRule> rules) {
+			return logAsync(reads, toKey(userID), TaggableOperation.REMOVE_TAG, tagsToRemove,
+					getPreconditions(TaggableOperation.REMOVE_TAG, tagsToRemove, rules))
+					.thenCompose(WriteAheadUserTagStore.this::whenDurable);
+		}
+
+		/**
+		 * Reads the users without pending tags in bulk, logs the mutations in order and
+		 * completes once all of them are durable.
+		 */
+		@Override
+		public CompletableFuture<TagMutationResult> applyTagMutations(List<TagMutation> mutations) {
+			List<String> keys = new ArrayList<>(mutations.size());
+			long[] counts = new long[mutations.size()];
+			List<String> unread = new ArrayList<>();
+			for (int i = 0; i < mutations.size(); i++) {
+				String key = toKey(mutations.get(i).getUserID());
+				keys.add(key);
+				counts[i] = changeCounts.get(stripe(key));
+				if (!pending.containsKey(key)) {
+					unread.add(key);
+				}
+			}
+			Exception[] failures = new Exception[mutations.size()];
+			long[] lsns = new long[mutations.size()];
+			return reads.getUsers(unread).thenCompose(users -> {
+				CompletableFuture<Void> logged = CompletableFuture.completedFuture(null);
+				for (int i = 0; i < mutations.size(); i++) {
+					int index = i;
+					TagMutation mutation = mutations.get(i);
+					String key = keys.get(i);
+					logged = logged.thenCompose(unused -> logRead(reads, key, mutation.getOperation(),
+							mutation.getTags(), mutation.getPreconditions(), users.get(key), counts[index]))
+							.handle((lsn, e) -> {
+								Throwable failure = e instanceof CompletionException ? e.getCause() : e;
+								if (failure == null) {
+									lsns[index] = lsn;
+								} else if (failure instanceof ConsistencyRuleViolationException) {
+									lsns[index] = -1;
+									failures[index] = (ConsistencyRuleViolationException) failure;
+								} else {
+									throw new CompletionException(failure);
+								}
+								return null;
+							});
+				}
+				return logged;
+			}).thenCompose(unused -> {
+				int modified = 0;
+				long lastLSN = -1;
+				for (int i = 0; i < mutations.size(); i++) {
+					if (lsns[i] >= 0) {
+						modified++;
+						lastLSN = Math.max(lastLSN, lsns[i]);
+					} else if (lsns[i] == NO_USER) {
+						failures[i] = new UserNotFoundException(mutations.get(i).getUserID());
+					}
+				}
+				TagMutationResult result = new TagMutationResult(modified, failures);
+				return whenDurable(lastLSN).thenApply(durable -> result);
+			});
+		}
+
+		private CompletableFuture<Boolean> delete(String key) {
+			long count = changeCounts.get(stripe(key));
+			synchronized (lockFor(key)) {
+				PendingUser pendingUser = pending.get(key);
+				if (pendingUser != null) {
+					return delete(key, getExistingTags(pendingUser), pendingUser);
+				}
+			}
+			return reads.getUser(key).thenCompose(user -> {
+				synchronized (lockFor(key)) {
+					PendingUser pendingUser = pending.get(key);
+					if (pendingUser != null) {
+						return delete(key, getExistingTags(pendingUser), pendingUser);
+					}
+					if (changeCounts.get(stripe(key)) == count) {
+						return delete(key, user == null ? null : user.getLoadedTags(), null);
+					}
+				}
+				return delete(key);
+			});
+		}
+
+		/**
+		 * Marks the user as being deleted and deletes it from the store. The caller holds
+		 * the user's lock.
+		 *
+		 * @param tags     the tags of the user, or null if it does not exist.
+		 * @param replaced the pending tags of the user, to take back if it is not deleted.
+		 */
+		private CompletableFuture<Boolean> delete(String key, TagSet tags, PendingUser replaced) {
+			if (tags == null) {
+				return CompletableFuture.completedFuture(false);
+			}
+			pending.put(key, new PendingUser(tags, Long.MAX_VALUE, true));
+			CompletableFuture<Boolean> deleted;
+			try {
+				deleted = reads.deleteUser(key);
+			} catch (RuntimeException e) {
+				deleted = CompletableFuture.failedFuture(e);
+			}
+			return deleted.whenComplete((done, e) -> {
+				synchronized (lockFor(key)) {
+					// Either way the store may have changed under reads of the user.
+					countChange(key);
+					if (e == null && done) {
+						// Logged changes still to be written find no user and do nothing.
+						pending.remove(key);
+						fireUserDeleted(key, tags);
+					} else {
+						// Pending tags the drainer has written meanwhile are no longer needed.
+						pending.compute(key, (unused, user) -> replaced != null && replaced.lsn > drainedLSN
+								? replaced : null);
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1 @@
+package tagging.storage;
\ No newline at end of file
@@ -0,0 +1,117 @@
+package tagging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tagging.consistency.ConsistencyRule;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.consistency.NANDConsistencyRule;
+
+class InMemoryUserTagStoreTest {
+
+	private InMemoryUserTagStore store;
+	private Tag a;
+	private Tag b;
+
+	@BeforeEach
+	void setUp() {
+		store = new InMemoryUserTagStore();
+		a = store.insertTag("memory-a");
+		b = store.insertTag("memory-b");
+	}
+
+	@Test
+	void changesTagsOfAUser() {
+		String userID = store.insertUser("alice", Set.of(a)).getID();
+
+		assertTrue(store.addTagsToUser(userID, Set.of(b)));
+		assertFalse(store.addTagsToUser(userID, Set.of(b)));
+		assertEquals(TagSet.of(a, b), store.getTagsForUser(userID));
+		assertTrue(store.removeTagsFromUser(userID, Set.of(a)));
+		assertFalse(store.removeTagsFromUser(userID, Set.of(a)));
+
+		User user = store.getUser(userID);
+		assertEquals("alice", user.getName());
+		assertEquals(TagSet.of(b), user.getLoadedTags());
+	}
+
+	@Test
+	void deletesUsers() {
+		String userID = store.insertUser("bob", Set.of(a)).getID();
+
+		assertTrue(store.deleteUser(userID));
+		assertFalse(store.deleteUser(userID));
+		assertNull(store.getUser(userID));
+		assertFalse(store.addTagsToUser(userID, Set.of(b)));
+	}
+
+	@Test
+	void acceptsIDsInAnyCase() {
+		String userID = store.insertUser("carol", Set.of()).getID();
+
+		assertTrue(store.addTagsToUser(userID.toUpperCase(), Set.of(a)));
+		assertEquals(TagSet.of(a), store.getUsers(List.of(userID.toUpperCase())).get(userID).getLoadedTags());
+	}
+
+	@Test
+	void rejectsMalformedIDs() {
+		assertThrows(IllegalArgumentException.class, () -> store.getUser("carol"));
+		assertThrows(IllegalArgumentException.class, () -> store.addTagsToUser("carol", Set.of(a)));
+	}
+
+	@Test
+	void checksRulesAgainstTheStoredTags() throws ConsistencyRuleViolationException {
+		String userID = store.insertUser("dave", Set.of(a)).getID();
+		List<ConsistencyRule> rules = List.of(new NANDConsistencyRule(a, b));
+
+		assertThrows(ConsistencyRuleViolationException.class, () -> store.addTagsToUser(userID, Set.of(b), rules));
+		assertEquals(TagSet.of(a), store.getTagsForUser(userID));
+		assertTrue(store.removeTagsFromUser(userID, Set.of(a), rules));
+		assertTrue(store.addTagsToUser(userID, Set.of(b), rules));
+	}
+
+	@Test
+	void reportsEachFailedMutation() {
+		String userID = store.insertUser("erin", Set.of(a)).getID();
+		ConsistencyRule rule = new NANDConsistencyRule(a, b);
+		String missingID = new ObjectId().toHexString();
+		List<TagMutation> mutations = List.of(
+				new TagMutation(userID, TaggableOperation.ADD_TAG, TagSet.of(b),
+						List.of(rule.getPrecondition(TaggableOperation.ADD_TAG, TagSet.of(b)))),
+				new TagMutation(missingID, TaggableOperation.ADD_TAG, TagSet.of(a)),
+				new TagMutation(userID, TaggableOperation.REMOVE_TAG, TagSet.of(a)));
+
+		TagMutationResult result = store.applyTagMutations(mutations);
+
+		assertInstanceOf(ConsistencyRuleViolationException.class, result.getFailure(0));
+		assertInstanceOf(UserNotFoundException.class, result.getFailure(1));
+		assertTrue(result.isWritten(2));
+		assertEquals(1, result.getModifiedCount());
+		assertEquals(TagSet.EMPTY, store.getTagsForUser(userID));
+	}
+
+	@Test
+	void scansUsersInIDOrder() {
+		for (int i = 0; i < 10; i++) {
+			store.insertUser("user" + i, Set.of(a));
+		}
+
+		List<User> users = store.getAllUsers();
+
+		assertEquals(10, users.size());
+		for (int i = 1; i < users.size(); i++) {
+			assertTrue(users.get(i - 1).getID().compareTo(users.get(i).getID()) < 0);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package tagging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+class TagIndexTest {
+
+	private static final Tag A = new Tag(new ObjectId().toHexString(), "index-a");
+	private static final Tag B = new Tag(new ObjectId().toHexString(), "index-b");
+
+	@Test
+	void reconciliationCorrectsTheIndexToTheScan() {
+		TagIndex index = new TagIndex();
+		index.userInserted("changed", TagSet.of(A));
+		index.userInserted("gone", TagSet.of(B));
+		index.userInserted("same", TagSet.of(B));
+
+		TagIndex.Reconciliation reconciliation = index.startReconciliation();
+		reconciliation.pass("changed", TagSet.of(A, B), tags -> {
+		});
+		reconciliation.pass("same", TagSet.of(B), tags -> {
+		});
+		reconciliation.pass("new", TagSet.of(A), tags -> {
+		});
+
+		assertEquals(3, reconciliation.finish());
+		assertTrue(index.hasTags("changed", TagSet.of(A, B)));
+		assertFalse(index.hasTags("gone", TagSet.EMPTY));
+		assertTrue(index.hasTags("new", TagSet.of(A)));
+		assertEquals(2, index.count(TagSet.of(A)));
+		assertEquals(2, index.count(TagSet.of(B)));
+	}
+
+	@Test
+	void reconciliationKeepsChangesMadeDuringTheScan() {
+		TagIndex index = new TagIndex();
+		index.userInserted("user", TagSet.of(A));
+
+		TagIndex.Reconciliation reconciliation = index.startReconciliation();
+		index.tagsAdded("user", TagSet.of(B));
+		List<TagSet> visited = new ArrayList<>();
+		// Scanned before the change.
+		reconciliation.pass("user", TagSet.of(A), visited::add);
+
+		assertEquals(0, reconciliation.finish());
+		assertEquals(List.of(TagSet.of(A, B)), visited);
+		assertTrue(index.hasTags("user", TagSet.of(A, B)));
+	}
+
+	@Test
+	void reconciliationDoesNotRestoreUsersDeletedDuringTheScan() {
+		TagIndex index = new TagIndex();
+		index.userInserted("user", TagSet.of(A));
+
+		TagIndex.Reconciliation reconciliation = index.startReconciliation();
+		index.userDeleted("user", TagSet.of(A));
+		List<TagSet> visited = new ArrayList<>();
+		reconciliation.pass("user", TagSet.of(A), visited::add);
+		reconciliation.finish();
+
+		assertEquals(List.of(TagSet.EMPTY), visited);
+		assertEquals(0, index.count(TagSet.EMPTY));
+	}
+
+	@Test
+	void cancelledReconciliationRemovesNobody() {
+		TagIndex index = new TagIndex();
+		index.userInserted("user", TagSet.of(A));
+
+		TagIndex.Reconciliation reconciliation = index.startReconciliation();
+		reconciliation.cancel();
+
+		assertTrue(index.hasTags("user", TagSet.of(A)));
+	}
+}
@@ -0,0 +1,103 @@
+package tagging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the set algebra of TagSet and TagMask against HashSet, over tags whose ordinals
+ * span more than one word of a mask.
+ */
+class TagSetTest {
+
+	private static final List<Tag> TAGS = new ArrayList<>();
+
+	static {
+		for (int i = 0; i < 150; i++) {
+			TAGS.add(new Tag(new ObjectId().toHexString(), "set-" + i));
+		}
+	}
+
+	@Test
+	void operationsMatchHashSet() {
+		Random random = new Random(1);
+		for (int round = 0; round < 500; round++) {
+			Set<Tag> a = randomTags(random);
+			Set<Tag> b = randomTags(random);
+			TagSet tagsA = TagSet.of(a);
+			TagSet tagsB = TagSet.of(b);
+
+			Set<Tag> union = new HashSet<>(a);
+			union.addAll(b);
+			Set<Tag> difference = new HashSet<>(a);
+			difference.removeAll(b);
+			Set<Tag> intersection = new HashSet<>(a);
+			intersection.retainAll(b);
+
+			assertEquals(union, tagsA.union(b));
+			assertEquals(difference, tagsA.difference(b));
+			assertEquals(difference, tagsA.difference(tagsB));
+			assertEquals(!intersection.isEmpty(), tagsA.intersects(b));
+			assertEquals(a.containsAll(b), tagsA.containsAll(tagsB));
+			assertEquals(a.size(), tagsA.size());
+			assertEquals(a.isEmpty(), tagsA.isEmpty());
+			assertEquals(new HashSet<>(tagsA), a);
+			assertEquals(a.hashCode(), tagsA.hashCode());
+		}
+	}
+
+	@Test
+	void masksMatchSetsAfterAChange() {
+		Random random = new Random(2);
+		for (int round = 0; round < 500; round++) {
+			TagSet existing = TagSet.of(randomTags(random));
+			TagSet changed = TagSet.of(randomTags(random));
+			TagSet required = TagSet.of(randomTags(random));
+
+			assertEquals(existing.containsAll(required), TagMask.containsAll(existing.asMask(), required.asMask()));
+			assertEquals(existing.union(changed).containsAll(required),
+					TagMask.containsAllAfterAdd(existing.asMask(), changed.asMask(), required.asMask()));
+			assertEquals(existing.difference(changed).containsAll(required),
+					TagMask.containsAllAfterRemove(existing.asMask(), changed.asMask(), required.asMask()));
+		}
+	}
+
+	@Test
+	void masksOfDifferentLengthsMix() {
+		TagSet low = TagSet.of(TAGS.get(0));
+		TagSet high = TagSet.of(TAGS.get(0), TAGS.get(149));
+
+		assertTrue(TagMask.containsAll(high.asMask(), low.asMask()));
+		assertFalse(TagMask.containsAll(low.asMask(), high.asMask()));
+		assertEquals(low, high.difference(TagSet.of(TAGS.get(149))));
+		assertEquals(TagSet.EMPTY, low.difference(high));
+	}
+
+	@Test
+	void ordinalsRoundTrip() {
+		TagSet tags = TagSet.of(TAGS.get(3), TAGS.get(70), TAGS.get(140));
+
+		assertEquals(tags, TagSet.fromOrdinals(tags.toOrdinals()));
+		assertEquals(tags, TagSet.fromMask(tags.asMask()));
+		assertTrue(tags.containsOrdinal(TAGS.get(70).getOrdinal()));
+		assertFalse(tags.containsOrdinal(TAGS.get(71).getOrdinal()));
+	}
+
+	private static Set<Tag> randomTags(Random random) {
+		Set<Tag> tags = new HashSet<>();
+		int count = random.nextInt(6);
+		for (int i = 0; i < count; i++) {
+			tags.add(TAGS.get(random.nextInt(TAGS.size())));
+		}
+		return tags;
+	}
+}
@@ -0,0 +1,79 @@
+package tagging.consistency;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import tagging.Tag;
+import tagging.TagSet;
+import tagging.TaggableOperation;
+
+/**
+ * Checks that the precondition of a rule allows exactly the operations that
+ * validateOperation allows, for every combination of existing and changed tags.
+ */
+class ConsistencyRuleTest {
+
+	private static final Tag A = newTag("rule-a");
+	private static final Tag B = newTag("rule-b");
+	private static final Tag C = newTag("rule-c");
+	private static final Tag D = newTag("rule-d");
+	private static final List<Tag> TAGS = List.of(A, B, C, D);
+
+	@Test
+	void nandPreconditionsMatchValidation() {
+		assertPreconditionsMatch(new NANDConsistencyRule(A, B));
+		assertPreconditionsMatch(new NANDConsistencyRule(A, B, C));
+	}
+
+	@Test
+	void andPreconditionsMatchValidation() {
+		assertPreconditionsMatch(new ANDConsistencyRule(A, B));
+		assertPreconditionsMatch(new ANDConsistencyRule(B, C, D));
+	}
+
+	@Test
+	void nullTagsAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new NANDConsistencyRule(A, null));
+		assertThrows(IllegalArgumentException.class, () -> new ANDConsistencyRule(A, B, (Tag) null));
+	}
+
+	private static void assertPreconditionsMatch(ConsistencyRule rule) {
+		List<TagSet> subsets = subsets();
+		for (TaggableOperation operation : List.of(TaggableOperation.ADD_TAG, TaggableOperation.REMOVE_TAG)) {
+			for (TagSet changed : subsets) {
+				ConsistencyPrecondition precondition = rule.getPrecondition(operation, changed);
+				for (TagSet existing : subsets) {
+					boolean expected = rule.validateOperation(existing, operation, changed);
+					boolean actual = precondition == null || precondition.test(existing);
+					assertEquals(expected, actual,
+							String.format("%s %s %s on %s", rule.getClass().getSimpleName(), operation, changed,
+									existing));
+				}
+			}
+		}
+	}
+
+	private static List<TagSet> subsets() {
+		List<TagSet> subsets = new ArrayList<>();
+		for (int bits = 0; bits < 1 << TAGS.size(); bits++) {
+			List<Tag> tags = new ArrayList<>();
+			for (int i = 0; i < TAGS.size(); i++) {
+				if ((bits & 1 << i) != 0) {
+					tags.add(TAGS.get(i));
+				}
+			}
+			subsets.add(TagSet.of(tags));
+		}
+		return subsets;
+	}
+
+	private static Tag newTag(String name) {
+		return new Tag(new ObjectId().toHexString(), name);
+	}
+}
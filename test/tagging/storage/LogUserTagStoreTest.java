@@ -0,0 +1,89 @@
+package tagging.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import tagging.Tag;
+import tagging.TagSet;
+import tagging.User;
+import tagging.UserTagStore;
+
+class LogUserTagStoreTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void reopeningReplaysTheLog() throws IOException {
+		LogUserTagStore store = new LogUserTagStore(directory, true);
+		Tag a = store.insertTag("log-a");
+		Tag b = store.insertTag("log-b");
+		String kept = store.insertUser("alice", Set.of(a)).getID();
+		String deleted = store.insertUser("bob", Set.of(b)).getID();
+		store.addTagsToUser(kept, Set.of(b));
+		store.removeTagsFromUser(kept, Set.of(a));
+		store.deleteUser(deleted);
+		Map<String, String> before = dump(store);
+		store.close();
+
+		LogUserTagStore reopened = new LogUserTagStore(directory, true);
+		try {
+			assertEquals(before, dump(reopened));
+			assertEquals(TagSet.of(b), reopened.getTagsForUser(kept));
+			assertNull(reopened.getUser(deleted));
+			assertNotNull(reopened.getTag("log-a"));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	void reopeningReplaysTheLogOverTheSnapshot() throws IOException {
+		LogUserTagStore store = new LogUserTagStore(directory, true);
+		Tag a = store.insertTag("snapshot-a");
+		Tag b = store.insertTag("snapshot-b");
+		List<String> userIDs = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			userIDs.add(store.insertUser("user" + i, Set.of(a)).getID());
+		}
+		store.snapshot();
+		// Changes after the snapshot, to users in it and to new ones.
+		store.addTagsToUser(userIDs.get(0), Set.of(b));
+		store.removeTagsFromUser(userIDs.get(1), Set.of(a));
+		store.deleteUser(userIDs.get(2));
+		String inserted = store.insertUser("late", Set.of(b)).getID();
+		Map<String, String> before = dump(store);
+		store.close();
+
+		LogUserTagStore reopened = new LogUserTagStore(directory, true);
+		try {
+			assertEquals(before, dump(reopened));
+			assertEquals(TagSet.of(a, b), reopened.getTagsForUser(userIDs.get(0)));
+			assertEquals(TagSet.EMPTY, reopened.getTagsForUser(userIDs.get(1)));
+			assertNull(reopened.getUser(userIDs.get(2)));
+			assertEquals(TagSet.of(b), reopened.getTagsForUser(inserted));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	static Map<String, String> dump(UserTagStore store) {
+		Map<String, String> users = new TreeMap<>();
+		for (User user : store.getAllUsers()) {
+			users.put(user.getID(), user.getName() + " " + user.getLoadedTags());
+		}
+		return users;
+	}
+}
@@ -0,0 +1,152 @@
+package tagging.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.function.BooleanSupplier;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import tagging.AsyncUserTagStore;
+import tagging.InMemoryUserTagStore;
+import tagging.Tag;
+import tagging.TagMutation;
+import tagging.TagMutationResult;
+import tagging.TagSet;
+import tagging.consistency.ConsistencyRuleViolationException;
+import tagging.consistency.NANDConsistencyRule;
+
+class WriteAheadUserTagStoreTest {
+
+	/**
+	 * A store whose bulk writes fail while it is down.
+	 */
+	private static final class FlakyStore extends InMemoryUserTagStore {
+		volatile boolean down;
+
+		@Override
+		public TagMutationResult applyTagMutations(List<TagMutation> mutations) {
+			if (down) {
+				throw new IllegalStateException("The store is down.");
+			}
+			return super.applyTagMutations(mutations);
+		}
+	}
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void showsLoggedChangesAndDrainsThem() throws Exception {
+		FlakyStore store = new FlakyStore();
+		Tag a = store.insertTag("wal-a");
+		Tag b = store.insertTag("wal-b");
+		String userID = store.insertUser("alice", Set.of(a)).getID();
+		WriteAheadUserTagStore log = new WriteAheadUserTagStore(store, directory, 100, 16);
+		try {
+			store.down = true;
+			assertTrue(log.addTagsToUser(userID, Set.of(b)));
+			assertFalse(log.addTagsToUser(userID, Set.of(b)));
+			assertTrue(log.removeTagsFromUser(userID, Set.of(a)));
+
+			assertEquals(TagSet.of(b), log.getTagsForUser(userID));
+			assertEquals(TagSet.of(b), log.getUser(userID).getLoadedTags());
+			assertEquals(TagSet.of(a), store.getTagsForUser(userID));
+
+			store.down = false;
+			awaitUntil(() -> store.getTagsForUser(userID).equals(TagSet.of(b)));
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void reopeningWritesTheChangesAfterTheCheckpoint() throws Exception {
+		FlakyStore store = new FlakyStore();
+		Tag a = store.insertTag("checkpoint-a");
+		Tag b = store.insertTag("checkpoint-b");
+		String drained = store.insertUser("drained", Set.of()).getID();
+		String undrained = store.insertUser("undrained", Set.of()).getID();
+		WriteAheadUserTagStore log = new WriteAheadUserTagStore(store, directory, 100, 16);
+		log.addTagsToUser(drained, Set.of(a));
+		awaitUntil(() -> store.getTagsForUser(drained).equals(TagSet.of(a)));
+		store.down = true;
+		log.addTagsToUser(undrained, Set.of(a, b));
+		log.removeTagsFromUser(undrained, Set.of(a));
+		// Gives up on the store, leaving the changes in the log.
+		log.close();
+		store.down = false;
+		// A change the checkpoint covers is not written again.
+		store.removeTagsFromUser(drained, Set.of(a));
+
+		new WriteAheadUserTagStore(store, directory, 100, 16).close();
+
+		assertEquals(TagSet.of(b), store.getTagsForUser(undrained));
+		assertEquals(TagSet.EMPTY, store.getTagsForUser(drained));
+	}
+
+	@Test
+	void asynchronousViewLogsChanges() throws Exception {
+		FlakyStore store = new FlakyStore();
+		Tag a = store.insertTag("async-a");
+		Tag b = store.insertTag("async-b");
+		String userID = store.insertUser("carol", Set.of(a)).getID();
+		WriteAheadUserTagStore log = new WriteAheadUserTagStore(store, directory, 100, 16);
+		try {
+			AsyncUserTagStore async = log.async();
+			assertSame(async, log.async());
+
+			NANDConsistencyRule rule = new NANDConsistencyRule(a, b);
+			CompletionException failure = assertThrows(CompletionException.class,
+					() -> async.addTagsToUser(userID, Set.of(b), List.of(rule)).join());
+			assertInstanceOf(ConsistencyRuleViolationException.class, failure.getCause());
+
+			assertTrue(async.removeTagsFromUser(userID, Set.of(a), List.of(rule)).join());
+			assertTrue(async.addTagsToUser(userID, Set.of(b), List.of(rule)).join());
+			assertFalse(async.addTagsToUser(new ObjectId().toHexString(), Set.of(b), List.of()).join());
+			assertEquals(TagSet.of(b), async.getTagsForUser(userID).join());
+
+			assertTrue(async.deleteUser(userID).join());
+			assertFalse(async.addTagsToUser(userID, Set.of(a), List.of()).join());
+			assertEquals(Map.of(), store.getUsers(List.of(userID)));
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void rejectsMalformedIDs() throws IOException {
+		WriteAheadUserTagStore log = new WriteAheadUserTagStore(new InMemoryUserTagStore(), directory, 100, 16);
+		try {
+			assertThrows(IllegalArgumentException.class, () -> log.getTagsForUser("nobody"));
+			assertThrows(IllegalArgumentException.class, () -> log.async().getTagsForUser("nobody"));
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Waits for the drainer to write to the store.
+	 */
+	private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("The store was not written.");
+			}
+			Thread.sleep(10);
+		}
+	}
+}